@@ -12,7 +12,6 @@ import android.view.View.VISIBLE
 import android.view.ViewGroup
 import android.widget.*
 import androidx.fragment.app.Fragment
-import com.bumptech.glide.Glide
 import com.example.opencameratesting.opencamera.CameraVideoHelper
 import com.google.android.gms.common.api.ApiException
 import com.google.android.gms.common.api.ResolvableApiException
@@ -48,9 +47,11 @@ class CameraFragment : Fragment(), MainActivity.PermissionListener {
                     activity.let {
                         showScreen()
                         Toast.makeText(it, "${imageFile.absolutePath}", Toast.LENGTH_SHORT).show()
-                        Glide.with(it).load(imageFile).into(showImage)
                     }
                 }
+                .setThumbnailListener {
+                    showImage.setImageBitmap(it)
+                }
                 .setCameraVideoErrorListener {
                     Log.d(TAG, "Camera Video Error: $it")
                 }
@@ -233,7 +234,6 @@ class CameraFragment : Fragment(), MainActivity.PermissionListener {
             activity.let {
                 showScreen()
                 Toast.makeText(it, "${imageFile.absolutePath}", Toast.LENGTH_SHORT).show()
-                Glide.with(it).load(imageFile).into(showImage)
             }
         }
     }
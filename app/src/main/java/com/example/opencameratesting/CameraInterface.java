@@ -1,13 +1,18 @@
 package com.example.opencameratesting;
 
+import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.location.Location;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.util.Pair;
@@ -15,14 +20,26 @@ import android.view.MotionEvent;
 
 import androidx.fragment.app.Fragment;
 
+import com.example.opencameratesting.core.FrameStatsRing;
+import com.example.opencameratesting.opencamera.BurstTelemetry;
+import com.example.opencameratesting.opencamera.CameraController.CameraController;
+import com.example.opencameratesting.opencamera.CameraController.ImageBuffer;
+import com.example.opencameratesting.opencamera.CameraController.JpegImage;
 import com.example.opencameratesting.opencamera.CameraController.RawImage;
 import com.example.opencameratesting.opencamera.CameraVideoHelper;
+import com.example.opencameratesting.opencamera.CaptureLatencyTracker;
+import com.example.opencameratesting.opencamera.DngWriter;
 import com.example.opencameratesting.opencamera.GyroSensor;
+import com.example.opencameratesting.opencamera.ImageSaver;
 import com.example.opencameratesting.opencamera.LocationSupplier;
+import com.example.opencameratesting.opencamera.MediaWriter;
 import com.example.opencameratesting.opencamera.MyDebug;
+import com.example.opencameratesting.opencamera.PhotoProcessor;
 import com.example.opencameratesting.opencamera.PreferenceKeys;
 import com.example.opencameratesting.opencamera.Preview.BasicApplicationInterface;
+import com.example.opencameratesting.opencamera.Preview.Preview;
 import com.example.opencameratesting.opencamera.Preview.VideoProfile;
+import com.example.opencameratesting.opencamera.ThumbnailDecoder;
 import com.example.opencameratesting.opencamera.UI.DrawPreview;
 
 import java.io.File;
@@ -34,6 +51,8 @@ import java.util.List;
 public class CameraInterface extends BasicApplicationInterface {
     private static final String TAG = "CameraInterface";
 
+    private static final int max_image_queue_requests = 8; // max number of images waiting to be saved, see ImageSaver
+
     private String displayMode = "";
 
     // note, okay to change the order of enums in future versions, as getPhotoMode() does not rely on the order for the saved photo mode
@@ -52,6 +71,14 @@ public class CameraInterface extends BasicApplicationInterface {
     private final LocationSupplier locationSupplier;
     private final DrawPreview drawPreview;
     private final GyroSensor gyroSensor;
+    private final ImageSaver imageSaver;
+    private final DngWriter dngWriter;
+    private final ThumbnailDecoder thumbnailDecoder;
+    private final PhotoProcessor photoProcessor = new PhotoProcessor();
+    private final CaptureLatencyTracker latencyTracker = new CaptureLatencyTracker();
+    private final BurstTelemetry burstTelemetry = new BurstTelemetry();
+    private final FrameStatsRing frameStats = new FrameStatsRing(1800); // about a minute at 30fps
+    private final Handler main_handler = new Handler(Looper.getMainLooper()); // for reporting errors from background threads
     // store to avoid calling PreferenceManager.getDefaultSharedPreferences() repeatedly
     private final SharedPreferences sharedPreferences;
 
@@ -59,12 +86,21 @@ public class CameraInterface extends BasicApplicationInterface {
     // camera properties which are saved in bundle, but not stored in preferences (so will be remembered if the app goes into background, but not after restart)
     private int cameraId = 0;
     private int n_capture_images = 0; // how many calls to onPictureTaken() since the last call to onCaptureStarted()
+    private boolean in_media_batch; // whether a MediaWriter batch has been started for the current capture
+    private boolean want_thumbnail = true; // whether the next image should be decoded for the thumbnail (only the first image of each capture is)
+    private int zsl_frames; // number of frames to keep for zero shutter lag, or 0 if disabled
+    private boolean in_nr_burst; // whether the images of the current capture are being merged for noise reduction
+    private File nr_file; // file to save the merged noise reduction image to
+    private boolean in_panorama; // whether a panorama is being taken, one photo at a time, until finishPanorama() is called
+    private File panorama_file; // file to save the panorama to
+    private float [] panorama_orientation; // device orientation when the current panorama photo was started
 
     private boolean used_front_screen_flash;
     private final Rect text_bounds = new Rect();
     private boolean isVideoMode = false;
     private String orientation = "landscape";
     private TakePhotoListener takePhotoListener;
+    private ThumbnailDecoder.Listener thumbnailListener;
     private CameraVideoErrorListener cameraVideoErrorListener;
 
     public CameraInterface(
@@ -77,6 +113,37 @@ public class CameraInterface extends BasicApplicationInterface {
         this.gyroSensor = new GyroSensor(cameraVideoHelper.getActivity());
         this.sharedPreferences = PreferenceManager.getDefaultSharedPreferences(cameraVideoHelper.getActivity());
         this.locationSupplier = new LocationSupplier(cameraVideoHelper.getActivity());
+        this.imageSaver = new ImageSaver(new ImageSaver.ImageWriter() {
+            @Override
+            public boolean writeImage(byte[] data, File file) {
+                return CameraInterface.this.cameraVideoHelper.saveImage(data, file);
+            }
+
+            @Override
+            public boolean writeImage(JpegImage jpeg_image, File file) {
+                return CameraInterface.this.cameraVideoHelper.saveImage(jpeg_image, file);
+            }
+        }, 1, max_image_queue_requests, ImageSaver.computeDefaultMaxQueueBytes());
+        // the savers report each image to the tracker once written, including failures
+        this.imageSaver.setCaptureLatencyTracker(latencyTracker);
+        // RAW images are copied out of the ImageReader and encoded separately, so a slow DNG doesn't hold up the JPEGs
+        this.dngWriter = new DngWriter(new DngWriter.RawWriter() {
+            @Override
+            public boolean writeRaw(MediaWriter.Source source, File file) {
+                return CameraInterface.this.cameraVideoHelper.saveRaw(source, file);
+            }
+        }, 1, DngWriter.computeDefaultMaxBufferBytes());
+        this.dngWriter.setCaptureLatencyTracker(latencyTracker);
+        // decode thumbnails from the JPEG data we already have, rather than reading back the saved file
+        this.thumbnailDecoder = new ThumbnailDecoder(new ThumbnailDecoder.Listener() {
+            @Override
+            public void onThumbnail(Bitmap thumbnail) {
+                // the decoder reuses its bitmaps, so DrawPreview mustn't recycle them
+                drawPreview.updateThumbnail(thumbnail, false, true, false);
+                if( thumbnailListener != null )
+                    thumbnailListener.onThumbnail(thumbnail);
+            }
+        }, getThumbnailTargetSize());
         this.isVideoMode = isVideoMode;
         this.orientation = orientation;
 
@@ -87,6 +154,79 @@ public class CameraInterface extends BasicApplicationInterface {
         return gyroSensor;
     }
 
+    public ImageSaver getImageSaver() {
+        return imageSaver;
+    }
+
+    public DngWriter getDngWriter() {
+        return dngWriter;
+    }
+
+    public ThumbnailDecoder getThumbnailDecoder() {
+        return thumbnailDecoder;
+    }
+
+    /** Thumbnails are shown at up to screen size (e.g., when showing the last image), but don't
+     *  need to be any sharper than that, so use the short side of the screen as the target for the
+     *  long side of the thumbnail.
+     */
+    private static int getThumbnailTargetSize() {
+        Resources resources = Resources.getSystem();
+        return Math.min(resources.getDisplayMetrics().widthPixels, resources.getDisplayMetrics().heightPixels);
+    }
+
+    @Override
+    public CaptureLatencyTracker getCaptureLatencyTracker() {
+        return latencyTracker;
+    }
+
+    @Override
+    public BurstTelemetry getBurstTelemetry() {
+        return burstTelemetry;
+    }
+
+    @Override
+    public FrameStatsRing getFrameStats() {
+        return frameStats;
+    }
+
+    @Override
+    public int getZeroShutterLagFrames() {
+        return zsl_frames;
+    }
+
+    /** Sets how many recent full resolution frames to keep, so photos can be taken from the frame
+     *  closest to the shutter press (0 to disable). Takes effect when the camera is next opened.
+     */
+    public void setZeroShutterLagFrames(int zsl_frames) {
+        this.zsl_frames = zsl_frames;
+    }
+
+    /** Returns the latency in milliseconds from pressing the shutter to the supplied stage of
+     *  taking a photo, at the given percentile (e.g., 50, 95 or 99).
+     */
+    public long getCaptureLatencyMs(CaptureLatencyTracker.Stage stage, double percentile) {
+        return latencyTracker.getLatencyMs(stage, percentile);
+    }
+
+    /** Writes the capture latency statistics to the supplied file, see CaptureLatencyTracker.dump().
+     */
+    public void dumpCaptureLatencies(File file) throws IOException {
+        latencyTracker.dump(file);
+    }
+
+    /** Writes the burst statistics to the supplied file, see BurstTelemetry.dump().
+     */
+    public void dumpBurstTelemetry(File file) throws IOException {
+        burstTelemetry.dump(file);
+    }
+
+    /** Writes the statistics of recent frames to the supplied file, see FrameStatsRing.dump().
+     */
+    public void dumpFrameStats(File file) throws IOException {
+        frameStats.dump(file);
+    }
+
     public enum Alignment {
         ALIGNMENT_TOP,
         ALIGNMENT_CENTRE,
@@ -179,6 +319,15 @@ public class CameraInterface extends BasicApplicationInterface {
      *  the CameraController is set up, and we don't always re-setup the camera when switching between photo and video modes.
      */
     public PhotoMode getPhotoMode() {
+        String photo_mode_pref = sharedPreferences.getString(PreferenceKeys.PhotoModePreferenceKey, "preference_photo_mode_std");
+        if( photo_mode_pref.equals("preference_photo_mode_dro") )
+            return PhotoMode.DRO;
+        if( photo_mode_pref.equals("preference_photo_mode_hdr") )
+            return PhotoMode.HDR;
+        if( photo_mode_pref.equals("preference_photo_mode_noise_reduction") )
+            return PhotoMode.NoiseReduction;
+        if( photo_mode_pref.equals("preference_photo_mode_panorama") )
+            return PhotoMode.Panorama;
         return PhotoMode.Standard;
     }
 
@@ -190,6 +339,13 @@ public class CameraInterface extends BasicApplicationInterface {
         this.takePhotoListener = listener;
     }
 
+    /** Sets a listener to be passed the thumbnail of each photo, on the UI thread. The bitmap is only
+     *  valid until the next call, see ThumbnailDecoder.
+     */
+    public void setThumbnailListener(ThumbnailDecoder.Listener listener) {
+        this.thumbnailListener = listener;
+    }
+
     public void setCameraVideoErrorListener(CameraVideoErrorListener listener) {
         this.cameraVideoErrorListener = listener;
     }
@@ -473,12 +629,31 @@ public class CameraInterface extends BasicApplicationInterface {
 
     @Override
     public boolean canTakeNewPhoto() {
-        return super.canTakeNewPhoto();
+        if( MyDebug.LOG )
+            Log.d(TAG, "canTakeNewPhoto");
+        boolean has_raw = getRawPref() == RawPref.RAWPREF_JPEG_DNG;
+        int n_jpegs = 1;
+        if( isExpoBracketingPref() ) {
+            n_jpegs = getPhotoMode() == PhotoMode.HDR ? 1 : getExpoBracketingNImagesPref(); // hdr returns a single (merged) image
+        }
+        else if( isFocusBracketingPref() ) {
+            // focus bracketing waits for space via imageQueueWouldBlock() between each image, so only need room for the first
+            n_jpegs = 1;
+        }
+        else if( isCameraBurstPref() ) {
+            n_jpegs = getBurstForNoiseReduction() ? 1 : getBurstNImages(); // noise reduction returns a single (merged) image
+        }
+        boolean would_block = imageQueueWouldBlock(has_raw, n_jpegs);
+        if( MyDebug.LOG )
+            Log.d(TAG, "n_jpegs: " + n_jpegs + " , would_block: " + would_block);
+        return !would_block;
     }
 
     @Override
     public boolean imageQueueWouldBlock(boolean has_raw, int n_jpegs) {
-        return super.imageQueueWouldBlock(has_raw, n_jpegs);
+        // photos still being created by photoProcessor (e.g., hdr or noise reduction) will need saving too
+        int n_processing = photoProcessor.getNPendingResults();
+        return photoProcessor.queueWouldBlock() || imageSaver.queueWouldBlock(has_raw, n_jpegs + n_processing) || ( has_raw && dngWriter.queueWouldBlock() );
     }
 
     @Override
@@ -493,16 +668,20 @@ public class CameraInterface extends BasicApplicationInterface {
 
     @Override
     public boolean isExpoBracketingPref() {
-        return super.isExpoBracketingPref();
+        return getPhotoMode() == PhotoMode.HDR || super.isExpoBracketingPref();
     }
 
     @Override
     public int getExpoBracketingNImagesPref() {
+        if( getPhotoMode() == PhotoMode.HDR )
+            return 3;
         return super.getExpoBracketingNImagesPref();
     }
 
     @Override
     public double getExpoBracketingStopsPref() {
+        if( getPhotoMode() == PhotoMode.HDR )
+            return 2.0;
         return super.getExpoBracketingStopsPref();
     }
 
@@ -523,7 +702,7 @@ public class CameraInterface extends BasicApplicationInterface {
 
     @Override
     public boolean isCameraBurstPref() {
-        return super.isCameraBurstPref();
+        return getPhotoMode() == PhotoMode.NoiseReduction || super.isCameraBurstPref();
     }
 
     @Override
@@ -533,7 +712,7 @@ public class CameraInterface extends BasicApplicationInterface {
 
     @Override
     public boolean getBurstForNoiseReduction() {
-        return super.getBurstForNoiseReduction();
+        return getPhotoMode() == PhotoMode.NoiseReduction;
     }
 
     @Override
@@ -543,7 +722,8 @@ public class CameraInterface extends BasicApplicationInterface {
 
     @Override
     public boolean getOptimiseAEForDROPref() {
-        return super.getOptimiseAEForDROPref();
+        // DRO brightens the shadows, so allow the camera to expose for the highlights
+        return getPhotoMode() == PhotoMode.DRO || super.getOptimiseAEForDROPref();
     }
 
     @Override
@@ -571,6 +751,12 @@ public class CameraInterface extends BasicApplicationInterface {
         return super.usePhotoVideoRecording();
     }
 
+    @Override
+    public boolean useJpegImageCallback() {
+        // write the JPEG straight from the ImageReader's buffer, rather than copying to a byte array first
+        return true;
+    }
+
     @Override
     public boolean isTestAlwaysFocus() {
         return super.isTestAlwaysFocus();
@@ -632,6 +818,8 @@ public class CameraInterface extends BasicApplicationInterface {
     @Override
     public void onPhotoError() {
         super.onPhotoError();
+        in_nr_burst = false;
+        endMediaBatch();
         cameraVideoErrorListener.errOccurListener(
                 "callback for failing to take a photo");
     }
@@ -820,6 +1008,8 @@ public class CameraInterface extends BasicApplicationInterface {
         if( MyDebug.LOG )
             Log.d(TAG, "reset");
         this.zoom_factor = 0;
+        // the panorama's orientations are only valid for the camera it was started with
+        finishPanorama();
     }
 
     @Override
@@ -843,25 +1033,278 @@ public class CameraInterface extends BasicApplicationInterface {
     }
 
     @Override
-    public boolean onBurstPictureTaken(List<byte[]> images, Date current_date) {
+    public boolean onBurstPictureTaken(List<ImageBuffer> images, Date current_date) {
+        if( getBurstForNoiseReduction() ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "merge noise reduction burst of " + images.size());
+            n_capture_images += images.size();
+            photoProcessor.startNoiseReduction();
+            for(ImageBuffer image : images) {
+                photoProcessor.addNoiseReductionFrame(image);
+            }
+            finishNoiseReduction(cameraVideoHelper.getImageFile());
+            return true;
+        }
+        else if( getPhotoMode() == PhotoMode.HDR ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "merge hdr images: " + images.size());
+            n_capture_images += images.size();
+            photoProcessor.processHdr(images, getExpoBracketingStopsPref(), getImageQualityPref(), createProcessedImageCallback(cameraVideoHelper.getImageFile(), "failed to merge hdr images"));
+            return true;
+        }
         return super.onBurstPictureTaken(images, current_date);
     }
 
+    @Override
+    public boolean useStreamingBurst() {
+        // noise reduction merges the images one at a time as they arrive, so doesn't need the whole burst at once
+        return getBurstForNoiseReduction();
+    }
+
+    @Override
+    public boolean onBurstPictureFrame(ImageBuffer image, Date current_date, int burst_id, int index, int n_total) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "onBurstPictureFrame: " + index + " of " + n_total);
+        n_capture_images++;
+        if( in_nr_burst ) {
+            // the buffer goes back to the camera's pool once it's been merged
+            photoProcessor.addNoiseReductionFrame(image);
+            return true;
+        }
+        // only noise reduction bursts are streamed
+        Log.e(TAG, "unexpected streaming burst image");
+        image.release();
+        return false;
+    }
+
+    @Override
+    public boolean onBurstPictureCompleted(Date current_date, int burst_id, int n_total) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "onBurstPictureCompleted: " + n_total);
+        // the merged image is saved from onPictureCompleted()
+        return true;
+    }
+
+    /** Whether the photo being taken should be processed with DRO: not for photo snapshots while
+     *  recording video.
+     */
+    private boolean isDroPhoto() {
+        return getPhotoMode() == PhotoMode.DRO && !cameraVideoHelper.getPreview().isVideo();
+    }
+
+    private void addPanoramaFrame(ImageBuffer image) {
+        Preview preview = cameraVideoHelper.getPreview();
+        CameraController camera_controller = preview.getCameraController();
+        int camera_orientation = camera_controller != null ? camera_controller.getCameraOrientation() : 0;
+        photoProcessor.addPanoramaFrame(image, panorama_orientation, camera_orientation, preview.getViewAngleX(false));
+    }
+
+    /** Whether a panorama is being taken.
+     */
+    public boolean isPanoramaInProgress() {
+        return in_panorama;
+    }
+
+    /** Finishes the panorama being taken, stitching the photos taken since the first photo in
+     *  panorama mode, and saves it. Also called when leaving panorama mode, or switching camera.
+     */
+    public void finishPanorama() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "finishPanorama");
+        if( !in_panorama )
+            return;
+        if( !in_media_batch ) {
+            in_media_batch = true;
+            cameraVideoHelper.getMediaWriter().beginBatch();
+        }
+        want_thumbnail = true;
+        queueFinishPanorama();
+        photoProcessor.runWhenIdle(new Runnable() {
+            @Override
+            public void run() {
+                onCaptureFinished();
+            }
+        });
+    }
+
+    /** Stops recording the panorama, and queues it to be stitched and saved.
+     */
+    private void queueFinishPanorama() {
+        in_panorama = false;
+        gyroSensor.stopRecording();
+        photoProcessor.finishPanorama(getImageQualityPref(), createProcessedImageCallback(panorama_file, "failed to stitch panorama"));
+    }
+
+    /** Abandons the panorama being taken, without saving it.
+     */
+    public void cancelPanorama() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "cancelPanorama");
+        if( !in_panorama )
+            return;
+        in_panorama = false;
+        gyroSensor.stopRecording();
+        photoProcessor.cancelPanorama();
+    }
+
+    /** Saves the merged noise reduction image once the images queued so far have been merged.
+     */
+    private void finishNoiseReduction(final File file) {
+        photoProcessor.finishNoiseReduction(getImageQualityPref(), createProcessedImageCallback(file, "failed to merge noise reduction images"));
+    }
+
+    /** Returns a callback that saves an image created by photoProcessor to the supplied file.
+     */
+    private PhotoProcessor.ResultCallback createProcessedImageCallback(final File file, final String error_message) {
+        return new PhotoProcessor.ResultCallback() {
+            @Override
+            public void onResult(byte[] jpeg) {
+                if( jpeg == null ) {
+                    Log.e(TAG, error_message);
+                    reportError(error_message);
+                    return;
+                }
+                if( want_thumbnail ) {
+                    want_thumbnail = false;
+                    thumbnailDecoder.decode(jpeg);
+                }
+                imageSaver.saveImageJpeg(jpeg, file, latencyTracker.imageQueued());
+            }
+        };
+    }
+
     @Override
     public boolean onRawPictureTaken(RawImage raw_image, Date current_date) {
-        return super.onRawPictureTaken(raw_image, current_date);
+        if( MyDebug.LOG )
+            Log.d(TAG, "onRawPictureTaken");
+        // the DNG writer copies the image and releases it back to the ImageReader, unless it's out of
+        // memory budget, in which case it may only hold as many images as the camera can spare
+        CameraController camera_controller = cameraVideoHelper.getPreview().getCameraController();
+        if( camera_controller != null )
+            dngWriter.setMaxHeldImages(camera_controller.getMaxHeldRawImages());
+        dngWriter.saveRaw(raw_image, getRawFile(cameraVideoHelper.getImageFile()), latencyTracker.imageQueued());
+        return true;
+    }
+
+    /** Returns the file to save the DNG to, alongside the supplied JPEG file.
+     */
+    private static File getRawFile(File image_file) {
+        String name = image_file.getName();
+        int index = name.lastIndexOf('.');
+        if( index != -1 )
+            name = name.substring(0, index);
+        return new File(image_file.getParentFile(), name + ".dng");
     }
 
     @Override
     public void onCaptureStarted() {
         super.onCaptureStarted();
+        want_thumbnail = true;
+        CameraController camera_controller = cameraVideoHelper.getPreview().getCameraController();
+        // for noise reduction, the burst images are passed one at a time to onPictureTaken(), and merged as they arrive
+        in_nr_burst = getBurstForNoiseReduction() && camera_controller != null && camera_controller.getBurstType() == CameraController.BurstType.BURSTTYPE_NORMAL;
+        if( in_nr_burst ) {
+            nr_file = cameraVideoHelper.getImageFile();
+            photoProcessor.startNoiseReduction();
+        }
+        boolean panorama_photo = getPhotoMode() == PhotoMode.Panorama && !cameraVideoHelper.getPreview().isVideo();
+        if( in_panorama && !panorama_photo ) {
+            // no longer in panorama mode, so save the panorama taken so far, as part of this capture
+            queueFinishPanorama();
+        }
+        if( panorama_photo ) {
+            if( !in_panorama ) {
+                // orientations are measured relative to the first photo
+                in_panorama = true;
+                panorama_file = cameraVideoHelper.getImageFile();
+                gyroSensor.startRecording();
+                photoProcessor.startPanorama();
+            }
+            panorama_orientation = new float[9];
+            gyroSensor.getRotationMatrix(panorama_orientation);
+        }
+        if( !in_media_batch ) {
+            // group the images from this capture (e.g., a burst), so they can be synced together
+            in_media_batch = true;
+            cameraVideoHelper.getMediaWriter().beginBatch();
+        }
+    }
+
+    /** Ends the MediaWriter batch for the current capture, once all its images have been written.
+     *  Must be called before notifying takePhotoListener, so the files are under their final names.
+     */
+    private void endMediaBatch() {
+        if( !in_media_batch )
+            return;
+        in_media_batch = false;
+        final MediaWriter mediaWriter = cameraVideoHelper.getMediaWriter();
+        // endBatch() syncs and renames the files, so must not be run on this thread
+        imageSaver.runWhenIdleInBackground(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mediaWriter.endBatch();
+                }
+                catch(IOException e) {
+                    e.printStackTrace();
+                    reportError("failed to save images: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /** Passes an error to cameraVideoErrorListener on the UI thread; may be called from any thread.
+     */
+    private void reportError(final String message) {
+        main_handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if( cameraVideoErrorListener != null )
+                    cameraVideoErrorListener.errOccurListener(message);
+            }
+        });
     }
 
     @Override
     public void onPictureCompleted() {
         super.onPictureCompleted();
+        if( in_nr_burst ) {
+            in_nr_burst = false;
+            finishNoiseReduction(nr_file);
+        }
+        // processed images (e.g., noise reduction) are still being created in the background, and are part of this capture
+        photoProcessor.runWhenIdle(new Runnable() {
+            @Override
+            public void run() {
+                onCaptureFinished();
+            }
+        });
+    }
+
+    /** Called once all the images for a capture have been queued for saving.
+     */
+    private void onCaptureFinished() {
+        endMediaBatch();
         if(takePhotoListener != null) {
-            takePhotoListener.onTakePhotoFinished();
+            // images are saved in the background, so only report the photo as finished once it's on disk
+            final TakePhotoListener listener = takePhotoListener;
+            imageSaver.runWhenIdle(new Runnable() {
+                @Override
+                public void run() {
+                    Activity activity = cameraVideoHelper.getActivity();
+                    if( activity == null ) {
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "activity no longer available");
+                        return;
+                    }
+                    activity.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onTakePhotoFinished();
+                        }
+                    });
+                }
+            });
         }
     }
 
@@ -929,12 +1372,75 @@ public class CameraInterface extends BasicApplicationInterface {
         if( MyDebug.LOG )
             Log.d(TAG, "n_capture_images is now " + n_capture_images);
 
-        boolean success = cameraVideoHelper.saveImage(data);
+        if( in_nr_burst ) {
+            photoProcessor.addNoiseReductionFrame(ImageBuffer.wrap(data));
+            return true;
+        }
+        if( isDroPhoto() ) {
+            photoProcessor.processDro(ImageBuffer.wrap(data), getImageQualityPref(), createProcessedImageCallback(cameraVideoHelper.getImageFile(), "failed to process dro image"));
+            return true;
+        }
+        if( in_panorama ) {
+            addPanoramaFrame(ImageBuffer.wrap(data));
+            return true;
+        }
+        if( want_thumbnail ) {
+            want_thumbnail = false;
+            thumbnailDecoder.decode(data);
+        }
+        // n.b., the target file is fixed now, as it may be changed before the image is saved in the background
+        imageSaver.saveImageJpeg(data, cameraVideoHelper.getImageFile(), latencyTracker.imageQueued());
 
         if( MyDebug.LOG )
-            Log.d(TAG, "onPictureTaken complete, success: " + success);
+            Log.d(TAG, "onPictureTaken complete");
 
-        return success;
+        return true;
+    }
+
+    @Override
+    public boolean onJpegPictureTaken(JpegImage jpeg_image, Date current_date) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "onJpegPictureTaken");
+
+        n_capture_images++;
+        if( MyDebug.LOG )
+            Log.d(TAG, "n_capture_images is now " + n_capture_images);
+
+        if( in_nr_burst ) {
+            // copy, so the image can go back to the camera straight away, rather than after it's been merged
+            byte [] data = jpeg_image.getBytes();
+            jpeg_image.close();
+            photoProcessor.addNoiseReductionFrame(ImageBuffer.wrap(data));
+            return true;
+        }
+        if( isDroPhoto() ) {
+            byte [] data = jpeg_image.getBytes();
+            jpeg_image.close();
+            photoProcessor.processDro(ImageBuffer.wrap(data), getImageQualityPref(), createProcessedImageCallback(cameraVideoHelper.getImageFile(), "failed to process dro image"));
+            return true;
+        }
+        if( in_panorama ) {
+            byte [] data = jpeg_image.getBytes();
+            jpeg_image.close();
+            addPanoramaFrame(ImageBuffer.wrap(data));
+            return true;
+        }
+        // the image saver only releases the image back to the ImageReader once it's been written, so
+        // only let it hold as many images as the camera can spare
+        CameraController camera_controller = cameraVideoHelper.getPreview().getCameraController();
+        if( camera_controller != null )
+            imageSaver.setMaxHeldImages(camera_controller.getMaxHeldJpegImages());
+        if( want_thumbnail ) {
+            want_thumbnail = false;
+            // must be before queuing the image, as the image saver may close it
+            thumbnailDecoder.decode(jpeg_image);
+        }
+        imageSaver.saveImageJpeg(jpeg_image, cameraVideoHelper.getImageFile(), latencyTracker.imageQueued());
+
+        if( MyDebug.LOG )
+            Log.d(TAG, "onJpegPictureTaken complete");
+
+        return true;
     }
 
     public void onDestroy() {
@@ -943,6 +1449,27 @@ public class CameraInterface extends BasicApplicationInterface {
         if( drawPreview != null ) {
             drawPreview.onDestroy();
         }
+        thumbnailDecoder.onDestroy();
+        if( in_panorama ) {
+            // save the panorama taken so far; photoProcessor.onDestroy() waits for it to be stitched
+            // and queued for saving
+            want_thumbnail = false;
+            queueFinishPanorama();
+        }
+        photoProcessor.onDestroy();
+        // make sure any queued images are saved
+        imageSaver.onDestroy();
+        dngWriter.onDestroy();
+        if( in_media_batch ) {
+            // the capture won't finish now, so don't leave its files under temporary names
+            in_media_batch = false;
+            try {
+                cameraVideoHelper.getMediaWriter().endBatch();
+            }
+            catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     public interface TakePhotoListener {
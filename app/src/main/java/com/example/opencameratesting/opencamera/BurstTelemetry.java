@@ -0,0 +1,346 @@
+package com.example.opencameratesting.opencamera;
+
+import android.os.Build;
+import android.util.Log;
+
+import com.example.opencameratesting.opencamera.CameraController.CameraController;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/** Records how each burst went: the time from the burst being requested to the first frame
+ *  starting, the intervals between frames (from the sensor timestamps), frames that failed or
+ *  whose buffers were lost, and the total time taken; and keeps per-BurstType histograms, so
+ *  sustained burst frame rates can be compared across devices.
+ *  Events may be recorded from any thread; those outside a burst are ignored.
+ */
+public class BurstTelemetry {
+	private static final String TAG = "BurstTelemetry";
+
+	private final static int max_recent_bursts_c = 256; // number of bursts kept for getRecentBursts() and dump()
+
+	/** The telemetry for a single burst.
+	 */
+	public static class Burst {
+		private final CameraController.BurstType burst_type;
+		private final int n_requested; // 0 if not known (e.g., for continuous bursts)
+		private final long request_time_ns;
+		private long first_start_time_ns; // when the first frame started, from System.nanoTime()
+		private long end_time_ns;
+		private long first_timestamp_ns; // sensor timestamps of the first and last frames
+		private long last_timestamp_ns;
+		private long min_interval_ns = Long.MAX_VALUE;
+		private long max_interval_ns;
+		private int n_started;
+		private int n_images;
+		private int n_failed;
+		private int n_lost_buffers;
+		private int n_aborted_sequences;
+		private boolean completed;
+
+		Burst(CameraController.BurstType burst_type, int n_requested, long request_time_ns) {
+			this.burst_type = burst_type;
+			this.n_requested = n_requested;
+			this.request_time_ns = request_time_ns;
+		}
+
+		public CameraController.BurstType getBurstType() {
+			return burst_type;
+		}
+
+		public int getNRequested() {
+			return n_requested;
+		}
+
+		public int getNStarted() {
+			return n_started;
+		}
+
+		public int getNImages() {
+			return n_images;
+		}
+
+		public int getNFailed() {
+			return n_failed;
+		}
+
+		public int getNLostBuffers() {
+			return n_lost_buffers;
+		}
+
+		public int getNAbortedSequences() {
+			return n_aborted_sequences;
+		}
+
+		/** Whether the burst finished normally, rather than being abandoned for a new photo.
+		 */
+		public boolean isCompleted() {
+			return completed;
+		}
+
+		/** Returns the time from the burst being requested to the first frame starting, in
+		 *  milliseconds, or -1 if no frames started.
+		 */
+		public double getStartLatencyMs() {
+			return n_started == 0 ? -1.0 : (first_start_time_ns - request_time_ns)/1000000.0;
+		}
+
+		/** Returns the time from the burst being requested to it finishing, in milliseconds.
+		 */
+		public double getWallTimeMs() {
+			return (end_time_ns - request_time_ns)/1000000.0;
+		}
+
+		/** Returns the mean interval between frames, from the sensor timestamps, in milliseconds,
+		 *  or 0 if fewer than 2 frames started.
+		 */
+		public double getMeanIntervalMs() {
+			return n_started < 2 ? 0.0 : (last_timestamp_ns - first_timestamp_ns)/(1000000.0*(n_started-1));
+		}
+
+		public double getMinIntervalMs() {
+			return n_started < 2 ? 0.0 : min_interval_ns/1000000.0;
+		}
+
+		public double getMaxIntervalMs() {
+			return max_interval_ns/1000000.0;
+		}
+
+		/** Returns the sustained frame rate, from the sensor timestamps, or 0 if fewer than 2 frames
+		 *  started.
+		 */
+		public double getFps() {
+			return n_started < 2 ? 0.0 : 1.0e9*(n_started-1)/(last_timestamp_ns - first_timestamp_ns);
+		}
+	}
+
+	/** Totals over all bursts of one BurstType.
+	 */
+	private static class TypeStats {
+		final LatencyHistogram start_latency = new LatencyHistogram();
+		final LatencyHistogram interval = new LatencyHistogram();
+		final LatencyHistogram wall_time = new LatencyHistogram();
+		int n_bursts;
+		int n_incomplete;
+		long n_intervals;
+		long total_interval_ns;
+		long n_started;
+		long n_images;
+		long n_failed;
+		long n_lost_buffers;
+		long n_aborted_sequences;
+	}
+
+	private final TypeStats [] type_stats = new TypeStats[CameraController.BurstType.values().length];
+	private final ArrayDeque<Burst> recent_bursts = new ArrayDeque<>();
+	private Burst current_burst;
+
+	public BurstTelemetry() {
+		for(int i=0;i<type_stats.length;i++) {
+			type_stats[i] = new TypeStats();
+		}
+	}
+
+	/** Call when a burst is requested. If a previous burst hasn't been ended, it's recorded as
+	 *  incomplete.
+	 * @param n_requested The number of images requested, or 0 if not known.
+	 */
+	public synchronized void startBurst(CameraController.BurstType burst_type, int n_requested) {
+		if( current_burst != null )
+			finishBurst(false);
+		current_burst = new Burst(burst_type, n_requested, System.nanoTime());
+		if( MyDebug.LOG )
+			Log.d(TAG, "startBurst: " + burst_type + " n_requested: " + n_requested);
+	}
+
+	/** Call when a frame of the burst starts exposing.
+	 * @param sensor_timestamp_ns The sensor timestamp of the frame.
+	 */
+	public synchronized void frameStarted(long sensor_timestamp_ns) {
+		Burst burst = current_burst;
+		if( burst == null )
+			return;
+		TypeStats stats = type_stats[burst.burst_type.ordinal()];
+		if( burst.n_started == 0 ) {
+			burst.first_start_time_ns = System.nanoTime();
+			burst.first_timestamp_ns = sensor_timestamp_ns;
+			stats.start_latency.record((burst.first_start_time_ns - burst.request_time_ns)/1000000);
+		}
+		else {
+			long interval_ns = sensor_timestamp_ns - burst.last_timestamp_ns;
+			burst.min_interval_ns = Math.min(burst.min_interval_ns, interval_ns);
+			burst.max_interval_ns = Math.max(burst.max_interval_ns, interval_ns);
+			stats.interval.record(interval_ns/1000000);
+			stats.n_intervals++;
+			stats.total_interval_ns += interval_ns;
+		}
+		burst.last_timestamp_ns = sensor_timestamp_ns;
+		burst.n_started++;
+	}
+
+	/** Call when an image of the burst has been received.
+	 */
+	public synchronized void imageReceived() {
+		if( current_burst != null )
+			current_burst.n_images++;
+	}
+
+	/** Call when a frame of the burst failed (CameraCaptureSession.CaptureCallback.onCaptureFailed()).
+	 */
+	public synchronized void frameFailed() {
+		if( current_burst != null )
+			current_burst.n_failed++;
+	}
+
+	/** Call when an image buffer of the burst was lost (CameraCaptureSession.CaptureCallback.onCaptureBufferLost()).
+	 */
+	public synchronized void bufferLost() {
+		if( current_burst != null )
+			current_burst.n_lost_buffers++;
+	}
+
+	/** Call when a capture sequence of the burst was aborted (CameraCaptureSession.CaptureCallback.onCaptureSequenceAborted()).
+	 */
+	public synchronized void sequenceAborted() {
+		if( current_burst != null )
+			current_burst.n_aborted_sequences++;
+	}
+
+	/** Call when all the images of the burst have been received.
+	 */
+	public synchronized void endBurst() {
+		if( current_burst != null )
+			finishBurst(true);
+	}
+
+	/** Call when a burst is given up on, e.g., as a new photo is being taken. Has no effect if no
+	 *  burst is in progress.
+	 */
+	public synchronized void abandonBurst() {
+		if( current_burst != null )
+			finishBurst(false);
+	}
+
+	private void finishBurst(boolean completed) {
+		Burst burst = current_burst;
+		current_burst = null;
+		burst.completed = completed;
+		burst.end_time_ns = System.nanoTime();
+		TypeStats stats = type_stats[burst.burst_type.ordinal()];
+		stats.n_bursts++;
+		if( !completed )
+			stats.n_incomplete++;
+		stats.wall_time.record((burst.end_time_ns - burst.request_time_ns)/1000000);
+		stats.n_started += burst.n_started;
+		stats.n_images += burst.n_images;
+		stats.n_failed += burst.n_failed;
+		stats.n_lost_buffers += burst.n_lost_buffers;
+		stats.n_aborted_sequences += burst.n_aborted_sequences;
+		if( recent_bursts.size() >= max_recent_bursts_c )
+			recent_bursts.poll();
+		recent_bursts.add(burst);
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "burst " + (completed ? "completed" : "incomplete") + ": " + burst.burst_type);
+			Log.d(TAG, "images: " + burst.n_images + " of " + burst.n_requested + " , failed: " + burst.n_failed + " , lost buffers: " + burst.n_lost_buffers);
+			Log.d(TAG, "start latency ms: " + burst.getStartLatencyMs() + " , wall time ms: " + burst.getWallTimeMs() + " , fps: " + burst.getFps());
+		}
+	}
+
+	/** Returns the most recent bursts (up to max_recent_bursts_c), oldest first.
+	 */
+	public synchronized List<Burst> getRecentBursts() {
+		return new ArrayList<>(recent_bursts);
+	}
+
+	public synchronized int getNBursts(CameraController.BurstType burst_type) {
+		return type_stats[burst_type.ordinal()].n_bursts;
+	}
+
+	/** Returns the time from a burst being requested to its first frame starting, in milliseconds,
+	 *  at the given percentile (e.g., 50, 95 or 99).
+	 */
+	public synchronized long getStartLatencyMs(CameraController.BurstType burst_type, double percentile) {
+		return type_stats[burst_type.ordinal()].start_latency.getPercentileMs(percentile);
+	}
+
+	/** Returns the interval between frames, in milliseconds, at the given percentile.
+	 */
+	public synchronized long getIntervalMs(CameraController.BurstType burst_type, double percentile) {
+		return type_stats[burst_type.ordinal()].interval.getPercentileMs(percentile);
+	}
+
+	/** Returns the total time of a burst, in milliseconds, at the given percentile.
+	 */
+	public synchronized long getWallTimeMs(CameraController.BurstType burst_type, double percentile) {
+		return type_stats[burst_type.ordinal()].wall_time.getPercentileMs(percentile);
+	}
+
+	/** Returns the sustained frame rate over all bursts of the supplied type, from the sensor
+	 *  timestamps, or 0 if not known.
+	 */
+	public synchronized double getMeanFps(CameraController.BurstType burst_type) {
+		TypeStats stats = type_stats[burst_type.ordinal()];
+		return stats.total_interval_ns == 0 ? 0.0 : 1.0e9*stats.n_intervals/stats.total_interval_ns;
+	}
+
+	public synchronized long getNFailed(CameraController.BurstType burst_type) {
+		return type_stats[burst_type.ordinal()].n_failed;
+	}
+
+	public synchronized long getNLostBuffers(CameraController.BurstType burst_type) {
+		return type_stats[burst_type.ordinal()].n_lost_buffers;
+	}
+
+	public synchronized void reset() {
+		for(int i=0;i<type_stats.length;i++) {
+			type_stats[i] = new TypeStats();
+		}
+		recent_bursts.clear();
+		current_burst = null;
+	}
+
+	/** Writes the statistics to the supplied file, as CSV: a summary line for each BurstType,
+	 *  followed by a line for each recent burst. Includes the device model so results from
+	 *  different devices can be compared.
+	 */
+	public void dump(File file) throws IOException {
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		try {
+			synchronized( this ) {
+				writer.println("# device: " + Build.MANUFACTURER + " " + Build.MODEL + " (Android " + Build.VERSION.RELEASE + ")");
+				writer.println("burst_type,bursts,incomplete,frames_started,images,failed,lost_buffers,aborted_sequences,mean_fps,start_p50_ms,start_p95_ms,interval_p50_ms,interval_p95_ms,interval_p99_ms,interval_max_ms,wall_p50_ms,wall_p95_ms");
+				for(CameraController.BurstType burst_type : CameraController.BurstType.values()) {
+					TypeStats stats = type_stats[burst_type.ordinal()];
+					if( stats.n_bursts == 0 )
+						continue;
+					writer.println(burst_type + "," + stats.n_bursts + "," + stats.n_incomplete + "," + stats.n_started + "," +
+							stats.n_images + "," + stats.n_failed + "," + stats.n_lost_buffers + "," + stats.n_aborted_sequences + "," +
+							String.format(Locale.US, "%.2f", getMeanFps(burst_type)) + "," +
+							stats.start_latency.getPercentileMs(50) + "," + stats.start_latency.getPercentileMs(95) + "," +
+							stats.interval.getPercentileMs(50) + "," + stats.interval.getPercentileMs(95) + "," +
+							stats.interval.getPercentileMs(99) + "," + stats.interval.getMaxMs() + "," +
+							stats.wall_time.getPercentileMs(50) + "," + stats.wall_time.getPercentileMs(95));
+				}
+				writer.println();
+				writer.println("burst_type,completed,requested,frames_started,images,failed,lost_buffers,aborted_sequences,start_latency_ms,wall_time_ms,fps,min_interval_ms,mean_interval_ms,max_interval_ms");
+				for(Burst burst : recent_bursts) {
+					writer.println(burst.burst_type + "," + burst.completed + "," + burst.n_requested + "," + burst.n_started + "," +
+							burst.n_images + "," + burst.n_failed + "," + burst.n_lost_buffers + "," + burst.n_aborted_sequences + "," +
+							String.format(Locale.US, "%.1f,%.1f,%.2f,%.1f,%.1f,%.1f", burst.getStartLatencyMs(), burst.getWallTimeMs(),
+									burst.getFps(), burst.getMinIntervalMs(), burst.getMeanIntervalMs(), burst.getMaxIntervalMs()));
+				}
+			}
+		}
+		finally {
+			writer.close();
+		}
+		if( writer.checkError() )
+			throw new IOException("failed to write " + file);
+	}
+}
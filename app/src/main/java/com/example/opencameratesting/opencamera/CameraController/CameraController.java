@@ -7,6 +7,11 @@ import android.media.MediaRecorder;
 import android.util.Log;
 import android.view.SurfaceHolder;
 
+import com.example.opencameratesting.core.CameraSize;
+import com.example.opencameratesting.core.FramePacingDetector;
+import com.example.opencameratesting.core.FrameStatsRing;
+import com.example.opencameratesting.opencamera.BurstTelemetry;
+import com.example.opencameratesting.opencamera.CaptureLatencyTracker;
 import com.example.opencameratesting.opencamera.MyDebug;
 
 import java.io.Serializable;
@@ -51,6 +56,15 @@ public abstract class CameraController {
 	public volatile int test_fake_flash_photo; // for Camera2 API, records torch turning on for fake flash for photo capture
 	public volatile int test_af_state_null_focus; // for Camera2 API, records af_state being null even when we've requested autofocus
 	public volatile boolean test_used_tonemap_curve;
+	public volatile int count_capture_buffer_lost; // for Camera2 API, how many times the camera failed to send an image to an output (e.g., as it ran out of buffers)
+	public volatile int count_image_acquire_failed; // for Camera2 API, how many times we failed to acquire an image from an ImageReader
+	public volatile int count_repeating_requests_submitted; // for Camera2 API, how many repeating requests were sent to the camera
+	public volatile int count_repeating_requests_coalesced; // for Camera2 API, how many setting changes were merged into a later repeating request, rather than sending their own
+	public volatile int count_repeating_requests_skipped; // for Camera2 API, how many setting changes didn't send a repeating request, as they left the settings unchanged
+	private volatile CaptureLatencyTracker latency_tracker;
+	private volatile BurstTelemetry burst_telemetry;
+	private volatile FrameStatsRing frame_stats;
+	private volatile FramePacingDetector frame_pacing_detector;
 
 	public static class CameraFeatures {
 		public boolean is_zoom_supported;
@@ -151,7 +165,7 @@ public abstract class CameraController {
 		}
 	}
 
-	public static class Size {
+	public static class Size implements CameraSize {
 		public final int width;
 		public final int height;
 		public boolean supports_burst; // for photo
@@ -171,6 +185,16 @@ public abstract class CameraController {
 			this(width, height, new ArrayList<int[]>(), false);
 		}
 
+		@Override
+		public int getWidth() {
+			return width;
+		}
+
+		@Override
+		public int getHeight() {
+			return height;
+		}
+
 		boolean supportsFrameRate(double fps) {
 			for (int[] f : this.fps_ranges) {
 				if (f[0] <= fps && fps <= f[1])
@@ -227,13 +251,43 @@ public abstract class CameraController {
 		void onStarted(); // called immediately before we start capturing the picture
 		void onCompleted(); // called after all relevant on*PictureTaken() callbacks have been called and returned
 		void onPictureTaken(byte[] data);
+		/** Whether the caller wants JPEG images passed via onJpegPictureTaken() instead of
+		 *  onPictureTaken(), to avoid copying the JPEG data. Only supported for Camera2 API, and
+		 *  only for images that aren't returned via onBurstPictureTaken(); otherwise
+		 *  onPictureTaken() is always used.
+		 */
+		boolean useJpegImageCallback();
+		/** Only called if useJpegImageCallback() returns true.
+		 *  Caller should call jpeg_image.close() when done with the image.
+		 */
+		void onJpegPictureTaken(JpegImage jpeg_image);
 		/** Only called if RAW is requested.
 		 *  Caller should call raw_image.close() when done with the image.
 		 */
 		void onRawPictureTaken(RawImage raw_image);
 		/** Only called if burst is requested.
+		 *  Ownership of the images passes to the caller, which must call release() on each image
+		 *  when done with it (images may be kept after this method returns, e.g., for processing
+		 *  in a background thread).
+		 */
+		void onBurstPictureTaken(List<ImageBuffer> images);
+		/** Whether burst images that would be passed together to onBurstPictureTaken() should
+		 *  instead be passed one at a time as they arrive, via onBurstPictureFrame() and then
+		 *  onBurstPictureCompleted(). This means the caller can start processing straight away,
+		 *  and the whole burst needn't be held in memory.
+		 */
+		boolean useStreamingBurst();
+		/** Only called if useStreamingBurst() returns true.
+		 *  The caller must call image.release() when done with the image.
+		 * @param burst_id Identifies the burst this image belongs to.
+		 * @param index    Index of this image in the burst, starting from 0.
+		 * @param n_total  Total number of images in the burst.
 		 */
-		void onBurstPictureTaken(List<byte[]> images);
+		void onBurstPictureFrame(ImageBuffer image, int burst_id, int index, int n_total);
+		/** Only called if useStreamingBurst() returns true, after the last onBurstPictureFrame()
+		 *  call for the burst.
+		 */
+		void onBurstPictureCompleted(int burst_id, int n_total);
 		/* This is called for flash_frontscreen_auto or flash_frontscreen_on mode to indicate the caller should light up the screen
 		 * (for flash_frontscreen_auto it will only be called if the scene is considered dark enough to require the screen flash).
 		 * The screen flash can be removed when or after onCompleted() is called.
@@ -291,6 +345,127 @@ public abstract class CameraController {
 		return cameraId;
 	}
 
+	/** Returns how many JpegImages passed to PictureCallback.onJpegPictureTaken() the application
+	 *  may hold open at once, without preventing the camera from taking further images.
+	 */
+	public int getMaxHeldJpegImages() {
+		return 0;
+	}
+
+	/** Returns how many RawImages passed to PictureCallback.onRawPictureTaken() the application
+	 *  may hold open at once (without calling RawImage.copyAndReleaseImage()), without preventing
+	 *  the camera from taking further images.
+	 */
+	public int getMaxHeldRawImages() {
+		return 0;
+	}
+
+	/** Sets a tracker to record the latency of each stage of taking a photo, or null to disable.
+	 */
+	public void setCaptureLatencyTracker(CaptureLatencyTracker latency_tracker) {
+		this.latency_tracker = latency_tracker;
+	}
+
+	void markLatencyStage(CaptureLatencyTracker.Stage stage) {
+		CaptureLatencyTracker tracker = latency_tracker;
+		if( tracker != null )
+			tracker.mark(stage);
+	}
+
+	/** Sets a recorder for the progress of each burst, or null to disable.
+	 */
+	public void setBurstTelemetry(BurstTelemetry burst_telemetry) {
+		this.burst_telemetry = burst_telemetry;
+	}
+
+	/** Returns the recorder for bursts, or null if none.
+	 */
+	BurstTelemetry getBurstTelemetry() {
+		return burst_telemetry;
+	}
+
+	/** Sets a history to record the statistics of every preview and capture frame into, or null
+	 *  to disable.
+	 */
+	public void setFrameStats(FrameStatsRing frame_stats) {
+		this.frame_stats = frame_stats;
+	}
+
+	/** Returns the history of frame statistics, or null if none.
+	 */
+	FrameStatsRing getFrameStats() {
+		return frame_stats;
+	}
+
+	/** Sets a detector to be supplied with the timestamp of every preview frame, to measure the
+	 *  preview frame rate and skipped frames, or null to disable.
+	 */
+	public void setFramePacingDetector(FramePacingDetector frame_pacing_detector) {
+		this.frame_pacing_detector = frame_pacing_detector;
+	}
+
+	/** Returns the detector for preview frame pacing, or null if none.
+	 */
+	FramePacingDetector getFramePacingDetector() {
+		return frame_pacing_detector;
+	}
+
+	/** Returns when the shutter was pressed for the current photo, from System.nanoTime(), or 0 if
+	 *  not known (e.g., if there's no latency tracker).
+	 */
+	long getShutterPressedTimeNs() {
+		CaptureLatencyTracker tracker = latency_tracker;
+		return tracker != null ? tracker.getShutterPressedTimeNs() : 0;
+	}
+
+	/** Enables zero shutter lag: the camera keeps the most recent n_frames full resolution frames
+	 *  from the preview, and takePicture() uses the one closest to when the shutter was pressed
+	 *  (if flash isn't needed, and not taking a burst or RAW). Set to 0 to disable. Takes effect
+	 *  when the preview is next started. Only supported by CameraController2.
+	 */
+	public void setZeroShutterLag(int n_frames) {
+	}
+
+	/** Returns the number of photos taken from the zero shutter lag frames.
+	 */
+	public int getZslHits() {
+		return 0;
+	}
+
+	/** Returns the number of photos with zero shutter lag enabled that needed a new capture, as no
+	 *  suitable frame was available.
+	 */
+	public int getZslMisses() {
+		return 0;
+	}
+
+	/** Returns the number of expo bracketing photos that reused cached capture requests.
+	 */
+	public int getBracketingPlanHits() {
+		return 0;
+	}
+
+	/** Returns the number of expo bracketing photos that had to build their capture requests.
+	 */
+	public int getBracketingPlanMisses() {
+		return 0;
+	}
+
+	public double getMeanBracketingPlanHitTimeMs() {
+		return 0.0;
+	}
+
+	public double getMeanBracketingPlanMissTimeMs() {
+		return 0.0;
+	}
+
+	/** Estimates the total setup time saved by reusing cached capture requests for expo
+	 *  bracketing.
+	 */
+	public double getBracketingPlanSavedTimeMs() {
+		return 0.0;
+	}
+
 	/** For CameraController2 only. Applications should cover the preview textureview if either camera_controller==null, or if this
 	 *  method returns true. Otherwise there is a risk when opening the camera that the textureview still shows an image from when
 	 *  the camera was previously opened (e.g., from pausing and resuming the application). This returns false (for CameraController2)
@@ -382,6 +557,20 @@ public abstract class CameraController {
 	 */
 	public abstract void setExpoBracketingStops(double stops);
 	public abstract void setUseExpoFastBurst(boolean use_expo_fast_burst);
+	/** For bursts where the requests are submitted one at a time (focus bracketing, or expo
+	 *  bracketing without fast burst), sets how many requests may be outstanding before their
+	 *  images have been received. 1 means each request waits for the previous image.
+	 *  Only supported by CameraController2.
+	 */
+	public void setSlowBurstMaxInFlight(int max_in_flight) {
+	}
+	/** Returns, for each image of the last burst whose requests were submitted one at a time, the
+	 *  time in milliseconds since the previous image (or since the burst started, for the first).
+	 *  Only supported by CameraController2.
+	 */
+	public long [] getSlowBurstFrameGapsMs() {
+		return new long[0];
+	}
 	public abstract boolean isBurstOrExpo();
     /** If true, then the camera controller is currently capturing a burst of images.
      */
@@ -518,6 +707,12 @@ public abstract class CameraController {
 	 */
 	public abstract void initVideoRecorderPostPrepare(MediaRecorder video_recorder, boolean want_photo_video_recording) throws CameraControllerException;
 	public abstract String getParametersString();
+	/** Returns the values from the most recent capture result, all from the same frame, or null if
+	 *  not supported. Safe to call from any thread.
+	 */
+	public CaptureResultValues captureResult() {
+		return null;
+	}
 	public boolean captureResultIsAEScanning() {
 		return false;
 	}
@@ -11,6 +11,7 @@ import android.util.Log;
 import android.view.SurfaceHolder;
 
 
+import com.example.opencameratesting.opencamera.CaptureLatencyTracker;
 import com.example.opencameratesting.opencamera.MyDebug;
 
 import java.io.IOException;
@@ -1672,6 +1673,7 @@ public class CameraController1 extends CameraController {
 				if( MyDebug.LOG )
 					Log.d(TAG, "onPictureTaken");
     	    	// n.b., this is automatically run in a different thread
+				markLatencyStage(CaptureLatencyTracker.Stage.IMAGE_AVAILABLE);
 
 				if( want_expo_bracketing && n_burst > 1 ) {
 					pending_burst_images.add(data);
@@ -1689,16 +1691,16 @@ public class CameraController1 extends CameraController {
 						// also allows us to reorder from dark to light
 						// since we took the images with the base exposure being first
 						int n_half_images = pending_burst_images.size()/2;
-						List<byte []> images = new ArrayList<>();
+						List<ImageBuffer> images = new ArrayList<>();
 						// darker images
 						for(int i=0;i<n_half_images;i++) {
-							images.add(pending_burst_images.get(i+1));
+							images.add(ImageBuffer.wrap(pending_burst_images.get(i+1)));
 						}
 						// base image
-						images.add(pending_burst_images.get(0));
+						images.add(ImageBuffer.wrap(pending_burst_images.get(0)));
 						// lighter images
 						for(int i=0;i<n_half_images;i++) {
-							images.add(pending_burst_images.get(n_half_images+1));
+							images.add(ImageBuffer.wrap(pending_burst_images.get(n_half_images+1)));
 						}
 
 						picture.onBurstPictureTaken(images);
@@ -1762,6 +1764,7 @@ public class CameraController1 extends CameraController {
 	public void takePicture(final PictureCallback picture, final ErrorCallback error) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "takePicture");
+		markLatencyStage(CaptureLatencyTracker.Stage.TAKE_PICTURE);
 
 		clearPending();
         if( want_expo_bracketing ) {
@@ -2,6 +2,7 @@ package com.example.opencameratesting.opencamera.CameraController;
 
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.ImageFormat;
 import android.graphics.Point;
@@ -32,6 +33,8 @@ import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Range;
 import android.util.SizeF;
@@ -41,14 +44,24 @@ import android.view.SurfaceHolder;
 
 import androidx.annotation.NonNull;
 
+import com.example.opencameratesting.core.CaptureResultSnapshot;
+import com.example.opencameratesting.core.FramePacingDetector;
+import com.example.opencameratesting.core.FramePairer;
+import com.example.opencameratesting.core.FrameStatsRing;
+import com.example.opencameratesting.core.JpegExif;
+import com.example.opencameratesting.core.LogProfileTonemap;
+import com.example.opencameratesting.opencamera.BurstTelemetry;
+import com.example.opencameratesting.opencamera.CaptureLatencyTracker;
 import com.example.opencameratesting.opencamera.MyDebug;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 
 /** Provides support using Android 5's Camera 2 API
@@ -74,7 +87,7 @@ public class CameraController2 extends CameraController {
 	private boolean supports_face_detect_mode_simple;
 	private boolean supports_face_detect_mode_full;
 	private boolean supports_photo_video_recording;
-	private final static int tonemap_max_curve_points_c = 64;
+	private final static int tonemap_max_curve_points_c = LogProfileTonemap.MAX_CURVE_POINTS;
 	private final ErrorCallback preview_error_cb;
 	private final ErrorCallback camera_error_cb;
 	private CameraCaptureSession captureSession;
@@ -113,9 +126,50 @@ public class CameraController2 extends CameraController {
 	private boolean want_raw;
 	//private boolean want_raw = true;
 	private int max_raw_images;
+	private int jpeg_image_reader_depth; // maxImages for imageReader, see chooseImageReaderDepths()
+	private int raw_image_reader_depth; // maxImages for imageReaderRaw, see chooseImageReaderDepths()
+	private final static int min_jpeg_image_reader_depth_c = 2;
+	private final static int max_image_reader_depth_c = 8; // upper limit on maxImages for either reader
+	private final static long max_image_reader_budget_c = 256*1024*1024; // upper limit on total memory for the reader buffers
 	private android.util.Size raw_size;
 	private ImageReader imageReaderRaw;
-	private OnRawImageAvailableListener onRawImageAvailableListener;
+	// for RAW+JPEG, the JPEG, RAW image and capture result are matched up by timestamp, see deliverRawFrame()
+	private final static int raw_part_jpeg_c = 0; // JpegImage or byte []
+	private final static int raw_part_image_c = 1; // Image from imageReaderRaw
+	private final static int raw_part_result_c = 2; // CaptureResult, needed for DngCreator
+	private final FramePairer raw_frame_pairer = new FramePairer(3, new FramePairer.Listener() {
+		@Override
+		public void onFramePaired(final FramePairer.Frame frame) {
+			// always post (even if on the UI thread already), so frames stay in order
+			ui_handler.post(new Runnable() {
+				@Override
+				public void run() {
+					deliverRawFrame(frame);
+				}
+			});
+		}
+
+		@Override
+		public void onFrameDiscarded(FramePairer.Frame frame) {
+			closeRawFrameParts(frame);
+		}
+	});
+	private final Handler ui_handler = new Handler(Looper.getMainLooper());
+	// for coalescing repeating requests, see setRepeatingRequestCoalesced():
+	private final Object repeating_request_lock = new Object();
+	private boolean repeating_request_pending; // whether flush_repeating_request_runnable has been posted
+	private long last_repeating_request_time_ns; // from System.nanoTime(), or 0 if none sent yet
+	// for zero shutter lag:
+	private int zsl_n_frames; // requested number of frames to keep, or 0 if zsl disabled
+	private boolean zsl_failed; // set if we failed to create a capture session with the zsl output, so don't try again for this camera
+	private ImageReader zslImageReader;
+	private volatile ZslRingBuffer zsl_ring; // read from the background thread
+	private int zsl_hits;
+	private int zsl_misses;
+	private final static long zsl_max_offset_ns_c = 200*1000000L; // furthest a frame may be from the shutter press
+	private final static long zsl_max_press_age_ns_c = 1000*1000000L; // if the shutter press was longer ago than this, assume it's for an earlier photo
+	private HandlerThread zsl_thread; // for encoding zsl frames, so the camera's background thread isn't held up
+	private Handler zsl_handler;
 	private PictureCallback picture_cb;
 	private boolean jpeg_todo; // whether we are still waiting for JPEG images
 	private boolean raw_todo; // whether we are still waiting for RAW images
@@ -125,10 +179,29 @@ public class CameraController2 extends CameraController {
 	private int n_burst_taken; // number of burst images taken so far in this capture
     private int n_burst_total; // total number of expected burst images in this capture (if known)
 	private boolean burst_single_request; // if true then the burst images are returned in a single call to onBurstPictureTaken(), if false, then multiple calls to onPictureTaken() are made as soon as the image is available
-	private final List<byte []> pending_burst_images = new ArrayList<>(); // burst images that have been captured so far, but not yet sent to the application
+	private final List<ImageBuffer> pending_burst_images = new ArrayList<>(); // burst images that have been captured so far, but not yet sent to the application
+	private final ImageBufferPool burst_buffer_pool = new ImageBufferPool(); // reusable arrays for pending_burst_images
+	private boolean streaming_burst; // if burst_single_request is true, whether to pass each image as it arrives via onBurstPictureFrame(), rather than all together via onBurstPictureTaken()
+	private int burst_id; // identifies the current burst, for onBurstPictureFrame()
 	private List<CaptureRequest> slow_burst_capture_requests; // the set of burst capture requests - used when not using captureBurst() (e.g., when use_expo_fast_burst==false, or for focus bracketing)
 	private long slow_burst_start_ms = 0; // time when burst started (used for measuring performance of captures when not using captureBurst())
-	private RawImage pending_raw_image;
+	// cached expo bracketing requests, see takePictureBurstBracketing():
+	private final Map<BracketingPlanKey, List<CaptureRequest>> bracketing_plans = new LinkedHashMap<>(max_bracketing_plans_c, 0.75f, true);
+	private Object [] bracketing_plans_settings; // the settings the cached plans were built with
+	private int n_bracketing_plan_hits;
+	private int n_bracketing_plan_misses;
+	private long total_bracketing_plan_hit_ns; // total setup time for photos that used a cached plan
+	private long total_bracketing_plan_miss_ns; // total setup time for photos that had to build the requests
+	// the following slow burst state is guarded by image_reader_lock:
+	private int slow_burst_max_in_flight = 3; // max number of slow burst requests that may be submitted before their images have been received
+	private int slow_burst_n_submitted; // number of slow_burst_capture_requests submitted so far
+	private int slow_burst_n_results; // number of capture results received for the submitted slow_burst_capture_requests
+	private boolean slow_burst_truncated; // whether slow_burst_capture_requests has been cut short, as focus bracketing was cancelled
+	private long slow_burst_last_image_ms; // time the previous slow burst image was received
+	private long [] slow_burst_frame_gaps_ms = new long[0]; // for each image of the last slow burst, time since the previous image (or the start of the burst)
+	private int focus_bracketing_settle_index = -1; // index of the request we're moving the lens for, or -1 if none
+	private boolean focus_bracketing_settled; // whether the lens has reached the focus distance for focus_bracketing_settle_index
+	private final static long focus_bracketing_settle_timeout_ms_c = 500; // max time to wait for the lens to settle (not all devices report LENS_STATE)
 	private ErrorCallback take_picture_error_cb;
 	private boolean want_video_high_speed;
 	private boolean is_video_high_speed; // whether we're actually recording in high speed
@@ -178,8 +251,10 @@ public class CameraController2 extends CameraController {
 	private boolean modified_from_camera_settings;
 		// if modified_from_camera_settings set to true, then we've temporarily requested captures with settings such as
 		// exposure modified from the normal ones in camera_settings
+	// the capture_result_* values below are only accessed on the thread that receives capture results; other threads
+	// should read capture_result_values, which is published from them once per frame
 	private boolean capture_result_has_white_balance_rggb;
-	private RggbChannelVector capture_result_white_balance_rggb;
+	private final float [] capture_result_white_balance_rggb = new float[4]; // red, green even, green odd, blue
 	private boolean capture_result_has_iso;
 	private int capture_result_iso;
 	private boolean capture_result_has_exposure_time;
@@ -189,6 +264,7 @@ public class CameraController2 extends CameraController {
 	/*private boolean capture_result_has_focus_distance;
 	private float capture_result_focus_distance_min;
 	private float capture_result_focus_distance_max;*/
+	private volatile CaptureResultValues capture_result_values = CaptureResultValues.NONE;
 	
 	private enum RequestTagType {
 		CAPTURE, // request is either for a regular non-burst capture, or the last of a burst capture
@@ -215,9 +291,74 @@ public class CameraController2 extends CameraController {
 		}
 	}
 
+	/* Identifies a set of expo bracketing capture requests, so they can be reused for later photos,
+	   see takePictureBurstBracketing(). The requests also depend on the camera settings, which are
+	   checked separately.
+	 */
+	private static class BracketingPlanKey {
+		private final BurstType burst_type;
+		private final int n_images;
+		private final double stops;
+		private final int iso; // -1 if not set
+		private final int exposure_bucket; // base exposure time, in units of 1/12 of a stop
+		private final long frame_duration;
+		private final int picture_width;
+		private final int picture_height;
+		private final boolean torch; // whether the torch is on for fake flash
+		private final boolean video_snapshot;
+
+		private BracketingPlanKey(BurstType burst_type, int n_images, double stops, int iso, long base_exposure_time, long frame_duration, int picture_width, int picture_height, boolean torch, boolean video_snapshot) {
+			this.burst_type = burst_type;
+			this.n_images = n_images;
+			this.stops = stops;
+			this.iso = iso;
+			this.exposure_bucket = (int)Math.round(12.0*Math.log(Math.max(base_exposure_time, 1))/Math.log(2.0));
+			this.frame_duration = frame_duration;
+			this.picture_width = picture_width;
+			this.picture_height = picture_height;
+			this.torch = torch;
+			this.video_snapshot = video_snapshot;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if( !(o instanceof BracketingPlanKey) )
+				return false;
+			BracketingPlanKey that = (BracketingPlanKey)o;
+			return this.burst_type == that.burst_type && this.n_images == that.n_images && Double.compare(this.stops, that.stops) == 0 &&
+					this.iso == that.iso && this.exposure_bucket == that.exposure_bucket && this.frame_duration == that.frame_duration &&
+					this.picture_width == that.picture_width && this.picture_height == that.picture_height &&
+					this.torch == that.torch && this.video_snapshot == that.video_snapshot;
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(new Object[]{burst_type, n_images, stops, iso, exposure_bucket, frame_duration, picture_width, picture_height, torch, video_snapshot});
+		}
+
+		@Override
+		public String toString() {
+			return burst_type + " n_images " + n_images + " stops " + stops + " iso " + iso + " exposure_bucket " + exposure_bucket + " frame_duration " + frame_duration +
+					" size " + picture_width + "x" + picture_height + " torch " + torch + " video_snapshot " + video_snapshot;
+		}
+	}
+
+	private final static int max_bracketing_plans_c = 4;
+
 	private final static int min_white_balance_temperature_c = 1000;
 	private final static int max_white_balance_temperature_c = 15000;
 
+	// bits for CameraSettings.dirty, the settings changed in previewBuilder since the last repeating request was sent
+	private final static int dirty_crop_region_c = 1;
+	private final static int dirty_white_balance_c = 1 << 1;
+	private final static int dirty_ae_mode_c = 1 << 2; // ISO and exposure time
+	private final static int dirty_exposure_compensation_c = 1 << 3;
+	private final static int dirty_focus_distance_c = 1 << 4;
+	private final static int dirty_ae_lock_c = 1 << 5;
+	private final static int dirty_wb_lock_c = 1 << 6;
+	// don't delay coalesced repeating requests by more than this, even if the frame duration is longer (e.g., long manual exposures)
+	private final static long max_coalesce_interval_ns_c = 100000000L;
+
 	private class CameraSettings {
 		// keys that we need to store, to pass to the stillBuilder, but doesn't need to be passed to previewBuilder (should set sensible defaults)
 		private int rotation;
@@ -263,6 +404,25 @@ public class CameraController2 extends CameraController {
 		private Range<Integer> ae_target_fps_range;
 		private long sensor_frame_duration;
 
+		private int dirty; // dirty_*_c bits for settings changed in previewBuilder, but not yet sent in a repeating request; guarded by repeating_request_lock
+
+		/** Returns the values of all the settings applied by setupBuilder(), so that requests built
+		 *  from them can be checked against the current settings. Any new settings should also be
+		 *  added here.
+		 */
+		private Object [] getSnapshot() {
+			return new Object[]{
+					rotation, location, jpeg_quality,
+					scene_mode, color_effect, white_balance, has_antibanding, antibanding,
+					has_edge_mode, edge_mode, default_edge_mode, has_noise_reduction_mode, noise_reduction_mode, default_noise_reduction_mode,
+					white_balance_temperature, flash_value, has_iso, iso, exposure_time, scalar_crop_region,
+					has_ae_exposure_compensation, ae_exposure_compensation, has_af_mode, af_mode, focus_distance,
+					ae_lock, wb_lock, af_regions, ae_regions, has_face_detect_mode, face_detect_mode,
+					video_stabilization, use_log_profile, log_profile_strength, default_tonemap_mode,
+					ae_target_fps_range, sensor_frame_duration
+			};
+		}
+
 		private int getExifOrientation() {
 			int exif_orientation = ExifInterface.ORIENTATION_NORMAL;
 			switch( (rotation + 360) % 360 ) {
@@ -729,28 +889,6 @@ public class CameraController2 extends CameraController {
 			builder.set(CaptureRequest.CONTROL_VIDEO_STABILIZATION_MODE, video_stabilization ? CaptureRequest.CONTROL_VIDEO_STABILIZATION_MODE_ON : CaptureRequest.CONTROL_VIDEO_STABILIZATION_MODE_OFF);
 		}
 
-		private float getLogProfile(float in) {
-			//final float black_level = 4.0f/255.0f;
-			final float power = 1.0f/2.2f;
-			final float log_A = log_profile_strength;
-			/*float out;
-			if( in <= black_level ) {
-				out = in;
-			}
-			else {
-				float in_m = (in - black_level) / (1.0f - black_level);
-				out = (float) (Math.log1p(log_A * in_m) / Math.log1p(log_A));
-				out = black_level + (1.0f - black_level)*out;
-			}*/
-			float out = (float) (Math.log1p(log_A * in) / Math.log1p(log_A));
-
-			// apply gamma
-			out = (float) Math.pow(out, power);
-			//out = Math.max(out, 0.5f);
-
-			return out;
-		}
-
 		private void setLogProfile(CaptureRequest.Builder builder) {
 			if( MyDebug.LOG ) {
 				Log.d(TAG, "setLogProfile");
@@ -765,38 +903,19 @@ public class CameraController2 extends CameraController {
 					if( MyDebug.LOG )
 						Log.d(TAG, "default_tonemap_mode: " + default_tonemap_mode);
 				}
-				// if changing this, make sure we don't exceed tonemap_max_curve_points_c
-				// we want:
-				// 0-15: step 1 (16 values)
-				// 16-47: step 2 (16 values)
-				// 48-111: step 4 (16 values)
-				// 112-231 : step 8 (15 values)
-				// 232-255: step 24 (1 value)
-				int step = 1, c = 0;
-				float [] values = new float[2*tonemap_max_curve_points_c];
-				for(int i=0;i<232;i+=step) {
-					float in = ((float)i) / 255.0f;
-					float out = getLogProfile(in);
-					values[c++] = in;
-					values[c++] = out;
-					if( (c/2) % 16 == 0 ) {
-						step *= 2;
-					}
-				}
-				values[c++] = 1.0f;
-				values[c++] = getLogProfile(1.0f);
+				float [] values = LogProfileTonemap.createCurve(log_profile_strength);
 				/*{
 					int n_values = 257;
 					float [] values = new float [2*n_values];
 					for(int i=0;i<n_values;i++) {
 						float in = ((float)i) / (n_values-1.0f);
-						float out = getLogProfile(in);
+						float out = LogProfileTonemap.getLogProfile(in, log_profile_strength);
 						values[2*i] = in;
 						values[2*i+1] = out;
 					}
 				}*/
 				if( MyDebug.LOG ) {
-    				int n_values = c/2;
+    				int n_values = values.length/2;
 					for(int i=0;i<n_values;i++) {
 						float in = values[2*i];
 						float out = values[2*i+1];
@@ -891,18 +1010,24 @@ public class CameraController2 extends CameraController {
 	 *  Note that this is not necessarily an inverse of convertTemperatureToRggb, since many rggb
 	 *  values can map to the same temperature.
 	 */
-	private int convertRggbToTemperature(RggbChannelVector rggbChannelVector) {
+	private int convertRggbToTemperature(float red, float green_even, float green_odd, float blue) {
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "temperature:");
-			Log.d(TAG, "    red: " + rggbChannelVector.getRed());
-			Log.d(TAG, "    green even: " + rggbChannelVector.getGreenEven());
-			Log.d(TAG, "    green odd: " + rggbChannelVector.getGreenOdd());
-			Log.d(TAG, "    blue: " + rggbChannelVector.getBlue());
-		}
-		float red = rggbChannelVector.getRed();
-		float green_even = rggbChannelVector.getGreenEven();
-		float green_odd = rggbChannelVector.getGreenOdd();
-		float blue = rggbChannelVector.getBlue();
+			Log.d(TAG, "    red: " + red);
+			Log.d(TAG, "    green even: " + green_even);
+			Log.d(TAG, "    green odd: " + green_odd);
+			Log.d(TAG, "    blue: " + blue);
+		}
+		int temperature = rggbToTemperature(red, green_even, green_odd, blue);
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "    temperature: " + temperature);
+		}
+		return temperature;
+	}
+
+	/** As convertRggbToTemperature(), but without logging, so it can be called for every frame.
+	 */
+	private static int rggbToTemperature(float red, float green_even, float green_odd, float blue) {
 		float green = 0.5f*(green_even + green_odd);
 
 		float max = Math.max(red, blue);
@@ -945,9 +1070,6 @@ public class CameraController2 extends CameraController {
 		}
 		temperature = Math.max(temperature, min_white_balance_temperature_c);
 		temperature = Math.min(temperature, max_white_balance_temperature_c);
-		if( MyDebug.LOG ) {
-			Log.d(TAG, "    temperature: " + temperature);
-		}
 		return temperature;
 	}
 
@@ -956,35 +1078,108 @@ public class CameraController2 extends CameraController {
 		public void onImageAvailable(ImageReader reader) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "new still image available");
+			markLatencyStage(CaptureLatencyTracker.Stage.IMAGE_AVAILABLE);
 			if( picture_cb == null || !jpeg_todo ) {
 				// in theory this shouldn't happen - but if this happens, still free the image to avoid risk of memory leak,
 				// or strange behaviour where an old image appears when the user next takes a photo
 				Log.e(TAG, "no picture callback available");
-				Image image = reader.acquireNextImage();
-				image.close();
+				Image image = acquireNextImage(reader);
+				if( image != null )
+					image.close();
+				return;
+			}
+			if( raw_todo && !burst_single_request ) {
+				// RAW+JPEG: match with the RAW image and capture result for the same frame, without taking
+				// image_reader_lock; the pair is passed on by deliverRawFrame()
+				Image image = acquireNextImage(reader);
+				if( image == null )
+					return;
+				long timestamp = image.getTimestamp();
+				if( MyDebug.LOG )
+					Log.d(TAG, "image timestamp: " + timestamp);
+				Object jpeg;
+				PictureCallback cb = picture_cb;
+				if( cb != null && cb.useJpegImageCallback() ) {
+					jpeg = new JpegImage(image);
+				}
+				else {
+					ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+					byte [] bytes = new byte[buffer.remaining()];
+					buffer.get(bytes);
+					image.close();
+					jpeg = bytes;
+				}
+				if( !raw_frame_pairer.put(timestamp, raw_part_jpeg_c, jpeg) && jpeg instanceof JpegImage ) {
+					Log.e(TAG, "duplicate jpeg for timestamp: " + timestamp);
+					((JpegImage)jpeg).close();
+				}
 				return;
 			}
 			synchronized( image_reader_lock ) {
 				/* Whilst in theory the two setOnImageAvailableListener methods (for JPEG and RAW) seem to be called separately, I don't know if this is always true;
 				 * also, we may process the RAW image when the capture result is available, which may be in a separate thread.
 				 */
-				Image image = reader.acquireNextImage();
+				Image image = acquireNextImage(reader);
+				if( image == null )
+					return;
 				if( MyDebug.LOG )
 					Log.d(TAG, "image timestamp: " + image.getTimestamp());
-				ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-				byte [] bytes = new byte[buffer.remaining()];
-				if( MyDebug.LOG )
-					Log.d(TAG, "read " + bytes.length + " bytes");
-				buffer.get(bytes);
-				image.close();
+				byte [] bytes = null;
+				ImageBuffer image_buffer = null;
+				JpegImage jpeg_image = null;
+				if( burst_single_request ) {
+					// bursts can be many full resolution images, so reuse arrays from the pool rather than allocating
+					ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+					image_buffer = burst_buffer_pool.acquire(buffer.remaining());
+					if( MyDebug.LOG )
+						Log.d(TAG, "read " + image_buffer.getLength() + " bytes into pooled buffer");
+					buffer.get(image_buffer.getData(), 0, image_buffer.getLength());
+					image.close();
+				}
+				else if( picture_cb.useJpegImageCallback() ) {
+					// pass the image on without copying; the application is responsible for closing it
+					jpeg_image = new JpegImage(image);
+					if( MyDebug.LOG )
+						Log.d(TAG, "pass on " + jpeg_image.getSize() + " bytes without copying");
+				}
+				else {
+					ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+					bytes = new byte[buffer.remaining()];
+					if( MyDebug.LOG )
+						Log.d(TAG, "read " + bytes.length + " bytes");
+					buffer.get(bytes);
+					image.close();
+				}
 				n_burst_taken++;
+				BurstTelemetry burst_telemetry = getBurstTelemetry();
+				if( burst_telemetry != null )
+					burst_telemetry.imageReceived();
 				if( MyDebug.LOG ) {
 					Log.d(TAG, "n_burst_taken is now: " + n_burst_taken);
 					Log.d(TAG, "n_burst: " + n_burst);
 					Log.d(TAG, "burst_single_request: " + burst_single_request);
 				}
-				if( burst_single_request ) {
-					pending_burst_images.add(bytes);
+				if( slow_burst_capture_requests != null ) {
+					recordSlowBurstImage();
+				}
+				if( burst_single_request && streaming_burst ) {
+					// pass on each image as it arrives, so we don't need to hold the whole burst in memory
+					int index = n_burst_taken-1;
+					if( MyDebug.LOG )
+						Log.d(TAG, "streaming burst image " + index + " of " + n_burst + " for burst " + burst_id);
+					picture_cb.onBurstPictureFrame(image_buffer, burst_id, index, n_burst);
+					if( n_burst_taken >= n_burst ) { // shouldn't ever be greater, but just in case
+						if( MyDebug.LOG )
+							Log.d(TAG, "all streaming burst images delivered");
+						picture_cb.onBurstPictureCompleted(burst_id, n_burst);
+						takePhotoCompleted();
+					}
+					else {
+						takePhotoPartial();
+					}
+				}
+				else if( burst_single_request ) {
+					pending_burst_images.add(image_buffer);
 					if( MyDebug.LOG ) {
 						Log.d(TAG, "pending_burst_images size is now: " + pending_burst_images.size());
 					}
@@ -995,7 +1190,8 @@ public class CameraController2 extends CameraController {
 							Log.e(TAG, "pending_burst_images size " + pending_burst_images.size() + " is greater than n_burst " + n_burst);
 						}
 						// take a copy, so that we can clear pending_burst_images
-						List<byte []> images = new ArrayList<>(pending_burst_images);
+						// n.b., ownership of the buffers passes to the callback, which must release them
+						List<ImageBuffer> images = new ArrayList<>(pending_burst_images);
 						picture_cb.onBurstPictureTaken(images);
 						pending_burst_images.clear();
 
@@ -1008,7 +1204,10 @@ public class CameraController2 extends CameraController {
 					}
 				}
 				else {
-					picture_cb.onPictureTaken(bytes);
+					if( jpeg_image != null )
+						picture_cb.onJpegPictureTaken(jpeg_image);
+					else
+						picture_cb.onPictureTaken(bytes);
 					n_burst--;
 					if( MyDebug.LOG )
 						Log.d(TAG, "n_burst is now " + n_burst);
@@ -1044,125 +1243,12 @@ public class CameraController2 extends CameraController {
 					Log.d(TAG, "time since start: " + (System.currentTimeMillis() - slow_burst_start_ms));
 				}
 				if( burst_type != BurstType.BURSTTYPE_FOCUS ) {
-					try {
-						if( camera != null && captureSession != null ) { // make sure camera wasn't released in the meantime
-							captureSession.capture(slow_burst_capture_requests.get(n_burst_taken), previewCaptureCallback, handler);
-						}
-					}
-					catch(CameraAccessException e) {
-						if( MyDebug.LOG ) {
-							Log.e(TAG, "failed to take next burst");
-							Log.e(TAG, "reason: " + e.getReason());
-							Log.e(TAG, "message: " + e.getMessage());
-						}
-						e.printStackTrace();
-						jpeg_todo = false;
-						raw_todo = false;
-						picture_cb = null;
-						if( take_picture_error_cb != null ) {
-							take_picture_error_cb.onError();
-							take_picture_error_cb = null;
-						}
-					}
+					fillSlowBurstPipeline();
 				}
 				else if( previewBuilder != null ) { // make sure camera wasn't released in the meantime
 					if( MyDebug.LOG )
 						Log.d(TAG, "focus bracketing");
-
-					if( !focus_bracketing_in_progress ) {
-						if( MyDebug.LOG )
-							Log.d(TAG, "focus bracketing was cancelled");
-						// ideally we'd stop altogether, but instead we take one last shot, so that we can mark it with the
-						// RequestTagType.CAPTURE tag, so onCaptureCompleted() is called knowing it's for the last image
-						if( MyDebug.LOG ) {
-							Log.d(TAG, "slow_burst_capture_requests size was: " + slow_burst_capture_requests.size());
-							Log.d(TAG, "n_burst size was: " + n_burst);
-							Log.d(TAG, "n_burst_taken: " + n_burst_taken);
-						}
-						slow_burst_capture_requests.subList(n_burst_taken+1, slow_burst_capture_requests.size()).clear(); // https://stackoverflow.com/questions/1184636/shrinking-an-arraylist-to-a-new-size
-						// if burst_single_request==true, n_burst is constant and we stop when pending_burst_images.size() >= n_burst
-						// if burst_single_request==false, n_burst counts down and we stop when n_burst==0
-						if( burst_single_request )
-							n_burst = slow_burst_capture_requests.size();
-						else
-							n_burst = 1;
-						if( MyDebug.LOG ) {
-							Log.d(TAG, "size is now: " + slow_burst_capture_requests.size());
-							Log.d(TAG, "n_burst is now: " + n_burst);
-						}
-						RequestTagObject requestTag = (RequestTagObject)slow_burst_capture_requests.get(slow_burst_capture_requests.size()-1).getTag();
-						requestTag.setType(RequestTagType.CAPTURE);
-					}
-
-					// code for focus bracketing
-					try {
-						float focus_distance = slow_burst_capture_requests.get(n_burst_taken).get(CaptureRequest.LENS_FOCUS_DISTANCE);
-						if( MyDebug.LOG ) {
-							Log.d(TAG, "prepare preview for next focus_distance: " + focus_distance);
-						}
-						previewBuilder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_OFF);
-						previewBuilder.set(CaptureRequest.LENS_FOCUS_DISTANCE, focus_distance);
-
-						setRepeatingRequest(previewBuilder.build());
-						//captureSession.capture(slow_burst_capture_requests.get(n_burst_taken), previewCaptureCallback, handler);
-					}
-					catch(CameraAccessException e) {
-						if( MyDebug.LOG ) {
-							Log.e(TAG, "failed to take set focus distance for next focus bracketing burst");
-							Log.e(TAG, "reason: " + e.getReason());
-							Log.e(TAG, "message: " + e.getMessage());
-						}
-						e.printStackTrace();
-						jpeg_todo = false;
-						raw_todo = false;
-						picture_cb = null;
-						if( take_picture_error_cb != null ) {
-							take_picture_error_cb.onError();
-							take_picture_error_cb = null;
-						}
-					}
-					handler.postDelayed(new Runnable(){
-						@Override
-						public void run(){
-							if( MyDebug.LOG )
-								Log.d(TAG, "take picture after delay for next focus bracket");
-							if( camera != null && captureSession != null ) { // make sure camera wasn't released in the meantime
-								if( picture_cb.imageQueueWouldBlock(1) ) {
-									if( MyDebug.LOG ) {
-										Log.d(TAG, "...but wait for next focus bracket, as image queue would block");
-									}
-									handler.postDelayed(this, 100);
-									//throw new RuntimeException(); // test
-								}
-								else {
-									// For focus bracketing mode, we play the shutter sound per shot (so the user can tell when the sequence is complete).
-									// From a user mode, the gap between shots in focus bracketing mode makes this more analogous to the auto-repeat mode
-									// (at the Preview level), which makes the shutter sound per shot.
-
-									if( sounds_enabled )
-										media_action_sound.play(MediaActionSound.SHUTTER_CLICK);
-									try {
-										captureSession.capture(slow_burst_capture_requests.get(n_burst_taken), previewCaptureCallback, handler);
-									}
-									catch(CameraAccessException e) {
-										if( MyDebug.LOG ) {
-											Log.e(TAG, "failed to take next focus bracket");
-											Log.e(TAG, "reason: " + e.getReason());
-											Log.e(TAG, "message: " + e.getMessage());
-										}
-										e.printStackTrace();
-										jpeg_todo = false;
-										raw_todo = false;
-										picture_cb = null;
-										if( take_picture_error_cb != null ) {
-											take_picture_error_cb.onError();
-											take_picture_error_cb = null;
-										}
-									}
-								}
-							}
-						}
-					}, 500);
+					advanceFocusBracketing();
 				}
 			}
 		}
@@ -1173,6 +1259,9 @@ public class CameraController2 extends CameraController {
 		private void takePhotoCompleted() {
 			if( MyDebug.LOG )
 				Log.d(TAG, "takePhotoCompleted");
+			BurstTelemetry burst_telemetry = getBurstTelemetry();
+			if( burst_telemetry != null )
+				burst_telemetry.endBurst();
 			// need to set jpeg_todo to false before calling onCompleted, as that may reenter CameraController to take another photo (if in auto-repeat burst mode) - see testTakePhotoRepeat()
 			jpeg_todo = false;
 			checkImagesCompleted();
@@ -1183,102 +1272,90 @@ public class CameraController2 extends CameraController {
 	}
 
 	private class OnRawImageAvailableListener implements ImageReader.OnImageAvailableListener {
-		private CaptureResult capture_result;
-		private Image image;
-
-		void setCaptureResult(CaptureResult capture_result) {
-			if( MyDebug.LOG )
-				Log.d(TAG, "setCaptureResult()");
-			synchronized( image_reader_lock ) {
-				/* synchronize, as we don't want to set the capture_result, at the same time that onImageAvailable() is called, as
-				 * we'll end up calling processImage() both in onImageAvailable() and here.
-				 */
-				this.capture_result = capture_result;
-				if( image != null ) {
-					if( MyDebug.LOG )
-						Log.d(TAG, "can now process the image");
-					// should call processImage() on UI thread, to be consistent with onImageAvailable()->processImage()
-					// important to avoid crash when pause preview is option, tested in testTakePhotoRawWaitCaptureResult()
-					final Activity activity = (Activity)context;
-					activity.runOnUiThread(new Runnable() {
-						@Override
-						public void run() {
-							if( MyDebug.LOG )
-								Log.d(TAG, "setCaptureResult UI thread call processImage()");
-							// need to synchronize again
-							synchronized( image_reader_lock ) {
-								processImage();
-							}
-						}
-					});
-				}
-			}
-		}
-		
-		void clear() {
-			if( MyDebug.LOG )
-				Log.d(TAG, "clear()");
-			synchronized( image_reader_lock ) {
-				// synchronize just to be safe?
-				capture_result = null;
-				image = null;
-			}
-		}
-
-		/** Calls to this method should synchronize on image_reader_lock.
-		 */
-		private void processImage() {
-			if( MyDebug.LOG )
-				Log.d(TAG, "processImage()");
-			if( capture_result == null ) {
-				if( MyDebug.LOG )
-					Log.d(TAG, "don't yet have still_capture_result");
-				return;
-			}
-			if( image == null ) {
-				if( MyDebug.LOG )
-					Log.d(TAG, "don't have image?!");
-				return;
-			}
-			if( MyDebug.LOG ) {
-				Log.d(TAG, "now have all info to process raw image");
-				Log.d(TAG, "image timestamp: " + image.getTimestamp());
-			}
-            DngCreator dngCreator = new DngCreator(characteristics, capture_result);
-            // set fields
-            dngCreator.setOrientation(camera_settings.getExifOrientation());
-			if( camera_settings.location != null ) {
-                dngCreator.setLocation(camera_settings.location);
-			}
-
-			pending_raw_image = new RawImage(dngCreator, image);
-
-			checkImagesCompleted();
-			if( MyDebug.LOG )
-				Log.d(TAG, "done processImage");
-		}
-
 		@Override
 		public void onImageAvailable(ImageReader reader) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "new still raw image available");
+			markLatencyStage(CaptureLatencyTracker.Stage.IMAGE_AVAILABLE);
 			if( picture_cb == null || !raw_todo ) {
 				// in theory this shouldn't happen - but if this happens, still free the image to avoid risk of memory leak,
 				// or strange behaviour where an old image appears when the user next takes a photo
 				Log.e(TAG, "no picture callback available");
-				Image this_image = reader.acquireNextImage();
-				this_image.close();
+				Image this_image = acquireNextImage(reader);
+				if( this_image != null )
+					this_image.close();
 				return;
 			}
-			synchronized( image_reader_lock ) {
-				// see comment above in setCaptureResult() for why we synchronize
-				image = reader.acquireNextImage();
-				processImage();
+			Image image = acquireNextImage(reader);
+			if( image == null )
+				return;
+			if( MyDebug.LOG )
+				Log.d(TAG, "image timestamp: " + image.getTimestamp());
+			// the DngCreator needs the capture result, which may not have arrived yet, so match up by timestamp
+			if( !raw_frame_pairer.put(image.getTimestamp(), raw_part_image_c, image) ) {
+				Log.e(TAG, "duplicate raw image for timestamp: " + image.getTimestamp());
+				image.close();
 			}
 			if( MyDebug.LOG )
 				Log.d(TAG, "done onImageAvailable");
 		}
 	}
+
+	/** Passes a RAW+JPEG frame to the application, once its JPEG, RAW image and capture result
+	 *  have all arrived. Called on the UI thread, in the order the frames were captured.
+	 */
+	private void deliverRawFrame(FramePairer.Frame frame) {
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "deliverRawFrame: " + frame.getTimestamp());
+			Log.d(TAG, "frame number: " + frame.getFrameNumber());
+			Log.d(TAG, "match latency ms: " + frame.getMatchLatencyNs()/1000000.0);
+		}
+		synchronized( image_reader_lock ) {
+			if( picture_cb == null || !raw_todo ) {
+				Log.e(TAG, "raw frame no longer wanted");
+				closeRawFrameParts(frame);
+				return;
+			}
+			Object jpeg = frame.getPart(raw_part_jpeg_c);
+			if( jpeg instanceof JpegImage )
+				picture_cb.onJpegPictureTaken((JpegImage)jpeg);
+			else
+				picture_cb.onPictureTaken((byte [])jpeg);
+			n_burst_taken++;
+			n_burst--;
+
+			DngCreator dngCreator = new DngCreator(characteristics, (CaptureResult)frame.getPart(raw_part_result_c));
+			// set fields
+			dngCreator.setOrientation(camera_settings.getExifOrientation());
+			if( camera_settings.location != null ) {
+				dngCreator.setLocation(camera_settings.location);
+			}
+			// need to set jpeg_todo and raw_todo to false before calling onCompleted(), see takePhotoCompleted()
+			jpeg_todo = false;
+			raw_todo = false;
+			// the RawImage should be closed by the application (we don't do it here, so that applications can keep hold of the data, e.g., in a queue for background processing)
+			picture_cb.onRawPictureTaken(new RawImage(dngCreator, (Image)frame.getPart(raw_part_image_c)));
+			checkImagesCompleted();
+		}
+	}
+
+	/** Frees the images of a RAW+JPEG frame that won't be passed to the application.
+	 */
+	private static void closeRawFrameParts(FramePairer.Frame frame) {
+		Object jpeg = frame.getPart(raw_part_jpeg_c);
+		if( jpeg instanceof JpegImage )
+			((JpegImage)jpeg).close();
+		Image image = (Image)frame.getPart(raw_part_image_c);
+		if( image != null )
+			image.close();
+	}
+
+	/** Returns the structure matching up RAW+JPEG frames, for its statistics (e.g., the time taken
+	 *  to match each frame).
+	 */
+	public FramePairer getRawFramePairer() {
+		return raw_frame_pairer;
+	}
 	
 	private final CameraSettings camera_settings = new CameraSettings();
 	private boolean push_repeating_request_when_torch_off = false;
@@ -1604,15 +1681,34 @@ public class CameraController2 extends CameraController {
 		}
 		previewBuilder = null;
 		previewIsVideoMode = false;
+		ui_handler.removeCallbacks(flush_repeating_request_runnable);
 		if( camera != null ) {
 			camera.close();
 			camera = null;
 		}
 		closePictureImageReader();
+		if( burst_buffer_pool.checkLeaks() > 0 ) {
+			// not necessarily a leak if the application is still processing a burst, but worth knowing about
+			if( MyDebug.LOG )
+				Log.d(TAG, "burst buffers still outstanding: " + burst_buffer_pool.getNOutstanding());
+		}
+		burst_buffer_pool.trim();
 		/*if( previewImageReader != null ) {
 			previewImageReader.close();
 			previewImageReader = null;
 		}*/
+		if( zsl_thread != null ) {
+			// let any photo being encoded finish
+			zsl_thread.quitSafely();
+			try {
+				zsl_thread.join();
+				zsl_thread = null;
+				zsl_handler = null;
+			}
+			catch(InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
 		if( thread != null ) {
 			// should only close thread after closing the camera, otherwise we get messages "sending message to a Handler on a dead thread"
 			// see https://sourceforge.net/p/opencamera/discussion/general/thread/32c2b01b/?limit=25
@@ -1631,6 +1727,8 @@ public class CameraController2 extends CameraController {
 	private void closePictureImageReader() {
 		if( MyDebug.LOG )
 			Log.d(TAG, "closePictureImageReader()");
+		// cached requests target the old image reader's surface
+		clearBracketingPlans();
 		if( imageReader != null ) {
 			imageReader.close();
 			imageReader = null;
@@ -1638,7 +1736,21 @@ public class CameraController2 extends CameraController {
 		if( imageReaderRaw != null ) {
 			imageReaderRaw.close();
 			imageReaderRaw = null;
-			onRawImageAvailableListener = null;
+			raw_frame_pairer.clear();
+		}
+		closeZslImageReader();
+	}
+
+	private void closeZslImageReader() {
+		if( zslImageReader != null ) {
+			if( previewBuilder != null )
+				previewBuilder.removeTarget(zslImageReader.getSurface());
+			// clear before closing the reader, so the ring doesn't hold images of a closed reader
+			// (frames already taken for encoding are closed by the encoder)
+			zsl_ring.clear();
+			zslImageReader.close();
+			zslImageReader = null;
+			zsl_ring = null;
 		}
 	}
 
@@ -2644,9 +2756,11 @@ public class CameraController2 extends CameraController {
 		try {
 			temperature = Math.max(temperature, min_white_balance_temperature_c);
 			temperature = Math.min(temperature, max_white_balance_temperature_c);
+			// values outside the supported range are clamped, so may not change anything
+			boolean changed = camera_settings.white_balance_temperature != temperature;
 			camera_settings.white_balance_temperature = temperature;
 			if( camera_settings.setWhiteBalance(previewBuilder) ) {
-				setRepeatingRequest();
+				setRepeatingRequestCoalesced(changed ? dirty_white_balance_c : 0);
 			}
 		}
 		catch(CameraAccessException e) {
@@ -3045,7 +3159,7 @@ public class CameraController2 extends CameraController {
 		try {
 			camera_settings.iso = iso;
 			if( camera_settings.setAEMode(previewBuilder, false) ) {
-				setRepeatingRequest();
+				setRepeatingRequestCoalesced(dirty_ae_mode_c);
 			}
 		}
 		catch(CameraAccessException e) {
@@ -3085,7 +3199,7 @@ public class CameraController2 extends CameraController {
 		try {
 			camera_settings.exposure_time = exposure_time;
 			if( camera_settings.setAEMode(previewBuilder, false) ) {
-		    	setRepeatingRequest();
+		    	setRepeatingRequestCoalesced(dirty_ae_mode_c);
 			}
 		}
 		catch(CameraAccessException e) {
@@ -3121,6 +3235,14 @@ public class CameraController2 extends CameraController {
 		}
 		this.picture_width = width;
 		this.picture_height = height;
+		// size the pool for the largest burst we take (noise reduction in low light)
+		burst_buffer_pool.setPictureSize(width, height, N_IMAGES_NR_DARK_LOW_LIGHT);
+	}
+
+	/** Returns the pool used for burst images, e.g., to read its hit/miss statistics.
+	 */
+	public ImageBufferPool getBurstBufferPool() {
+		return burst_buffer_pool;
 	}
 
 	@Override
@@ -3195,6 +3317,7 @@ public class CameraController2 extends CameraController {
 		this.burst_type = burst_type;
 		updateUseFakePrecaptureMode(camera_settings.flash_value);
 		camera_settings.setAEMode(previewBuilder, false); // may need to set the ae mode, as flash is disabled for burst modes
+		updateImageReaderDepths();
 	}
 
 	@Override
@@ -3217,6 +3340,7 @@ public class CameraController2 extends CameraController {
 				Log.e(TAG, "limiting n_images to max of " + n_images);
 		}
 		this.expo_bracketing_n_images = n_images;
+		updateImageReaderDepths();
 	}
 
 	@Override
@@ -3238,6 +3362,22 @@ public class CameraController2 extends CameraController {
 		this.use_expo_fast_burst = use_expo_fast_burst;
 	}
 
+	@Override
+	public void setSlowBurstMaxInFlight(int max_in_flight) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setSlowBurstMaxInFlight: " + max_in_flight);
+		synchronized( image_reader_lock ) {
+			this.slow_burst_max_in_flight = Math.max(max_in_flight, 1);
+		}
+	}
+
+	@Override
+	public long [] getSlowBurstFrameGapsMs() {
+		synchronized( image_reader_lock ) {
+			return slow_burst_frame_gaps_ms.clone();
+		}
+	}
+
 	@Override
 	public boolean isBurstOrExpo() {
 		return this.burst_type != BurstType.BURSTTYPE_NONE;
@@ -3285,6 +3425,7 @@ public class CameraController2 extends CameraController {
 		if( MyDebug.LOG )
 			Log.d(TAG, "setBurstNImages: " + burst_requested_n_images);
 		this.burst_requested_n_images = burst_requested_n_images;
+		updateImageReaderDepths();
 	}
 
 	@Override
@@ -3295,6 +3436,7 @@ public class CameraController2 extends CameraController {
 		}
 		this.burst_for_noise_reduction = burst_for_noise_reduction;
 		this.noise_reduction_low_light = noise_reduction_low_light;
+		updateImageReaderDepths();
 	}
 
 	@Override
@@ -3321,6 +3463,23 @@ public class CameraController2 extends CameraController {
 		}
 	}
 
+	@Override
+	public void setZeroShutterLag(int n_frames) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setZeroShutterLag: " + n_frames);
+		this.zsl_n_frames = Math.max(n_frames, 0);
+	}
+
+	@Override
+	public int getZslHits() {
+		return zsl_hits;
+	}
+
+	@Override
+	public int getZslMisses() {
+		return zsl_misses;
+	}
+
 	@Override
 	public void setUseCamera2FakeFlash(boolean use_fake_precapture) {
 		if( MyDebug.LOG )
@@ -3358,8 +3517,8 @@ public class CameraController2 extends CameraController {
 				Log.e(TAG, "application needs to call setPictureSize()");
 			throw new RuntimeException(); // throw as RuntimeException, as this is a programming error
 		}
-		// maxImages only needs to be 2, as we always read the JPEG data and close the image straight away in the imageReader
-		imageReader = ImageReader.newInstance(picture_width, picture_height, ImageFormat.JPEG, 2);
+		chooseImageReaderDepths();
+		imageReader = ImageReader.newInstance(picture_width, picture_height, ImageFormat.JPEG, jpeg_image_reader_depth);
 		//imageReader = ImageReader.newInstance(picture_width, picture_height, ImageFormat.YUV_420_888, 2);
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "created new imageReader: " + imageReader.toString());
@@ -3369,45 +3528,517 @@ public class CameraController2 extends CameraController {
 		if( want_raw && raw_size != null&& !previewIsVideoMode  ) {
 			// unlike the JPEG imageReader, we can't read the data and close the image straight away, so we need to allow a larger
 			// value for maxImages
-			imageReaderRaw = ImageReader.newInstance(raw_size.getWidth(), raw_size.getHeight(), ImageFormat.RAW_SENSOR, max_raw_images);
+			imageReaderRaw = ImageReader.newInstance(raw_size.getWidth(), raw_size.getHeight(), ImageFormat.RAW_SENSOR, raw_image_reader_depth);
 			if( MyDebug.LOG ) {
 				Log.d(TAG, "created new imageReaderRaw: " + imageReaderRaw.toString());
 				Log.d(TAG, "imageReaderRaw surface: " + imageReaderRaw.getSurface().toString());
 			}
-			imageReaderRaw.setOnImageAvailableListener(onRawImageAvailableListener = new OnRawImageAvailableListener(), null);
+			imageReaderRaw.setOnImageAvailableListener(new OnRawImageAvailableListener(), null);
+		}
+		else if( zsl_n_frames > 0 && !zsl_failed && burst_type == BurstType.BURSTTYPE_NONE && !previewIsVideoMode ) {
+			createZslImageReader();
 		}
 	}
 
-	private void clearPending() {
-		if( MyDebug.LOG )
-			Log.d(TAG, "clearPending");
-		pending_burst_images.clear();
-		pending_raw_image = null;
-		if( onRawImageAvailableListener != null ) {
-			onRawImageAvailableListener.clear();
+	/** Creates the ImageReader that receives full resolution YUV frames from the repeating
+	 *  request, for zero shutter lag. Not created if the camera doesn't support YUV at the picture
+	 *  size, or there isn't enough memory for at least one frame.
+	 */
+	private void createZslImageReader() {
+		StreamConfigurationMap configs = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+		boolean supported = false;
+		if( configs != null ) {
+			android.util.Size [] yuv_sizes = configs.getOutputSizes(ImageFormat.YUV_420_888);
+			if( yuv_sizes != null ) {
+				for(android.util.Size size : yuv_sizes) {
+					if( size.getWidth() == picture_width && size.getHeight() == picture_height ) {
+						supported = true;
+						break;
+					}
+				}
+			}
 		}
-		slow_burst_capture_requests = null;
-		n_burst = 0;
-		n_burst_taken = 0;
-        n_burst_total = 0;
-		burst_single_request = false;
-		slow_burst_start_ms = 0;
+		if( !supported ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "zsl not supported at picture size: " + picture_width + " x " + picture_height);
+			return;
+		}
+		// the ring holds zsl_n_frames; we also need one buffer to acquire the next frame while the ring is full, and one
+		// for a frame being encoded
+		long yuv_image_bytes = (long)picture_width*(long)picture_height*3/2;
+		long jpeg_image_bytes = (long)picture_width*(long)picture_height*3/2;
+		long zsl_budget = Math.max(getImageReaderBudget() - jpeg_image_reader_depth*jpeg_image_bytes, 0);
+		int n_frames = (int)Math.min(zsl_n_frames, zsl_budget/yuv_image_bytes - 2);
+		if( n_frames < 1 ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "not enough memory for zsl, budget: " + zsl_budget);
+			return;
+		}
+		zslImageReader = ImageReader.newInstance(picture_width, picture_height, ImageFormat.YUV_420_888, n_frames+2);
+		zsl_ring = new ZslRingBuffer(n_frames);
+		if( zsl_thread == null ) {
+			zsl_thread = new HandlerThread("CameraZsl");
+			zsl_thread.start();
+			zsl_handler = new Handler(zsl_thread.getLooper());
+		}
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "created new zslImageReader: " + zslImageReader.toString());
+			Log.d(TAG, "zsl frames: " + n_frames);
+		}
+		final ZslRingBuffer ring = zsl_ring;
+		// unlike the other image readers, frames arrive continuously, so handle them on the background thread
+		zslImageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+			@Override
+			public void onImageAvailable(ImageReader reader) {
+				Image image = acquireNextImage(reader);
+				if( image != null )
+					ring.addFrame(image);
+			}
+		}, handler);
 	}
 
-	private void takePendingRaw() {
-		if( MyDebug.LOG )
-			Log.d(TAG, "takePendingRaw");
-		if( pending_raw_image != null ) {
-            raw_todo = false;
-            picture_cb.onRawPictureTaken(pending_raw_image);
-            // pending_raw_image should be closed by the application (we don't do it here, so that applications can keep hold of the data, e.g., in a queue for background processing)
-			pending_raw_image = null;
-			if( onRawImageAvailableListener != null ) {
-				onRawImageAvailableListener.clear();
-			}
+	/** Returns the most images we expect a single photo to produce, for the current burst settings.
+	 */
+	private int getMaxImagesPerPhoto() {
+		switch( burst_type ) {
+			case BURSTTYPE_EXPO:
+				return expo_bracketing_n_images;
+			case BURSTTYPE_FOCUS:
+				return focus_bracketing_n_images + (focus_bracketing_add_infinity ? 1 : 0);
+			case BURSTTYPE_NORMAL:
+				if( burst_for_noise_reduction )
+					return noise_reduction_low_light ? N_IMAGES_NR_DARK_LOW_LIGHT : N_IMAGES_NR_DARK;
+				return Math.max(burst_requested_n_images, 1);
+			case BURSTTYPE_CONTINUOUS:
+				return max_image_reader_depth_c; // no fixed limit
+			default:
+				return 1;
 		}
 	}
 
+	/** Returns the total memory we allow the picture ImageReaders' buffers to use.
+	 */
+	private long getImageReaderBudget() {
+		long budget = max_image_reader_budget_c;
+		ActivityManager activityManager = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+		if( activityManager != null ) {
+			// the buffers are allocated outside of the Java heap, so base this on the device's total memory
+			ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+			activityManager.getMemoryInfo(memoryInfo);
+			budget = Math.min(budget, memoryInfo.totalMem/16);
+			if( activityManager.isLowRamDevice() )
+				budget /= 2;
+		}
+		return budget;
+	}
+
+	/** Chooses maxImages for the JPEG and RAW ImageReaders. Single photos only need 2 JPEG buffers
+	 *  (one being read, one for the camera), but fast bursts (where the camera produces the images
+	 *  in quick succession) stall the camera if it runs out of buffers, so we allow one per burst
+	 *  image, within a memory budget. RAW images are held until the application has saved them,
+	 *  so we allow up to max_raw_images of these, but RAW isn't supported for bursts.
+	 */
+	private void chooseImageReaderDepths() {
+		int images_per_photo = getMaxImagesPerPhoto();
+		// focus bracketing takes one image at a time, waiting for the lens to move
+		boolean fast_burst = images_per_photo > 1 && burst_type != BurstType.BURSTTYPE_FOCUS;
+		long budget = getImageReaderBudget();
+		// JPEG buffers are sized for the largest possible JPEG, typically around 1.5 bytes per pixel
+		long jpeg_image_bytes = Math.max((long)picture_width*(long)picture_height*3/2, 1);
+		int jpeg_depth = fast_burst ? images_per_photo+1 : min_jpeg_image_reader_depth_c;
+		jpeg_depth = Math.min(jpeg_depth, max_image_reader_depth_c);
+		jpeg_depth = (int)Math.min(jpeg_depth, budget/jpeg_image_bytes);
+		jpeg_image_reader_depth = Math.max(jpeg_depth, min_jpeg_image_reader_depth_c);
+
+		raw_image_reader_depth = 0;
+		if( want_raw && raw_size != null ) {
+			long raw_image_bytes = Math.max(2L*raw_size.getWidth()*raw_size.getHeight(), 1); // RAW_SENSOR is 16 bits per pixel
+			long raw_budget = Math.max(budget - jpeg_image_reader_depth*jpeg_image_bytes, 0);
+			int raw_depth = burst_type == BurstType.BURSTTYPE_NONE ? max_raw_images : 1;
+			raw_depth = Math.min(raw_depth, max_image_reader_depth_c);
+			raw_depth = (int)Math.min(raw_depth, raw_budget/raw_image_bytes);
+			raw_image_reader_depth = Math.max(raw_depth, 1);
+		}
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "images_per_photo: " + images_per_photo);
+			Log.d(TAG, "image reader budget: " + budget);
+			Log.d(TAG, "jpeg_image_reader_depth: " + jpeg_image_reader_depth);
+			Log.d(TAG, "raw_image_reader_depth: " + raw_image_reader_depth);
+		}
+	}
+
+	/** Called when a burst setting that chooseImageReaderDepths() depends on has changed. The
+	 *  depths are normally chosen when the capture session is created, but if the session is
+	 *  already running with image readers of a different depth, the session is recreated (as an
+	 *  ImageReader's maxImages can't be changed).
+	 */
+	private void updateImageReaderDepths() {
+		if( camera == null || captureSession == null || imageReader == null ) {
+			// depths will be chosen when the session is created
+			return;
+		}
+		if( burst_type == BurstType.BURSTTYPE_CONTINUOUS ) {
+			// set immediately before taking the photo, so there's no time to recreate the session - continuous
+			// bursts use whatever buffers we already have
+			return;
+		}
+		int old_jpeg_depth = jpeg_image_reader_depth;
+		int old_raw_depth = raw_image_reader_depth;
+		chooseImageReaderDepths();
+		if( jpeg_image_reader_depth == old_jpeg_depth && raw_image_reader_depth == old_raw_depth ) {
+			return;
+		}
+		if( previewIsVideoMode || state != STATE_NORMAL || picture_cb != null ) {
+			// can't recreate the session while recording or taking a photo; the depths will be chosen again when the
+			// session is next created
+			if( MyDebug.LOG )
+				Log.d(TAG, "can't recreate image readers now");
+			jpeg_image_reader_depth = old_jpeg_depth;
+			raw_image_reader_depth = old_raw_depth;
+			return;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "recreate capture session for new image reader depths");
+		try {
+			createCaptureSession(null, false);
+		}
+		catch(CameraControllerException e) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "failed to recreate capture session");
+			e.printStackTrace();
+			preview_error_cb.onError();
+		}
+	}
+
+	/** Returns maxImages of the JPEG ImageReader, or 0 if it hasn't been created.
+	 */
+	public int getJpegImageReaderDepth() {
+		return imageReader != null ? jpeg_image_reader_depth : 0;
+	}
+
+	/** Returns maxImages of the RAW ImageReader, or 0 if it hasn't been created.
+	 */
+	public int getRawImageReaderDepth() {
+		return imageReaderRaw != null ? raw_image_reader_depth : 0;
+	}
+
+	@Override
+	public int getMaxHeldJpegImages() {
+		// keep one buffer free for the camera
+		return Math.max(getJpegImageReaderDepth()-1, 0);
+	}
+
+	@Override
+	public int getMaxHeldRawImages() {
+		// keep one buffer free for the camera
+		return Math.max(getRawImageReaderDepth()-1, 0);
+	}
+
+	/** Acquires the next image from the reader, returning null (and recording the failure) if
+	 *  there isn't one, or if too many images from this reader are already held.
+	 */
+	private Image acquireNextImage(ImageReader reader) {
+		Image image = null;
+		try {
+			image = reader.acquireNextImage();
+		}
+		catch(IllegalStateException e) {
+			// maxImages have already been acquired
+			e.printStackTrace();
+		}
+		if( image == null ) {
+			Log.e(TAG, "failed to acquire image from: " + reader);
+			count_image_acquire_failed++;
+		}
+		return image;
+	}
+
+	/** Records the start of a burst with the burst telemetry, if any.
+	 * @param n_requested The number of images requested, or 0 if not known.
+	 */
+	private void startBurstTelemetry(int n_requested) {
+		BurstTelemetry burst_telemetry = getBurstTelemetry();
+		if( burst_telemetry != null )
+			burst_telemetry.startBurst(burst_type, n_requested);
+	}
+
+	private void clearPending() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "clearPending");
+		for(ImageBuffer image_buffer : pending_burst_images) {
+			// images from an incomplete burst that were never passed to the application
+			image_buffer.release();
+		}
+		pending_burst_images.clear();
+		raw_frame_pairer.clear();
+		BurstTelemetry burst_telemetry = getBurstTelemetry();
+		if( burst_telemetry != null )
+			burst_telemetry.abandonBurst();
+		slow_burst_capture_requests = null;
+		n_burst = 0;
+		n_burst_taken = 0;
+        n_burst_total = 0;
+		burst_single_request = false;
+		streaming_burst = false;
+		slow_burst_start_ms = 0;
+		slow_burst_n_submitted = 0;
+		slow_burst_n_results = 0;
+		focus_bracketing_settle_index = -1;
+	}
+
+	/** Submits the next of slow_burst_capture_requests. Calls to this method should synchronize on
+	 *  image_reader_lock.
+	 * @return Whether the request was submitted.
+	 */
+	private boolean submitSlowBurstRequest() {
+		if( camera == null || captureSession == null ) { // make sure camera wasn't released in the meantime
+			return false;
+		}
+		try {
+			captureSession.capture(slow_burst_capture_requests.get(slow_burst_n_submitted), previewCaptureCallback, handler);
+			slow_burst_n_submitted++;
+			if( MyDebug.LOG )
+				Log.d(TAG, "submitted slow burst request " + slow_burst_n_submitted + " of " + slow_burst_capture_requests.size() + ", in flight: " + (slow_burst_n_submitted - n_burst_taken));
+			return true;
+		}
+		catch(CameraAccessException e) {
+			if( MyDebug.LOG ) {
+				Log.e(TAG, "failed to take next burst");
+				Log.e(TAG, "reason: " + e.getReason());
+				Log.e(TAG, "message: " + e.getMessage());
+			}
+			e.printStackTrace();
+			jpeg_todo = false;
+			raw_todo = false;
+			picture_cb = null;
+			if( take_picture_error_cb != null ) {
+				take_picture_error_cb.onError();
+				take_picture_error_cb = null;
+			}
+			return false;
+		}
+	}
+
+	/** Submits further slow burst requests (other than for focus bracketing), keeping up to
+	 *  slow_burst_max_in_flight outstanding, so that the camera can be capturing the next images
+	 *  while earlier ones are still being encoded, rather than waiting for each image in turn.
+	 *  Calls to this method should synchronize on image_reader_lock.
+	 */
+	private void fillSlowBurstPipeline() {
+		while( slow_burst_n_submitted < slow_burst_capture_requests.size() ) {
+			int n_in_flight = slow_burst_n_submitted - n_burst_taken;
+			if( n_in_flight >= slow_burst_max_in_flight ) {
+				break;
+			}
+			if( n_in_flight > 0 && picture_cb != null && picture_cb.imageQueueWouldBlock(n_in_flight+1) ) {
+				// don't queue up more images than the application can accept; we'll try again when the next image arrives
+				if( MyDebug.LOG )
+					Log.d(TAG, "image queue would block, so don't submit further requests yet");
+				break;
+			}
+			if( !submitSlowBurstRequest() ) {
+				break;
+			}
+		}
+	}
+
+	/** Submits the next focus bracketing request once it's safe to do so: the previous exposure must
+	 *  have completed (so the lens can be moved), the lens must have settled at the next focus
+	 *  distance, and there must be room in the in-flight window. Earlier images may still be
+	 *  being encoded, so the lens movement for the next image overlaps with that.
+	 *  Called whenever one of these conditions may have changed. Calls to this method should
+	 *  synchronize on image_reader_lock.
+	 */
+	private void advanceFocusBracketing() {
+		if( camera == null || captureSession == null || previewBuilder == null || picture_cb == null ) { // make sure camera wasn't released in the meantime
+			return;
+		}
+		if( !focus_bracketing_in_progress && !slow_burst_truncated ) {
+			truncateFocusBracketing();
+		}
+		if( slow_burst_n_submitted >= slow_burst_capture_requests.size() ) {
+			return;
+		}
+		if( slow_burst_n_results < slow_burst_n_submitted ) {
+			// previous exposure is still in progress, so mustn't move the lens yet
+			return;
+		}
+		int index = slow_burst_n_submitted;
+		if( focus_bracketing_settle_index != index ) {
+			float focus_distance = slow_burst_capture_requests.get(index).get(CaptureRequest.LENS_FOCUS_DISTANCE);
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "prepare preview for next focus_distance: " + focus_distance);
+			}
+			previewBuilder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_OFF);
+			previewBuilder.set(CaptureRequest.LENS_FOCUS_DISTANCE, focus_distance);
+			try {
+				setRepeatingRequest(previewBuilder.build());
+			}
+			catch(CameraAccessException e) {
+				if( MyDebug.LOG ) {
+					Log.e(TAG, "failed to take set focus distance for next focus bracketing burst");
+					Log.e(TAG, "reason: " + e.getReason());
+					Log.e(TAG, "message: " + e.getMessage());
+				}
+				e.printStackTrace();
+				jpeg_todo = false;
+				raw_todo = false;
+				picture_cb = null;
+				if( take_picture_error_cb != null ) {
+					take_picture_error_cb.onError();
+					take_picture_error_cb = null;
+				}
+				return;
+			}
+			focus_bracketing_settle_index = index;
+			focus_bracketing_settled = false;
+			// processSlowBurstResult() will tell us when the lens has settled, but not all devices report the lens state
+			handler.removeCallbacks(focus_bracketing_settle_timeout_runnable);
+			handler.postDelayed(focus_bracketing_settle_timeout_runnable, focus_bracketing_settle_timeout_ms_c);
+			return;
+		}
+		if( !focus_bracketing_settled ) {
+			return;
+		}
+		int n_in_flight = slow_burst_n_submitted - n_burst_taken;
+		if( n_in_flight >= slow_burst_max_in_flight ) {
+			// we'll be called again from takePhotoPartial() when the next image arrives
+			if( MyDebug.LOG )
+				Log.d(TAG, "wait for next focus bracket, as " + n_in_flight + " images in flight");
+			return;
+		}
+		if( picture_cb.imageQueueWouldBlock(n_in_flight+1) ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "wait for next focus bracket, as image queue would block");
+			handler.removeCallbacks(focus_bracketing_retry_runnable);
+			handler.postDelayed(focus_bracketing_retry_runnable, 100);
+			return;
+		}
+		// For focus bracketing mode, we play the shutter sound per shot (so the user can tell when the sequence is complete).
+		// From a user mode, the gap between shots in focus bracketing mode makes this more analogous to the auto-repeat mode
+		// (at the Preview level), which makes the shutter sound per shot.
+		if( sounds_enabled )
+			media_action_sound.play(MediaActionSound.SHUTTER_CLICK);
+		submitSlowBurstRequest();
+	}
+
+	/** Cuts short the focus bracketing requests, after focus bracketing was cancelled. Calls to this
+	 *  method should synchronize on image_reader_lock.
+	 */
+	private void truncateFocusBracketing() {
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "focus bracketing was cancelled");
+			Log.d(TAG, "slow_burst_capture_requests size was: " + slow_burst_capture_requests.size());
+			Log.d(TAG, "n_burst size was: " + n_burst);
+			Log.d(TAG, "n_burst_taken: " + n_burst_taken);
+			Log.d(TAG, "slow_burst_n_submitted: " + slow_burst_n_submitted);
+		}
+		slow_burst_truncated = true;
+		int new_size;
+		if( slow_burst_n_results < slow_burst_n_submitted && n_burst_taken < slow_burst_n_submitted ) {
+			// the last submitted request is still in progress, so we can make that the last
+			new_size = slow_burst_n_submitted;
+		}
+		else {
+			// ideally we'd stop altogether, but instead we take one last shot, so that we can mark it with the
+			// RequestTagType.CAPTURE tag, so onCaptureCompleted() is called knowing it's for the last image
+			new_size = slow_burst_n_submitted+1;
+		}
+		if( new_size >= slow_burst_capture_requests.size() ) {
+			// nothing to cut, and the last request already has the RequestTagType.CAPTURE tag
+			return;
+		}
+		slow_burst_capture_requests.subList(new_size, slow_burst_capture_requests.size()).clear(); // https://stackoverflow.com/questions/1184636/shrinking-an-arraylist-to-a-new-size
+		// if burst_single_request==true, n_burst is constant and we stop when pending_burst_images.size() >= n_burst
+		// if burst_single_request==false, n_burst counts down and we stop when n_burst==0
+		if( burst_single_request )
+			n_burst = slow_burst_capture_requests.size();
+		else
+			n_burst = slow_burst_capture_requests.size() - n_burst_taken;
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "size is now: " + slow_burst_capture_requests.size());
+			Log.d(TAG, "n_burst is now: " + n_burst);
+		}
+		// n.b., if this request was already submitted, its capture result hasn't been received yet, so it's not too late to change the tag
+		RequestTagObject requestTag = (RequestTagObject)slow_burst_capture_requests.get(slow_burst_capture_requests.size()-1).getTag();
+		requestTag.setType(RequestTagType.CAPTURE);
+	}
+
+	private final Runnable focus_bracketing_settle_timeout_runnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized( image_reader_lock ) {
+				if( slow_burst_capture_requests == null || focus_bracketing_settle_index == -1 || focus_bracketing_settled )
+					return;
+				if( MyDebug.LOG )
+					Log.d(TAG, "timed out waiting for lens to settle for focus bracket " + focus_bracketing_settle_index);
+				focus_bracketing_settled = true;
+				advanceFocusBracketing();
+			}
+		}
+	};
+
+	private final Runnable focus_bracketing_retry_runnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized( image_reader_lock ) {
+				if( slow_burst_capture_requests != null && burst_type == BurstType.BURSTTYPE_FOCUS )
+					advanceFocusBracketing();
+			}
+		}
+	};
+
+	/** Called for each capture result while a slow burst is in progress, to track when each
+	 *  exposure has completed, and for focus bracketing, when the lens has settled at the next focus
+	 *  distance.
+	 */
+	private void processSlowBurstResult(CaptureRequest request, CaptureResult result) {
+		synchronized( image_reader_lock ) {
+			if( slow_burst_capture_requests == null )
+				return;
+			Integer capture_intent = request.get(CaptureRequest.CONTROL_CAPTURE_INTENT);
+			if( capture_intent != null && capture_intent == CaptureRequest.CONTROL_CAPTURE_INTENT_STILL_CAPTURE ) {
+				slow_burst_n_results++;
+				if( MyDebug.LOG )
+					Log.d(TAG, "slow burst capture result " + slow_burst_n_results + " of " + slow_burst_n_submitted + " submitted");
+			}
+			else if( focus_bracketing_settle_index != -1 && !focus_bracketing_settled ) {
+				// a preview frame: see if it's at the new focus distance, and the lens has stopped moving
+				Float request_distance = request.get(CaptureRequest.LENS_FOCUS_DISTANCE);
+				Integer lens_state = result.get(CaptureResult.LENS_STATE);
+				float target_distance = slow_burst_capture_requests.get(focus_bracketing_settle_index).get(CaptureRequest.LENS_FOCUS_DISTANCE);
+				if( request_distance == null || Math.abs(request_distance - target_distance) >= 1.0e-5 || lens_state == null || lens_state != CaptureResult.LENS_STATE_STATIONARY ) {
+					return;
+				}
+				if( MyDebug.LOG )
+					Log.d(TAG, "lens settled for focus bracket " + focus_bracketing_settle_index);
+				focus_bracketing_settled = true;
+				handler.removeCallbacks(focus_bracketing_settle_timeout_runnable);
+			}
+			else {
+				return;
+			}
+			if( burst_type == BurstType.BURSTTYPE_FOCUS )
+				advanceFocusBracketing();
+		}
+	}
+
+	/** Records the time since the previous slow burst image. Calls to this method should synchronize
+	 *  on image_reader_lock.
+	 */
+	private void recordSlowBurstImage() {
+		long time_ms = System.currentTimeMillis();
+		int index = n_burst_taken-1;
+		if( index >= 0 && index < slow_burst_frame_gaps_ms.length ) {
+			slow_burst_frame_gaps_ms[index] = time_ms - slow_burst_last_image_ms;
+			if( MyDebug.LOG )
+				Log.d(TAG, "slow burst image " + index + " gap ms: " + slow_burst_frame_gaps_ms[index]);
+		}
+		slow_burst_last_image_ms = time_ms;
+		if( MyDebug.LOG && n_burst_taken == slow_burst_capture_requests.size() )
+			Log.d(TAG, "slow burst of " + n_burst_taken + " images took " + (time_ms - slow_burst_start_ms) + "ms");
+	}
+
 	private void checkImagesCompleted() {
 		if( MyDebug.LOG )
 			Log.d(TAG, "checkImagesCompleted");
@@ -3429,17 +4060,6 @@ public class CameraController2 extends CameraController {
 				picture_cb = null;
 				cb.onCompleted();
 			}
-			else if( !jpeg_todo && pending_raw_image != null ) {
-				if( MyDebug.LOG )
-					Log.d(TAG, "jpeg callback already done, can now call pending raw callback");
-				takePendingRaw();
-				if( MyDebug.LOG )
-					Log.d(TAG, "all image callbacks now completed");
-				// need to set picture_cb to null before calling onCompleted, as that may reenter CameraController to take another photo (if in auto-repeat burst mode) - see testTakePhotoRepeat()
-				PictureCallback cb = picture_cb;
-				picture_cb = null;
-				cb.onCompleted();
-			}
 			else {
 				if( MyDebug.LOG )
 					Log.d(TAG, "need to wait for jpeg and/or raw callback");
@@ -3596,11 +4216,14 @@ public class CameraController2 extends CameraController {
 			Log.d(TAG, "current_rect right: " + current_rect.right);
 			Log.d(TAG, "current_rect bottom: " + current_rect.bottom);*/
 		}
-		camera_settings.scalar_crop_region = new Rect(left, top, right, bottom);
+		// different zoom values may round to the same crop region, and zoom may be set repeatedly to the same value
+		Rect crop_region = new Rect(left, top, right, bottom);
+		boolean changed = !crop_region.equals(camera_settings.scalar_crop_region);
+		camera_settings.scalar_crop_region = crop_region;
 		camera_settings.setCropRegion(previewBuilder);
     	this.current_zoom_value = value;
     	try {
-    		setRepeatingRequest();
+    		setRepeatingRequestCoalesced(changed ? dirty_crop_region_c : 0);
     	}
 		catch(CameraAccessException e) {
 			if( MyDebug.LOG ) {
@@ -3622,11 +4245,12 @@ public class CameraController2 extends CameraController {
 	@Override
 	// Returns whether exposure was modified
 	public boolean setExposureCompensation(int new_exposure) {
+		boolean changed = !camera_settings.has_ae_exposure_compensation || camera_settings.ae_exposure_compensation != new_exposure;
 		camera_settings.has_ae_exposure_compensation = true;
 		camera_settings.ae_exposure_compensation = new_exposure;
 		if( camera_settings.setExposureCompensation(previewBuilder) ) {
 			try {
-				setRepeatingRequest();
+				setRepeatingRequestCoalesced(changed ? dirty_exposure_compensation_c : 0);
 			}
 			catch(CameraAccessException e) {
 				if( MyDebug.LOG ) {
@@ -3649,6 +4273,10 @@ public class CameraController2 extends CameraController {
 //		Frame duration is in nanoseconds.  Using min to be safe.
 		camera_settings.sensor_frame_duration =
 				(long)(1.0 / (min / 1000.0) * 1000000000L);
+		FramePacingDetector frame_pacing_detector = getFramePacingDetector();
+		if( frame_pacing_detector != null ) {
+			frame_pacing_detector.setFpsRange(min, max);
+		}
 
 		try {
 			if( camera_settings.setAEMode(previewBuilder, false) ) {
@@ -3669,6 +4297,10 @@ public class CameraController2 extends CameraController {
 	public void clearPreviewFpsRange() {
     	if( MyDebug.LOG )
     		Log.d(TAG, "clearPreviewFpsRange");
+		FramePacingDetector frame_pacing_detector = getFramePacingDetector();
+		if( frame_pacing_detector != null ) {
+			frame_pacing_detector.setFpsRange(0, 0);
+		}
     	// needed e.g. on Nokia 8 when switching back from slow motion to regular speed, in order to reset to the regular
 		// frame rate
     	if( camera_settings.ae_target_fps_range != null || camera_settings.sensor_frame_duration != 0 ) {
@@ -3815,7 +4447,7 @@ public class CameraController2 extends CameraController {
     	camera_settings.focus_distance_manual = focus_distance;
     	camera_settings.setFocusDistance(previewBuilder);
     	try {
-    		setRepeatingRequest();
+    		setRepeatingRequestCoalesced(dirty_focus_distance_c);
     	}
 		catch(CameraAccessException e) {
 			if( MyDebug.LOG ) {
@@ -3944,10 +4576,11 @@ public class CameraController2 extends CameraController {
 
 	@Override
 	public void setAutoExposureLock(boolean enabled) {
+		boolean changed = camera_settings.ae_lock != enabled;
 		camera_settings.ae_lock = enabled;
 		camera_settings.setAutoExposureLock(previewBuilder);
 		try {
-			setRepeatingRequest();
+			setRepeatingRequestCoalesced(changed ? dirty_ae_lock_c : 0);
 		}
 		catch(CameraAccessException e) {
 			if( MyDebug.LOG ) {
@@ -3968,10 +4601,11 @@ public class CameraController2 extends CameraController {
 
 	@Override
 	public void setAutoWhiteBalanceLock(boolean enabled) {
+		boolean changed = camera_settings.wb_lock != enabled;
 		camera_settings.wb_lock = enabled;
 		camera_settings.setAutoWhiteBalanceLock(previewBuilder);
 		try {
-			setRepeatingRequest();
+			setRepeatingRequestCoalesced(changed ? dirty_wb_lock_c : 0);
 		}
 		catch(CameraAccessException e) {
 			if( MyDebug.LOG ) {
@@ -4284,6 +4918,95 @@ public class CameraController2 extends CameraController {
 		setRepeatingRequest(previewBuilder.build());
 	}
 
+	/** Returns the time between preview frames that repeating requests are coalesced over.
+	 */
+	private long getCoalesceIntervalNs() {
+		CaptureResultValues capture_result = capture_result_values;
+		long interval_ns = capture_result.hasFrameDuration() ? capture_result.getFrameDuration() : 1000000000L/30;
+		return Math.min(interval_ns, max_coalesce_interval_ns_c);
+	}
+
+	/** Sends previewBuilder as the repeating request, for a change to settings that may be changed
+	 *  continuously (e.g., dragging a seekbar for zoom or exposure). Each repeating request makes
+	 *  the camera re-apply all the settings, so at most one is sent per preview frame: if a
+	 *  repeating request was sent less than a frame ago, this change is instead sent with any
+	 *  others at the next frame.
+	 * @param dirty The dirty_*_c bits for the settings that were changed in previewBuilder. If 0
+	 *              (e.g., a seekbar reporting the same value again), nothing needs to be sent.
+	 */
+	private void setRepeatingRequestCoalesced(int dirty) throws CameraAccessException {
+		long delay_ns;
+		boolean post = false;
+		synchronized( repeating_request_lock ) {
+			if( dirty == 0 ) {
+				count_repeating_requests_skipped++;
+				if( MyDebug.LOG )
+					Log.d(TAG, "settings unchanged, repeating request not needed");
+				return;
+			}
+			camera_settings.dirty |= dirty;
+			if( repeating_request_pending ) {
+				// will be sent with the pending request
+				count_repeating_requests_coalesced++;
+				return;
+			}
+			delay_ns = last_repeating_request_time_ns + getCoalesceIntervalNs() - System.nanoTime();
+			if( last_repeating_request_time_ns != 0 && delay_ns > 0 ) {
+				repeating_request_pending = true;
+				count_repeating_requests_coalesced++;
+				post = true;
+			}
+		}
+		if( post ) {
+			ui_handler.postDelayed(flush_repeating_request_runnable, (delay_ns + 999999)/1000000);
+		}
+		else {
+			setRepeatingRequest();
+		}
+	}
+
+	private final Runnable flush_repeating_request_runnable = new Runnable() {
+		@Override
+		public void run() {
+			int dirty;
+			synchronized( repeating_request_lock ) {
+				if( !repeating_request_pending )
+					return; // already sent by another repeating request
+				repeating_request_pending = false;
+				dirty = camera_settings.dirty;
+			}
+			if( previewBuilder == null ) {
+				// camera closed
+				return;
+			}
+			if( MyDebug.LOG )
+				Log.d(TAG, "send coalesced repeating request, dirty: " + dirty);
+			try {
+				setRepeatingRequest();
+			}
+			catch(CameraAccessException e) {
+				if( MyDebug.LOG ) {
+					Log.e(TAG, "failed to send coalesced repeating request");
+					Log.e(TAG, "reason: " + e.getReason());
+					Log.e(TAG, "message: " + e.getMessage());
+				}
+				e.printStackTrace();
+			}
+		}
+	};
+
+	/** Should be called whenever a repeating request is sent. All repeating requests carry the
+	 *  current settings, so any pending coalesced request is no longer needed.
+	 */
+	private void onRepeatingRequestSent() {
+		synchronized( repeating_request_lock ) {
+			repeating_request_pending = false;
+			last_repeating_request_time_ns = System.nanoTime();
+			camera_settings.dirty = 0;
+			count_repeating_requests_submitted++;
+		}
+	}
+
 	private void setRepeatingRequest(CaptureRequest request) throws CameraAccessException {
 		if( MyDebug.LOG )
 			Log.d(TAG, "setRepeatingRequest");
@@ -4301,6 +5024,7 @@ public class CameraController2 extends CameraController {
 			else {
 				captureSession.setRepeatingRequest(request, previewCaptureCallback, handler);
 			}
+			onRepeatingRequestSent();
 			if( MyDebug.LOG )
 				Log.d(TAG, "setRepeatingRequest done");
 		}
@@ -4459,6 +5183,8 @@ public class CameraController2 extends CameraController {
 	        		previewBuilder.addTarget(surface);
 	        		if( video_recorder != null )
 	        			previewBuilder.addTarget(video_recorder_surface);
+	        		if( zslImageReader != null )
+	        			previewBuilder.addTarget(zslImageReader.getSurface());
 	        		try {
 	        			setRepeatingRequest();
 	        		}
@@ -4538,6 +5264,9 @@ public class CameraController2 extends CameraController {
     		else if( imageReaderRaw != null ) {
         		surfaces = Arrays.asList(preview_surface, imageReader.getSurface(), imageReaderRaw.getSurface());
     		}
+    		else if( zslImageReader != null ) {
+        		surfaces = Arrays.asList(preview_surface, imageReader.getSurface(), zslImageReader.getSurface());
+    		}
     		else {
         		surfaces = Arrays.asList(preview_surface, imageReader.getSurface());
     		}
@@ -4600,6 +5329,15 @@ public class CameraController2 extends CameraController {
 			if( MyDebug.LOG ) {
 				Log.d(TAG, "created captureSession: " + captureSession);
 			}
+			if( captureSession == null && zslImageReader != null ) {
+				// not all devices support a full resolution YUV stream alongside JPEG, so try again without zsl
+				if( MyDebug.LOG )
+					Log.e(TAG, "failed to create capture session with zsl, try again without");
+				zsl_failed = true;
+				closeZslImageReader();
+				createCaptureSession(video_recorder, want_photo_video_recording);
+				return;
+			}
 			if( captureSession == null ) {
 				if( MyDebug.LOG )
 					Log.e(TAG, "failed to create capture session");
@@ -4654,6 +5392,11 @@ public class CameraController2 extends CameraController {
 	public void stopPreview() {
 		if( MyDebug.LOG )
 			Log.d(TAG, "stopPreview: " + this);
+		FramePacingDetector frame_pacing_detector = getFramePacingDetector();
+		if( frame_pacing_detector != null ) {
+			// don't count the gap until the preview restarts
+			frame_pacing_detector.restart();
+		}
 		if( camera == null || captureSession == null ) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "no camera or capture session");
@@ -4986,20 +5729,21 @@ public class CameraController2 extends CameraController {
 			if (MyDebug.LOG) {
 				Log.d(TAG, "exposure_time: " + exposure_time);
 			}
+			CaptureResultValues capture_result = capture_result_values;
 			stillBuilder.set(CaptureRequest.CONTROL_AE_MODE, CameraMetadata.CONTROL_AE_MODE_OFF);
 			{
 				// set ISO
 				int iso = 800;
-				if( capture_result_has_iso )
-					iso = capture_result_iso;
+				if( capture_result.hasIso() )
+					iso = capture_result.getIso();
 				// see https://sourceforge.net/p/opencamera/tickets/321/ - some devices may have auto ISO that's
 				// outside of the allowed manual iso range!
 				iso = Math.max(iso, iso_range.getLower());
 				iso = Math.min(iso, iso_range.getUpper());
 				stillBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, iso );
 			}
-			if( capture_result_has_frame_duration  )
-				stillBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION, capture_result_frame_duration);
+			if( capture_result.hasFrameDuration()  )
+				stillBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION, capture_result.getFrameDuration());
 			else
 				stillBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION, 1000000000L/30);
 			stillBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, exposure_time);
@@ -5048,11 +5792,12 @@ public class CameraController2 extends CameraController {
 				stillBuilder.set(CaptureRequest.FLASH_MODE, CameraMetadata.FLASH_MODE_TORCH);
 				test_fake_flash_photo++;
 			}
-			if( !camera_settings.has_iso && this.optimise_ae_for_dro && capture_result_has_exposure_time && (camera_settings.flash_value.equals("flash_off") || camera_settings.flash_value.equals("flash_auto") || camera_settings.flash_value.equals("flash_frontscreen_auto") ) ) {
+			CaptureResultValues capture_result = capture_result_values;
+			if( !camera_settings.has_iso && this.optimise_ae_for_dro && capture_result.hasExposureTime() && (camera_settings.flash_value.equals("flash_off") || camera_settings.flash_value.equals("flash_auto") || camera_settings.flash_value.equals("flash_frontscreen_auto") ) ) {
 				final double full_exposure_time_scale = Math.pow(2.0, -0.5);
 				final long fixed_exposure_time = 1000000000L/60; // we only scale the exposure time at all if it's less than this value
 				final long scaled_exposure_time = 1000000000L/120; // we only scale the exposure time by the full_exposure_time_scale if the exposure time is less than this value
-				long exposure_time = capture_result_exposure_time;
+				long exposure_time = capture_result.getExposureTime();
 				if( exposure_time <= fixed_exposure_time ) {
 					double exposure_time_scale = getScaleForExposureTime(exposure_time, fixed_exposure_time, scaled_exposure_time, full_exposure_time_scale);
 					exposure_time *= exposure_time_scale;
@@ -5190,6 +5935,191 @@ public class CameraController2 extends CameraController {
 		return focus_distances;
 	}
 
+	private CaptureRequest.Builder createBracketingStillBuilder() throws CameraAccessException {
+		CaptureRequest.Builder stillBuilder = camera.createCaptureRequest(previewIsVideoMode ? CameraDevice.TEMPLATE_VIDEO_SNAPSHOT : CameraDevice.TEMPLATE_STILL_CAPTURE);
+		stillBuilder.set(CaptureRequest.CONTROL_CAPTURE_INTENT, CaptureRequest.CONTROL_CAPTURE_INTENT_STILL_CAPTURE);
+		// n.b., don't set RequestTagType.CAPTURE here - we only do it for the last of the burst captures (see takePictureBurstBracketing())
+		camera_settings.setupBuilder(stillBuilder, true);
+		// shouldn't add preview surface as a target - see note in takePictureAfterPrecapture()
+		// but also, adding the preview surface causes the dark/light exposures to be visible, which we don't want
+		stillBuilder.addTarget(imageReader.getSurface());
+		// don't add target imageReaderRaw, as Raw not supported for burst
+		return stillBuilder;
+	}
+
+	/** Returns everything other than the BracketingPlanKey that cached bracketing requests depend on.
+	 */
+	private Object [] getBracketingPlanSettings() {
+		return new Object[]{ camera_settings.getSnapshot(), want_raw, use_fake_precapture_mode };
+	}
+
+	/** Returns the cached requests for the supplied key, or null if there are none, or the camera
+	 *  settings have changed since they were built (in which case all cached requests are discarded).
+	 */
+	private List<CaptureRequest> getBracketingPlan(BracketingPlanKey key) {
+		if( bracketing_plans.isEmpty() )
+			return null;
+		if( !Arrays.deepEquals(getBracketingPlanSettings(), bracketing_plans_settings) ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "camera settings changed, discard cached bracketing plans");
+			clearBracketingPlans();
+			return null;
+		}
+		List<CaptureRequest> plan = bracketing_plans.get(key);
+		if( MyDebug.LOG )
+			Log.d(TAG, "bracketing plan " + key + ": " + (plan != null ? "hit" : "miss"));
+		return plan;
+	}
+
+	private void putBracketingPlan(BracketingPlanKey key, List<CaptureRequest> requests) {
+		if( bracketing_plans.isEmpty() ) {
+			bracketing_plans_settings = getBracketingPlanSettings();
+		}
+		else if( bracketing_plans.size() >= max_bracketing_plans_c ) {
+			// remove least recently used
+			bracketing_plans.remove(bracketing_plans.keySet().iterator().next());
+		}
+		// take a copy, as the list passed to the burst may be modified
+		bracketing_plans.put(key, new ArrayList<>(requests));
+	}
+
+	private void clearBracketingPlans() {
+		bracketing_plans.clear();
+		bracketing_plans_settings = null;
+	}
+
+	@Override
+	public int getBracketingPlanHits() {
+		return n_bracketing_plan_hits;
+	}
+
+	@Override
+	public int getBracketingPlanMisses() {
+		return n_bracketing_plan_misses;
+	}
+
+	@Override
+	public double getMeanBracketingPlanHitTimeMs() {
+		return n_bracketing_plan_hits == 0 ? 0.0 : total_bracketing_plan_hit_ns/(1000000.0*n_bracketing_plan_hits);
+	}
+
+	@Override
+	public double getMeanBracketingPlanMissTimeMs() {
+		return n_bracketing_plan_misses == 0 ? 0.0 : total_bracketing_plan_miss_ns/(1000000.0*n_bracketing_plan_misses);
+	}
+
+	@Override
+	public double getBracketingPlanSavedTimeMs() {
+		return n_bracketing_plan_hits*Math.max(getMeanBracketingPlanMissTimeMs() - getMeanBracketingPlanHitTimeMs(), 0.0);
+	}
+
+	/** Builds the capture requests for an expo bracketing photo, darkest first; the last request
+	 *  is tagged RequestTagType.CAPTURE.
+	 */
+	private List<CaptureRequest> buildExpoBracketingRequests(boolean torch, int iso, long base_exposure_time, long frame_duration) throws CameraAccessException {
+		List<CaptureRequest> requests = new ArrayList<>();
+		CaptureRequest.Builder stillBuilder = createBracketingStillBuilder();
+
+		/*stillBuilder.set(CaptureRequest.CONTROL_AE_MODE, CameraMetadata.CONTROL_AE_MODE_ON);
+		stillBuilder.set(CaptureRequest.FLASH_MODE, CameraMetadata.FLASH_MODE_OFF);
+
+		stillBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, -6);
+		requests.add( stillBuilder.build() );
+		stillBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, 0);
+		requests.add( stillBuilder.build() );
+		stillBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, 6);
+		requests.add( stillBuilder.build() );*/
+
+		stillBuilder.set(CaptureRequest.CONTROL_AE_MODE, CameraMetadata.CONTROL_AE_MODE_OFF);
+		if( torch ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "setting torch for capture");
+			stillBuilder.set(CaptureRequest.FLASH_MODE, CameraMetadata.FLASH_MODE_TORCH);
+			test_fake_flash_photo++;
+		}
+		// else don't turn torch off, as user may be in torch on mode
+
+		if( iso != -1 ) {
+			stillBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, iso );
+		}
+		stillBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION, frame_duration);
+
+		int n_half_images = expo_bracketing_n_images/2;
+		long min_exposure_time = base_exposure_time;
+		long max_exposure_time = base_exposure_time;
+		final double scale = Math.pow(2.0, expo_bracketing_stops/(double)n_half_images);
+		Range<Long> exposure_time_range = characteristics.get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE); // may be null on some devices
+		if( exposure_time_range != null ) {
+			min_exposure_time = exposure_time_range.getLower();
+			max_exposure_time = exposure_time_range.getUpper();
+		}
+
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "taking expo bracketing with n_images: " + expo_bracketing_n_images);
+			Log.d(TAG, "ISO: " + stillBuilder.get(CaptureRequest.SENSOR_SENSITIVITY));
+			Log.d(TAG, "Frame duration: " + stillBuilder.get(CaptureRequest.SENSOR_FRAME_DURATION));
+			Log.d(TAG, "Base exposure time: " + base_exposure_time);
+			Log.d(TAG, "Min exposure time: " + min_exposure_time);
+			Log.d(TAG, "Max exposure time: " + max_exposure_time);
+		}
+
+		// darker images
+		for(int i=0;i<n_half_images;i++) {
+			long exposure_time = base_exposure_time;
+			if( exposure_time_range != null ) {
+				double this_scale = scale;
+				for(int j=i;j<n_half_images-1;j++)
+					this_scale *= scale;
+				exposure_time /= this_scale;
+				if( exposure_time < min_exposure_time )
+					exposure_time = min_exposure_time;
+				if( MyDebug.LOG ) {
+					Log.d(TAG, "add burst request for " + i + "th dark image:");
+					Log.d(TAG, "    this_scale: " + this_scale);
+					Log.d(TAG, "    exposure_time: " + exposure_time);
+				}
+				stillBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, exposure_time);
+				requests.add( stillBuilder.build() );
+			}
+		}
+
+		// base image
+		if( MyDebug.LOG )
+			Log.d(TAG, "add burst request for base image");
+		stillBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, base_exposure_time);
+		requests.add( stillBuilder.build() );
+
+		// lighter images
+		for(int i=0;i<n_half_images;i++) {
+			long exposure_time = base_exposure_time;
+			if( exposure_time_range != null ) {
+				double this_scale = scale;
+				for(int j=0;j<i;j++)
+					this_scale *= scale;
+				exposure_time *= this_scale;
+				if( exposure_time > max_exposure_time )
+					exposure_time = max_exposure_time;
+				if( MyDebug.LOG ) {
+					Log.d(TAG, "add burst request for " + i + "th light image:");
+					Log.d(TAG, "    this_scale: " + this_scale);
+					Log.d(TAG, "    exposure_time: " + exposure_time);
+				}
+				stillBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, exposure_time);
+				if( i == n_half_images - 1 ) {
+					// RequestTagType.CAPTURE should only be set for the last request, otherwise we'll may do things like turning
+					// off torch (for fake flash) before all images are received
+					// More generally, doesn't seem a good idea to be doing the post-capture commands (resetting ae state etc)
+					// multiple times, and before all captures are complete!
+					if( MyDebug.LOG )
+						Log.d(TAG, "set RequestTagType.CAPTURE for last burst request");
+					stillBuilder.setTag(new RequestTagObject(RequestTagType.CAPTURE));
+				}
+				requests.add( stillBuilder.build() );
+			}
+		}
+		return requests;
+	}
+
 	private void takePictureBurstBracketing() {
 		if( MyDebug.LOG )
 			Log.d(TAG, "takePictureBurstBracketing");
@@ -5207,15 +6137,7 @@ public class CameraController2 extends CameraController {
 				Log.d(TAG, "imageReader surface: " + imageReader.getSurface().toString());
 			}
 
-			CaptureRequest.Builder stillBuilder = camera.createCaptureRequest(previewIsVideoMode ? CameraDevice.TEMPLATE_VIDEO_SNAPSHOT : CameraDevice.TEMPLATE_STILL_CAPTURE);
-			stillBuilder.set(CaptureRequest.CONTROL_CAPTURE_INTENT, CaptureRequest.CONTROL_CAPTURE_INTENT_STILL_CAPTURE);
-			// n.b., don't set RequestTagType.CAPTURE here - we only do it for the last of the burst captures (see below)
-			camera_settings.setupBuilder(stillBuilder, true);
 			clearPending();
-			// shouldn't add preview surface as a target - see note in takePictureAfterPrecapture()
-			// but also, adding the preview surface causes the dark/light exposures to be visible, which we don't want
-			stillBuilder.addTarget(imageReader.getSurface());
-			// don't add target imageReaderRaw, as Raw not supported for burst
 			raw_todo = false; // raw not supported for burst
 
 			List<CaptureRequest> requests = new ArrayList<>();
@@ -5225,136 +6147,71 @@ public class CameraController2 extends CameraController {
             if( MyDebug.LOG )
                 Log.d(TAG, "expo bracketing");
 
-			/*stillBuilder.set(CaptureRequest.CONTROL_AE_MODE, CameraMetadata.CONTROL_AE_MODE_ON);
-			stillBuilder.set(CaptureRequest.FLASH_MODE, CameraMetadata.FLASH_MODE_OFF);
-
-			stillBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, -6);
-			requests.add( stillBuilder.build() );
-			stillBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, 0);
-			requests.add( stillBuilder.build() );
-			stillBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, 6);
-			requests.add( stillBuilder.build() );*/
-
-			stillBuilder.set(CaptureRequest.CONTROL_AE_MODE, CameraMetadata.CONTROL_AE_MODE_OFF);
-			if( use_fake_precapture_mode && fake_precapture_torch_performed ) {
-				if( MyDebug.LOG )
-					Log.d(TAG, "setting torch for capture");
-				stillBuilder.set(CaptureRequest.FLASH_MODE, CameraMetadata.FLASH_MODE_TORCH);
-				test_fake_flash_photo++;
-			}
-			// else don't turn torch off, as user may be in torch on mode
-
+			long setup_start_ns = System.nanoTime();
+			boolean torch = use_fake_precapture_mode && fake_precapture_torch_performed;
+			CaptureResultValues capture_result = capture_result_values;
 			Range<Integer> iso_range = characteristics.get(CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE); // may be null on some devices
+			int iso = -1;
 			if( iso_range == null ) {
 				Log.e(TAG, "takePictureBurstBracketing called but null iso_range");
 			}
 			else {
-				// set ISO
-				int iso = 800;
+				iso = 800;
 				// obtain current ISO/etc settings from the capture result - but if we're in manual ISO mode,
 				// might as well use the settings the user has actually requested (also useful for workaround for
 				// OnePlus 3T bug where the reported ISO and exposure_time are wrong in dark scenes)
 				if( camera_settings.has_iso )
 					iso = camera_settings.iso;
-				else if( capture_result_has_iso )
-					iso = capture_result_iso;
+				else if( capture_result.hasIso() )
+					iso = capture_result.getIso();
 				// see https://sourceforge.net/p/opencamera/tickets/321/ - some devices may have auto ISO that's
 				// outside of the allowed manual iso range!
 				iso = Math.max(iso, iso_range.getLower());
 				iso = Math.min(iso, iso_range.getUpper());
-				stillBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, iso );
 			}
-			if( capture_result_has_frame_duration  )
-				stillBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION, capture_result_frame_duration);
-			else
-				stillBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION, 1000000000L/30);
+			long frame_duration = capture_result.hasFrameDuration() ? capture_result.getFrameDuration() : 1000000000L/30;
 
 			long base_exposure_time = 1000000000L/30;
 			if( camera_settings.has_iso )
 				base_exposure_time = camera_settings.exposure_time;
-			else if( capture_result_has_exposure_time )
-				base_exposure_time = capture_result_exposure_time;
-
-			int n_half_images = expo_bracketing_n_images/2;
-			long min_exposure_time = base_exposure_time;
-			long max_exposure_time = base_exposure_time;
-			final double scale = Math.pow(2.0, expo_bracketing_stops/(double)n_half_images);
-			Range<Long> exposure_time_range = characteristics.get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE); // may be null on some devices
-			if( exposure_time_range != null ) {
-				min_exposure_time = exposure_time_range.getLower();
-				max_exposure_time = exposure_time_range.getUpper();
-			}
-
-			if( MyDebug.LOG ) {
-				Log.d(TAG, "taking expo bracketing with n_images: " + expo_bracketing_n_images);
-				Log.d(TAG, "ISO: " + stillBuilder.get(CaptureRequest.SENSOR_SENSITIVITY));
-				Log.d(TAG, "Frame duration: " + stillBuilder.get(CaptureRequest.SENSOR_FRAME_DURATION));
-				Log.d(TAG, "Base exposure time: " + base_exposure_time);
-				Log.d(TAG, "Min exposure time: " + min_exposure_time);
-				Log.d(TAG, "Max exposure time: " + max_exposure_time);
-			}
-
-			// darker images
-			for(int i=0;i<n_half_images;i++) {
-				long exposure_time = base_exposure_time;
-				if( exposure_time_range != null ) {
-					double this_scale = scale;
-					for(int j=i;j<n_half_images-1;j++)
-						this_scale *= scale;
-					exposure_time /= this_scale;
-					if( exposure_time < min_exposure_time )
-						exposure_time = min_exposure_time;
-					if( MyDebug.LOG ) {
-						Log.d(TAG, "add burst request for " + i + "th dark image:");
-						Log.d(TAG, "    this_scale: " + this_scale);
-						Log.d(TAG, "    exposure_time: " + exposure_time);
-					}
-					stillBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, exposure_time);
-					requests.add( stillBuilder.build() );
-				}
+			else if( capture_result.hasExposureTime() )
+				base_exposure_time = capture_result.getExposureTime();
+
+			// when repeating the same bracketing shot (e.g., HDR from a tripod), reuse the requests from last time
+			BracketingPlanKey plan_key = new BracketingPlanKey(burst_type, expo_bracketing_n_images, expo_bracketing_stops, iso, base_exposure_time, frame_duration, picture_width, picture_height, torch, previewIsVideoMode);
+			List<CaptureRequest> plan = getBracketingPlan(plan_key);
+			if( plan != null ) {
+				requests.addAll(plan);
+				if( torch )
+					test_fake_flash_photo++;
+				long setup_time_ns = System.nanoTime() - setup_start_ns;
+				n_bracketing_plan_hits++;
+				total_bracketing_plan_hit_ns += setup_time_ns;
+				if( MyDebug.LOG )
+					Log.d(TAG, "reusing cached bracketing plan, setup time ms: " + setup_time_ns/1000000.0);
 			}
-
-			// base image
-			if( MyDebug.LOG )
-				Log.d(TAG, "add burst request for base image");
-			stillBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, base_exposure_time);
-			requests.add( stillBuilder.build() );
-
-			// lighter images
-			for(int i=0;i<n_half_images;i++) {
-				long exposure_time = base_exposure_time;
-				if( exposure_time_range != null ) {
-					double this_scale = scale;
-					for(int j=0;j<i;j++)
-						this_scale *= scale;
-					exposure_time *= this_scale;
-					if( exposure_time > max_exposure_time )
-						exposure_time = max_exposure_time;
-					if( MyDebug.LOG ) {
-						Log.d(TAG, "add burst request for " + i + "th light image:");
-						Log.d(TAG, "    this_scale: " + this_scale);
-						Log.d(TAG, "    exposure_time: " + exposure_time);
-					}
-					stillBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, exposure_time);
-					if( i == n_half_images - 1 ) {
-						// RequestTagType.CAPTURE should only be set for the last request, otherwise we'll may do things like turning
-						// off torch (for fake flash) before all images are received
-						// More generally, doesn't seem a good idea to be doing the post-capture commands (resetting ae state etc)
-						// multiple times, and before all captures are complete!
-						if( MyDebug.LOG )
-							Log.d(TAG, "set RequestTagType.CAPTURE for last burst request");
-						stillBuilder.setTag(new RequestTagObject(RequestTagType.CAPTURE));
-					}
-					requests.add( stillBuilder.build() );
-				}
+			else {
+				requests.addAll(buildExpoBracketingRequests(torch, iso, base_exposure_time, frame_duration));
+				long setup_time_ns = System.nanoTime() - setup_start_ns;
+				n_bracketing_plan_misses++;
+				total_bracketing_plan_miss_ns += setup_time_ns;
+				if( MyDebug.LOG )
+					Log.d(TAG, "built bracketing plan, setup time ms: " + setup_time_ns/1000000.0);
+				putBracketingPlan(plan_key, requests);
 			}
 
 			burst_single_request = true;
+			streaming_burst = picture_cb != null && picture_cb.useStreamingBurst();
+			burst_id++;
+			if( MyDebug.LOG )
+				Log.d(TAG, "burst_id: " + burst_id + " streaming_burst: " + streaming_burst);
 			}
 			else {
 				// BURSTTYPE_FOCUS
                 if( MyDebug.LOG )
                     Log.d(TAG, "focus bracketing");
+				// n.b., focus bracketing requests aren't cached, as their tags are modified if focus bracketing is cancelled
+				CaptureRequest.Builder stillBuilder = createBracketingStillBuilder();
 
 				if( use_fake_precapture_mode && fake_precapture_torch_performed ) {
 					if( MyDebug.LOG )
@@ -5420,6 +6277,7 @@ public class CameraController2 extends CameraController {
 				Log.d(TAG, "n_burst: " + n_burst);
 				Log.d(TAG, "burst_single_request: " + burst_single_request);
 			}
+			startBurstTelemetry(n_burst);
 
 			if( !previewIsVideoMode ) {
 				captureSession.stopRepeating(); // see note under takePictureAfterPrecapture()
@@ -5442,9 +6300,22 @@ public class CameraController2 extends CameraController {
 			else {
 				if( MyDebug.LOG )
 					Log.d(TAG, "using slow burst");
-				slow_burst_capture_requests = requests;
-				slow_burst_start_ms = System.currentTimeMillis();
-				captureSession.capture(requests.get(0), previewCaptureCallback, handler);
+				synchronized( image_reader_lock ) {
+					slow_burst_capture_requests = requests;
+					slow_burst_start_ms = System.currentTimeMillis();
+					slow_burst_last_image_ms = slow_burst_start_ms;
+					slow_burst_frame_gaps_ms = new long[requests.size()];
+					slow_burst_n_results = 0;
+					slow_burst_truncated = false;
+					focus_bracketing_settle_index = -1;
+					focus_bracketing_settled = false;
+					// the first request is always taken straight away (for focus bracketing, at the current lens position)
+					captureSession.capture(requests.get(0), previewCaptureCallback, handler);
+					slow_burst_n_submitted = 1;
+					if( burst_type != BurstType.BURSTTYPE_FOCUS ) {
+						fillSlowBurstPipeline();
+					}
+				}
 			}
 
 			if( sounds_enabled ) // play shutter sound asap, otherwise user has the illusion of being slow to take photos
@@ -5558,11 +6429,12 @@ public class CameraController2 extends CameraController {
 				n_burst = 4;
 				n_burst_taken = 0;
 
-				if( capture_result_has_iso ) {
+				CaptureResultValues capture_result = capture_result_values;
+				if( capture_result.hasIso() ) {
 					// For Nexus 6, max reported ISO is 1196, so the limit for dark scenes shouldn't be more than this
 					// Nokia 8's max reported ISO is 1551
 					// Note that OnePlus 3T has max reported ISO of 800, but this is a device bug
-					if( capture_result_iso >= 1100 ) {
+					if( capture_result.getIso() >= 1100 ) {
 						if( MyDebug.LOG )
 							Log.d(TAG, "optimise for dark scene");
 						n_burst = noise_reduction_low_light ? N_IMAGES_NR_DARK_LOW_LIGHT : N_IMAGES_NR_DARK;
@@ -5571,7 +6443,7 @@ public class CameraController2 extends CameraController {
 						// so no point enabling this code, which is meant to brighten the scene, not make it darker!
 						if( !camera_settings.has_iso && !is_oneplus ) {
 							long exposure_time = noise_reduction_low_light ? 1000000000L/3 : 1000000000L/10;
-							if( !capture_result_has_exposure_time || capture_result_exposure_time < exposure_time ) {
+							if( !capture_result.hasExposureTime() || capture_result.getExposureTime() < exposure_time ) {
 								if( MyDebug.LOG )
 									Log.d(TAG, "also set long exposure time");
 								modified_from_camera_settings = true;
@@ -5583,12 +6455,12 @@ public class CameraController2 extends CameraController {
 							}
 						}
 					}
-					else if( capture_result_has_exposure_time ) {
+					else if( capture_result.hasExposureTime() ) {
 						//final double full_exposure_time_scale = 0.5;
 						final double full_exposure_time_scale = Math.pow(2.0, -0.5);
 						final long fixed_exposure_time = 1000000000L/60; // we only scale the exposure time at all if it's less than this value
 						final long scaled_exposure_time = 1000000000L/120; // we only scale the exposure time by the full_exposure_time_scale if the exposure time is less than this value
-						long exposure_time = capture_result_exposure_time;
+						long exposure_time = capture_result.getExposureTime();
 						if( exposure_time <= fixed_exposure_time ) {
 							if( MyDebug.LOG )
 								Log.d(TAG, "optimise for bright scene");
@@ -5615,10 +6487,21 @@ public class CameraController2 extends CameraController {
 				n_burst_taken = 0;
 			}
 			n_burst_total = n_burst;
-			burst_single_request = false;
+			// noise reduction merges the images one at a time, so they can be streamed to the application in pooled
+			// buffers as they arrive, rather than allocating an array for each
+			burst_single_request = burst_type == BurstType.BURSTTYPE_NORMAL && burst_for_noise_reduction && picture_cb != null && picture_cb.useStreamingBurst();
+			streaming_burst = burst_single_request;
+			if( streaming_burst )
+				burst_id++;
 
-			if( MyDebug.LOG )
+			if( MyDebug.LOG ) {
 				Log.d(TAG, "n_burst: " + n_burst);
+				Log.d(TAG, "streaming_burst: " + streaming_burst);
+			}
+			if( is_new_burst ) {
+				// the number of images in a continuous burst isn't known in advance
+				startBurstTelemetry(burst_type == BurstType.BURSTTYPE_CONTINUOUS ? 0 : n_burst);
+			}
 
 			final CaptureRequest request = stillBuilder.build();
 			stillBuilder.setTag(new RequestTagObject(RequestTagType.CAPTURE));
@@ -5776,12 +6659,14 @@ public class CameraController2 extends CameraController {
 
 	    	state = STATE_WAITING_PRECAPTURE_START;
 	    	precapture_state_change_time_ms = System.currentTimeMillis();
+			markLatencyStage(CaptureLatencyTracker.Stage.PRECAPTURE_START);
 
 	    	// first set precapture to idle - this is needed, otherwise we hang in state STATE_WAITING_PRECAPTURE_START, because precapture already occurred whilst autofocusing, and it doesn't occur again unless we first set the precapture trigger to idle
 			if( MyDebug.LOG )
 				Log.d(TAG, "capture with precaptureBuilder");
 			captureSession.capture(precaptureBuilder.build(), previewCaptureCallback, handler);
 			captureSession.setRepeatingRequest(precaptureBuilder.build(), previewCaptureCallback, handler);
+			onRepeatingRequestSent();
 
 			// now set precapture
 			precaptureBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CameraMetadata.CONTROL_AE_PRECAPTURE_TRIGGER_START);
@@ -5836,6 +6721,7 @@ public class CameraController2 extends CameraController {
 		}
     	state = STATE_WAITING_FAKE_PRECAPTURE_START;
     	precapture_state_change_time_ms = System.currentTimeMillis();
+		markLatencyStage(CaptureLatencyTracker.Stage.PRECAPTURE_START);
 		fake_precapture_turn_on_torch_id = null;
 		try {
 			CaptureRequest request = previewBuilder.build();
@@ -5866,7 +6752,8 @@ public class CameraController2 extends CameraController {
 	private boolean fireAutoFlashFrontScreen() {
 		// iso_threshold fine-tuned for Nexus 6 - front camera ISO never goes above 805, but a threshold of 700 is too low
 		final int iso_threshold = 750;
-		return capture_result_has_iso && capture_result_iso >= iso_threshold;
+		CaptureResultValues capture_result = capture_result_values;
+		return capture_result.hasIso() && capture_result.getIso() >= iso_threshold;
 	}
 	
 	/** Used in use_fake_precapture mode when flash is auto, this returns whether we fire the flash.
@@ -5897,7 +6784,7 @@ public class CameraController2 extends CameraController {
 			case "flash_frontscreen_auto":
 				fake_precapture_use_flash = fireAutoFlashFrontScreen();
 				if(MyDebug.LOG)
-					Log.d(TAG, "    ISO was: " + capture_result_iso);
+					Log.d(TAG, "    ISO was: " + capture_result_values.getIso());
 				break;
 			default:
 				// shouldn't really be calling this function if not flash auto...
@@ -5929,6 +6816,7 @@ public class CameraController2 extends CameraController {
 			error.onError();
 			return;
 		}
+		markLatencyStage(CaptureLatencyTracker.Stage.TAKE_PICTURE);
 		this.picture_cb = picture;
 		this.jpeg_todo = true;
 		this.raw_todo = imageReaderRaw != null;
@@ -5941,6 +6829,10 @@ public class CameraController2 extends CameraController {
 			//throw new RuntimeException(); // debugging
 		}
 
+		if( takePictureZsl() ) {
+			return;
+		}
+
 		{
 			if( MyDebug.LOG ) {
 				Log.d(TAG, "current flash value: " + camera_settings.flash_value);
@@ -5981,6 +6873,7 @@ public class CameraController2 extends CameraController {
 					test_fake_flash_precapture++; // for testing, should treat this same as if we did do the precapture
 					state = STATE_WAITING_FAKE_PRECAPTURE_DONE;
 					precapture_state_change_time_ms = System.currentTimeMillis();
+					markLatencyStage(CaptureLatencyTracker.Stage.PRECAPTURE_START);
 				}
 				else {
 					runFakePrecapture();
@@ -6013,6 +6906,126 @@ public class CameraController2 extends CameraController {
     	setRepeatingRequest();*/
 	}
 
+	/** Takes the photo from the zero shutter lag frames, if zsl is enabled and suitable for the
+	 *  current settings, and there's a frame close enough to when the shutter was pressed.
+	 *  Returns false if the photo should be taken with a new capture instead.
+	 */
+	private boolean takePictureZsl() {
+		final ZslRingBuffer ring = zsl_ring;
+		if( ring == null || zsl_handler == null || burst_type != BurstType.BURSTTYPE_NONE || imageReaderRaw != null ) {
+			return false;
+		}
+		// the zsl frames are taken without flash, so only use them if we'd skip the precapture anyway
+		boolean no_flash = camera_settings.has_iso || camera_settings.flash_value.equals("flash_off") || camera_settings.flash_value.equals("flash_torch");
+		if( !no_flash && !use_fake_precapture_mode && camera_settings.flash_value.equals("flash_auto") ) {
+			no_flash = capture_result_ae != null && capture_result_ae == CaptureResult.CONTROL_AE_STATE_CONVERGED;
+		}
+		if( !no_flash ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "zsl not used as flash may be needed");
+			return false;
+		}
+
+		long target_timestamp = -1; // if we can't compare sensor timestamps with the shutter press, use the most recent frame
+		Integer timestamp_source = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+		if( timestamp_source != null && timestamp_source == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME ) {
+			// sensor timestamps are from the same clock as SystemClock.elapsedRealtimeNanos()
+			long now_ns = System.nanoTime();
+			long pressed_ns = getShutterPressedTimeNs();
+			long press_age_ns = 0; // if we don't know when the shutter was pressed, use the time of this call
+			if( pressed_ns != 0 && now_ns - pressed_ns <= zsl_max_press_age_ns_c ) {
+				press_age_ns = now_ns - pressed_ns;
+			}
+			target_timestamp = SystemClock.elapsedRealtimeNanos() - press_age_ns;
+		}
+		final ZslRingBuffer.Frame frame = ring.take(target_timestamp, zsl_max_offset_ns_c);
+		if( frame == null ) {
+			zsl_misses++;
+			if( MyDebug.LOG )
+				Log.d(TAG, "no zsl frame available, zsl misses: " + zsl_misses);
+			return false;
+		}
+		zsl_hits++;
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "take picture from zsl frame: " + frame.getTimestamp());
+			Log.d(TAG, "zsl hits: " + zsl_hits);
+			Log.d(TAG, "has capture result: " + (frame.getCaptureResult() != null));
+		}
+		markLatencyStage(CaptureLatencyTracker.Stage.CAPTURE_STARTED);
+		picture_cb.onStarted();
+		if( sounds_enabled ) // play shutter sound asap, otherwise user has the illusion of being slow to take photos
+			media_action_sound.play(MediaActionSound.SHUTTER_CLICK);
+
+		final int jpeg_quality = camera_settings.jpeg_quality;
+		// the camera writes these for photos from the ImageReader, but YuvImage doesn't
+		final JpegExif.Tags exif_tags = new JpegExif.Tags();
+		exif_tags.setOrientation(camera_settings.getExifOrientation());
+		exif_tags.setDateTime(System.currentTimeMillis());
+		TotalCaptureResult capture_result = frame.getCaptureResult();
+		if( capture_result != null ) {
+			Long exposure_time = capture_result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+			if( exposure_time != null )
+				exif_tags.setExposureTime(exposure_time);
+			Integer iso = capture_result.get(CaptureResult.SENSOR_SENSITIVITY);
+			if( iso != null )
+				exif_tags.setIso(iso);
+		}
+		if( camera_settings.location != null ) {
+			exif_tags.setLocation(camera_settings.location.getLatitude(), camera_settings.location.getLongitude());
+			if( camera_settings.location.hasAltitude() )
+				exif_tags.setAltitude(camera_settings.location.getAltitude());
+		}
+		final Activity activity = (Activity)context;
+		// encode on a separate thread (not the camera's background thread, which handles the capture callbacks), then
+		// pass to the application on the UI thread, as for images from the ImageReader
+		zsl_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				byte [] jpeg = null;
+				try {
+					jpeg = ring.compressToJpeg(frame, jpeg_quality, exif_tags);
+				}
+				catch(RuntimeException e) {
+					// e.g., IllegalStateException if the zsl image reader was closed in the meantime
+					Log.e(TAG, "failed to encode zsl frame");
+					e.printStackTrace();
+				}
+				finally {
+					frame.close();
+				}
+				markLatencyStage(CaptureLatencyTracker.Stage.IMAGE_AVAILABLE);
+				final byte [] zsl_jpeg = jpeg;
+				activity.runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						synchronized( image_reader_lock ) {
+							if( picture_cb == null || !jpeg_todo ) {
+								if( MyDebug.LOG )
+									Log.d(TAG, "zsl photo no longer wanted");
+							}
+							else if( zsl_jpeg == null ) {
+								jpeg_todo = false;
+								picture_cb = null;
+								if( take_picture_error_cb != null ) {
+									take_picture_error_cb.onError();
+									take_picture_error_cb = null;
+								}
+							}
+							else {
+								picture_cb.onPictureTaken(zsl_jpeg);
+								// need to set jpeg_todo to false before calling onCompleted(), see takePhotoCompleted()
+								jpeg_todo = false;
+								done_all_captures = true;
+								checkImagesCompleted();
+							}
+						}
+					}
+				});
+			}
+		});
+		return true;
+	}
+
 	@Override
 	public void setDisplayOrientation(int degrees) {
 		// for CameraController2, the preview display orientation is handled via the TextureView's transform
@@ -6103,9 +7116,14 @@ public class CameraController2 extends CameraController {
 		return null;
 	}
 
+	@Override
+	public CaptureResultValues captureResult() {
+		return capture_result_values;
+	}
+
 	@Override
 	public boolean captureResultIsAEScanning() {
-		return capture_result_is_ae_scanning;
+		return capture_result_values.isAEScanning();
 	}
 
 	@Override
@@ -6123,43 +7141,46 @@ public class CameraController2 extends CameraController {
 
 	@Override
 	public boolean captureResultHasWhiteBalanceTemperature() {
-		return capture_result_has_white_balance_rggb;
+		return capture_result_values.hasWhiteBalanceRggb();
 	}
 
 	@Override
 	public int captureResultWhiteBalanceTemperature() {
+		CaptureResultValues capture_result = capture_result_values;
+		if( !capture_result.hasWhiteBalanceRggb() )
+			return 0;
 		// for performance reasons, we don't convert from rggb to temperature in every frame, rather only when requested
-		return convertRggbToTemperature(capture_result_white_balance_rggb);
+		return convertRggbToTemperature(capture_result.getWhiteBalanceRggb(0), capture_result.getWhiteBalanceRggb(1), capture_result.getWhiteBalanceRggb(2), capture_result.getWhiteBalanceRggb(3));
 	}
 
 	@Override
 	public boolean captureResultHasIso() {
-		return capture_result_has_iso;
+		return capture_result_values.hasIso();
 	}
 
 	@Override
 	public int captureResultIso() {
-		return capture_result_iso;
+		return capture_result_values.getIso();
 	}
 	
 	@Override
 	public boolean captureResultHasExposureTime() {
-		return capture_result_has_exposure_time;
+		return capture_result_values.hasExposureTime();
 	}
 
 	@Override
 	public long captureResultExposureTime() {
-		return capture_result_exposure_time;
+		return capture_result_values.getExposureTime();
 	}
 
 	@Override
 	public boolean captureResultHasFrameDuration() {
-		return capture_result_has_frame_duration;
+		return capture_result_values.hasFrameDuration();
 	}
 
 	@Override
 	public long captureResultFrameDuration() {
-		return capture_result_frame_duration;
+		return capture_result_values.getFrameDuration();
 	}
 	
 	/*
@@ -6179,9 +7200,77 @@ public class CameraController2 extends CameraController {
 	}
 	*/
 
+	/** Reads the fields for a CaptureResultSnapshot from a CaptureResult, one lookup per field.
+	 */
+	private static class CaptureResultSource implements CaptureResultSnapshot.Source {
+		private CaptureResult result;
+
+		@Override
+		public long getFrameNumber() {
+			return result.getFrameNumber();
+		}
+
+		@Override
+		public Long getTimestamp() {
+			return result.get(CaptureResult.SENSOR_TIMESTAMP);
+		}
+
+		@Override
+		public Integer getAfState() {
+			return result.get(CaptureResult.CONTROL_AF_STATE);
+		}
+
+		@Override
+		public Integer getAeState() {
+			return result.get(CaptureResult.CONTROL_AE_STATE);
+		}
+
+		@Override
+		public Integer getAwbState() {
+			return result.get(CaptureResult.CONTROL_AWB_STATE);
+		}
+
+		@Override
+		public Integer getFlashMode() {
+			return result.get(CaptureResult.FLASH_MODE);
+		}
+
+		@Override
+		public Integer getIso() {
+			return result.get(CaptureResult.SENSOR_SENSITIVITY);
+		}
+
+		@Override
+		public Long getExposureTime() {
+			return result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+		}
+
+		@Override
+		public Long getFrameDuration() {
+			return result.get(CaptureResult.SENSOR_FRAME_DURATION);
+		}
+
+		@Override
+		public Float getFocusDistance() {
+			return result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+		}
+
+		@Override
+		public boolean getColorGains(float [] gains) {
+			RggbChannelVector vector = result.get(CaptureResult.COLOR_CORRECTION_GAINS);
+			if( vector == null )
+				return false;
+			vector.copyTo(gains, 0);
+			return true;
+		}
+	}
+
 	private final CameraCaptureSession.CaptureCallback previewCaptureCallback = new CameraCaptureSession.CaptureCallback() {
 		private long last_process_frame_number = 0;
 		private int last_af_state = -1;
+		// reused for every result, so that the fields we use are looked up once per frame without allocating
+		private final CaptureResultSource capture_result_source = new CaptureResultSource();
+		private final CaptureResultSnapshot capture_result_snapshot = new CaptureResultSnapshot();
 
 		private RequestTagType getRequestTagType(@NonNull CaptureRequest request) {
 			Object tag = request.getTag();
@@ -6191,10 +7280,22 @@ public class CameraController2 extends CameraController {
 			return requestTag.getType();
 		}
 
+		/** Whether the request is for a still image (rather than the preview).
+		 */
+		private boolean isStillCapture(CaptureRequest request) {
+			Integer capture_intent = request.get(CaptureRequest.CONTROL_CAPTURE_INTENT);
+			return capture_intent != null && capture_intent == CaptureRequest.CONTROL_CAPTURE_INTENT_STILL_CAPTURE;
+		}
+
 		@Override
 		public void onCaptureBufferLost(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull Surface target, long frameNumber) {
 			if( MyDebug.LOG )
 				Log.d(TAG, "onCaptureBufferLost: " + frameNumber);
+			// the camera couldn't send an image to the target, e.g., as the ImageReader had no free buffers
+			count_capture_buffer_lost++;
+			BurstTelemetry burst_telemetry = getBurstTelemetry();
+			if( burst_telemetry != null && isStillCapture(request) )
+				burst_telemetry.bufferLost();
 			super.onCaptureBufferLost(session, request, target, frameNumber);
 		}
 
@@ -6206,6 +7307,9 @@ public class CameraController2 extends CameraController {
 				Log.d(TAG, "was image captured?: " + failure.wasImageCaptured());
 				Log.d(TAG, "sequenceId: " + failure.getSequenceId());
 			}
+			BurstTelemetry burst_telemetry = getBurstTelemetry();
+			if( burst_telemetry != null && isStillCapture(request) )
+				burst_telemetry.frameFailed();
 			super.onCaptureFailed(session, request, failure); // API docs say this does nothing, but call it just to be safe
 		}
 
@@ -6215,6 +7319,9 @@ public class CameraController2 extends CameraController {
 				Log.d(TAG, "onCaptureSequenceAborted");
 				Log.d(TAG, "sequenceId: " + sequenceId);
 			}
+			BurstTelemetry burst_telemetry = getBurstTelemetry();
+			if( burst_telemetry != null )
+				burst_telemetry.sequenceAborted();
 			super.onCaptureSequenceAborted(session, sequenceId); // API docs say this does nothing, but call it just to be safe
 		}
 
@@ -6238,6 +7345,21 @@ public class CameraController2 extends CameraController {
 				}
 				// n.b., we don't play the shutter sound here, as it typically sounds "too late"
 				// (if ever we changed this, would also need to fix for burst, where we only set the RequestTagType.CAPTURE for the last image)
+				if( raw_todo ) {
+					// fixes the order RAW+JPEG frames are passed to the application
+					raw_frame_pairer.expect(timestamp, frameNumber);
+				}
+			}
+			if( state == STATE_NORMAL && picture_cb != null ) {
+				// for bursts, only the last request has RequestTagType.CAPTURE, so instead identify still captures by their intent
+				// (precapture requests also use this intent, but state is then one of the STATE_WAITING_*PRECAPTURE* states)
+				Integer capture_intent = request.get(CaptureRequest.CONTROL_CAPTURE_INTENT);
+				if( capture_intent != null && capture_intent == CaptureRequest.CONTROL_CAPTURE_INTENT_STILL_CAPTURE ) {
+					markLatencyStage(CaptureLatencyTracker.Stage.CAPTURE_STARTED);
+					BurstTelemetry burst_telemetry = getBurstTelemetry();
+					if( burst_telemetry != null )
+						burst_telemetry.frameStarted(timestamp);
+				}
 			}
 			/*else {
 				if( MyDebug.LOG ) {
@@ -6284,14 +7406,57 @@ public class CameraController2 extends CameraController {
 					Log.d(TAG, "frame duration: " + request.get(CaptureRequest.SENSOR_FRAME_DURATION));
 				}
 			}*/
-			process(request, result);
-			processCompleted(request, result);
+			if( slow_burst_capture_requests != null ) { // n.b., checked again under the lock
+				processSlowBurstResult(request, result);
+			}
+			ZslRingBuffer ring = zsl_ring;
+			if( ring != null ) {
+				ring.addResult(result);
+			}
+			capture_result_source.result = result;
+			capture_result_snapshot.read(capture_result_source);
+			capture_result_source.result = null;
+			FrameStatsRing frame_stats = getFrameStats();
+			if( frame_stats != null ) {
+				recordFrameStats(frame_stats, capture_result_snapshot);
+			}
+			FramePacingDetector frame_pacing_detector = getFramePacingDetector();
+			if( frame_pacing_detector != null ) {
+				if( isStillCapture(request) ) {
+					// the preview is expected to pause around still captures, so don't count that as skipped frames
+					frame_pacing_detector.restart();
+				}
+				else if( capture_result_snapshot.hasTimestamp() ) {
+					frame_pacing_detector.onFrame(capture_result_snapshot.getTimestamp(), capture_result_snapshot.hasFrameDuration() ? capture_result_snapshot.getFrameDuration() : 0);
+				}
+			}
+			process(request, capture_result_snapshot);
+			processCompleted(request, result, capture_result_snapshot);
 			super.onCaptureCompleted(session, request, result); // API docs say this does nothing, but call it just to be safe (as with Google Camera)
 		}
 
+		/** Records every frame, including those with modified exposure settings (which aren't used
+		 *  for the capture_result_* values).
+		 */
+		private void recordFrameStats(FrameStatsRing frame_stats, CaptureResultSnapshot snapshot) {
+			int white_balance_temperature = -1;
+			if( snapshot.hasColorGains() ) {
+				white_balance_temperature = rggbToTemperature(snapshot.getColorGain(0), snapshot.getColorGain(1), snapshot.getColorGain(2), snapshot.getColorGain(3));
+			}
+			frame_stats.append(snapshot.hasTimestamp() ? snapshot.getTimestamp() : -1,
+					snapshot.getFrameNumber(),
+					snapshot.hasIso() ? snapshot.getIso() : -1,
+					snapshot.hasExposureTime() ? snapshot.getExposureTime() : -1,
+					snapshot.hasFrameDuration() ? snapshot.getFrameDuration() : -1,
+					snapshot.hasAfState() ? snapshot.getAfState() : -1,
+					snapshot.hasAeState() ? snapshot.getAeState() : -1,
+					snapshot.hasFocusDistance() ? snapshot.getFocusDistance() : Float.NaN,
+					white_balance_temperature);
+		}
+
 		/** Processes either a partial or total result.
 		 */
-		private void process(CaptureRequest request, CaptureResult result) {
+		private void process(CaptureRequest request, CaptureResultSnapshot result) {
 			/*if( MyDebug.LOG )
 			Log.d(TAG, "process, state: " + state);*/
 			if( result.getFrameNumber() < last_process_frame_number ) {
@@ -6316,7 +7481,8 @@ public class CameraController2 extends CameraController {
 			}*/
 
 			// use Integer instead of int, so can compare to null: Google Play crashes confirmed that this can happen; Google Camera also ignores cases with null af state
-			Integer af_state = result.get(CaptureResult.CONTROL_AF_STATE);
+			// (small values are cached by Integer.valueOf(), so boxing these from the snapshot doesn't allocate)
+			Integer af_state = result.hasAfState() ? Integer.valueOf(result.getAfState()) : null;
 			/*if( MyDebug.LOG ) {
 				if( af_state == null )
 					Log.d(TAG, "CONTROL_AF_STATE is null");
@@ -6339,7 +7505,7 @@ public class CameraController2 extends CameraController {
 			}*/
 
 			// CONTROL_AE_STATE can be null on some devices, so as with af_state, use Integer
-			Integer ae_state = result.get(CaptureResult.CONTROL_AE_STATE);
+			Integer ae_state = result.hasAeState() ? Integer.valueOf(result.getAeState()) : null;
 			/*if( MyDebug.LOG ) {
 				if( ae_state == null )
 					Log.d(TAG, "CONTROL_AE_STATE is null");
@@ -6358,8 +7524,7 @@ public class CameraController2 extends CameraController {
 				else
 					Log.d(TAG, "CONTROL_AE_STATE = " + ae_state);
 			}*/
-			Integer flash_mode = result.get(CaptureResult.FLASH_MODE);
-			if( use_fake_precapture_mode && ( fake_precapture_torch_focus_performed || fake_precapture_torch_performed ) && flash_mode != null && flash_mode == CameraMetadata.FLASH_MODE_TORCH ) {
+			if( use_fake_precapture_mode && ( fake_precapture_torch_focus_performed || fake_precapture_torch_performed ) && result.hasFlashMode() && result.getFlashMode() == CameraMetadata.FLASH_MODE_TORCH ) {
 				// don't change ae state while torch is on for fake flash
 			}
 			else if( ae_state == null ) {
@@ -6592,6 +7757,7 @@ public class CameraController2 extends CameraController {
 					}
 					state = STATE_NORMAL;
 					precapture_state_change_time_ms = -1;
+					markLatencyStage(CaptureLatencyTracker.Stage.PRECAPTURE_END);
 					takePictureAfterPrecapture();
 				}
 				else if( precapture_state_change_time_ms != -1 && System.currentTimeMillis() - precapture_state_change_time_ms > precapture_done_timeout_c ) {
@@ -6601,6 +7767,7 @@ public class CameraController2 extends CameraController {
 					count_precapture_timeout++;
 					state = STATE_NORMAL;
 					precapture_state_change_time_ms = -1;
+					markLatencyStage(CaptureLatencyTracker.Stage.PRECAPTURE_END);
 					takePictureAfterPrecapture();
 				}
 			}
@@ -6652,6 +7819,7 @@ public class CameraController2 extends CameraController {
 					}
 					state = STATE_NORMAL;
 					precapture_state_change_time_ms = -1;
+					markLatencyStage(CaptureLatencyTracker.Stage.PRECAPTURE_END);
 					takePictureAfterPrecapture();
 				}
 				else if( precapture_state_change_time_ms != -1 && System.currentTimeMillis() - precapture_state_change_time_ms > precapture_done_timeout_c ) {
@@ -6661,6 +7829,7 @@ public class CameraController2 extends CameraController {
 					count_precapture_timeout++;
 					state = STATE_NORMAL;
 					precapture_state_change_time_ms = -1;
+					markLatencyStage(CaptureLatencyTracker.Stage.PRECAPTURE_END);
 					takePictureAfterPrecapture();
 				}
 			}
@@ -6689,7 +7858,7 @@ public class CameraController2 extends CameraController {
 		
 		/** Processes a total result.
 		 */
-		private void processCompleted(CaptureRequest request, CaptureResult result) {
+		private void processCompleted(CaptureRequest request, CaptureResult result, CaptureResultSnapshot snapshot) {
 			/*if( MyDebug.LOG )
 				Log.d(TAG, "processCompleted");*/
 
@@ -6704,9 +7873,9 @@ public class CameraController2 extends CameraController {
 				// otherwise have problem taking HDR photos twice in a row, the second one will pick up the exposure time as
 				// being from the long exposure of the previous HDR/expo burst!
 			}
-			else if( result.get(CaptureResult.SENSOR_SENSITIVITY) != null ) {
+			else if( snapshot.hasIso() ) {
 				capture_result_has_iso = true;
-				capture_result_iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+				capture_result_iso = snapshot.getIso();
 				/*if( MyDebug.LOG )
 					Log.d(TAG, "capture_result_iso: " + capture_result_iso);*/
 				/*if( camera_settings.has_iso && Math.abs(camera_settings.iso - capture_result_iso) > 10 && previewBuilder != null ) {
@@ -6746,9 +7915,9 @@ public class CameraController2 extends CameraController {
 			if( modified_from_camera_settings ) {
 				// see note above
 			}
-			else if( result.get(CaptureResult.SENSOR_EXPOSURE_TIME) != null ) {
+			else if( snapshot.hasExposureTime() ) {
 				capture_result_has_exposure_time = true;
-				capture_result_exposure_time = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+				capture_result_exposure_time = snapshot.getExposureTime();
 				if( capture_result_exposure_time <= 0 ) {
 					// wierd bug seen on Nokia 8
 					capture_result_has_exposure_time = false;
@@ -6761,9 +7930,9 @@ public class CameraController2 extends CameraController {
 			if( modified_from_camera_settings ) {
 				// see note above
 			}
-			else if( result.get(CaptureResult.SENSOR_FRAME_DURATION) != null ) {
+			else if( snapshot.hasFrameDuration() ) {
 				capture_result_has_frame_duration = true;
-				capture_result_frame_duration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+				capture_result_frame_duration = snapshot.getFrameDuration();
 			}
 			else {
 				capture_result_has_frame_duration = false;
@@ -6790,17 +7959,23 @@ public class CameraController2 extends CameraController {
 			else {
 				capture_result_has_focus_distance = false;
 			}*/
-			{
-				RggbChannelVector vector = result.get(CaptureResult.COLOR_CORRECTION_GAINS);
-				if( modified_from_camera_settings ) {
-					// see note above
-				}
-				else if( vector != null ) {
-					capture_result_has_white_balance_rggb = true;
-					capture_result_white_balance_rggb = vector;
+			if( modified_from_camera_settings ) {
+				// see note above
+			}
+			else if( snapshot.hasColorGains() ) {
+				capture_result_has_white_balance_rggb = true;
+				for(int i=0;i<capture_result_white_balance_rggb.length;i++) {
+					capture_result_white_balance_rggb[i] = snapshot.getColorGain(i);
 				}
 			}
 
+			// publish the values for other threads in one go, so that they always see a consistent frame
+			capture_result_values = new CaptureResultValues(snapshot.getFrameNumber(), snapshot.getTimestamp(), capture_result_is_ae_scanning,
+					capture_result_has_iso, capture_result_iso,
+					capture_result_has_exposure_time, capture_result_exposure_time,
+					capture_result_has_frame_duration, capture_result_frame_duration,
+					capture_result_has_white_balance_rggb ? capture_result_white_balance_rggb : null);
+
 			/*if( MyDebug.LOG ) {
 				RggbChannelVector vector = result.get(CaptureResult.COLOR_CORRECTION_GAINS);
 				if( vector != null ) {
@@ -6904,8 +8079,9 @@ public class CameraController2 extends CameraController {
 					}
 				}
 
-				if( onRawImageAvailableListener != null ) {
-					onRawImageAvailableListener.setCaptureResult(result);
+				if( raw_todo ) {
+					if( snapshot.hasTimestamp() )
+						raw_frame_pairer.put(snapshot.getTimestamp(), raw_part_result_c, result);
 				}
 				// actual parsing of image data is done in the imageReader's OnImageAvailableListener()
 				// need to cancel the autofocus, and restart the preview after taking the photo
@@ -0,0 +1,1334 @@
+package com.example.opencameratesting.opencamera.CameraController;
+
+import android.graphics.SurfaceTexture;
+import android.location.Location;
+import android.media.MediaRecorder;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import com.example.opencameratesting.opencamera.CaptureLatencyTracker;
+import com.example.opencameratesting.opencamera.MyDebug;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/** A CameraController that doesn't use a camera. Instead it generates synthetic preview frames,
+ *  capture results and JPEG (and optionally RAW) images, at a configurable rate and size, with
+ *  injectable latencies and errors.
+ *  This allows Preview, the application and the image saving path to be driven without camera
+ *  hardware, e.g., to measure sustained burst throughput, queueing and memory use.
+ *  As for CameraController2, callbacks are made on a background thread.
+ *  Note that unless setJpegTemplate() is called, the JPEG data is only the right size, and isn't
+ *  a decodable image. Video recording isn't supported.
+ */
+public class CameraControllerFake extends CameraController {
+	private static final String TAG = "CameraControllerFake";
+
+	private final ErrorCallback camera_error_cb;
+	private final boolean is_front_facing;
+	private final ScheduledExecutorService executor; // runs the preview frames and captures
+	private volatile boolean released;
+	private final ImageBufferPool burst_buffer_pool = new ImageBufferPool();
+
+	/** Receives each synthetic preview frame.
+	 */
+	public interface PreviewFrameListener {
+		void onPreviewFrame(long frame_number, long timestamp_ns);
+	}
+
+	// injected behaviour, may be changed at any time:
+	private volatile int jpeg_size; // 0 to estimate from the picture size
+	private volatile byte [] jpeg_template; // if non-null, returned as the JPEG data for every image
+	private volatile long burst_interval_ms; // 0 to use the frame duration
+	private volatile long capture_latency_ms = 50; // from takePicture() to the capture starting
+	private volatile long precapture_latency_ms = 300; // added to capture_latency_ms when the flash is on
+	private volatile long image_latency_ms = 100; // from the capture starting to the first image being available
+	private volatile long autofocus_latency_ms = 200;
+	private volatile boolean autofocus_fails;
+	private volatile boolean fail_start_preview;
+	private volatile int fail_take_picture_every; // if > 0, every nth call to takePicture() fails
+	private volatile int camera_error_after_photos; // if > 0, the camera fails after this many photos have completed
+	private volatile PreviewFrameListener preview_frame_listener;
+
+	// camera settings:
+	private int picture_width = 4032;
+	private int picture_height = 3024;
+	private int preview_width = 1440;
+	private int preview_height = 1080;
+	private int preview_min_fps = 15000;
+	private volatile int preview_max_fps = 30000;
+	private int display_orientation;
+	private int current_zoom_value;
+	private int current_exposure_compensation;
+	private String white_balance = WHITE_BALANCE_DEFAULT;
+	private int white_balance_temperature = 5000;
+	private volatile boolean manual_iso;
+	private volatile int iso = 800;
+	private volatile long exposure_time = EXPOSURE_TIME_DEFAULT;
+	private String focus_value = "focus_mode_continuous_picture";
+	private float focus_distance;
+	private volatile String flash_value = "flash_off";
+	private int jpeg_quality = 90;
+	private BurstType burst_type = BurstType.BURSTTYPE_NONE;
+	private int burst_requested_n_images;
+	private boolean burst_for_noise_reduction;
+	private boolean noise_reduction_low_light;
+	private int expo_bracketing_n_images = 3;
+	private double expo_bracketing_stops = 2.0;
+	private int focus_bracketing_n_images = 3;
+	private boolean focus_bracketing_add_infinity;
+	private float focus_bracketing_source_distance;
+	private float focus_bracketing_target_distance;
+	private boolean want_raw;
+	private boolean video_stabilization;
+	private boolean use_log_profile;
+	private boolean auto_exposure_lock;
+	private boolean auto_white_balance_lock;
+	private List<Area> focus_areas;
+	private List<Area> metering_areas;
+	private volatile ScheduledFuture<?> preview_future;
+	private ScheduledFuture<?> autofocus_future;
+
+	// current capture, guarded by "this":
+	private Capture capture;
+	private boolean continuous_burst_in_progress;
+	private int burst_id;
+
+	// statistics, guarded by "this":
+	private long n_preview_frames;
+	private int n_photos_requested;
+	private int n_photos_completed;
+	private int n_images;
+	private long n_image_bytes;
+
+	private byte [] synthetic_jpeg; // only accessed on the executor thread
+
+	/** State of a photo being taken.
+	 */
+	private class Capture {
+		final PictureCallback picture;
+		final int n_images; // 0 if unknown (continuous burst)
+		final boolean single_request; // images passed together (or streamed) via the burst callbacks
+		final boolean streaming;
+		final boolean want_raw;
+		final boolean precapture;
+		final int burst_id;
+		final List<ImageBuffer> pending_images = new ArrayList<>();
+		int n_taken;
+		boolean stop_requested;
+
+		Capture(PictureCallback picture, int n_images, boolean single_request, boolean want_raw, boolean precapture, int burst_id) {
+			this.picture = picture;
+			this.n_images = n_images;
+			this.single_request = single_request;
+			this.streaming = single_request && picture.useStreamingBurst();
+			this.want_raw = want_raw;
+			this.precapture = precapture;
+			this.burst_id = burst_id;
+		}
+	}
+
+	/** A RAW image that writes uncompressed 16-bit data of the picture size, rather than a DNG.
+	 */
+	private static class FakeRawImage extends RawImage {
+		private final static byte [] chunk = new byte[64*1024];
+		private final long size;
+
+		FakeRawImage(long size) {
+			this.size = size;
+		}
+
+		@Override
+		public void writeImage(OutputStream dngOutput) throws IOException {
+			long remaining = size;
+			while( remaining > 0 ) {
+				int n = (int)Math.min(remaining, chunk.length);
+				dngOutput.write(chunk, 0, n);
+				remaining -= n;
+			}
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/** Creates a fake camera. Unlike a real camera, this never fails to open (use
+	 *  Preview.test_fail_open_camera to test that).
+	 * @param cameraId Which camera to open (must be between 0 and CameraControllerManagerFake.getNumberOfCameras()-1).
+	 * @param camera_error_cb onError() will be called if the camera closes due to serious error (see setCameraErrorAfterPhotos()).
+	 */
+	public CameraControllerFake(int cameraId, final ErrorCallback camera_error_cb) {
+		super(cameraId);
+		if( MyDebug.LOG )
+			Log.d(TAG, "create new CameraControllerFake: " + cameraId);
+		this.camera_error_cb = camera_error_cb;
+		this.is_front_facing = CameraControllerManagerFake.isFrontFacingId(cameraId);
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "CameraControllerFake");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/** Sets the size of each JPEG image in bytes. If 0 (the default), the size is estimated from
+	 *  the picture size.
+	 */
+	public void setJpegSize(int jpeg_size) {
+		this.jpeg_size = jpeg_size;
+	}
+
+	/** If non-null, this data is returned for every JPEG image (so that the application can decode
+	 *  the images), instead of synthetic data.
+	 */
+	public void setJpegTemplate(byte [] jpeg_template) {
+		this.jpeg_template = jpeg_template;
+	}
+
+	/** Sets the time between images in a burst. If 0 (the default), the longer of the exposure
+	 *  time and preview frame duration is used.
+	 */
+	public void setBurstInterval(long burst_interval_ms) {
+		this.burst_interval_ms = burst_interval_ms;
+	}
+
+	/** Sets the delay from takePicture() to the capture starting.
+	 */
+	public void setCaptureLatency(long capture_latency_ms) {
+		this.capture_latency_ms = capture_latency_ms;
+	}
+
+	/** Sets the additional delay before the capture starts when the flash is on.
+	 */
+	public void setPrecaptureLatency(long precapture_latency_ms) {
+		this.precapture_latency_ms = precapture_latency_ms;
+	}
+
+	/** Sets the delay from the capture starting to the first image being available.
+	 */
+	public void setImageLatency(long image_latency_ms) {
+		this.image_latency_ms = image_latency_ms;
+	}
+
+	public void setAutoFocusLatency(long autofocus_latency_ms) {
+		this.autofocus_latency_ms = autofocus_latency_ms;
+	}
+
+	public void setAutoFocusFails(boolean autofocus_fails) {
+		this.autofocus_fails = autofocus_fails;
+	}
+
+	public void setFailStartPreview(boolean fail_start_preview) {
+		this.fail_start_preview = fail_start_preview;
+	}
+
+	/** If n is greater than 0, every nth call to takePicture() fails, calling the ErrorCallback.
+	 */
+	public void setFailTakePictureEvery(int n) {
+		this.fail_take_picture_every = n;
+	}
+
+	/** If n is greater than 0, the camera fails (as with onError()) once n photos have completed.
+	 */
+	public void setCameraErrorAfterPhotos(int n) {
+		this.camera_error_after_photos = n;
+	}
+
+	public void setPreviewFrameListener(PreviewFrameListener preview_frame_listener) {
+		this.preview_frame_listener = preview_frame_listener;
+	}
+
+	public synchronized long getNPreviewFrames() {
+		return n_preview_frames;
+	}
+
+	public synchronized int getNPhotosRequested() {
+		return n_photos_requested;
+	}
+
+	public synchronized int getNPhotosCompleted() {
+		return n_photos_completed;
+	}
+
+	/** Returns the number of JPEG images passed to the application.
+	 */
+	public synchronized int getNImages() {
+		return n_images;
+	}
+
+	/** Returns the total size of the JPEG images passed to the application, in bytes.
+	 */
+	public synchronized long getNImageBytes() {
+		return n_image_bytes;
+	}
+
+	public ImageBufferPool getBurstBufferPool() {
+		return burst_buffer_pool;
+	}
+
+	@Override
+	public void release() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "release");
+		released = true;
+		executor.shutdownNow();
+		synchronized( this ) {
+			if( capture != null ) {
+				for(ImageBuffer image : capture.pending_images) {
+					image.release();
+				}
+				capture.pending_images.clear();
+				capture = null;
+			}
+			continuous_burst_in_progress = false;
+		}
+		if( burst_buffer_pool.checkLeaks() > 0 ) {
+			// not necessarily a leak if the application is still processing a burst, but worth knowing about
+			if( MyDebug.LOG )
+				Log.d(TAG, "burst buffers still outstanding: " + burst_buffer_pool.getNOutstanding());
+		}
+		burst_buffer_pool.trim();
+	}
+
+	@Override
+	public void onError() {
+		if( MyDebug.LOG )
+			Log.e(TAG, "onError");
+		release();
+		if( camera_error_cb != null ) {
+			// need to communicate the problem to the application
+			camera_error_cb.onError();
+		}
+	}
+
+	@Override
+	public String getAPI() {
+		return "Fake";
+	}
+
+	private static List<Size> createSizes(int [] dims) {
+		List<Size> sizes = new ArrayList<>();
+		for(int i=0;i<dims.length;i+=2) {
+			sizes.add(new Size(dims[i], dims[i+1]));
+		}
+		return sizes;
+	}
+
+	@Override
+	public CameraFeatures getCameraFeatures() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "getCameraFeatures()");
+		CameraFeatures camera_features = new CameraFeatures();
+		camera_features.is_zoom_supported = true;
+		camera_features.zoom_ratios = new ArrayList<>();
+		for(int ratio=100;ratio<=800;ratio+=20) {
+			camera_features.zoom_ratios.add(ratio);
+		}
+		camera_features.max_zoom = camera_features.zoom_ratios.size()-1;
+		camera_features.supports_face_detection = false;
+
+		// sizes typical of a 12MP 4:3 sensor
+		camera_features.picture_sizes = createSizes(new int[]{4032, 3024, 4032, 2268, 3024, 3024, 3264, 2448, 2592, 1944, 2048, 1536,
+				1920, 1080, 1600, 1200, 1280, 960, 1280, 720, 640, 480});
+		camera_features.preview_sizes = createSizes(new int[]{1920, 1440, 1920, 1080, 1440, 1080, 1280, 960, 1280, 720, 960, 720,
+				800, 600, 640, 480, 320, 240});
+		camera_features.video_sizes = new ArrayList<>();
+		int [] video_dims = new int[]{3840, 2160, 1920, 1080, 1280, 720, 720, 480, 640, 480, 352, 288, 176, 144};
+		for(int i=0;i<video_dims.length;i+=2) {
+			ArrayList<int[]> fr = new ArrayList<>();
+			fr.add(new int[] {15, video_dims[i] >= 3840 ? 30 : 60});
+			camera_features.video_sizes.add(new Size(video_dims[i], video_dims[i+1], fr, false));
+		}
+		Collections.sort(camera_features.picture_sizes, new SizeSorter());
+		Collections.sort(camera_features.preview_sizes, new SizeSorter());
+		Collections.sort(camera_features.video_sizes, new SizeSorter());
+
+		if( !is_front_facing ) {
+			camera_features.supported_flash_values = new ArrayList<>();
+			camera_features.supported_flash_values.add("flash_off");
+			camera_features.supported_flash_values.add("flash_auto");
+			camera_features.supported_flash_values.add("flash_on");
+			camera_features.supported_flash_values.add("flash_torch");
+
+			camera_features.supported_focus_values = new ArrayList<>();
+			camera_features.supported_focus_values.add("focus_mode_auto");
+			camera_features.supported_focus_values.add("focus_mode_infinity");
+			camera_features.supported_focus_values.add("focus_mode_macro");
+			camera_features.supported_focus_values.add("focus_mode_manual2");
+			camera_features.supported_focus_values.add("focus_mode_continuous_picture");
+			camera_features.supported_focus_values.add("focus_mode_continuous_video");
+			camera_features.max_num_focus_areas = 1;
+			camera_features.minimum_focus_distance = 10.0f;
+			camera_features.supports_focus_bracketing = true;
+			camera_features.supports_raw = true;
+		}
+
+		camera_features.is_exposure_lock_supported = true;
+		camera_features.is_white_balance_lock_supported = true;
+		camera_features.is_video_stabilization_supported = true;
+		camera_features.is_photo_video_recording_supported = false;
+		camera_features.supports_white_balance_temperature = true;
+		camera_features.min_temperature = 1000;
+		camera_features.max_temperature = 15000;
+		camera_features.supports_iso_range = true;
+		camera_features.min_iso = 50;
+		camera_features.max_iso = 3200;
+		camera_features.supports_exposure_time = true;
+		camera_features.min_exposure_time = 1000000000L/8000;
+		camera_features.max_exposure_time = 1000000000L/2;
+		camera_features.min_exposure = -8;
+		camera_features.max_exposure = 8;
+		camera_features.exposure_step = 0.5f;
+		camera_features.can_disable_shutter_sound = true;
+		camera_features.tonemap_max_curve_points = 64;
+		camera_features.supports_tonemap_curve = true;
+		camera_features.supports_expo_bracketing = true;
+		camera_features.max_expo_bracketing_n_images = 5;
+		camera_features.supports_burst = true;
+		camera_features.view_angle_x = 66.0f;
+		camera_features.view_angle_y = 52.0f;
+		return camera_features;
+	}
+
+	@Override
+	public SupportedValues setSceneMode(String value) {
+		// not supported
+		return null;
+	}
+
+	@Override
+	public String getSceneMode() {
+		return null;
+	}
+
+	@Override
+	public boolean sceneModeAffectsFunctionality() {
+		return false;
+	}
+
+	@Override
+	public SupportedValues setColorEffect(String value) {
+		// not supported
+		return null;
+	}
+
+	@Override
+	public String getColorEffect() {
+		return null;
+	}
+
+	@Override
+	public SupportedValues setWhiteBalance(String value) {
+		List<String> values = new ArrayList<>();
+		values.add(WHITE_BALANCE_DEFAULT);
+		values.add("incandescent");
+		values.add("fluorescent");
+		values.add("daylight");
+		values.add("cloudy-daylight");
+		values.add("manual");
+		SupportedValues supported_values = checkModeIsSupported(values, value, WHITE_BALANCE_DEFAULT);
+		if( supported_values != null ) {
+			white_balance = supported_values.selected_value;
+		}
+		return supported_values;
+	}
+
+	@Override
+	public String getWhiteBalance() {
+		return white_balance;
+	}
+
+	@Override
+	public boolean setWhiteBalanceTemperature(int temperature) {
+		if( white_balance_temperature == temperature )
+			return false;
+		white_balance_temperature = temperature;
+		return true;
+	}
+
+	@Override
+	public int getWhiteBalanceTemperature() {
+		return white_balance_temperature;
+	}
+
+	@Override
+	public SupportedValues setAntiBanding(String value) {
+		// not supported
+		return null;
+	}
+
+	@Override
+	public String getAntiBanding() {
+		return null;
+	}
+
+	@Override
+	public SupportedValues setEdgeMode(String value) {
+		// not supported
+		return null;
+	}
+
+	@Override
+	public String getEdgeMode() {
+		return null;
+	}
+
+	@Override
+	public SupportedValues setNoiseReductionMode(String value) {
+		// not supported
+		return null;
+	}
+
+	@Override
+	public String getNoiseReductionMode() {
+		return null;
+	}
+
+	@Override
+	public SupportedValues setISO(String value) {
+		// as for CameraController2, we support an ISO range rather than ISO values, so assume this is for auto ISO
+		this.setManualISO(false, 0);
+		return null;
+	}
+
+	@Override
+	public void setManualISO(boolean manual_iso, int iso) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setManualISO: " + manual_iso);
+		this.manual_iso = manual_iso;
+		if( manual_iso ) {
+			this.iso = Math.max(50, Math.min(3200, iso));
+		}
+	}
+
+	@Override
+	public boolean isManualISO() {
+		return manual_iso;
+	}
+
+	@Override
+	public boolean setISO(int iso) {
+		if( this.iso == iso )
+			return false;
+		this.iso = iso;
+		return true;
+	}
+
+	@Override
+	public String getISOKey() {
+		return "";
+	}
+
+	@Override
+	public int getISO() {
+		return iso;
+	}
+
+	@Override
+	public long getExposureTime() {
+		return exposure_time;
+	}
+
+	@Override
+	public boolean setExposureTime(long exposure_time) {
+		if( this.exposure_time == exposure_time )
+			return false;
+		this.exposure_time = exposure_time;
+		return true;
+	}
+
+	@Override
+	public Size getPictureSize() {
+		return new Size(picture_width, picture_height);
+	}
+
+	@Override
+	public void setPictureSize(int width, int height) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setPictureSize: " + width + " x " + height);
+		this.picture_width = width;
+		this.picture_height = height;
+		burst_buffer_pool.setPictureSize(width, height, N_IMAGES_NR_DARK_LOW_LIGHT);
+	}
+
+	@Override
+	public Size getPreviewSize() {
+		return new Size(preview_width, preview_height);
+	}
+
+	@Override
+	public void setPreviewSize(int width, int height) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setPreviewSize: " + width + " x " + height);
+		this.preview_width = width;
+		this.preview_height = height;
+	}
+
+	@Override
+	public void setBurstType(BurstType new_burst_type) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setBurstType: " + new_burst_type);
+		this.burst_type = new_burst_type;
+	}
+
+	@Override
+	public BurstType getBurstType() {
+		return burst_type;
+	}
+
+	@Override
+	public void setBurstNImages(int burst_requested_n_images) {
+		this.burst_requested_n_images = burst_requested_n_images;
+	}
+
+	@Override
+	public void setBurstForNoiseReduction(boolean burst_for_noise_reduction, boolean noise_reduction_low_light) {
+		this.burst_for_noise_reduction = burst_for_noise_reduction;
+		this.noise_reduction_low_light = noise_reduction_low_light;
+	}
+
+	@Override
+	public synchronized boolean isContinuousBurstInProgress() {
+		return continuous_burst_in_progress;
+	}
+
+	@Override
+	public synchronized void stopContinuousBurst() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "stopContinuousBurst");
+		continuous_burst_in_progress = false;
+		if( capture != null && burst_type == BurstType.BURSTTYPE_CONTINUOUS )
+			capture.stop_requested = true;
+	}
+
+	@Override
+	public synchronized void stopFocusBracketingBurst() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "stopFocusBracketingBurst");
+		if( capture != null && burst_type == BurstType.BURSTTYPE_FOCUS )
+			capture.stop_requested = true;
+	}
+
+	@Override
+	public void setExpoBracketingNImages(int n_images) {
+		if( n_images <= 1 || (n_images % 2) == 0 ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "n_images should be an odd number greater than 1");
+			throw new RuntimeException(); // throw as RuntimeException, as this is a programming error
+		}
+		this.expo_bracketing_n_images = n_images;
+	}
+
+	@Override
+	public void setExpoBracketingStops(double stops) {
+		if( stops <= 0.0 ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "stops should be positive");
+			throw new RuntimeException(); // throw as RuntimeException, as this is a programming error
+		}
+		this.expo_bracketing_stops = stops;
+	}
+
+	@Override
+	public void setUseExpoFastBurst(boolean use_expo_fast_burst) {
+		// images are always returned as a single burst
+	}
+
+	@Override
+	public boolean isBurstOrExpo() {
+		return burst_type != BurstType.BURSTTYPE_NONE;
+	}
+
+	@Override
+	public synchronized boolean isCapturingBurst() {
+		if( !isBurstOrExpo() )
+			return false;
+		if( burst_type == BurstType.BURSTTYPE_CONTINUOUS )
+			return continuous_burst_in_progress || capture != null;
+		return getBurstTotal() > 1 && getNBurstTaken() < getBurstTotal();
+	}
+
+	@Override
+	public synchronized int getNBurstTaken() {
+		return capture != null ? capture.n_taken : 0;
+	}
+
+	@Override
+	public synchronized int getBurstTotal() {
+		return capture != null ? capture.n_images : 0;
+	}
+
+	@Override
+	public void setOptimiseAEForDRO(boolean optimise_ae_for_dro) {
+		// no effect on the synthetic images
+	}
+
+	@Override
+	public void setRaw(boolean want_raw, int max_raw_images) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setRaw: " + want_raw);
+		this.want_raw = want_raw;
+	}
+
+	@Override
+	public void setVideoHighSpeed(boolean setVideoHighSpeed) {
+		// high speed video not supported
+	}
+
+	@Override
+	public void setVideoStabilization(boolean enabled) {
+		this.video_stabilization = enabled;
+	}
+
+	@Override
+	public boolean getVideoStabilization() {
+		return video_stabilization;
+	}
+
+	@Override
+	public void setLogProfile(boolean use_log_profile, float log_profile_strength) {
+		this.use_log_profile = use_log_profile;
+	}
+
+	@Override
+	public boolean isLogProfile() {
+		return use_log_profile;
+	}
+
+	@Override
+	public int getJpegQuality() {
+		return jpeg_quality;
+	}
+
+	@Override
+	public void setJpegQuality(int quality) {
+		this.jpeg_quality = quality;
+	}
+
+	@Override
+	public int getZoom() {
+		return current_zoom_value;
+	}
+
+	@Override
+	public void setZoom(int value) {
+		this.current_zoom_value = value;
+	}
+
+	@Override
+	public int getExposureCompensation() {
+		return current_exposure_compensation;
+	}
+
+	@Override
+	public boolean setExposureCompensation(int new_exposure) {
+		if( current_exposure_compensation == new_exposure )
+			return false;
+		current_exposure_compensation = new_exposure;
+		return true;
+	}
+
+	@Override
+	public void setPreviewFpsRange(int min, int max) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setPreviewFpsRange: " + min + " to " + max);
+		this.preview_min_fps = min;
+		this.preview_max_fps = max;
+		if( preview_future != null ) {
+			// restart at the new frame rate
+			stopPreview();
+			schedulePreviewFrames();
+		}
+	}
+
+	@Override
+	public void clearPreviewFpsRange() {
+		setPreviewFpsRange(15000, 30000);
+	}
+
+	@Override
+	public List<int []> getSupportedPreviewFpsRange() {
+		List<int []> fps_ranges = new ArrayList<>();
+		fps_ranges.add(new int[]{7000, 30000});
+		fps_ranges.add(new int[]{15000, 30000});
+		fps_ranges.add(new int[]{30000, 30000});
+		fps_ranges.add(new int[]{60000, 60000});
+		return fps_ranges;
+	}
+
+	@Override
+	public void setFocusValue(String focus_value) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setFocusValue: " + focus_value);
+		this.focus_value = focus_value;
+	}
+
+	@Override
+	public String getFocusValue() {
+		return focus_value;
+	}
+
+	@Override
+	public float getFocusDistance() {
+		return focus_distance;
+	}
+
+	@Override
+	public boolean setFocusDistance(float focus_distance) {
+		if( this.focus_distance == focus_distance )
+			return false;
+		this.focus_distance = focus_distance;
+		return true;
+	}
+
+	@Override
+	public void setFocusBracketingNImages(int n_images) {
+		this.focus_bracketing_n_images = n_images;
+	}
+
+	@Override
+	public void setFocusBracketingAddInfinity(boolean focus_bracketing_add_infinity) {
+		this.focus_bracketing_add_infinity = focus_bracketing_add_infinity;
+	}
+
+	@Override
+	public void setFocusBracketingSourceDistance(float focus_bracketing_source_distance) {
+		this.focus_bracketing_source_distance = focus_bracketing_source_distance;
+	}
+
+	@Override
+	public float getFocusBracketingSourceDistance() {
+		return focus_bracketing_source_distance;
+	}
+
+	@Override
+	public void setFocusBracketingTargetDistance(float focus_bracketing_target_distance) {
+		this.focus_bracketing_target_distance = focus_bracketing_target_distance;
+	}
+
+	@Override
+	public float getFocusBracketingTargetDistance() {
+		return focus_bracketing_target_distance;
+	}
+
+	@Override
+	public void setFlashValue(String flash_value) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setFlashValue: " + flash_value);
+		this.flash_value = flash_value;
+	}
+
+	@Override
+	public String getFlashValue() {
+		return flash_value;
+	}
+
+	@Override
+	public void setRecordingHint(boolean hint) {
+		// not needed
+	}
+
+	@Override
+	public void setAutoExposureLock(boolean enabled) {
+		this.auto_exposure_lock = enabled;
+	}
+
+	@Override
+	public boolean getAutoExposureLock() {
+		return auto_exposure_lock;
+	}
+
+	@Override
+	public void setAutoWhiteBalanceLock(boolean enabled) {
+		this.auto_white_balance_lock = enabled;
+	}
+
+	@Override
+	public boolean getAutoWhiteBalanceLock() {
+		return auto_white_balance_lock;
+	}
+
+	@Override
+	public void setRotation(int rotation) {
+		// images are unrotated
+	}
+
+	@Override
+	public void setLocationInfo(Location location) {
+		// not written to the images
+	}
+
+	@Override
+	public void removeLocationInfo() {
+	}
+
+	@Override
+	public void enableShutterSound(boolean enabled) {
+		// no sounds
+	}
+
+	@Override
+	public boolean setFocusAndMeteringArea(List<Area> areas) {
+		this.focus_areas = areas;
+		this.metering_areas = areas;
+		return supportsAutoFocus();
+	}
+
+	@Override
+	public void clearFocusAndMetering() {
+		this.focus_areas = null;
+		this.metering_areas = null;
+	}
+
+	@Override
+	public List<Area> getFocusAreas() {
+		return focus_areas;
+	}
+
+	@Override
+	public List<Area> getMeteringAreas() {
+		return metering_areas;
+	}
+
+	@Override
+	public boolean supportsAutoFocus() {
+		return focus_value != null && ( focus_value.equals("focus_mode_auto") || focus_value.equals("focus_mode_macro") );
+	}
+
+	@Override
+	public boolean focusIsContinuous() {
+		return focus_value != null && ( focus_value.equals("focus_mode_continuous_picture") || focus_value.equals("focus_mode_continuous_video") );
+	}
+
+	@Override
+	public boolean focusIsVideo() {
+		return focus_value != null && focus_value.equals("focus_mode_continuous_video");
+	}
+
+	@Override
+	public void reconnect() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "reconnect");
+		// nothing to reconnect
+	}
+
+	@Override
+	public void setPreviewDisplay(SurfaceHolder holder) {
+		// the preview isn't drawn
+	}
+
+	@Override
+	public void setPreviewTexture(SurfaceTexture texture) {
+		// the preview isn't drawn
+	}
+
+	@Override
+	public void startPreview() throws CameraControllerException {
+		if( MyDebug.LOG )
+			Log.d(TAG, "startPreview");
+		if( fail_start_preview ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "injected failure to start preview");
+			throw new CameraControllerException();
+		}
+		if( preview_future == null ) {
+			schedulePreviewFrames();
+		}
+	}
+
+	private void schedulePreviewFrames() {
+		if( released )
+			return;
+		long frame_duration_us = 1000000000L / Math.max(preview_max_fps, 1000);
+		preview_future = executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				long frame_number;
+				synchronized( CameraControllerFake.this ) {
+					frame_number = n_preview_frames++;
+				}
+				PreviewFrameListener listener = preview_frame_listener;
+				if( listener != null ) {
+					listener.onPreviewFrame(frame_number, System.nanoTime());
+				}
+			}
+		}, 0, frame_duration_us, TimeUnit.MICROSECONDS);
+	}
+
+	@Override
+	public void stopPreview() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "stopPreview");
+		if( preview_future != null ) {
+			preview_future.cancel(false);
+			preview_future = null;
+		}
+	}
+
+	@Override
+	public boolean startFaceDetection() {
+		// not supported
+		return false;
+	}
+
+	@Override
+	public void setFaceDetectionListener(final FaceDetectionListener listener) {
+		// not supported
+	}
+
+	@Override
+	public void autoFocus(final AutoFocusCallback cb, boolean capture_follows_autofocus_hint) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "autoFocus");
+		if( !supportsAutoFocus() ) {
+			cb.onAutoFocus(true);
+			return;
+		}
+		if( released ) {
+			cb.onAutoFocus(false);
+			return;
+		}
+		autofocus_future = executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if( MyDebug.LOG )
+					Log.d(TAG, "autoFocus complete");
+				cb.onAutoFocus(!autofocus_fails);
+			}
+		}, autofocus_latency_ms, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void setCaptureFollowAutofocusHint(boolean capture_follows_autofocus_hint) {
+		// not needed
+	}
+
+	@Override
+	public void cancelAutoFocus() {
+		if( autofocus_future != null ) {
+			autofocus_future.cancel(false);
+			autofocus_future = null;
+		}
+	}
+
+	@Override
+	public void setContinuousFocusMoveCallback(ContinuousFocusMoveCallback cb) {
+		// the fake camera doesn't move its focus
+	}
+
+	@Override
+	public void takePicture(final PictureCallback picture, final ErrorCallback error) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "takePicture");
+		markLatencyStage(CaptureLatencyTracker.Stage.TAKE_PICTURE);
+		int photo_index;
+		synchronized( this ) {
+			photo_index = ++n_photos_requested;
+		}
+		if( released || ( fail_take_picture_every > 0 && photo_index % fail_take_picture_every == 0 ) ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "injected failure to take photo");
+			if( !released ) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						error.onError();
+					}
+				});
+			}
+			return;
+		}
+
+		int n_burst;
+		boolean single_request = false;
+		switch( burst_type ) {
+			case BURSTTYPE_EXPO:
+				n_burst = expo_bracketing_n_images;
+				single_request = true;
+				break;
+			case BURSTTYPE_FOCUS:
+				n_burst = focus_bracketing_n_images + (focus_bracketing_add_infinity ? 1 : 0);
+				break;
+			case BURSTTYPE_NORMAL:
+				if( burst_for_noise_reduction ) {
+					n_burst = noise_reduction_low_light ? N_IMAGES_NR_DARK_LOW_LIGHT : N_IMAGES_NR_DARK;
+					// as CameraController2, noise reduction bursts are streamed if the application wants
+					single_request = picture.useStreamingBurst();
+				}
+				else
+					n_burst = Math.max(burst_requested_n_images, 1);
+				break;
+			case BURSTTYPE_CONTINUOUS:
+				n_burst = 0;
+				break;
+			default:
+				n_burst = 1;
+				break;
+		}
+		boolean precapture = flash_value.equals("flash_on");
+		final Capture new_capture;
+		synchronized( this ) {
+			if( single_request )
+				burst_id++;
+			new_capture = new Capture(picture, n_burst, single_request, want_raw && burst_type == BurstType.BURSTTYPE_NONE, precapture, burst_id);
+			capture = new_capture;
+			continuous_burst_in_progress = burst_type == BurstType.BURSTTYPE_CONTINUOUS;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "n_burst: " + n_burst + " single_request: " + single_request);
+
+		long delay_ms = capture_latency_ms;
+		if( precapture ) {
+			markLatencyStage(CaptureLatencyTracker.Stage.PRECAPTURE_START);
+			delay_ms += precapture_latency_ms;
+		}
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				startCapture(new_capture);
+			}
+		}, delay_ms, TimeUnit.MILLISECONDS);
+	}
+
+	private void startCapture(final Capture capture) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "startCapture");
+		if( capture.precapture )
+			markLatencyStage(CaptureLatencyTracker.Stage.PRECAPTURE_END);
+		capture.picture.onStarted();
+		markLatencyStage(CaptureLatencyTracker.Stage.CAPTURE_STARTED);
+		scheduleNextImage(capture, image_latency_ms);
+	}
+
+	private void scheduleNextImage(final Capture capture, long delay_ms) {
+		if( released )
+			return;
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				nextImage(capture);
+			}
+		}, delay_ms, TimeUnit.MILLISECONDS);
+	}
+
+	/** Returns the time between images in a burst.
+	 */
+	private long getBurstInterval() {
+		if( burst_interval_ms > 0 )
+			return burst_interval_ms;
+		long frame_duration_ms = 1000000L / Math.max(preview_max_fps, 1000);
+		long exposure_time_ms = manual_iso ? exposure_time/1000000 : 0;
+		return Math.max(frame_duration_ms, exposure_time_ms);
+	}
+
+	private void nextImage(Capture capture) {
+		if( released )
+			return;
+		if( !capture.single_request && capture.n_taken > 0 && capture.picture.imageQueueWouldBlock(1) ) {
+			// as for CameraController2, wait for the application to catch up rather than running out of memory
+			if( MyDebug.LOG )
+				Log.d(TAG, "wait for image queue");
+			scheduleNextImage(capture, 100);
+			return;
+		}
+		deliverImage(capture);
+		boolean done;
+		synchronized( this ) {
+			capture.n_taken++;
+			done = capture.stop_requested || ( capture.n_images > 0 && capture.n_taken >= capture.n_images );
+		}
+		if( done ) {
+			completeCapture(capture);
+		}
+		else {
+			scheduleNextImage(capture, getBurstInterval());
+		}
+	}
+
+	private void deliverImage(Capture capture) {
+		markLatencyStage(CaptureLatencyTracker.Stage.IMAGE_AVAILABLE);
+		byte [] template = jpeg_template;
+		int size;
+		if( template != null ) {
+			size = template.length;
+		}
+		else {
+			size = jpeg_size > 0 ? jpeg_size : Math.max(picture_width * picture_height / 3, 1024);
+			if( synthetic_jpeg == null || synthetic_jpeg.length != size ) {
+				synthetic_jpeg = createSyntheticJpeg(size);
+			}
+			template = synthetic_jpeg;
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "image " + capture.n_taken + " of " + capture.n_images + ": " + size + " bytes");
+		synchronized( this ) {
+			n_images++;
+			n_image_bytes += size;
+		}
+
+		if( capture.single_request ) {
+			// as for CameraController2, burst images are copied into pooled arrays
+			ImageBuffer image_buffer = burst_buffer_pool.acquire(size);
+			System.arraycopy(template, 0, image_buffer.getData(), 0, size);
+			if( capture.streaming ) {
+				capture.picture.onBurstPictureFrame(image_buffer, capture.burst_id, capture.n_taken, capture.n_images);
+			}
+			else {
+				capture.pending_images.add(image_buffer);
+			}
+		}
+		else {
+			byte [] bytes = new byte[size];
+			System.arraycopy(template, 0, bytes, 0, size);
+			capture.picture.onPictureTaken(bytes);
+		}
+
+		if( capture.want_raw ) {
+			capture.picture.onRawPictureTaken(new FakeRawImage(2L * picture_width * picture_height));
+		}
+	}
+
+	/** Returns data of the requested size, that starts and ends with the JPEG SOI and EOI markers,
+	 *  filled with random bytes so it doesn't compress.
+	 */
+	private static byte [] createSyntheticJpeg(int size) {
+		byte [] data = new byte[size];
+		new Random(size).nextBytes(data);
+		data[0] = (byte)0xff;
+		data[1] = (byte)0xd8;
+		data[size-2] = (byte)0xff;
+		data[size-1] = (byte)0xd9;
+		return data;
+	}
+
+	private void completeCapture(Capture capture) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "completeCapture: " + capture.n_taken + " images");
+		if( capture.single_request ) {
+			if( capture.streaming ) {
+				capture.picture.onBurstPictureCompleted(capture.burst_id, capture.n_taken);
+			}
+			else {
+				// n.b., ownership of the buffers passes to the callback, which must release them
+				List<ImageBuffer> images = new ArrayList<>(capture.pending_images);
+				capture.pending_images.clear();
+				capture.picture.onBurstPictureTaken(images);
+			}
+		}
+		int n_completed;
+		synchronized( this ) {
+			if( this.capture == capture ) {
+				this.capture = null;
+				continuous_burst_in_progress = false;
+			}
+			n_completed = ++n_photos_completed;
+		}
+		test_capture_results++;
+		capture.picture.onCompleted();
+
+		if( camera_error_after_photos > 0 && n_completed >= camera_error_after_photos ) {
+			if( MyDebug.LOG )
+				Log.e(TAG, "injected camera error");
+			onError();
+		}
+	}
+
+	@Override
+	public void setDisplayOrientation(int degrees) {
+		int camera_orientation = getCameraOrientation();
+		int result;
+		if( is_front_facing ) {
+			result = (camera_orientation + degrees) % 360;
+			result = (360 - result) % 360;  // compensate the mirror
+		}
+		else {
+			result = (camera_orientation - degrees + 360) % 360;
+		}
+		this.display_orientation = result;
+	}
+
+	@Override
+	public int getDisplayOrientation() {
+		return display_orientation;
+	}
+
+	@Override
+	public int getCameraOrientation() {
+		return is_front_facing ? 270 : 90;
+	}
+
+	@Override
+	public boolean isFrontFacing() {
+		return is_front_facing;
+	}
+
+	@Override
+	public void unlock() {
+		// not needed
+	}
+
+	@Override
+	public void initVideoRecorderPrePrepare(MediaRecorder video_recorder) {
+		// video recording not supported
+	}
+
+	@Override
+	public void initVideoRecorderPostPrepare(MediaRecorder video_recorder, boolean want_photo_video_recording) throws CameraControllerException {
+		if( MyDebug.LOG )
+			Log.e(TAG, "video recording not supported by fake camera");
+		throw new CameraControllerException();
+	}
+
+	@Override
+	public String getParametersString() {
+		return "fake camera " + getCameraId() + ": picture " + picture_width + "x" + picture_height +
+				" preview " + preview_width + "x" + preview_height + " fps " + preview_min_fps + "-" + preview_max_fps +
+				" burst " + burst_type;
+	}
+
+	@Override
+	public boolean captureResultHasIso() {
+		return preview_future != null;
+	}
+
+	@Override
+	public int captureResultIso() {
+		return iso;
+	}
+
+	@Override
+	public boolean captureResultHasExposureTime() {
+		return preview_future != null;
+	}
+
+	@Override
+	public long captureResultExposureTime() {
+		return manual_iso ? exposure_time : Math.min(getCaptureResultFrameDuration(), EXPOSURE_TIME_DEFAULT);
+	}
+
+	@Override
+	public boolean captureResultHasFrameDuration() {
+		return preview_future != null;
+	}
+
+	@Override
+	public long captureResultFrameDuration() {
+		return getCaptureResultFrameDuration();
+	}
+
+	private long getCaptureResultFrameDuration() {
+		return 1000000000000L / Math.max(preview_max_fps, 1000);
+	}
+}
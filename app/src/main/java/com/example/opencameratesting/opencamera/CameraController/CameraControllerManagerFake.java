@@ -0,0 +1,22 @@
+package com.example.opencameratesting.opencamera.CameraController;
+
+/** Provides support for CameraControllerFake, which doesn't need camera hardware. Camera 0 is
+ *  back facing, and camera 1 is front facing.
+ */
+public class CameraControllerManagerFake extends CameraControllerManager {
+	private final static int n_cameras_c = 2;
+
+	static boolean isFrontFacingId(int cameraId) {
+		return cameraId == 1;
+	}
+
+	@Override
+	public int getNumberOfCameras() {
+		return n_cameras_c;
+	}
+
+	@Override
+	public boolean isFrontFacing(int cameraId) {
+		return isFrontFacingId(cameraId);
+	}
+}
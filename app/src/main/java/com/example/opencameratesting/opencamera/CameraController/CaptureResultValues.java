@@ -0,0 +1,96 @@
+package com.example.opencameratesting.opencamera.CameraController;
+
+/** An immutable copy of the capture result values that are read outside of the thread that
+ *  receives capture results (e.g., the ISO and exposure time shown on screen, or used as the
+ *  starting point for expo bracketing). The camera controller publishes a new instance once per
+ *  frame through a volatile field, so readers always see the values from a single frame, without
+ *  taking a lock.
+ */
+public final class CaptureResultValues {
+	public static final CaptureResultValues NONE = new CaptureResultValues(-1, 0, false, false, 0, false, 0, false, 0, null);
+
+	private final long frame_number;
+	private final long timestamp;
+	private final boolean is_ae_scanning;
+	private final boolean has_iso;
+	private final int iso;
+	private final boolean has_exposure_time;
+	private final long exposure_time;
+	private final boolean has_frame_duration;
+	private final long frame_duration;
+	private final float [] white_balance_rggb; // null if not available
+
+	/**
+	 * @param white_balance_rggb The red, green even, green odd and blue colour correction gains,
+	 *                           or null if not available. The array is copied.
+	 */
+	public CaptureResultValues(long frame_number, long timestamp, boolean is_ae_scanning,
+							   boolean has_iso, int iso,
+							   boolean has_exposure_time, long exposure_time,
+							   boolean has_frame_duration, long frame_duration,
+							   float [] white_balance_rggb) {
+		this.frame_number = frame_number;
+		this.timestamp = timestamp;
+		this.is_ae_scanning = is_ae_scanning;
+		this.has_iso = has_iso;
+		this.iso = iso;
+		this.has_exposure_time = has_exposure_time;
+		this.exposure_time = exposure_time;
+		this.has_frame_duration = has_frame_duration;
+		this.frame_duration = frame_duration;
+		this.white_balance_rggb = white_balance_rggb == null ? null : white_balance_rggb.clone();
+	}
+
+	/** Returns the frame number of the capture result these values were published for, or -1 if
+	 *  no capture result has been received. Note that while captures with modified exposure
+	 *  settings are in progress (e.g., expo bracketing), the ISO, exposure time, frame duration and
+	 *  white balance are held at the values of the last normal frame.
+	 */
+	public long getFrameNumber() {
+		return frame_number;
+	}
+
+	/** Returns the sensor timestamp of the frame, in nanoseconds, or 0 if not known.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public boolean isAEScanning() {
+		return is_ae_scanning;
+	}
+
+	public boolean hasIso() {
+		return has_iso;
+	}
+
+	public int getIso() {
+		return iso;
+	}
+
+	public boolean hasExposureTime() {
+		return has_exposure_time;
+	}
+
+	public long getExposureTime() {
+		return exposure_time;
+	}
+
+	public boolean hasFrameDuration() {
+		return has_frame_duration;
+	}
+
+	public long getFrameDuration() {
+		return frame_duration;
+	}
+
+	public boolean hasWhiteBalanceRggb() {
+		return white_balance_rggb != null;
+	}
+
+	/** Returns the red, green even, green odd or blue colour correction gain, for channel 0 to 3.
+	 */
+	public float getWhiteBalanceRggb(int channel) {
+		return white_balance_rggb[channel];
+	}
+}
@@ -0,0 +1,69 @@
+package com.example.opencameratesting.opencamera.CameraController;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** Stores the JPEG data for an image in a burst. The backing array may come from an
+ *  ImageBufferPool, so may be larger than the image - only the first getLength() bytes are valid.
+ *  release() must be called when the image is no longer needed, so the array can be reused for
+ *  later bursts. After calling release(), this object should not be used.
+ */
+public class ImageBuffer {
+	private final ImageBufferPool pool; // null if not pooled
+	private final byte [] data;
+	private int length;
+	private boolean released;
+	Throwable allocation_site; // for leak detection, only set if MyDebug.LOG
+
+	ImageBuffer(ImageBufferPool pool, byte [] data) {
+		this.pool = pool;
+		this.data = data;
+	}
+
+	/** Wraps an existing array (e.g., from the old Camera API) that isn't owned by a pool.
+	 */
+	public static ImageBuffer wrap(byte [] data) {
+		ImageBuffer buffer = new ImageBuffer(null, data);
+		buffer.length = data.length;
+		return buffer;
+	}
+
+	/** Returns the backing array. Only the first getLength() bytes are valid.
+	 */
+	public byte [] getData() {
+		return data;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	void setLength(int length) {
+		this.length = length;
+	}
+
+	/** Returns a copy of the valid data, for callers that need an exactly sized array.
+	 */
+	public byte [] toByteArray() {
+		byte [] copy = new byte[length];
+		System.arraycopy(data, 0, copy, 0, length);
+		return copy;
+	}
+
+	public void writeImage(OutputStream output) throws IOException {
+		output.write(data, 0, length);
+	}
+
+	/** Returns the buffer to its pool. Calling this more than once has no effect.
+	 */
+	public void release() {
+		synchronized( this ) {
+			if( released )
+				return;
+			released = true;
+		}
+		if( pool != null ) {
+			pool.release(this);
+		}
+	}
+}
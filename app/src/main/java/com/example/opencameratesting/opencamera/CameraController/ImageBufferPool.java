@@ -0,0 +1,185 @@
+package com.example.opencameratesting.opencamera.CameraController;
+
+import android.util.Log;
+
+import com.example.opencameratesting.opencamera.MyDebug;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/** A pool of byte arrays used to hold burst images, so that taking repeated bursts (e.g., for
+ *  noise reduction, which may be up to CameraController.N_IMAGES_NR_DARK_LOW_LIGHT full resolution
+ *  images) doesn't allocate new arrays for every frame.
+ *  Arrays are grouped into size classes (four per power of two), so that JPEGs of slightly
+ *  different sizes can share arrays, with at most 25% wasted space.
+ */
+public class ImageBufferPool {
+	private static final String TAG = "ImageBufferPool";
+
+	private final static int min_class_size_c = 64*1024;
+	private final static int n_sub_classes_c = 4; // number of size classes per power of two
+	private final static int [] class_sizes = createClassSizes();
+
+	@SuppressWarnings("unchecked")
+	private final ArrayDeque<byte []> [] free_lists = new ArrayDeque[class_sizes.length];
+	private long pooled_bytes; // bytes held in free_lists
+	private long max_pooled_bytes;
+	private int picture_width;
+	private int picture_height;
+	// only used if MyDebug.LOG:
+	private final Set<ImageBuffer> outstanding = Collections.newSetFromMap(new IdentityHashMap<ImageBuffer, Boolean>());
+
+	// statistics:
+	private int n_hits;
+	private int n_misses;
+	private int n_discarded; // released buffers not kept, as the pool was full
+	private int n_outstanding; // buffers acquired but not yet released
+
+	public ImageBufferPool() {
+		for(int i=0;i<free_lists.length;i++) {
+			free_lists[i] = new ArrayDeque<>();
+		}
+	}
+
+	private static int [] createClassSizes() {
+		int n_classes = 0;
+		int [] sizes = new int[128];
+		for(long base=min_class_size_c;base<(1L<<30);base*=2) {
+			for(int j=0;j<n_sub_classes_c;j++) {
+				sizes[n_classes++] = (int)(base + j*base/n_sub_classes_c);
+			}
+		}
+		int [] result = new int[n_classes];
+		System.arraycopy(sizes, 0, result, 0, n_classes);
+		return result;
+	}
+
+	/** Returns the index of the smallest size class that can hold size bytes, or -1 if too large.
+	 */
+	private static int getClassIndex(int size) {
+		for(int i=0;i<class_sizes.length;i++) {
+			if( class_sizes[i] >= size )
+				return i;
+		}
+		return -1;
+	}
+
+	/** Estimate of the largest JPEG we're likely to see for the given resolution.
+	 */
+	private static long estimateMaxJpegSize(int width, int height) {
+		return (long)width*(long)height/2;
+	}
+
+	/** Sizes the pool for the current picture size. If the picture size has changed, buffers for
+	 *  the old size are freed.
+	 * @param max_images The maximum number of images expected to be held at once (e.g., the
+	 *                   largest burst).
+	 */
+	public synchronized void setPictureSize(int width, int height, int max_images) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setPictureSize: " + width + " x " + height + " max_images: " + max_images);
+		if( width != picture_width || height != picture_height ) {
+			trim();
+			picture_width = width;
+			picture_height = height;
+		}
+		// keep at most a quarter of the heap, so the pool can't starve the rest of the application
+		max_pooled_bytes = Math.min(max_images*estimateMaxJpegSize(width, height), Runtime.getRuntime().maxMemory()/4);
+		if( MyDebug.LOG )
+			Log.d(TAG, "max_pooled_bytes: " + max_pooled_bytes);
+	}
+
+	/** Returns a buffer with room for at least size bytes, with its length set to size.
+	 */
+	public synchronized ImageBuffer acquire(int size) {
+		int index = getClassIndex(size);
+		byte [] data = null;
+		if( index != -1 ) {
+			// also accept the next size class up, rather than allocating
+			for(int i=index;i<Math.min(index+2, free_lists.length) && data == null;i++) {
+				data = free_lists[i].poll();
+			}
+		}
+		if( data != null ) {
+			n_hits++;
+			pooled_bytes -= data.length;
+		}
+		else {
+			n_misses++;
+			data = new byte[index != -1 ? class_sizes[index] : size];
+			if( MyDebug.LOG )
+				Log.d(TAG, "allocated new buffer of " + data.length + " bytes for " + size);
+		}
+		ImageBuffer buffer = new ImageBuffer(this, data);
+		buffer.setLength(size);
+		n_outstanding++;
+		if( MyDebug.LOG ) {
+			buffer.allocation_site = new Throwable("ImageBuffer acquired here");
+			outstanding.add(buffer);
+		}
+		return buffer;
+	}
+
+	/** Called by ImageBuffer.release().
+	 */
+	synchronized void release(ImageBuffer buffer) {
+		n_outstanding--;
+		if( MyDebug.LOG ) {
+			outstanding.remove(buffer);
+		}
+		byte [] data = buffer.getData();
+		int index = getClassIndex(data.length);
+		if( index == -1 || class_sizes[index] != data.length || pooled_bytes + data.length > max_pooled_bytes ) {
+			n_discarded++;
+			return;
+		}
+		free_lists[index].add(data);
+		pooled_bytes += data.length;
+	}
+
+	/** Frees all buffers held by the pool (buffers currently acquired are unaffected).
+	 */
+	public synchronized void trim() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "trim: free " + pooled_bytes + " bytes");
+		for(ArrayDeque<byte []> free_list : free_lists) {
+			free_list.clear();
+		}
+		pooled_bytes = 0;
+	}
+
+	/** In debug builds (MyDebug.LOG), logs where each buffer that hasn't been released was
+	 *  acquired. Should be called when no buffers are expected to be outstanding.
+	 * @return The number of buffers that haven't been released.
+	 */
+	public synchronized int checkLeaks() {
+		if( MyDebug.LOG ) {
+			for(ImageBuffer buffer : outstanding) {
+				Log.e(TAG, "ImageBuffer of " + buffer.getLength() + " bytes was never released", buffer.allocation_site);
+			}
+		}
+		return n_outstanding;
+	}
+
+	public synchronized int getNHits() {
+		return n_hits;
+	}
+
+	public synchronized int getNMisses() {
+		return n_misses;
+	}
+
+	public synchronized int getNDiscarded() {
+		return n_discarded;
+	}
+
+	public synchronized int getNOutstanding() {
+		return n_outstanding;
+	}
+
+	public synchronized long getPooledBytes() {
+		return pooled_bytes;
+	}
+}
@@ -0,0 +1,78 @@
+package com.example.opencameratesting.opencamera.CameraController;
+
+import android.annotation.TargetApi;
+import android.media.Image;
+import android.os.Build;
+import android.util.Log;
+
+import com.example.opencameratesting.opencamera.MyDebug;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/** Wrapper class to store a JPEG Image, so that the JPEG data can be passed to the application
+ *  (and written out) directly from the ImageReader's buffer, without first copying it into a
+ *  byte array.
+ */
+public class JpegImage {
+	private static final String TAG = "JpegImage";
+
+	private final Image image;
+
+	public JpegImage(Image image) {
+		this.image = image;
+	}
+
+	/** Returns a read-only view of the JPEG data. The buffer is only valid until close() is called.
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	public ByteBuffer getBuffer() {
+		return image.getPlanes()[0].getBuffer().asReadOnlyBuffer();
+	}
+
+	/** Returns the size of the JPEG data in bytes.
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	public int getSize() {
+		return image.getPlanes()[0].getBuffer().remaining();
+	}
+
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	public long getTimestamp() {
+		return image.getTimestamp();
+	}
+
+	/** Writes the JPEG data to the supplied channel (e.g., from FileOutputStream.getChannel()).
+	 */
+	public void writeImage(WritableByteChannel channel) throws IOException {
+		if( MyDebug.LOG )
+			Log.d(TAG, "writeImage");
+		ByteBuffer buffer = getBuffer();
+		while( buffer.hasRemaining() ) {
+			channel.write(buffer);
+		}
+	}
+
+	/** Returns a copy of the JPEG data. This is provided for applications that still need a
+	 *  byte array (e.g., the fallback for ApplicationInterface.onPictureTaken()), and defeats the
+	 *  purpose of this class, so should be avoided where possible.
+	 */
+	public byte [] getBytes() {
+		ByteBuffer buffer = getBuffer();
+		byte [] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	/** Closes the image. Must be called to free up resources when no longer needed (until this is
+	 *  called, the image is held by the ImageReader, so can block further photos). After calling
+	 *  this method, this object should not be used.
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	public void close() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "close");
+		image.close();
+	}
+}
@@ -5,25 +5,79 @@ import android.hardware.camera2.DngCreator;
 import android.media.Image;
 import android.os.Build;
 import android.util.Log;
+import android.util.Size;
 
 import com.example.opencameratesting.opencamera.MyDebug;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /** Wrapper class to store DngCreator and Image.
+ *  The Image is owned by the RAW ImageReader, which only has a few buffers; so that a slow write
+ *  doesn't hold up further photos, the pixels can be copied out with copyAndReleaseImage(), which
+ *  releases the Image straight away.
  */
 public class RawImage {
 	private static final String TAG = "RawImage";
 
     private final DngCreator dngCreator;
-    private final Image image;
+    private Image image; // null once released by copyAndReleaseImage()
+    private ByteBuffer pixels; // the copied pixels, if copyAndReleaseImage() has been called
+    private Size pixels_size;
 
     public RawImage(DngCreator dngCreator, Image image) {
         this.dngCreator = dngCreator;
         this.image = image;
     }
 
+    /** For subclasses that supply their own data rather than wrapping a camera image (see
+     *  CameraControllerFake). Subclasses must override writeImage() and close().
+     */
+    RawImage() {
+        this.dngCreator = null;
+        this.image = null;
+    }
+
+    /** Returns the size in bytes of the buffer needed by copyAndReleaseImage(), or 0 if there's no
+     *  camera image to release.
+     */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public long getCopySize() {
+		if( image == null )
+			return 0;
+		// RAW_SENSOR is 16 bits per pixel
+		return 2L*image.getWidth()*image.getHeight();
+    }
+
+    /** Copies the pixels into the supplied buffer (which must have at least getCopySize() bytes
+     *  remaining), and closes the Image, so it can be reused by the ImageReader. The buffer must
+     *  not be modified until this RawImage is closed.
+     */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public void copyAndReleaseImage(ByteBuffer buffer) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "copyAndReleaseImage");
+		int width = image.getWidth();
+		int height = image.getHeight();
+		Image.Plane plane = image.getPlanes()[0];
+		int row_stride = plane.getRowStride();
+		int row_bytes = 2*width;
+		// DngCreator.writeByteBuffer() needs the rows tightly packed
+		ByteBuffer row = plane.getBuffer().duplicate();
+		buffer.clear();
+		for(int y=0;y<height;y++) {
+			row.limit(y*row_stride + row_bytes);
+			row.position(y*row_stride);
+			buffer.put(row);
+		}
+		buffer.flip();
+		pixels = buffer;
+		pixels_size = new Size(width, height);
+		image.close();
+		image = null;
+    }
+
     /** Writes the dng file to the supplied output.
      */
 	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
@@ -31,7 +85,10 @@ public class RawImage {
 		if( MyDebug.LOG )
 			Log.d(TAG, "writeImage");
 		try {
-            dngCreator.writeImage(dngOutput, image);
+			if( pixels != null )
+				dngCreator.writeByteBuffer(dngOutput, pixels_size, pixels, 0);
+			else
+				dngCreator.writeImage(dngOutput, image);
         }
         catch(AssertionError e) {
 		    // have had AssertionError from OnePlus 5 on Google Play; rethrow as an IOException so it's handled
@@ -56,7 +113,9 @@ public class RawImage {
     public void close() {
 		if( MyDebug.LOG )
 			Log.d(TAG, "close");
-        image.close();
+		if( image != null )
+			image.close();
         dngCreator.close();
+		pixels = null;
     }
 }
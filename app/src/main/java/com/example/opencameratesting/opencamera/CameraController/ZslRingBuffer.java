@@ -0,0 +1,285 @@
+package com.example.opencameratesting.opencamera.CameraController;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.util.Log;
+
+import com.example.opencameratesting.core.JpegExif;
+import com.example.opencameratesting.opencamera.MyDebug;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Holds the most recent full resolution YUV frames from the repeating request, for zero shutter
+ *  lag: when the user takes a photo, we can use the frame that was exposed closest to when the
+ *  shutter was pressed, rather than starting a new capture.
+ *  Frames are handed between the producer (the ImageReader's listener) and the consumer
+ *  (takePicture()) without locks: each slot is swapped atomically, and whichever side swaps a
+ *  frame out of a slot owns it, and must close it. So memory is bounded by the capacity, plus
+ *  the frames the consumer is still encoding.
+ */
+public class ZslRingBuffer {
+	private static final String TAG = "ZslRingBuffer";
+
+	private final static int max_take_attempts_c = 4; // in case the producer keeps replacing the frame we want
+
+	public static class Frame {
+		private final Image image;
+		private final long timestamp;
+		private volatile TotalCaptureResult capture_result; // may be set after the frame is added
+
+		Frame(Image image, TotalCaptureResult capture_result) {
+			this.image = image;
+			this.timestamp = image.getTimestamp();
+			this.capture_result = capture_result;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/** Returns the capture result for this frame, or null if it hasn't been received yet.
+		 */
+		public TotalCaptureResult getCaptureResult() {
+			return capture_result;
+		}
+
+		public void close() {
+			image.close();
+		}
+	}
+
+	private final int capacity;
+	private final AtomicReferenceArray<Frame> frames;
+	private final AtomicReferenceArray<TotalCaptureResult> results; // recent capture results, to match with frames by timestamp
+	private final AtomicLong n_frames_added = new AtomicLong();
+	private final AtomicLong n_results_added = new AtomicLong();
+	// only accessed by the thread calling compressToJpeg():
+	private byte [] nv21_buffer;
+	private byte [] u_row;
+	private byte [] v_row;
+
+	// statistics:
+	private final AtomicInteger n_hits = new AtomicInteger();
+	private final AtomicInteger n_misses = new AtomicInteger();
+	private final AtomicInteger n_dropped = new AtomicInteger(); // frames replaced before they were used
+	private final AtomicLong total_offset_ns = new AtomicLong(); // for hits, total distance from the requested time
+
+	public ZslRingBuffer(int capacity) {
+		if( capacity <= 0 )
+			throw new IllegalArgumentException("capacity must be positive");
+		this.capacity = capacity;
+		this.frames = new AtomicReferenceArray<>(capacity);
+		// capture results may arrive before or after their frames, so keep more of them
+		this.results = new AtomicReferenceArray<>(2*capacity);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** Adds a new frame, replacing (and closing) the oldest if the ring is full. Ownership of the
+	 *  image passes to the ring.
+	 */
+	public void addFrame(Image image) {
+		Frame frame = new Frame(image, findResult(image.getTimestamp()));
+		int slot = (int)(n_frames_added.getAndIncrement() % capacity);
+		Frame old_frame = frames.getAndSet(slot, frame);
+		if( old_frame != null ) {
+			old_frame.close();
+			n_dropped.incrementAndGet();
+		}
+		if( frame.capture_result == null ) {
+			// in case the result arrived after findResult() was called, but before the frame was in the ring
+			frame.capture_result = findResult(frame.timestamp);
+		}
+	}
+
+	/** Records a capture result from the repeating request, so it can be matched with its frame.
+	 */
+	public void addResult(TotalCaptureResult result) {
+		Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+		if( timestamp == null )
+			return;
+		int slot = (int)(n_results_added.getAndIncrement() % results.length());
+		results.set(slot, result);
+		// the result is published before we look for the frame, and addFrame() publishes the frame
+		// before looking again for the result, so at least one side always sees the other
+		for(int i=0;i<capacity;i++) {
+			Frame frame = frames.get(i);
+			if( frame != null && frame.timestamp == timestamp && frame.capture_result == null ) {
+				frame.capture_result = result;
+				break;
+			}
+		}
+	}
+
+	private TotalCaptureResult findResult(long timestamp) {
+		for(int i=0;i<results.length();i++) {
+			TotalCaptureResult result = results.get(i);
+			if( result != null ) {
+				Long result_timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+				if( result_timestamp != null && result_timestamp == timestamp )
+					return result;
+			}
+		}
+		return null;
+	}
+
+	/** Removes and returns the frame whose timestamp is closest to the supplied time, or null if
+	 *  the ring has no frame within max_offset_ns of it. The caller must close the frame.
+	 * @param timestamp     The requested time, in the same timebase as the sensor timestamps; or
+	 *                      -1 to take the most recent frame.
+	 * @param max_offset_ns The furthest a frame may be from the requested time.
+	 */
+	public Frame take(long timestamp, long max_offset_ns) {
+		for(int attempt=0;attempt<max_take_attempts_c;attempt++) {
+			int best_slot = -1;
+			Frame best_frame = null;
+			long best_offset = Long.MAX_VALUE;
+			long newest_timestamp = Long.MIN_VALUE;
+			for(int i=0;i<capacity;i++) {
+				Frame frame = frames.get(i);
+				if( frame == null )
+					continue;
+				long offset;
+				if( timestamp == -1 ) {
+					if( frame.timestamp <= newest_timestamp )
+						continue;
+					newest_timestamp = frame.timestamp;
+					offset = 0;
+				}
+				else {
+					offset = Math.abs(frame.timestamp - timestamp);
+					if( offset >= best_offset )
+						continue;
+				}
+				best_slot = i;
+				best_frame = frame;
+				best_offset = offset;
+			}
+			if( best_frame == null || best_offset > max_offset_ns ) {
+				break;
+			}
+			if( frames.compareAndSet(best_slot, best_frame, null) ) {
+				n_hits.incrementAndGet();
+				total_offset_ns.addAndGet(best_offset);
+				if( MyDebug.LOG )
+					Log.d(TAG, "zsl hit, offset: " + best_offset/1000000 + "ms");
+				return best_frame;
+			}
+			// else the producer replaced the frame, so try again
+		}
+		n_misses.incrementAndGet();
+		if( MyDebug.LOG )
+			Log.d(TAG, "zsl miss");
+		return null;
+	}
+
+	/** Closes all frames held by the ring.
+	 */
+	public void clear() {
+		for(int i=0;i<capacity;i++) {
+			Frame frame = frames.getAndSet(i, null);
+			if( frame != null )
+				frame.close();
+		}
+		for(int i=0;i<results.length();i++) {
+			results.set(i, null);
+		}
+	}
+
+	/** Encodes a frame taken from the ring as a JPEG. Should only be called from one thread at a
+	 *  time, as buffers are reused between calls.
+	 * @param exif_tags The Exif data to store in the JPEG.
+	 */
+	public byte [] compressToJpeg(Frame frame, int quality, JpegExif.Tags exif_tags) {
+		Image image = frame.image;
+		int width = image.getWidth();
+		int height = image.getHeight();
+		byte [] nv21 = toNV21(image);
+		YuvImage yuv_image = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream(width*height/2);
+		if( !yuv_image.compressToJpeg(new Rect(0, 0, width, height), quality, stream) ) {
+			throw new RuntimeException("failed to compress zsl frame");
+		}
+		// YuvImage doesn't write any Exif data
+		byte [] jpeg = stream.toByteArray();
+		return JpegExif.insertSegment(jpeg, jpeg.length, JpegExif.createSegment(exif_tags));
+	}
+
+	private byte [] toNV21(Image image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int size = width*height + 2*((width+1)/2)*((height+1)/2);
+		if( nv21_buffer == null || nv21_buffer.length != size ) {
+			nv21_buffer = new byte[size];
+		}
+		byte [] nv21 = nv21_buffer;
+		Image.Plane [] planes = image.getPlanes();
+
+		ByteBuffer y_buffer = planes[0].getBuffer();
+		int y_row_stride = planes[0].getRowStride();
+		for(int y=0;y<height;y++) {
+			y_buffer.position(y*y_row_stride);
+			y_buffer.get(nv21, y*width, width);
+		}
+
+		// NV21 has interleaved chroma, V first
+		ByteBuffer u_buffer = planes[1].getBuffer();
+		ByteBuffer v_buffer = planes[2].getBuffer();
+		int uv_row_stride = planes[1].getRowStride(); // U and V planes always have the same strides
+		int uv_pixel_stride = planes[1].getPixelStride();
+		int chroma_width = (width+1)/2;
+		// copy each row out in bulk, as reading the buffers a byte at a time is much slower
+		int row_length = (chroma_width-1)*uv_pixel_stride + 1; // the last row may not have the padding
+		if( u_row == null || u_row.length != row_length ) {
+			u_row = new byte[row_length];
+			v_row = new byte[row_length];
+		}
+		int offset = width*height;
+		for(int y=0;y<(height+1)/2;y++) {
+			int row = y*uv_row_stride;
+			u_buffer.position(row);
+			u_buffer.get(u_row, 0, row_length);
+			v_buffer.position(row);
+			v_buffer.get(v_row, 0, row_length);
+			for(int x=0,index=0;x<chroma_width;x++,index+=uv_pixel_stride) {
+				nv21[offset++] = v_row[index];
+				nv21[offset++] = u_row[index];
+			}
+		}
+		return nv21;
+	}
+
+	public int getNHits() {
+		return n_hits.get();
+	}
+
+	public int getNMisses() {
+		return n_misses.get();
+	}
+
+	public int getNDropped() {
+		return n_dropped.get();
+	}
+
+	public long getNFramesAdded() {
+		return n_frames_added.get();
+	}
+
+	/** Returns the mean distance in milliseconds between the requested time and the frame used,
+	 *  for hits.
+	 */
+	public double getMeanOffsetMs() {
+		int hits = n_hits.get();
+		return hits == 0 ? 0.0 : total_offset_ns.get()/(1000000.0*hits);
+	}
+}
@@ -6,11 +6,14 @@ import android.graphics.BitmapFactory
 import android.graphics.Matrix
 import android.media.ExifInterface
 import android.media.MediaMetadataRetriever
+import android.os.Handler
+import android.os.Looper
 import android.util.Log
 import android.view.ViewGroup
 import androidx.fragment.app.Fragment
 import com.example.opencameratesting.CameraInterface
 import com.example.opencameratesting.CameraInterface.*
+import com.example.opencameratesting.opencamera.CameraController.JpegImage
 import com.example.opencameratesting.opencamera.Preview.Preview
 import java.io.*
 
@@ -29,6 +32,8 @@ class CameraVideoHelper(
     private lateinit var videoFile: File
     private lateinit var imageFile: File
     private var cameraVideoErrorListener: CameraVideoErrorListener? = null
+    private val mainHandler = Handler(Looper.getMainLooper())
+    val mediaWriter = MediaWriter(MediaWriter.DurabilityPolicy.SYNC_PER_BURST)
 
     val cameraInterface by lazy {
         CameraInterface(this, isVideoMode, orientation)
@@ -40,6 +45,11 @@ class CameraVideoHelper(
         return this
     }
 
+    fun setDurabilityPolicy(policy: MediaWriter.DurabilityPolicy): CameraVideoHelper {
+        mediaWriter.durabilityPolicy = policy
+        return this
+    }
+
     fun startRecordingVideo() {
         setVideoMode()
         cameraInterface.startingVideo()
@@ -59,6 +69,18 @@ class CameraVideoHelper(
         preview.takePicturePressed(false, false)
     }
 
+    // 全景模式下每次 takeStillPhoto 加入一張，呼叫 finishPanorama 才會接合並儲存；切換模式或鏡頭、onDestroy 時也會自動儲存
+    fun finishPanorama() {
+        cameraInterface.finishPanorama()
+    }
+
+    // 放棄目前的全景，不儲存
+    fun cancelPanorama() {
+        cameraInterface.cancelPanorama()
+    }
+
+    fun isPanoramaInProgress() = cameraInterface.isPanoramaInProgress
+
     fun onResume() {
         preview.onResume()
         setLocationOnOff(true)
@@ -152,6 +174,12 @@ class CameraVideoHelper(
         return this
     }
 
+    // 拍照後由記憶體中的 JPEG 解碼縮圖，不需再從檔案讀取原圖；縮圖會被重複使用，只在下一張縮圖送達前有效
+    fun setThumbnailListener(listener: ThumbnailDecoder.Listener?): CameraVideoHelper {
+        cameraInterface.setThumbnailListener(listener)
+        return this
+    }
+
     fun setCameraVideoErrorListener(listener: CameraVideoErrorListener?): CameraVideoHelper {
         cameraInterface.setCameraVideoErrorListener(listener)
         cameraVideoErrorListener = listener
@@ -168,30 +196,45 @@ class CameraVideoHelper(
         mediaMetadataRetriever.setDataSource(videoFileName)
     }
 
+    fun getImageFile(): File {
+        return imageFile
+    }
+
     fun saveImage(bytes: ByteArray): Boolean {
-        var isSaveSuccess: Boolean
-        var output: FileOutputStream? = null
-        try {
-            output = FileOutputStream(imageFile)
-            output.write(bytes)
+        return saveImage(bytes, imageFile)
+    }
+
+    // 圖片可能在背景執行緒中儲存，故由呼叫端指定檔案，而非使用目前的 imageFile
+    fun saveImage(bytes: ByteArray, file: File): Boolean {
+        return writeMedia(file, MediaWriter.bytesSource(bytes))
+    }
 
-            isSaveSuccess = true
+    // 直接由 ImageReader 的 buffer 寫入檔案，不需先複製成 ByteArray；jpegImage 由呼叫端負責 close
+    fun saveImage(jpegImage: JpegImage): Boolean {
+        return saveImage(jpegImage, imageFile)
+    }
+
+    fun saveImage(jpegImage: JpegImage, file: File): Boolean {
+        return writeMedia(file, MediaWriter.jpegImageSource(jpegImage))
+    }
+
+    // DNG 由 DngWriter 在背景執行緒中編碼，source 負責寫出資料
+    fun saveRaw(source: MediaWriter.Source, file: File): Boolean {
+        return writeMedia(file, source)
+    }
+
+    // 先寫入暫存檔再改名，避免留下不完整的檔案；是否 fsync 由 mediaWriter 的 DurabilityPolicy 決定
+    private fun writeMedia(file: File, source: MediaWriter.Source): Boolean {
+        return try {
+            mediaWriter.write(file, source)
+            true
         } catch (e: IOException) {
-            isSaveSuccess = false
             e.printStackTrace()
-            cameraVideoErrorListener?.errOccurListener("catch IOException @ saveImage @ $TAG: ${e.message}")
-        } finally {
-            if (null != output) {
-                try {
-                    output.close()
-                } catch (e: IOException) {
-                    e.printStackTrace()
-                    cameraVideoErrorListener?.errOccurListener("finally @ saveImage @ $TAG: ${e.message}")
-                }
-            }
+            // 由背景執行緒儲存時也會呼叫，故切回主執行緒再通知
+            val message = "catch IOException @ saveImage @ $TAG: ${e.message}"
+            mainHandler.post { cameraVideoErrorListener?.errOccurListener(message) }
+            false
         }
-
-        return isSaveSuccess
     }
 
     private fun setLocationOnOff(isEnable: Boolean) {
@@ -0,0 +1,179 @@
+package com.example.opencameratesting.opencamera;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/** Records when each photo passes through the stages of the capture pipeline, from the shutter
+ *  being pressed to the file being saved, and keeps per-stage latency histograms.
+ *  For each stage we keep two histograms: the time since the shutter was pressed, and the time
+ *  since the previous stage that was recorded for that photo. For photos that produce several
+ *  images (e.g., bursts), each stage is timed from the first image to reach it.
+ *  Stages may be recorded from any thread.
+ */
+public class CaptureLatencyTracker {
+	private static final String TAG = "CaptureLatencyTracker";
+
+	public enum Stage {
+		SHUTTER_PRESSED, // Preview.takePicturePressed()
+		TAKE_PICTURE, // CameraController.takePicture()
+		PRECAPTURE_START,
+		PRECAPTURE_END,
+		CAPTURE_STARTED, // camera has started exposing the (first) still image
+		IMAGE_AVAILABLE, // the (first) image was received from the camera
+		PICTURE_TAKEN, // the (first) image was passed to the application
+		SAVED // the (first) image was saved to storage
+	}
+
+	/** A photo being recorded. Returned by imageQueued() as a token for the image, to be passed
+	 *  back to imageSaved() - so each save is matched to its own photo, whatever order images are
+	 *  saved in.
+	 */
+	public static final class Capture {
+		private final long [] stage_times_ns = new long[Stage.values().length]; // 0 if stage not reached
+
+		private Capture() {
+		}
+	}
+
+	private final LatencyHistogram [] since_shutter = new LatencyHistogram[Stage.values().length];
+	private final LatencyHistogram [] since_previous = new LatencyHistogram[Stage.values().length];
+	private Capture current_capture; // the most recent photo
+	private int n_captures;
+
+	public CaptureLatencyTracker() {
+		for(int i=0;i<since_shutter.length;i++) {
+			since_shutter[i] = new LatencyHistogram();
+			since_previous[i] = new LatencyHistogram();
+		}
+	}
+
+	/** Call when the user presses the shutter to take a photo.
+	 * @param pressed_time_ns The time of the press, from System.nanoTime().
+	 */
+	public synchronized void startCapture(long pressed_time_ns) {
+		current_capture = new Capture();
+		current_capture.stage_times_ns[Stage.SHUTTER_PRESSED.ordinal()] = pressed_time_ns;
+		n_captures++;
+	}
+
+	/** Returns when the shutter was pressed for the current photo, from System.nanoTime(), or 0 if
+	 *  there is no current photo.
+	 */
+	public synchronized long getShutterPressedTimeNs() {
+		return current_capture != null ? current_capture.stage_times_ns[Stage.SHUTTER_PRESSED.ordinal()] : 0;
+	}
+
+	/** Records that the current photo has reached the supplied stage. Has no effect if the stage
+	 *  has already been recorded for this photo.
+	 */
+	public synchronized void mark(Stage stage) {
+		if( current_capture != null ) {
+			mark(current_capture, stage, System.nanoTime());
+		}
+	}
+
+	/** Records that an image from the current photo has been passed to the application, and queued
+	 *  for saving. The returned token should be passed with the image to whatever saves it, and
+	 *  then to imageSaved() once the save has finished (or failed).
+	 * @return The token for the image, or null if there is no current photo.
+	 */
+	public synchronized Capture imageQueued() {
+		if( current_capture != null ) {
+			mark(current_capture, Stage.PICTURE_TAKEN, System.nanoTime());
+		}
+		return current_capture;
+	}
+
+	/** Call when an image queued with imageQueued() has been saved (or failed to save).
+	 * @param capture The token returned by imageQueued(). May be null, in which case this does
+	 *                nothing.
+	 */
+	public synchronized void imageSaved(Capture capture, boolean success) {
+		if( capture != null && success ) {
+			mark(capture, Stage.SAVED, System.nanoTime());
+		}
+	}
+
+	private void mark(Capture capture, Stage stage, long time_ns) {
+		long [] times = capture.stage_times_ns;
+		long shutter_time_ns = times[Stage.SHUTTER_PRESSED.ordinal()];
+		if( shutter_time_ns == 0 || times[stage.ordinal()] != 0 )
+			return;
+		times[stage.ordinal()] = time_ns;
+		since_shutter[stage.ordinal()].record((time_ns - shutter_time_ns)/1000000);
+		long previous_time_ns = shutter_time_ns;
+		for(int i=stage.ordinal()-1;i>=0;i--) {
+			if( times[i] != 0 ) {
+				previous_time_ns = times[i];
+				break;
+			}
+		}
+		since_previous[stage.ordinal()].record((time_ns - previous_time_ns)/1000000);
+		if( MyDebug.LOG )
+			Log.d(TAG, stage + ": " + (time_ns - shutter_time_ns)/1000000 + "ms since shutter");
+	}
+
+	/** Returns the latency in milliseconds from the shutter being pressed to the supplied stage,
+	 *  at the given percentile (e.g., 50, 95 or 99).
+	 */
+	public synchronized long getLatencyMs(Stage stage, double percentile) {
+		return since_shutter[stage.ordinal()].getPercentileMs(percentile);
+	}
+
+	/** Returns the latency in milliseconds from the previously recorded stage to the supplied
+	 *  stage, at the given percentile.
+	 */
+	public synchronized long getStageLatencyMs(Stage stage, double percentile) {
+		return since_previous[stage.ordinal()].getPercentileMs(percentile);
+	}
+
+	public synchronized long getCount(Stage stage) {
+		return since_shutter[stage.ordinal()].getCount();
+	}
+
+	public synchronized int getNCaptures() {
+		return n_captures;
+	}
+
+	public synchronized void reset() {
+		for(int i=0;i<since_shutter.length;i++) {
+			since_shutter[i].reset();
+			since_previous[i].reset();
+		}
+		n_captures = 0;
+	}
+
+	/** Writes a summary of the latencies to the supplied file, as CSV, including the device model
+	 *  so results from different devices can be compared.
+	 */
+	public void dump(File file) throws IOException {
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		try {
+			synchronized( this ) {
+				writer.println("# device: " + Build.MANUFACTURER + " " + Build.MODEL + " (Android " + Build.VERSION.RELEASE + ")");
+				writer.println("# captures: " + n_captures);
+				writer.println("stage,count,p50_ms,p95_ms,p99_ms,max_ms,mean_ms,stage_p50_ms,stage_p95_ms,stage_p99_ms");
+				for(Stage stage : Stage.values()) {
+					if( stage == Stage.SHUTTER_PRESSED )
+						continue;
+					LatencyHistogram total = since_shutter[stage.ordinal()];
+					LatencyHistogram delta = since_previous[stage.ordinal()];
+					writer.println(stage + "," + total.getCount() + "," +
+							total.getPercentileMs(50) + "," + total.getPercentileMs(95) + "," + total.getPercentileMs(99) + "," +
+							total.getMaxMs() + "," + String.format(java.util.Locale.US, "%.1f", total.getMeanMs()) + "," +
+							delta.getPercentileMs(50) + "," + delta.getPercentileMs(95) + "," + delta.getPercentileMs(99));
+				}
+			}
+		}
+		finally {
+			writer.close();
+		}
+		if( writer.checkError() )
+			throw new IOException("failed to write " + file);
+	}
+}
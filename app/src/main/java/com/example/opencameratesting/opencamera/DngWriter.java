@@ -0,0 +1,503 @@
+package com.example.opencameratesting.opencamera;
+
+import android.util.Log;
+
+import com.example.opencameratesting.opencamera.CameraController.RawImage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Saves RAW images as DNG files in background threads, so that a slow DNG encode or write
+ *  doesn't hold up further photos. The RAW ImageReader only has a few buffers, so each RawImage
+ *  is released back to the reader as soon as possible: its pixels are copied into a buffer from a
+ *  pool (bounded by a memory budget), and the Image closed straight away. If the budget is used
+ *  up, up to setMaxHeldImages() images are instead handed off still open; beyond that,
+ *  saveRaw() blocks until space frees up. Callers should use queueWouldBlock() to check before
+ *  taking further photos.
+ */
+public class DngWriter {
+	private static final String TAG = "DngWriter";
+
+	/** Performs the actual writing of a DNG file to storage (e.g., with MediaWriter). Called on
+	 *  one of the writer threads.
+	 */
+	public interface RawWriter {
+		boolean writeRaw(MediaWriter.Source source, File file);
+	}
+
+	private static class Request {
+		final RawImage raw_image;
+		final File file;
+		final ByteBuffer buffer; // the pool buffer holding the copied pixels, or null if not copied
+		final boolean held; // whether raw_image still holds an Image from the ImageReader
+		final CaptureLatencyTracker.Capture capture; // token from CaptureLatencyTracker.imageQueued(), may be null
+		final long queued_time_ns;
+
+		Request(RawImage raw_image, File file, ByteBuffer buffer, boolean held, CaptureLatencyTracker.Capture capture) {
+			this.raw_image = raw_image;
+			this.file = file;
+			this.buffer = buffer;
+			this.held = held;
+			this.capture = capture;
+			this.queued_time_ns = System.nanoTime();
+		}
+	}
+
+	/** Wraps the output channel, to measure the time spent writing (as opposed to encoding).
+	 */
+	private static class TimedOutputStream extends OutputStream {
+		private final FileChannel channel;
+		private final byte [] single = new byte[1];
+		long write_time_ns;
+
+		TimedOutputStream(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			single[0] = (byte)b;
+			write(single, 0, 1);
+		}
+
+		@Override
+		public void write(byte [] b, int off, int len) throws IOException {
+			long start_time_ns = System.nanoTime();
+			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			while( buffer.hasRemaining() ) {
+				channel.write(buffer);
+			}
+			write_time_ns += System.nanoTime() - start_time_ns;
+		}
+	}
+
+	private final RawWriter writer;
+	private final long max_buffer_bytes;
+	private final Thread [] threads;
+	private volatile CaptureLatencyTracker latency_tracker;
+
+	// the following are all guarded by "this"
+	private final ArrayDeque<Request> queue = new ArrayDeque<>();
+	private int n_in_progress; // requests taken off the queue, but not yet written
+	private final ArrayDeque<ByteBuffer> free_buffers = new ArrayDeque<>();
+	private long buffer_bytes; // total size of the pool buffers, whether free or in use
+	private long last_copy_size;
+	private int max_held_images = 1; // max number of RawImages we may keep open, see setMaxHeldImages()
+	private int n_held_images;
+	private final List<Runnable> idle_runnables = new ArrayList<>();
+	private boolean stopped;
+
+	// statistics, also guarded by "this"
+	private int n_saved;
+	private int n_failed;
+	private int n_copied;
+	private int n_held;
+	private long total_copy_time_ns;
+	private long max_copy_time_ns;
+	private long total_encode_time_ns;
+	private long max_encode_time_ns;
+	private long last_encode_time_ns;
+	private long total_write_time_ns;
+	private long max_write_time_ns;
+	private long last_write_time_ns;
+	private long total_queue_wait_ns;
+	private long total_blocked_time_ns; // time callers spent blocked in saveRaw() waiting for space
+
+	/**
+	 * @param writer           Used to write the DNG files.
+	 * @param n_threads        Number of writer threads (at least 1).
+	 * @param max_buffer_bytes Maximum total size of the buffers for copied RAW images.
+	 */
+	public DngWriter(RawWriter writer, int n_threads, long max_buffer_bytes) {
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "DngWriter");
+			Log.d(TAG, "n_threads: " + n_threads);
+			Log.d(TAG, "max_buffer_bytes: " + max_buffer_bytes);
+		}
+		this.writer = writer;
+		this.max_buffer_bytes = max_buffer_bytes;
+		this.threads = new Thread[Math.max(n_threads, 1)];
+		for(int i=0;i<threads.length;i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					writerLoop();
+				}
+			}, "DngWriter-" + i);
+			threads[i].start();
+		}
+	}
+
+	/** Returns a suggested memory budget for the copied RAW images, based on the maximum heap size.
+	 *  The buffers are direct, so don't count against the heap, but the heap size is still a
+	 *  guide to how much memory the device can spare.
+	 */
+	public static long computeDefaultMaxBufferBytes() {
+		return Runtime.getRuntime().maxMemory()/4;
+	}
+
+	/** If set, each image queued with a token from the tracker is recorded as saved (or not) once
+	 *  its write has finished.
+	 */
+	public void setCaptureLatencyTracker(CaptureLatencyTracker latency_tracker) {
+		this.latency_tracker = latency_tracker;
+	}
+
+	/** Sets the maximum number of RawImages that may be held open (i.e., not copied) by the queue.
+	 *  Images are owned by the ImageReader, so holding more than its maxImages-1 would stop further
+	 *  images being acquired.
+	 */
+	public synchronized void setMaxHeldImages(int max_held_images) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setMaxHeldImages: " + max_held_images);
+		this.max_held_images = max_held_images;
+	}
+
+	/** Whether saving another RAW image would block, as the buffer budget is used up and no more
+	 *  images may be held.
+	 */
+	public synchronized boolean queueWouldBlock() {
+		if( queue.size() == 0 && n_in_progress == 0 ) {
+			// always allow at least one photo when idle, even if it's larger than the budget
+			return false;
+		}
+		if( free_buffers.size() > 0 || buffer_bytes + last_copy_size <= max_buffer_bytes || n_held_images < max_held_images )
+			return false;
+		if( MyDebug.LOG )
+			Log.d(TAG, "queueWouldBlock: buffer bytes: " + buffer_bytes + " , held images: " + n_held_images);
+		return true;
+	}
+
+	/** Frees any pooled buffers too small for copy_size bytes (as the RAW resolution has changed).
+	 */
+	private void discardSmallBuffers(long copy_size) {
+		while( free_buffers.size() > 0 && free_buffers.peek().capacity() < copy_size ) {
+			buffer_bytes -= free_buffers.poll().capacity();
+		}
+	}
+
+	/** Queues a RAW image to be saved as a DNG. The image will be closed once saved. If there's no
+	 *  room to copy or hold the image, this blocks until there is.
+	 * @param capture The token from CaptureLatencyTracker.imageQueued() for this image, or null.
+	 */
+	public void saveRaw(RawImage raw_image, File file, CaptureLatencyTracker.Capture capture) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "saveRaw: " + file);
+		long copy_size = raw_image.getCopySize();
+		ByteBuffer buffer = null;
+		boolean allocate = false;
+		boolean held = false;
+		synchronized( this ) {
+			long start_time_ns = System.nanoTime();
+			if( copy_size > 0 )
+				last_copy_size = copy_size;
+			while( copy_size > 0 ) {
+				discardSmallBuffers(copy_size);
+				if( free_buffers.size() > 0 ) {
+					buffer = free_buffers.poll();
+					break;
+				}
+				if( buffer_bytes + copy_size <= max_buffer_bytes || buffer_bytes == 0 ) {
+					// always allow one buffer, even if larger than the budget, so we can't deadlock;
+					// reserve the space now, but allocate outside the lock
+					buffer_bytes += copy_size;
+					allocate = true;
+					break;
+				}
+				if( n_held_images < max_held_images || stopped ) {
+					held = true;
+					n_held_images++;
+					break;
+				}
+				if( MyDebug.LOG )
+					Log.d(TAG, "no room for RAW image, wait for space");
+				try {
+					wait();
+				}
+				catch(InterruptedException e) {
+					e.printStackTrace();
+					Thread.currentThread().interrupt();
+					held = true;
+					n_held_images++;
+					break;
+				}
+			}
+			total_blocked_time_ns += System.nanoTime() - start_time_ns;
+		}
+
+		if( allocate )
+			buffer = ByteBuffer.allocateDirect((int)copy_size);
+		if( buffer != null ) {
+			long copy_start_ns = System.nanoTime();
+			raw_image.copyAndReleaseImage(buffer);
+			long copy_time_ns = System.nanoTime() - copy_start_ns;
+			if( MyDebug.LOG )
+				Log.d(TAG, "copy time ms: " + copy_time_ns/1000000);
+			synchronized( this ) {
+				n_copied++;
+				total_copy_time_ns += copy_time_ns;
+				max_copy_time_ns = Math.max(max_copy_time_ns, copy_time_ns);
+			}
+		}
+		else if( held ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "no room to copy, so hold RAW image");
+		}
+
+		synchronized( this ) {
+			if( held )
+				n_held++;
+			queue.add(new Request(raw_image, file, buffer, held, capture));
+			if( MyDebug.LOG )
+				Log.d(TAG, "queue size is now: " + queue.size());
+			notifyAll();
+		}
+	}
+
+	private void writerLoop() {
+		while( true ) {
+			Request request;
+			synchronized( this ) {
+				while( queue.isEmpty() && !stopped ) {
+					try {
+						wait();
+					}
+					catch(InterruptedException e) {
+						e.printStackTrace();
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				if( queue.isEmpty() ) {
+					// stopped, and nothing left to save
+					return;
+				}
+				request = queue.poll();
+				n_in_progress++;
+			}
+
+			final RawImage raw_image = request.raw_image;
+			final long [] source_time_ns = new long[2]; // time in the source, and time of that spent writing
+			long write_start_ns = System.nanoTime();
+			boolean success = false;
+			List<Runnable> runnables = null;
+			try {
+				success = writer.writeRaw(new MediaWriter.Source() {
+					@Override
+					public void writeTo(FileChannel channel) throws IOException {
+						long start_time_ns = System.nanoTime();
+						TimedOutputStream output = new TimedOutputStream(channel);
+						try {
+							raw_image.writeImage(output);
+						}
+						finally {
+							source_time_ns[0] += System.nanoTime() - start_time_ns;
+							source_time_ns[1] += output.write_time_ns;
+						}
+					}
+				}, request.file);
+			}
+			catch(RuntimeException e) {
+				// e.g., DngCreator throws IllegalArgumentException or IllegalStateException for bad metadata;
+				// count as a failed save rather than losing the writer thread
+				Log.e(TAG, "failed to save DNG: " + request.file);
+				e.printStackTrace();
+			}
+			finally {
+				try {
+					raw_image.close();
+				}
+				finally {
+					// must always release the buffer and held image, otherwise queueWouldBlock() would stay true
+					runnables = onRequestDone(request, success, write_start_ns, source_time_ns);
+				}
+			}
+			if( runnables != null ) {
+				for(Runnable runnable : runnables) {
+					runnable.run();
+				}
+			}
+		}
+	}
+
+	/** Updates the accounting for a finished request, whether or not it was saved. Returns any
+	 *  idle runnables that should now be run (outside of the lock).
+	 */
+	private List<Runnable> onRequestDone(Request request, boolean success, long write_start_ns, long [] source_time_ns) {
+		long write_end_ns = System.nanoTime();
+		// DngCreator encodes as it writes, so split its time by how much was spent in the output
+		long encode_time_ns = source_time_ns[0] - source_time_ns[1];
+		long write_time_ns = write_end_ns - write_start_ns - encode_time_ns;
+		CaptureLatencyTracker tracker = latency_tracker;
+		if( tracker != null )
+			tracker.imageSaved(request.capture, success);
+
+		List<Runnable> runnables = null;
+		synchronized( this ) {
+			n_in_progress--;
+			if( request.buffer != null )
+				free_buffers.add(request.buffer);
+			if( request.held )
+				n_held_images--;
+			if( success )
+				n_saved++;
+			else
+				n_failed++;
+			last_encode_time_ns = encode_time_ns;
+			total_encode_time_ns += encode_time_ns;
+			max_encode_time_ns = Math.max(max_encode_time_ns, encode_time_ns);
+			last_write_time_ns = write_time_ns;
+			total_write_time_ns += write_time_ns;
+			max_write_time_ns = Math.max(max_write_time_ns, write_time_ns);
+			total_queue_wait_ns += write_start_ns - request.queued_time_ns;
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "saved " + request.file + " success: " + success);
+				Log.d(TAG, "encode time ms: " + encode_time_ns/1000000);
+				Log.d(TAG, "write time ms: " + write_time_ns/1000000);
+				Log.d(TAG, "queue size is now: " + queue.size());
+			}
+			if( queue.isEmpty() && n_in_progress == 0 && idle_runnables.size() > 0 ) {
+				runnables = new ArrayList<>(idle_runnables);
+				idle_runnables.clear();
+			}
+			notifyAll();
+		}
+		return runnables;
+	}
+
+	/** Runs the supplied runnable once all images queued so far have been saved. If the queue is
+	 *  already empty, it is run immediately on the calling thread; otherwise it is run on a writer
+	 *  thread.
+	 */
+	public void runWhenIdle(Runnable runnable) {
+		synchronized( this ) {
+			if( !queue.isEmpty() || n_in_progress > 0 ) {
+				idle_runnables.add(runnable);
+				return;
+			}
+		}
+		runnable.run();
+	}
+
+	/** Saves any remaining images, then stops the writer threads and frees the buffers. The
+	 *  DngWriter can't be used after this is called.
+	 */
+	public void onDestroy() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "onDestroy");
+		synchronized( this ) {
+			stopped = true;
+			notifyAll();
+		}
+		for(Thread thread : threads) {
+			try {
+				thread.join();
+			}
+			catch(InterruptedException e) {
+				e.printStackTrace();
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized( this ) {
+			free_buffers.clear();
+			buffer_bytes = 0;
+		}
+	}
+
+	/** Returns the number of images waiting to be saved, or currently being saved.
+	 */
+	public synchronized int getQueueSize() {
+		return queue.size() + n_in_progress;
+	}
+
+	/** Returns the total size of the buffers for copied images, whether in use or free.
+	 */
+	public synchronized long getBufferBytes() {
+		return buffer_bytes;
+	}
+
+	public synchronized int getNSaved() {
+		return n_saved;
+	}
+
+	public synchronized int getNFailed() {
+		return n_failed;
+	}
+
+	/** Returns the number of images that were copied, so released straight away.
+	 */
+	public synchronized int getNCopied() {
+		return n_copied;
+	}
+
+	/** Returns the number of images that were held open until saved, as the buffer budget was used up.
+	 */
+	public synchronized int getNHeld() {
+		return n_held;
+	}
+
+	/** Returns the mean time to copy an image's pixels, in milliseconds.
+	 */
+	public synchronized double getMeanCopyTimeMs() {
+		return n_copied == 0 ? 0.0 : total_copy_time_ns/(1000000.0*n_copied);
+	}
+
+	public synchronized double getMaxCopyTimeMs() {
+		return max_copy_time_ns/1000000.0;
+	}
+
+	/** Returns the time taken by DngCreator to encode the most recently saved image (excluding
+	 *  time spent writing its output), in milliseconds.
+	 */
+	public synchronized double getLastEncodeTimeMs() {
+		return last_encode_time_ns/1000000.0;
+	}
+
+	/** Returns the mean time to encode an image, in milliseconds.
+	 */
+	public synchronized double getMeanEncodeTimeMs() {
+		int n = n_saved + n_failed;
+		return n == 0 ? 0.0 : total_encode_time_ns/(1000000.0*n);
+	}
+
+	public synchronized double getMaxEncodeTimeMs() {
+		return max_encode_time_ns/1000000.0;
+	}
+
+	/** Returns the time taken to write the most recently saved image to storage (including any
+	 *  sync and rename), in milliseconds.
+	 */
+	public synchronized double getLastWriteTimeMs() {
+		return last_write_time_ns/1000000.0;
+	}
+
+	/** Returns the mean time to write an image, in milliseconds.
+	 */
+	public synchronized double getMeanWriteTimeMs() {
+		int n = n_saved + n_failed;
+		return n == 0 ? 0.0 : total_write_time_ns/(1000000.0*n);
+	}
+
+	public synchronized double getMaxWriteTimeMs() {
+		return max_write_time_ns/1000000.0;
+	}
+
+	/** Returns the mean time an image spent waiting in the queue before being written, in milliseconds.
+	 */
+	public synchronized double getMeanQueueWaitTimeMs() {
+		int n = n_saved + n_failed;
+		return n == 0 ? 0.0 : total_queue_wait_ns/(1000000.0*n);
+	}
+
+	/** Returns the total time callers have spent blocked waiting for space, in milliseconds.
+	 */
+	public synchronized double getTotalBlockedTimeMs() {
+		return total_blocked_time_ns/1000000.0;
+	}
+}
@@ -7,6 +7,8 @@ import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.util.Log;
 
+import com.example.opencameratesting.core.RotationMath;
+
 /** Handles gyro sensor.
  */
 public class GyroSensor implements SensorEventListener {
@@ -86,49 +88,16 @@ public class GyroSensor implements SensorEventListener {
     /** Helper method to set a 3D vector.
      */
     static void setVector(final float[] vector, float x, float y, float z) {
-        vector[0] = x;
-        vector[1] = y;
-        vector[2] = z;
-    }
-
-    /** Helper method to access the (i, j)th component of a 3x3 matrix.
-     */
-    private static float getMatrixComponent(final float [] matrix, int row, int col) {
-        return matrix[row*3+col];
-    }
-
-    /** Helper method to set the (i, j)th component of a 3x3 matrix.
-     */
-    private static void setMatrixComponent(final float [] matrix, int row, int col, float value) {
-        matrix[row*3+col] = value;
+        RotationMath.setVector(vector, x, y, z);
     }
 
     /** Helper method to multiply 3x3 matrix with a 3D vector.
      */
     public static void transformVector(final float [] result, final float [] matrix, final float [] vector) {
-        // result[i] = matrix[ij] . vector[j]
-        for(int i=0;i<3;i++) {
-            result[i] = 0.0f;
-            for(int j=0;j<3;j++) {
-                result[i] += getMatrixComponent(matrix, i, j) * vector[j];
-            }
-        }
-    }
-
-    /** Helper method to multiply the transpose of a 3x3 matrix with a 3D vector.
-     *  For 3x3 rotation (orthonormal) matrices, the transpose is the inverse.
-     */
-    private void transformTransposeVector(final float [] result, final float [] matrix, final float [] vector) {
-        // result[i] = matrix[ji] . vector[j]
-        for(int i=0;i<3;i++) {
-            result[i] = 0.0f;
-            for(int j=0;j<3;j++) {
-                result[i] += getMatrixComponent(matrix, j, i) * vector[j];
-            }
-        }
+        RotationMath.transformVector(result, matrix, vector);
     }
 
-    void startRecording() {
+    public void startRecording() {
         if( MyDebug.LOG )
             Log.d(TAG, "startRecording");
         is_recording = true;
@@ -139,7 +108,7 @@ public class GyroSensor implements SensorEventListener {
         mSensorManager.registerListener(this, mSensorAccel, SensorManager.SENSOR_DELAY_UI);
     }
 
-    void stopRecording() {
+    public void stopRecording() {
         if( is_recording ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "stopRecording");
@@ -205,42 +174,11 @@ public class GyroSensor implements SensorEventListener {
             Log.d(TAG, "### tempVector: " + tempVector[0] + " , " + tempVector[1] + " , " + tempVector[2]);
             Log.d(TAG, "### cos_angle: " + cos_angle);
         }
-        if( cos_angle >= 0.99999999995 ) {
-            // gyroscope already matches accelerometer
-            return;
-        }
-
-        /*
-        // compute matrix to transform tempVector to accelVector
-        // compute (tempVector X accelVector) normalised
-        double a_x = tempVector[1] * accelVector[2] - tempVector[2] * accelVector[1];
-        double a_y = tempVector[2] * accelVector[0] - tempVector[0] * accelVector[2];
-        double a_z = tempVector[0] * accelVector[1] - tempVector[1] * accelVector[0];
-        */
         // compute matrix to transform tempVector to initAccelVector
-        // compute (tempVector X initAccelVector) normalised
-        double a_x = tempVector[1] * initAccelVector[2] - tempVector[2] * initAccelVector[1];
-        double a_y = tempVector[2] * initAccelVector[0] - tempVector[0] * initAccelVector[2];
-        double a_z = tempVector[0] * initAccelVector[1] - tempVector[1] * initAccelVector[0];
-        double a_mag = Math.sqrt(a_x*a_x + a_y*a_y + a_z*a_z);
-        if( a_mag < 1.0e-5 ) {
-            // parallel or anti-parallel case
+        if( !RotationMath.rotationBetweenVectors(tempMatrix, tempVector, initAccelVector) ) {
+            // gyroscope already matches accelerometer, or parallel or anti-parallel case
             return;
         }
-        a_x /= a_mag;
-        a_y /= a_mag;
-        a_z /= a_mag;
-        double sin_angle = Math.sqrt(1.0-cos_angle*cos_angle);
-        // from http://immersivemath.com/forum/question/rotation-matrix-from-one-vector-to-another/
-        setMatrixComponent(tempMatrix, 0, 0, (float)(a_x*a_x*(1.0-cos_angle)+cos_angle));
-        setMatrixComponent(tempMatrix, 0, 1, (float)(a_x*a_y*(1.0-cos_angle)-sin_angle*a_z));
-        setMatrixComponent(tempMatrix, 0, 2, (float)(a_x*a_z*(1.0-cos_angle)+sin_angle*a_y));
-        setMatrixComponent(tempMatrix, 1, 0, (float)(a_x*a_y*(1.0-cos_angle)+sin_angle*a_z));
-        setMatrixComponent(tempMatrix, 1, 1, (float)(a_y*a_y*(1.0-cos_angle)+cos_angle));
-        setMatrixComponent(tempMatrix, 1, 2, (float)(a_y*a_z*(1.0-cos_angle)-sin_angle*a_x));
-        setMatrixComponent(tempMatrix, 2, 0, (float)(a_x*a_z*(1.0-cos_angle)-sin_angle*a_y));
-        setMatrixComponent(tempMatrix, 2, 1, (float)(a_y*a_z*(1.0-cos_angle)+sin_angle*a_x));
-        setMatrixComponent(tempMatrix, 2, 2, (float)(a_z*a_z*(1.0-cos_angle)+cos_angle));
         if( MyDebug.LOG ) {
             // test:
             System.arraycopy(tempVector, 0, inVector, 0, 3);
@@ -253,16 +191,7 @@ public class GyroSensor implements SensorEventListener {
         // replace currentRotationMatrix with tempMatrix.currentRotationMatrix
         // since [tempMatrix.currentRotationMatrix].[initAccelVector] = tempMatrix.tempVector = accelVector
         // since [tempMatrix.currentRotationMatrix].[accelVector] = tempMatrix.tempVector = initAccelVector
-        for(int i=0;i<3;i++) {
-            for(int j=0;j<3;j++) {
-                float value = 0.0f;
-                // temp2Matrix[ij] = tempMatrix[ik] * currentRotationMatrix[kj]
-                for(int k=0;k<3;k++) {
-                    value += getMatrixComponent(tempMatrix, i, k) * getMatrixComponent(currentRotationMatrix, k, j);
-                }
-                setMatrixComponent(temp2Matrix, i, j, value);
-            }
-        }
+        RotationMath.multiply(temp2Matrix, tempMatrix, currentRotationMatrix);
         System.arraycopy(temp2Matrix, 0, currentRotationMatrix, 0, 9);
         if( MyDebug.LOG ) {
             // test:
@@ -332,33 +261,14 @@ public class GyroSensor implements SensorEventListener {
                 deltaRotationVector[2] = sinThetaOverTwo * axisZ;
                 deltaRotationVector[3] = cosThetaOverTwo;
 
-                SensorManager.getRotationMatrixFromVector(deltaRotationMatrix, deltaRotationVector);
+                RotationMath.rotationMatrixFromVector(deltaRotationMatrix, deltaRotationVector);
                 // User code should concatenate the delta rotation we computed with the current rotation
                 // in order to get the updated rotation.
                 // currentRotationMatrix = currentRotationMatrix * deltaRotationMatrix;
-                for(int i=0;i<3;i++) {
-                    for(int j=0;j<3;j++) {
-                        float value = 0.0f;
-                        // tempMatrix[ij] = currentRotationMatrix[ik] * deltaRotationMatrix[kj]
-                        for(int k=0;k<3;k++) {
-                            value += getMatrixComponent(currentRotationMatrix, i, k) * getMatrixComponent(deltaRotationMatrix, k, j);
-                        }
-                        setMatrixComponent(tempMatrix, i, j, value);
-                    }
-                }
-
+                RotationMath.multiply(tempMatrix, currentRotationMatrix, deltaRotationMatrix);
                 System.arraycopy(tempMatrix, 0, currentRotationMatrix, 0, 9);
 
-                for(int i=0;i<3;i++) {
-                    for(int j=0;j<3;j++) {
-                        float value = 0.0f;
-                        // tempMatrix[ij] = currentRotationMatrixGyroOnly[ik] * deltaRotationMatrix[kj]
-                        for(int k=0;k<3;k++) {
-                            value += getMatrixComponent(currentRotationMatrixGyroOnly, i, k) * getMatrixComponent(deltaRotationMatrix, k, j);
-                        }
-                        setMatrixComponent(tempMatrix, i, j, value);
-                    }
-                }
+                RotationMath.multiply(tempMatrix, currentRotationMatrixGyroOnly, deltaRotationMatrix);
                 System.arraycopy(tempMatrix, 0, currentRotationMatrixGyroOnly, 0, 9);
 
                 /*if( MyDebug.LOG ) {
@@ -375,7 +285,7 @@ public class GyroSensor implements SensorEventListener {
             timestamp = event.timestamp;
         }
         else if( event.sensor.getType() == Sensor.TYPE_ROTATION_VECTOR || event.sensor.getType() == Sensor.TYPE_GAME_ROTATION_VECTOR ) {
-            SensorManager.getRotationMatrixFromVector(tempMatrix, event.values);
+            RotationMath.rotationMatrixFromVector(tempMatrix, event.values);
 
             if( !has_original_rotation_matrix ) {
                 System.arraycopy(tempMatrix, 0, originalRotationMatrix, 0, 9);
@@ -386,16 +296,7 @@ public class GyroSensor implements SensorEventListener {
             }
 
             // current = originalT.new
-            for(int i=0;i<3;i++) {
-                for(int j=0;j<3;j++) {
-                    float value = 0.0f;
-                    // currentRotationMatrix[ij] = originalRotationMatrix[ki] * tempMatrix[kj]
-                    for(int k=0;k<3;k++) {
-                        value += getMatrixComponent(originalRotationMatrix, k, i) * getMatrixComponent(tempMatrix, k, j);
-                    }
-                    setMatrixComponent(currentRotationMatrix, i, j, value);
-                }
-            }
+            RotationMath.multiplyTransposeLeft(currentRotationMatrix, originalRotationMatrix, tempMatrix);
 
             if( MyDebug.LOG ) {
                 Log.d(TAG, "### values: " + event.values[0] + " , " + event.values[1] + " , " + event.values[2] + " , " + event.values[3]);
@@ -506,15 +407,15 @@ public class GyroSensor implements SensorEventListener {
 
     /*void getRelativeInverseVector(float [] result) {
         setVector(inVector, 0.0f, 0.0f, -1.0f); // vector pointing behind the device's screen
-        transformTransposeVector(result, currentRotationMatrix, inVector);
+        RotationMath.transformTransposeVector(result, currentRotationMatrix, inVector);
     }*/
 
     public void getRelativeInverseVector(float [] out, float [] in) {
-        transformTransposeVector(out, currentRotationMatrix, in);
+        RotationMath.transformTransposeVector(out, currentRotationMatrix, in);
     }
 
     public void getRelativeInverseVectorGyroOnly(float [] out, float [] in) {
-        transformTransposeVector(out, currentRotationMatrixGyroOnly, in);
+        RotationMath.transformTransposeVector(out, currentRotationMatrixGyroOnly, in);
     }
 
     public void getRotationMatrix(float [] out) {
@@ -0,0 +1,458 @@
+package com.example.opencameratesting.opencamera;
+
+import android.util.Log;
+
+import com.example.opencameratesting.opencamera.CameraController.JpegImage;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Handles saving images in background threads, so that the camera callbacks aren't held up by
+ *  slow storage. The queue is bounded both by the number of requests and by the total number of
+ *  bytes of image data it holds; callers should use queueWouldBlock() to check whether there is
+ *  room before taking further photos, otherwise saveImageJpeg() will block until space frees up.
+ */
+public class ImageSaver {
+	private static final String TAG = "ImageSaver";
+
+	/** Performs the actual writing of an image to storage. Called on one of the writer threads.
+	 */
+	public interface ImageWriter {
+		boolean writeImage(byte [] data, File file);
+		boolean writeImage(JpegImage jpeg_image, File file);
+	}
+
+	private static class Request {
+		final byte [] data; // exactly one of data, jpeg_image or task is non-null
+		final JpegImage jpeg_image;
+		final Runnable task; // see runWhenIdleInBackground()
+		final File file;
+		final long cost; // bytes of image data held by this request
+		final CaptureLatencyTracker.Capture capture; // token from CaptureLatencyTracker.imageQueued(), may be null
+		final long queued_time_ns;
+
+		Request(byte [] data, JpegImage jpeg_image, File file, long cost, CaptureLatencyTracker.Capture capture) {
+			this.data = data;
+			this.jpeg_image = jpeg_image;
+			this.task = null;
+			this.file = file;
+			this.cost = cost;
+			this.capture = capture;
+			this.queued_time_ns = System.nanoTime();
+		}
+
+		Request(Runnable task) {
+			this.data = null;
+			this.jpeg_image = null;
+			this.task = task;
+			this.file = null;
+			this.cost = 0;
+			this.capture = null;
+			this.queued_time_ns = System.nanoTime();
+		}
+	}
+
+	private final static long default_jpeg_cost_c = 4*1024*1024; // estimate until we've seen some real images
+	private final static int n_jpeg_cost_samples_c = 8;
+
+	private final ImageWriter writer;
+	private final int max_queue_requests;
+	private final long max_queue_bytes;
+	private final Thread [] threads;
+	private volatile CaptureLatencyTracker latency_tracker;
+
+	// the following are all guarded by "this"
+	private final ArrayDeque<Request> queue = new ArrayDeque<>();
+	private long queue_bytes;
+	private int n_in_progress; // requests taken off the queue, but not yet written
+	private int max_held_images = 1; // max number of JpegImages we may keep open, see setMaxHeldImages()
+	private int n_held_images;
+	private final long [] jpeg_cost_samples = new long[n_jpeg_cost_samples_c];
+	private int n_jpeg_cost_samples;
+	private final List<Runnable> idle_runnables = new ArrayList<>();
+	private boolean stopped;
+
+	// statistics, also guarded by "this"
+	private int max_queue_size_seen;
+	private long max_queue_bytes_seen;
+	private int n_saved;
+	private int n_failed;
+	private long total_write_time_ns;
+	private long max_write_time_ns;
+	private long total_queue_wait_ns;
+	private long total_blocked_time_ns; // time callers spent blocked in saveImageJpeg() waiting for space
+
+	/**
+	 * @param writer             Used to write the images.
+	 * @param n_threads          Number of writer threads (at least 1).
+	 * @param max_queue_requests Maximum number of images that may be waiting to be written.
+	 * @param max_queue_bytes    Maximum total size of image data that may be waiting to be written.
+	 */
+	public ImageSaver(ImageWriter writer, int n_threads, int max_queue_requests, long max_queue_bytes) {
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "ImageSaver");
+			Log.d(TAG, "n_threads: " + n_threads);
+			Log.d(TAG, "max_queue_requests: " + max_queue_requests);
+			Log.d(TAG, "max_queue_bytes: " + max_queue_bytes);
+		}
+		this.writer = writer;
+		this.max_queue_requests = Math.max(max_queue_requests, 1);
+		this.max_queue_bytes = max_queue_bytes;
+		this.threads = new Thread[Math.max(n_threads, 1)];
+		for(int i=0;i<threads.length;i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					writerLoop();
+				}
+			}, "ImageSaver-" + i);
+			threads[i].start();
+		}
+	}
+
+	/** Returns a suggested memory budget for the queue, based on the maximum heap size.
+	 */
+	public static long computeDefaultMaxQueueBytes() {
+		// allow up to a third of the heap, so that we leave room for the camera/preview and any processing
+		return Runtime.getRuntime().maxMemory()/3;
+	}
+
+	/** If set, each image queued with a token from the tracker is recorded as saved (or not) once
+	 *  its write has finished.
+	 */
+	public void setCaptureLatencyTracker(CaptureLatencyTracker latency_tracker) {
+		this.latency_tracker = latency_tracker;
+	}
+
+	/** Sets the maximum number of JpegImages that may be held open in the queue. Images are owned by
+	 *  the ImageReader, so holding more than its maxImages-1 would stop further images being
+	 *  acquired; beyond this limit, the data is copied and the image closed immediately.
+	 */
+	public synchronized void setMaxHeldImages(int max_held_images) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setMaxHeldImages: " + max_held_images);
+		this.max_held_images = max_held_images;
+	}
+
+	/** Whether adding the requested images would exceed the limits of the queue (so that the caller
+	 *  would block).
+	 * @param has_raw Whether a RAW image will also be taken. RAW images aren't saved by this class,
+	 *                but still require a slot, as they are saved alongside the JPEG.
+	 * @param n_jpegs The number of JPEG images to be taken.
+	 */
+	public synchronized boolean queueWouldBlock(boolean has_raw, int n_jpegs) {
+		int n_requests = n_jpegs + (has_raw ? 1 : 0);
+		if( queue.size() == 0 && n_in_progress == 0 ) {
+			// always allow at least one photo when idle, even if it's larger than the budget
+			return false;
+		}
+		if( queue.size() + n_in_progress + n_requests > max_queue_requests ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "queueWouldBlock: too many requests: " + queue.size() + " + " + n_in_progress + " + " + n_requests);
+			return true;
+		}
+		long cost = n_jpegs * estimateJpegCost();
+		if( queue_bytes + cost > max_queue_bytes ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "queueWouldBlock: too many bytes: " + queue_bytes + " + " + cost);
+			return true;
+		}
+		return false;
+	}
+
+	private long estimateJpegCost() {
+		if( n_jpeg_cost_samples == 0 )
+			return default_jpeg_cost_c;
+		int n = Math.min(n_jpeg_cost_samples, n_jpeg_cost_samples_c);
+		long max_cost = 0;
+		for(int i=0;i<n;i++) {
+			max_cost = Math.max(max_cost, jpeg_cost_samples[i]);
+		}
+		return max_cost;
+	}
+
+	/** Queues a JPEG to be saved. If the queue is full, this blocks until there is space.
+	 * @param capture The token from CaptureLatencyTracker.imageQueued() for this image, or null.
+	 */
+	public void saveImageJpeg(byte [] data, File file, CaptureLatencyTracker.Capture capture) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "saveImageJpeg: " + data.length + " bytes to " + file);
+		addRequest(new Request(data, null, file, data.length, capture));
+	}
+
+	/** Queues a JPEG to be saved. The image will be closed once saved (or immediately, if too many
+	 *  images are already held - in which case the data is copied first). If the queue is full,
+	 *  this blocks until there is space.
+	 * @param capture The token from CaptureLatencyTracker.imageQueued() for this image, or null.
+	 */
+	public void saveImageJpeg(JpegImage jpeg_image, File file, CaptureLatencyTracker.Capture capture) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "saveImageJpeg: " + jpeg_image.getSize() + " bytes to " + file);
+		boolean hold;
+		synchronized( this ) {
+			hold = n_held_images < max_held_images;
+			if( hold )
+				n_held_images++;
+		}
+		if( hold ) {
+			addRequest(new Request(null, jpeg_image, file, jpeg_image.getSize(), capture));
+		}
+		else {
+			if( MyDebug.LOG )
+				Log.d(TAG, "too many held images, so copy");
+			byte [] data = jpeg_image.getBytes();
+			jpeg_image.close();
+			addRequest(new Request(data, null, file, data.length, capture));
+		}
+	}
+
+	private synchronized void addRequest(Request request) {
+		long start_time_ns = System.nanoTime();
+		// block while full (but always allow a request into an empty queue, so a single image
+		// larger than the budget can't deadlock)
+		while( !stopped && queue.size() > 0 && ( queue.size() + n_in_progress >= max_queue_requests || queue_bytes + request.cost > max_queue_bytes ) ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "queue is full, wait for space");
+			try {
+				wait();
+			}
+			catch(InterruptedException e) {
+				e.printStackTrace();
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		total_blocked_time_ns += System.nanoTime() - start_time_ns;
+		jpeg_cost_samples[n_jpeg_cost_samples % n_jpeg_cost_samples_c] = request.cost;
+		n_jpeg_cost_samples++;
+		queue.add(request);
+		queue_bytes += request.cost;
+		max_queue_size_seen = Math.max(max_queue_size_seen, queue.size() + n_in_progress);
+		max_queue_bytes_seen = Math.max(max_queue_bytes_seen, queue_bytes);
+		if( MyDebug.LOG )
+			Log.d(TAG, "queue size is now: " + queue.size() + " , bytes: " + queue_bytes);
+		notifyAll();
+	}
+
+	private void writerLoop() {
+		while( true ) {
+			Request request;
+			synchronized( this ) {
+				while( queue.isEmpty() && !stopped ) {
+					try {
+						wait();
+					}
+					catch(InterruptedException e) {
+						e.printStackTrace();
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				if( queue.isEmpty() ) {
+					// stopped, and nothing left to save
+					return;
+				}
+				request = queue.poll();
+				n_in_progress++;
+			}
+
+			long write_start_ns = System.nanoTime();
+			boolean success = false;
+			List<Runnable> runnables = null;
+			try {
+				if( request.task != null ) {
+					request.task.run();
+					success = true;
+				}
+				else if( request.jpeg_image != null ) {
+					try {
+						success = writer.writeImage(request.jpeg_image, request.file);
+					}
+					finally {
+						request.jpeg_image.close();
+					}
+				}
+				else {
+					success = writer.writeImage(request.data, request.file);
+				}
+			}
+			catch(RuntimeException e) {
+				// count as a failed save rather than losing the writer thread
+				Log.e(TAG, "failed to save image: " + request.file);
+				e.printStackTrace();
+			}
+			finally {
+				// must always update the accounting, otherwise queueWouldBlock() would stay true
+				runnables = onRequestDone(request, success, write_start_ns);
+			}
+			if( runnables != null ) {
+				for(Runnable runnable : runnables) {
+					runnable.run();
+				}
+			}
+		}
+	}
+
+	/** Updates the accounting for a finished request, whether or not it was saved. Returns any
+	 *  idle runnables that should now be run (outside of the lock).
+	 */
+	private List<Runnable> onRequestDone(Request request, boolean success, long write_start_ns) {
+		long write_end_ns = System.nanoTime();
+		CaptureLatencyTracker tracker = latency_tracker;
+		if( tracker != null )
+			tracker.imageSaved(request.capture, success);
+
+		List<Runnable> runnables = null;
+		synchronized( this ) {
+			n_in_progress--;
+			queue_bytes -= request.cost;
+			if( request.jpeg_image != null )
+				n_held_images--;
+			long write_time_ns = write_end_ns - write_start_ns;
+			if( request.task == null ) {
+				if( success )
+					n_saved++;
+				else
+					n_failed++;
+				total_write_time_ns += write_time_ns;
+				max_write_time_ns = Math.max(max_write_time_ns, write_time_ns);
+				total_queue_wait_ns += write_start_ns - request.queued_time_ns;
+			}
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "saved " + request.file + " success: " + success);
+				Log.d(TAG, "write time ms: " + write_time_ns/1000000);
+				Log.d(TAG, "queue size is now: " + queue.size() + " , bytes: " + queue_bytes);
+			}
+			if( queue.isEmpty() && n_in_progress == 0 && idle_runnables.size() > 0 ) {
+				runnables = new ArrayList<>(idle_runnables);
+				idle_runnables.clear();
+			}
+			notifyAll();
+		}
+		return runnables;
+	}
+
+	/** Runs the supplied runnable once all images queued so far have been saved. If the queue is
+	 *  already empty, it is run immediately on the calling thread; otherwise it is run on a writer
+	 *  thread.
+	 */
+	public void runWhenIdle(Runnable runnable) {
+		synchronized( this ) {
+			if( !queue.isEmpty() || n_in_progress > 0 ) {
+				idle_runnables.add(runnable);
+				return;
+			}
+		}
+		runnable.run();
+	}
+
+	/** As runWhenIdle(), except that the runnable is always run on a writer thread, even if the
+	 *  queue is already empty. Use this for work that may block (e.g., syncing files), when called
+	 *  from the UI or camera thread. Runnables passed to runWhenIdle() afterwards are run after
+	 *  this one has finished.
+	 */
+	public void runWhenIdleInBackground(Runnable runnable) {
+		synchronized( this ) {
+			if( !queue.isEmpty() || n_in_progress > 0 ) {
+				idle_runnables.add(runnable);
+				return;
+			}
+			queue.add(new Request(runnable));
+			notifyAll();
+		}
+	}
+
+	/** Blocks until all queued images have been saved.
+	 */
+	public synchronized void waitUntilDone() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "waitUntilDone");
+		while( !queue.isEmpty() || n_in_progress > 0 ) {
+			try {
+				wait();
+			}
+			catch(InterruptedException e) {
+				e.printStackTrace();
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		if( MyDebug.LOG )
+			Log.d(TAG, "waitUntilDone: queue is empty");
+	}
+
+	/** Saves any remaining images, then stops the writer threads. The ImageSaver can't be used
+	 *  after this is called.
+	 */
+	public void onDestroy() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "onDestroy");
+		synchronized( this ) {
+			stopped = true;
+			notifyAll();
+		}
+		for(Thread thread : threads) {
+			try {
+				thread.join();
+			}
+			catch(InterruptedException e) {
+				e.printStackTrace();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/** Returns the number of images waiting to be saved, or currently being saved.
+	 */
+	public synchronized int getQueueSize() {
+		return queue.size() + n_in_progress;
+	}
+
+	/** Returns the number of bytes of image data waiting to be saved, or currently being saved.
+	 */
+	public synchronized long getQueueBytes() {
+		return queue_bytes;
+	}
+
+	public synchronized int getMaxQueueSizeSeen() {
+		return max_queue_size_seen;
+	}
+
+	public synchronized long getMaxQueueBytesSeen() {
+		return max_queue_bytes_seen;
+	}
+
+	public synchronized int getNSaved() {
+		return n_saved;
+	}
+
+	public synchronized int getNFailed() {
+		return n_failed;
+	}
+
+	/** Returns the mean time to write an image, in milliseconds.
+	 */
+	public synchronized double getMeanWriteTimeMs() {
+		int n = n_saved + n_failed;
+		return n == 0 ? 0.0 : total_write_time_ns/(1000000.0*n);
+	}
+
+	public synchronized double getMaxWriteTimeMs() {
+		return max_write_time_ns/1000000.0;
+	}
+
+	/** Returns the mean time an image spent waiting in the queue before being written, in milliseconds.
+	 */
+	public synchronized double getMeanQueueWaitTimeMs() {
+		int n = n_saved + n_failed;
+		return n == 0 ? 0.0 : total_queue_wait_ns/(1000000.0*n);
+	}
+
+	/** Returns the total time callers have spent blocked waiting for space in the queue, in milliseconds.
+	 */
+	public synchronized double getTotalBlockedTimeMs() {
+		return total_blocked_time_ns/1000000.0;
+	}
+}
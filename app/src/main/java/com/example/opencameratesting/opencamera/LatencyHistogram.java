@@ -0,0 +1,97 @@
+package com.example.opencameratesting.opencamera;
+
+/** A fixed-size histogram of latencies in milliseconds, for computing percentiles without
+ *  storing every sample.
+ *  Values below 64ms are recorded exactly; above that, each power of two is split into 32
+ *  buckets, so percentiles are accurate to within about 3%.
+ *  Not thread safe - callers should synchronize.
+ */
+public class LatencyHistogram {
+	private final static int n_exact_c = 64; // values below this have their own bucket
+	private final static int sub_bits_c = 5; // 2^sub_bits_c buckets per power of two above n_exact_c
+	private final static int n_sub_c = 1 << sub_bits_c;
+	private final static int first_exp_c = 6; // log2(n_exact_c)
+	private final static int max_exp_c = 31; // values of 2^max_exp_c ms or more go in the last bucket
+
+	private final long [] counts = new long[n_exact_c + (max_exp_c-first_exp_c)*n_sub_c];
+	private long n_samples;
+	private long total_ms;
+	private long min_ms = Long.MAX_VALUE;
+	private long max_ms;
+
+	private static int getBucket(long value_ms) {
+		if( value_ms < n_exact_c )
+			return (int)value_ms;
+		int exp = 63 - Long.numberOfLeadingZeros(value_ms);
+		if( exp >= max_exp_c )
+			return n_exact_c + (max_exp_c-first_exp_c)*n_sub_c - 1;
+		int sub = (int)(value_ms >>> (exp-sub_bits_c)) & (n_sub_c-1);
+		return n_exact_c + (exp-first_exp_c)*n_sub_c + sub;
+	}
+
+	/** Returns the smallest value that is recorded in the supplied bucket.
+	 */
+	private static long getBucketStart(int bucket) {
+		if( bucket < n_exact_c )
+			return bucket;
+		int exp = (bucket - n_exact_c)/n_sub_c + first_exp_c;
+		int sub = (bucket - n_exact_c) % n_sub_c;
+		return (1L << exp) + ((long)sub << (exp-sub_bits_c));
+	}
+
+	public void record(long value_ms) {
+		if( value_ms < 0 )
+			value_ms = 0;
+		counts[getBucket(value_ms)]++;
+		n_samples++;
+		total_ms += value_ms;
+		min_ms = Math.min(min_ms, value_ms);
+		max_ms = Math.max(max_ms, value_ms);
+	}
+
+	public void reset() {
+		for(int i=0;i<counts.length;i++) {
+			counts[i] = 0;
+		}
+		n_samples = 0;
+		total_ms = 0;
+		min_ms = Long.MAX_VALUE;
+		max_ms = 0;
+	}
+
+	public long getCount() {
+		return n_samples;
+	}
+
+	public long getMinMs() {
+		return n_samples == 0 ? 0 : min_ms;
+	}
+
+	public long getMaxMs() {
+		return max_ms;
+	}
+
+	public double getMeanMs() {
+		return n_samples == 0 ? 0.0 : total_ms/(double)n_samples;
+	}
+
+	/** Returns the value at the given percentile (0 to 100), or 0 if there are no samples.
+	 *  The result is the start of the bucket containing the percentile, clamped to the recorded
+	 *  minimum and maximum.
+	 */
+	public long getPercentileMs(double percentile) {
+		if( n_samples == 0 )
+			return 0;
+		long rank = (long)Math.ceil(percentile/100.0 * n_samples);
+		rank = Math.max(1, Math.min(n_samples, rank));
+		long seen = 0;
+		for(int i=0;i<counts.length;i++) {
+			seen += counts[i];
+			if( seen >= rank ) {
+				long value = getBucketStart(i);
+				return Math.max(min_ms, Math.min(max_ms, value));
+			}
+		}
+		return max_ms;
+	}
+}
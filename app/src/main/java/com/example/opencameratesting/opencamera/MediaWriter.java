@@ -0,0 +1,337 @@
+package com.example.opencameratesting.opencamera;
+
+import android.util.Log;
+
+import com.example.opencameratesting.opencamera.CameraController.JpegImage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Writes captured media to storage atomically: data is written to a temporary file in the same
+ *  directory, which is then renamed to the final name, so that a crash or power loss mid-write
+ *  never leaves a truncated file under the final name.
+ *  How much is flushed to the storage device is controlled by the DurabilityPolicy. For bursts,
+ *  callers can wrap the writes in beginBatch()/endBatch(), so that with SYNC_PER_BURST the files
+ *  are synced and renamed together, with a single directory sync. If the same file is written
+ *  more than once in a batch, the last write wins.
+ */
+public class MediaWriter {
+	private static final String TAG = "MediaWriter";
+
+	public enum DurabilityPolicy {
+		SYNC_PER_FILE, // each file is synced (and its directory) before write() returns
+		SYNC_PER_BURST, // as SYNC_PER_FILE, except that files written inside beginBatch()/endBatch() are synced together in endBatch()
+		NONE // files are still renamed atomically, but left for the OS to flush
+	}
+
+	/** Supplies the data to be written.
+	 */
+	public interface Source {
+		void writeTo(FileChannel channel) throws IOException;
+	}
+
+	private static class PendingFile {
+		final File temp_file;
+		final File file;
+
+		PendingFile(File temp_file, File file) {
+			this.temp_file = temp_file;
+			this.file = file;
+		}
+	}
+
+	private volatile DurabilityPolicy policy;
+
+	// the following are guarded by "this"
+	private int batch_depth; // nesting count of beginBatch() calls
+	private final List<PendingFile> pending_files = new ArrayList<>(); // files written in the current batch, not yet synced or renamed
+
+	// statistics, guarded by "this":
+	private int n_files;
+	private int n_failed;
+	private long total_write_time_ns;
+	private long max_write_time_ns;
+	private long last_write_time_ns;
+	private int n_syncs;
+	private long total_sync_time_ns;
+	private long max_sync_time_ns;
+	private long last_sync_time_ns;
+	private int n_dir_syncs;
+
+	public MediaWriter(DurabilityPolicy policy) {
+		this.policy = policy;
+	}
+
+	public void setDurabilityPolicy(DurabilityPolicy policy) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "setDurabilityPolicy: " + policy);
+		this.policy = policy;
+	}
+
+	public DurabilityPolicy getDurabilityPolicy() {
+		return policy;
+	}
+
+	public static Source bytesSource(final byte [] data) {
+		return new Source() {
+			@Override
+			public void writeTo(FileChannel channel) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				while( buffer.hasRemaining() ) {
+					channel.write(buffer);
+				}
+			}
+		};
+	}
+
+	public static Source jpegImageSource(final JpegImage jpeg_image) {
+		return new Source() {
+			@Override
+			public void writeTo(FileChannel channel) throws IOException {
+				jpeg_image.writeImage(channel);
+			}
+		};
+	}
+
+	/** Returns a new, empty, temporary file for writing the supplied file. Each call returns a
+	 *  different file, so writes of the same file in a batch don't overwrite each other's data
+	 *  before they are renamed.
+	 */
+	private static File createTempFile(File file) throws IOException {
+		// keep in the same directory, so the rename is atomic
+		return File.createTempFile("." + file.getName() + ".", ".tmp", file.getParentFile());
+	}
+
+	/** Marks the start of a group of writes (e.g., a burst). Calls may be nested; the batch ends
+	 *  with the matching outermost endBatch().
+	 */
+	public synchronized void beginBatch() {
+		batch_depth++;
+		if( MyDebug.LOG )
+			Log.d(TAG, "beginBatch: " + batch_depth);
+	}
+
+	/** Ends a batch started with beginBatch(). At the end of the outermost batch, any files whose
+	 *  sync was deferred are synced and renamed to their final names.
+	 */
+	public void endBatch() throws IOException {
+		List<PendingFile> files;
+		synchronized( this ) {
+			if( batch_depth == 0 ) {
+				Log.e(TAG, "endBatch called without beginBatch");
+				return;
+			}
+			batch_depth--;
+			if( MyDebug.LOG )
+				Log.d(TAG, "endBatch: " + batch_depth);
+			if( batch_depth > 0 || pending_files.isEmpty() )
+				return;
+			files = new ArrayList<>(pending_files);
+			pending_files.clear();
+		}
+		commit(files);
+	}
+
+	/** Writes a file. Depending on the durability policy and whether a batch is in progress, the
+	 *  file may not appear under its final name until endBatch() is called.
+	 */
+	public void write(File file, Source source) throws IOException {
+		if( MyDebug.LOG )
+			Log.d(TAG, "write: " + file);
+		File temp_file = createTempFile(file);
+		boolean defer;
+		synchronized( this ) {
+			defer = batch_depth > 0 && policy == DurabilityPolicy.SYNC_PER_BURST;
+		}
+		boolean sync = !defer && policy != DurabilityPolicy.NONE;
+
+		long write_start_ns = System.nanoTime();
+		long sync_time_ns = 0;
+		try {
+			FileOutputStream output = new FileOutputStream(temp_file);
+			try {
+				FileChannel channel = output.getChannel();
+				source.writeTo(channel);
+				if( sync ) {
+					long sync_start_ns = System.nanoTime();
+					channel.force(true);
+					sync_time_ns = System.nanoTime() - sync_start_ns;
+				}
+			}
+			finally {
+				output.close();
+			}
+		}
+		catch(IOException e) {
+			//noinspection ResultOfMethodCallIgnored
+			temp_file.delete();
+			synchronized( this ) {
+				n_failed++;
+			}
+			throw e;
+		}
+		long write_time_ns = System.nanoTime() - write_start_ns - sync_time_ns;
+
+		List<PendingFile> superseded = new ArrayList<>();
+		synchronized( this ) {
+			n_files++;
+			last_write_time_ns = write_time_ns;
+			total_write_time_ns += write_time_ns;
+			max_write_time_ns = Math.max(max_write_time_ns, write_time_ns);
+			if( sync )
+				recordSync(sync_time_ns);
+			// an earlier write of the same file in this batch is replaced by this one
+			for(int i=pending_files.size()-1;i>=0;i--) {
+				if( pending_files.get(i).file.equals(file) ) {
+					superseded.add(pending_files.remove(i));
+				}
+			}
+			if( defer ) {
+				pending_files.add(new PendingFile(temp_file, file));
+			}
+		}
+		for(PendingFile pending_file : superseded) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "superseded earlier write of: " + pending_file.file);
+			//noinspection ResultOfMethodCallIgnored
+			pending_file.temp_file.delete();
+		}
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "write time ms: " + write_time_ns/1000000);
+			Log.d(TAG, "sync time ms: " + sync_time_ns/1000000);
+		}
+
+		if( !defer ) {
+			rename(temp_file, file);
+			if( sync )
+				syncDirectory(file.getParentFile());
+		}
+	}
+
+	/** Syncs and renames the supplied files, then syncs each directory once.
+	 */
+	private void commit(List<PendingFile> files) throws IOException {
+		if( MyDebug.LOG )
+			Log.d(TAG, "commit " + files.size() + " files");
+		IOException exception = null;
+		Set<File> dirs = new HashSet<>();
+		for(PendingFile pending_file : files) {
+			try {
+				long sync_start_ns = System.nanoTime();
+				FileChannel channel = FileChannel.open(pending_file.temp_file.toPath(), StandardOpenOption.WRITE);
+				try {
+					channel.force(true);
+				}
+				finally {
+					channel.close();
+				}
+				long sync_time_ns = System.nanoTime() - sync_start_ns;
+				synchronized( this ) {
+					recordSync(sync_time_ns);
+				}
+				rename(pending_file.temp_file, pending_file.file);
+				dirs.add(pending_file.file.getParentFile());
+			}
+			catch(IOException e) {
+				// carry on with the other files, but report the first failure
+				e.printStackTrace();
+				if( exception == null )
+					exception = e;
+			}
+		}
+		for(File dir : dirs) {
+			syncDirectory(dir);
+		}
+		if( exception != null )
+			throw exception;
+	}
+
+	private static void rename(File temp_file, File file) throws IOException {
+		Files.move(temp_file.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/** Syncs the directory entry, so that the rename itself is durable.
+	 */
+	private void syncDirectory(File dir) {
+		if( dir == null )
+			return;
+		try {
+			FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			}
+			finally {
+				channel.close();
+			}
+			synchronized( this ) {
+				n_dir_syncs++;
+			}
+		}
+		catch(IOException e) {
+			// not supported by all filesystems, so not treated as a failure
+			if( MyDebug.LOG )
+				Log.d(TAG, "failed to sync directory: " + dir + " : " + e.getMessage());
+		}
+	}
+
+	private void recordSync(long sync_time_ns) {
+		n_syncs++;
+		last_sync_time_ns = sync_time_ns;
+		total_sync_time_ns += sync_time_ns;
+		max_sync_time_ns = Math.max(max_sync_time_ns, sync_time_ns);
+	}
+
+	public synchronized int getNFiles() {
+		return n_files;
+	}
+
+	public synchronized int getNFailed() {
+		return n_failed;
+	}
+
+	public synchronized int getNSyncs() {
+		return n_syncs;
+	}
+
+	public synchronized int getNDirectorySyncs() {
+		return n_dir_syncs;
+	}
+
+	/** Time taken to write the last file, in milliseconds (excluding any sync).
+	 */
+	public synchronized double getLastWriteTimeMs() {
+		return last_write_time_ns/1000000.0;
+	}
+
+	public synchronized double getMeanWriteTimeMs() {
+		return n_files == 0 ? 0.0 : total_write_time_ns/(1000000.0*n_files);
+	}
+
+	public synchronized double getMaxWriteTimeMs() {
+		return max_write_time_ns/1000000.0;
+	}
+
+	/** Time taken by the last file sync, in milliseconds.
+	 */
+	public synchronized double getLastSyncTimeMs() {
+		return last_sync_time_ns/1000000.0;
+	}
+
+	public synchronized double getMeanSyncTimeMs() {
+		return n_syncs == 0 ? 0.0 : total_sync_time_ns/(1000000.0*n_syncs);
+	}
+
+	public synchronized double getMaxSyncTimeMs() {
+		return max_sync_time_ns/1000000.0;
+	}
+}
@@ -0,0 +1,782 @@
+package com.example.opencameratesting.opencamera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.opencameratesting.core.DroProcessor;
+import com.example.opencameratesting.core.HdrMerger;
+import com.example.opencameratesting.core.JpegExif;
+import com.example.opencameratesting.core.NoiseReductionMerger;
+import com.example.opencameratesting.core.PanoramaStitcher;
+import com.example.opencameratesting.core.RotationMath;
+import com.example.opencameratesting.opencamera.CameraController.ImageBuffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Creates photos in the background by combining or modifying the images from the camera, such
+ *  as merging the burst for noise reduction, or the expo bracketed images for HDR, tone mapping
+ *  a single image for DRO, or stitching a panorama. Jobs run one at a time, in the order they were
+ *  submitted, and results are passed back on the UI thread.
+ *  The algorithms themselves are in camera-core, working on ARGB pixel arrays; this class decodes
+ *  and encodes the JPEGs, reusing the Bitmap and pixel arrays between photos of the same size,
+ *  and keeps the Exif data of the original images.
+ *  Images queued for processing, and the photos still to be created from them, count towards how
+ *  much the application has outstanding: callers should check queueWouldBlock() before taking
+ *  further photos.
+ */
+public class PhotoProcessor {
+	private static final String TAG = "PhotoProcessor";
+
+	private final static long max_panorama_canvas_bytes_c = 64*1024*1024;
+	private final static float panorama_angle_c = (float)(2.0*Math.PI); // total angle the panorama canvas covers
+	private final static long max_destroy_wait_ms_c = 10000; // how long onDestroy() waits for outstanding jobs
+	private final static long max_pending_bytes_c = 64*1024*1024; // image data that may be held by jobs waiting to run
+	private final static int max_pending_results_c = 2; // photos that may be waiting to be created
+
+	public interface ResultCallback {
+		/** Called on the UI thread with the processed JPEG, or null if processing failed. For jobs
+		 *  still outstanding when onDestroy() is called, this is instead called on the background
+		 *  thread, before onDestroy() returns.
+		 */
+		void onResult(byte [] jpeg);
+	}
+
+	private final ExecutorService executor;
+	private final Handler main_handler = new Handler(Looper.getMainLooper());
+	private volatile boolean destroyed;
+	private final AtomicInteger n_pending_jobs = new AtomicInteger(); // jobs submitted with submit() that haven't finished
+	private final AtomicInteger n_pending_results = new AtomicInteger(); // of those, the ones that will create a photo
+	private final AtomicLong pending_bytes = new AtomicLong(); // image data held by those jobs
+
+	// only accessed on the background thread:
+	private Bitmap bitmap; // reused for decoding and encoding
+	private int [] pixels; // pixels of bitmap
+	private NoiseReductionMerger nr_merger;
+	private byte [] nr_exif; // Exif segment of the first image of the noise reduction burst
+	private boolean nr_failed; // whether the current noise reduction burst has failed
+	private HdrMerger hdr_merger;
+	private int [][] hdr_pixels; // pixels of each of the expo bracketed images
+	private DroProcessor dro_processor;
+	private PanoramaStitcher panorama_stitcher;
+	private int panorama_sample_size; // the panorama frames are decoded at a reduced size, to limit the size of the canvas
+	private boolean panorama_failed;
+	private final float [] panorama_camera_matrix = new float[9];
+	private final float [] panorama_orientation = new float[9];
+
+	// statistics:
+	private volatile long last_process_time_ms; // for the last photo, time spent processing its images
+
+	public PhotoProcessor() {
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "PhotoProcessor");
+				thread.setPriority(Thread.NORM_PRIORITY - 1); // keep the UI responsive
+				return thread;
+			}
+		});
+	}
+
+	/** Starts a new noise reduction burst.
+	 */
+	public void startNoiseReduction() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "startNoiseReduction");
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if( nr_merger != null )
+					nr_merger.reset();
+				nr_exif = null;
+				nr_failed = false;
+				last_process_time_ms = 0;
+			}
+		});
+	}
+
+	/** Merges an image into the current noise reduction burst. The image is released once it's
+	 *  been decoded. Images after NoiseReductionMerger.MAX_FRAMES are ignored.
+	 */
+	public void addNoiseReductionFrame(final ImageBuffer image) {
+		submit(image.getLength(), false, new Runnable() {
+			@Override
+			public void run() {
+				long time_s = System.currentTimeMillis();
+				try {
+					if( nr_failed )
+						return;
+					if( nr_merger != null && nr_merger.getNFrames() == NoiseReductionMerger.MAX_FRAMES ) {
+						if( MyDebug.LOG )
+							Log.d(TAG, "ignoring noise reduction image, already have max frames");
+						return;
+					}
+					if( !decode(image.getData(), image.getLength()) ) {
+						Log.e(TAG, "failed to decode noise reduction image");
+						nr_failed = true;
+						return;
+					}
+					int width = bitmap.getWidth();
+					int height = bitmap.getHeight();
+					if( nr_merger == null || nr_merger.getWidth() != width || nr_merger.getHeight() != height ) {
+						if( nr_merger != null && nr_merger.getNFrames() > 0 ) {
+							Log.e(TAG, "noise reduction image has different size: " + width + " x " + height);
+							return;
+						}
+						nr_merger = null; // allow the old merger to be freed first
+						nr_merger = new NoiseReductionMerger(width, height);
+					}
+					if( nr_merger.getNFrames() == 0 ) {
+						nr_exif = JpegExif.getExifSegment(image.getData(), image.getLength());
+					}
+					nr_merger.addFrame(pixels);
+					if( MyDebug.LOG ) {
+						Log.d(TAG, "merged noise reduction image " + nr_merger.getNFrames());
+						Log.d(TAG, "global offset: " + nr_merger.getGlobalOffsetX() + " , " + nr_merger.getGlobalOffsetY());
+						Log.d(TAG, "noise level: " + nr_merger.getNoiseLevel());
+					}
+				}
+				catch(OutOfMemoryError e) {
+					Log.e(TAG, "out of memory merging noise reduction image");
+					e.printStackTrace();
+					freeMemory();
+					nr_failed = true;
+				}
+				finally {
+					image.release();
+					last_process_time_ms += System.currentTimeMillis() - time_s;
+				}
+			}
+		});
+	}
+
+	/** Finishes the current noise reduction burst, passing the merged JPEG to the callback.
+	 */
+	public void finishNoiseReduction(final int jpeg_quality, final ResultCallback callback) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "finishNoiseReduction");
+		submit(0, true, new Runnable() {
+			@Override
+			public void run() {
+				long time_s = System.currentTimeMillis();
+				byte [] jpeg = null;
+				if( !nr_failed && nr_merger != null && nr_merger.getNFrames() > 0 ) {
+					try {
+						nr_merger.getResult(pixels);
+						jpeg = encode(pixels, jpeg_quality, nr_exif);
+					}
+					catch(OutOfMemoryError e) {
+						Log.e(TAG, "out of memory encoding noise reduction image");
+						e.printStackTrace();
+						freeMemory();
+					}
+				}
+				last_process_time_ms += System.currentTimeMillis() - time_s;
+				if( MyDebug.LOG )
+					Log.d(TAG, "noise reduction processing time: " + last_process_time_ms);
+				postResult(callback, jpeg);
+			}
+		});
+	}
+
+	/** Merges a set of expo bracketed images into a single HDR image, passing the JPEG to the
+	 *  callback. The images are released once they've been merged.
+	 *  All the images are decoded at once, so this needs about (n_images + 1)*width*height*4 bytes
+	 *  of heap (the pixels of each image, and the bitmap), plus the encoded JPEG. If the heap
+	 *  doesn't have room for that, the base exposure image is passed to the callback unchanged.
+	 * @param images The images, in order of increasing exposure, with the base exposure in the
+	 *               middle (as for CameraController.BurstType.BURSTTYPE_EXPO).
+	 * @param stops  The exposure difference in stops between the base and the darkest and
+	 *               brightest images; only used if the exposures can't be read from the Exif data.
+	 */
+	public void processHdr(final List<ImageBuffer> images, final double stops, final int jpeg_quality, final ResultCallback callback) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "processHdr: " + images.size());
+		long bytes = 0;
+		for(ImageBuffer image : images) {
+			bytes += image.getLength();
+		}
+		submit(bytes, true, new Runnable() {
+			@Override
+			public void run() {
+				long time_s = System.currentTimeMillis();
+				byte [] jpeg = null;
+				try {
+					jpeg = mergeHdr(images, stops, jpeg_quality);
+				}
+				catch(OutOfMemoryError e) {
+					Log.e(TAG, "out of memory merging hdr images");
+					e.printStackTrace();
+					freeMemory();
+				}
+				finally {
+					for(ImageBuffer image : images) {
+						image.release();
+					}
+				}
+				last_process_time_ms = System.currentTimeMillis() - time_s;
+				if( MyDebug.LOG )
+					Log.d(TAG, "hdr processing time: " + last_process_time_ms);
+				postResult(callback, jpeg);
+			}
+		});
+	}
+
+	private byte [] mergeHdr(List<ImageBuffer> images, double stops, int jpeg_quality) {
+		int n_images = images.size();
+		if( n_images == 0 )
+			return null;
+		if( hdr_pixels == null || hdr_pixels.length != n_images ) {
+			hdr_pixels = null;
+			hdr_pixels = new int[n_images][];
+		}
+		if( !hasMemoryForHdr(images) ) {
+			ImageBuffer base_image = images.get(n_images/2);
+			Log.e(TAG, "not enough memory for hdr, saving the base image instead");
+			return Arrays.copyOf(base_image.getData(), base_image.getLength());
+		}
+		double [] exposures = new double[n_images];
+		boolean have_exposures = true;
+		int width = 0, height = 0;
+		for(int i=0;i<n_images;i++) {
+			ImageBuffer image = images.get(i);
+			if( !decodeBitmap(image.getData(), image.getLength()) ) {
+				Log.e(TAG, "failed to decode hdr image " + i);
+				return null;
+			}
+			if( i == 0 ) {
+				width = bitmap.getWidth();
+				height = bitmap.getHeight();
+			}
+			else if( bitmap.getWidth() != width || bitmap.getHeight() != height ) {
+				Log.e(TAG, "hdr image has different size: " + bitmap.getWidth() + " x " + bitmap.getHeight());
+				return null;
+			}
+			if( hdr_pixels[i] == null || hdr_pixels[i].length != width*height ) {
+				hdr_pixels[i] = null;
+				hdr_pixels[i] = new int[width*height];
+			}
+			bitmap.getPixels(hdr_pixels[i], 0, width, 0, 0, width, height);
+			exposures[i] = getExifExposure(image.getData(), image.getLength());
+			if( exposures[i] <= 0.0 )
+				have_exposures = false;
+		}
+		if( !have_exposures ) {
+			// assume the requested exposures, as set up by CameraController
+			int n_half = n_images/2;
+			for(int i=0;i<n_images;i++) {
+				exposures[i] = n_half == 0 ? 1.0 : Math.pow(2.0, stops*(i - n_half)/n_half);
+			}
+		}
+		if( MyDebug.LOG ) {
+			for(int i=0;i<n_images;i++) {
+				Log.d(TAG, "hdr image " + i + " exposure: " + exposures[i] + (have_exposures ? "" : " (from stops)"));
+			}
+		}
+		if( hdr_merger == null || hdr_merger.getWidth() != width || hdr_merger.getHeight() != height ) {
+			hdr_merger = new HdrMerger(width, height);
+		}
+		// write the result over the base image, to save memory
+		int base = n_images/2;
+		hdr_merger.process(hdr_pixels, exposures, hdr_pixels[base]);
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "log average luminance: " + hdr_merger.getLogAverageLuminance());
+			Log.d(TAG, "white luminance: " + hdr_merger.getWhiteLuminance());
+		}
+		ImageBuffer base_image = images.get(base);
+		return encode(hdr_pixels[base], jpeg_quality, JpegExif.getExifSegment(base_image.getData(), base_image.getLength()));
+	}
+
+	/** Returns whether there's enough heap to merge the images, as described for processHdr(). Frees
+	 *  the arrays kept from earlier photos if that's what it takes.
+	 */
+	private boolean hasMemoryForHdr(List<ImageBuffer> images) {
+		ImageBuffer image = images.get(0);
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(image.getData(), 0, image.getLength(), options);
+		if( options.outWidth <= 0 || options.outHeight <= 0 ) {
+			return true; // will fail to decode anyway
+		}
+		long image_bytes = 4L*options.outWidth*options.outHeight;
+		long required = (images.size() + 1)*image_bytes + image_bytes/8; // the JPEG is typically much smaller than the pixels
+		// arrays and bitmap of the same size are reused rather than allocated again, and any others
+		// kept from earlier photos can be freed
+		long reused = 0, cached = 0;
+		if( hdr_pixels != null ) {
+			for(int [] array : hdr_pixels) {
+				if( array == null )
+					continue;
+				cached += 4L*array.length;
+				if( hdr_pixels.length == images.size() && 4L*array.length == image_bytes )
+					reused += image_bytes;
+			}
+		}
+		if( bitmap != null ) {
+			long bitmap_bytes = 4L*bitmap.getWidth()*bitmap.getHeight();
+			cached += bitmap_bytes;
+			if( bitmap_bytes == image_bytes )
+				reused += image_bytes;
+		}
+		if( pixels != null )
+			cached += 4L*pixels.length;
+		long available = getAvailableMemory();
+		if( MyDebug.LOG )
+			Log.d(TAG, "hdr needs " + required + " bytes, reusing " + reused + ", available " + available + ", cached " + cached);
+		if( available >= required - reused )
+			return true;
+		if( available + cached >= required ) {
+			freeMemory();
+			return true;
+		}
+		return false;
+	}
+
+	/** Returns how much more the heap can hold.
+	 */
+	private static long getAvailableMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+	}
+
+	/** Returns the exposure of a JPEG (exposure time multiplied by ISO) from its Exif data, or -1 if
+	 *  not available.
+	 */
+	private static double getExifExposure(byte [] data, int length) {
+		try {
+			ExifInterface exif = new ExifInterface(new ByteArrayInputStream(data, 0, length));
+			double exposure_time = exif.getAttributeDouble(ExifInterface.TAG_EXPOSURE_TIME, -1.0);
+			int iso = exif.getAttributeInt(ExifInterface.TAG_ISO_SPEED_RATINGS, -1);
+			if( exposure_time <= 0.0 || iso <= 0 )
+				return -1.0;
+			return exposure_time*iso;
+		}
+		catch(IOException e) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "failed to read exif: " + e.getMessage());
+			return -1.0;
+		}
+	}
+
+	/** Applies dynamic range optimisation to an image, passing the JPEG to the callback. The image
+	 *  is released once it's been decoded.
+	 */
+	public void processDro(final ImageBuffer image, final int jpeg_quality, final ResultCallback callback) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "processDro");
+		submit(image.getLength(), true, new Runnable() {
+			@Override
+			public void run() {
+				long time_s = System.currentTimeMillis();
+				byte [] jpeg = null;
+				try {
+					if( decode(image.getData(), image.getLength()) ) {
+						int width = bitmap.getWidth();
+						int height = bitmap.getHeight();
+						if( dro_processor == null || dro_processor.getWidth() != width || dro_processor.getHeight() != height ) {
+							dro_processor = null; // allow the old processor to be freed first
+							dro_processor = new DroProcessor(width, height);
+						}
+						dro_processor.process(pixels);
+						jpeg = encode(pixels, jpeg_quality, JpegExif.getExifSegment(image.getData(), image.getLength()));
+					}
+					else {
+						Log.e(TAG, "failed to decode dro image");
+					}
+				}
+				catch(OutOfMemoryError e) {
+					Log.e(TAG, "out of memory processing dro image");
+					e.printStackTrace();
+					freeMemory();
+				}
+				finally {
+					image.release();
+				}
+				last_process_time_ms = System.currentTimeMillis() - time_s;
+				if( MyDebug.LOG )
+					Log.d(TAG, "dro processing time: " + last_process_time_ms);
+				postResult(callback, jpeg);
+			}
+		});
+	}
+
+	/** Starts a new panorama.
+	 */
+	public void startPanorama() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "startPanorama");
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if( panorama_stitcher != null )
+					panorama_stitcher.reset();
+				panorama_failed = false;
+				last_process_time_ms = 0;
+			}
+		});
+	}
+
+	/** Adds an image to the current panorama. The image is released once it's been decoded.
+	 * @param device_orientation The rotation matrix of the device when the image was captured (as
+	 *                           from GyroSensor.getRotationMatrix()).
+	 * @param camera_orientation The orientation of the camera sensor relative to the device, in
+	 *                           degrees (see CameraController.getCameraOrientation()).
+	 * @param view_angle_x       The horizontal view angle of the image as stored (before applying
+	 *                           its Exif orientation), in degrees.
+	 */
+	public void addPanoramaFrame(final ImageBuffer image, final float [] device_orientation, final int camera_orientation, final float view_angle_x) {
+		submit(image.getLength(), false, new Runnable() {
+			@Override
+			public void run() {
+				long time_s = System.currentTimeMillis();
+				try {
+					if( panorama_failed )
+						return;
+					addPanoramaFrame(image.getData(), image.getLength(), device_orientation, camera_orientation, view_angle_x);
+				}
+				catch(OutOfMemoryError e) {
+					Log.e(TAG, "out of memory adding panorama image");
+					e.printStackTrace();
+					freeMemory();
+					panorama_failed = true;
+				}
+				finally {
+					image.release();
+					last_process_time_ms += System.currentTimeMillis() - time_s;
+				}
+			}
+		});
+	}
+
+	private void addPanoramaFrame(byte [] data, int length, float [] device_orientation, int camera_orientation, float view_angle_x) {
+		int n_frames = panorama_stitcher == null ? 0 : panorama_stitcher.getNFrames();
+		if( n_frames == 0 ) {
+			// choose the size for this panorama from its first image
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeByteArray(data, 0, length, options);
+			if( options.outWidth <= 0 || options.outHeight <= 0 ) {
+				Log.e(TAG, "failed to decode panorama image size");
+				panorama_failed = true;
+				return;
+			}
+			float focal_length = getFocalLength(options.outWidth, view_angle_x);
+			panorama_sample_size = 1;
+			while( PanoramaStitcher.getCanvasBytes(options.outWidth/panorama_sample_size, options.outHeight/panorama_sample_size, focal_length/panorama_sample_size, 0.0f, panorama_angle_c) > max_panorama_canvas_bytes_c ) {
+				panorama_sample_size *= 2;
+			}
+		}
+		if( !decodeBitmap(data, length, panorama_sample_size) ) {
+			Log.e(TAG, "failed to decode panorama image");
+			panorama_failed = true;
+			return;
+		}
+		int stored_width = bitmap.getWidth();
+		int stored_height = bitmap.getHeight();
+		int rotation = ThumbnailDecoder.getExifRotation(data, length);
+		boolean swap = rotation == 90 || rotation == 270;
+		int width = swap ? stored_height : stored_width;
+		int height = swap ? stored_width : stored_height;
+		if( panorama_stitcher == null || n_frames == 0 ) {
+			float focal_length = getFocalLength(stored_width, view_angle_x);
+			// allow for panning left or right, though most of the canvas is to the right
+			float min_angle = -(float)Math.atan(0.5*width/focal_length) - 0.1f;
+			if( panorama_stitcher == null || panorama_stitcher.getFrameWidth() != width || panorama_stitcher.getFrameHeight() != height ) {
+				panorama_stitcher = null; // allow the old canvas to be freed first
+				panorama_stitcher = new PanoramaStitcher(width, height, focal_length, min_angle, min_angle + panorama_angle_c);
+			}
+		}
+		else if( panorama_stitcher.getFrameWidth() != width || panorama_stitcher.getFrameHeight() != height ) {
+			Log.e(TAG, "panorama image has different size: " + width + " x " + height);
+			return;
+		}
+		if( pixels == null || pixels.length != stored_width*stored_height ) {
+			pixels = null;
+			pixels = new int[stored_width*stored_height];
+		}
+		bitmap.getPixels(pixels, 0, stored_width, 0, 0, stored_width, stored_height);
+
+		// the upright image's axes in the device's coordinates, from the rotation of the device
+		// relative to the sensor: x is (cos, -sin), and y is (sin, cos)
+		double angle = Math.toRadians(camera_orientation - rotation);
+		float cos_angle = (float)Math.cos(angle), sin_angle = (float)Math.sin(angle);
+		panorama_camera_matrix[0] = cos_angle; panorama_camera_matrix[1] = sin_angle; panorama_camera_matrix[2] = 0.0f;
+		panorama_camera_matrix[3] = -sin_angle; panorama_camera_matrix[4] = cos_angle; panorama_camera_matrix[5] = 0.0f;
+		panorama_camera_matrix[6] = 0.0f; panorama_camera_matrix[7] = 0.0f; panorama_camera_matrix[8] = 1.0f;
+		RotationMath.multiply(panorama_orientation, device_orientation, panorama_camera_matrix);
+		if( !panorama_stitcher.addFrame(pixels, rotation, panorama_orientation) ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "panorama image doesn't fit on the canvas");
+		}
+		else if( MyDebug.LOG ) {
+			Log.d(TAG, "added panorama image " + panorama_stitcher.getNFrames());
+		}
+	}
+
+	/** Abandons the current panorama, freeing its canvas.
+	 */
+	public void cancelPanorama() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "cancelPanorama");
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				panorama_stitcher = null;
+				panorama_failed = false;
+			}
+		});
+	}
+
+	/** Returns the focal length in pixels for an image of the supplied width and horizontal view
+	 *  angle (in degrees).
+	 */
+	private static float getFocalLength(int width, float view_angle_x) {
+		return (float)(0.5*width/Math.tan(Math.toRadians(0.5*view_angle_x)));
+	}
+
+	/** Finishes the current panorama, passing the JPEG (cropped to the area covered by the images)
+	 *  to the callback.
+	 */
+	public void finishPanorama(final int jpeg_quality, final ResultCallback callback) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "finishPanorama");
+		submit(0, true, new Runnable() {
+			@Override
+			public void run() {
+				long time_s = System.currentTimeMillis();
+				byte [] jpeg = null;
+				int [] crop = !panorama_failed && panorama_stitcher != null ? panorama_stitcher.getCrop() : null;
+				if( crop != null ) {
+					try {
+						int width = crop[2] - crop[0];
+						int height = crop[3] - crop[1];
+						if( bitmap != null )
+							bitmap.recycle();
+						bitmap = null;
+						bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+						bitmap.setPixels(panorama_stitcher.getCanvas(), crop[1]*panorama_stitcher.getCanvasWidth() + crop[0], panorama_stitcher.getCanvasWidth(), 0, 0, width, height);
+						// no Exif data, as the images' orientation doesn't apply to the panorama, which is already upright
+						jpeg = encodeBitmap(jpeg_quality, null);
+					}
+					catch(OutOfMemoryError e) {
+						Log.e(TAG, "out of memory encoding panorama");
+						e.printStackTrace();
+					}
+				}
+				// the canvas is large, so don't keep it between panoramas
+				panorama_stitcher = null;
+				last_process_time_ms += System.currentTimeMillis() - time_s;
+				if( MyDebug.LOG )
+					Log.d(TAG, "panorama processing time: " + last_process_time_ms);
+				postResult(callback, jpeg);
+			}
+		});
+	}
+
+	/** Runs the runnable on the UI thread, once all jobs submitted so far have finished.
+	 */
+	public void runWhenIdle(final Runnable runnable) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				main_handler.post(runnable);
+			}
+		});
+	}
+
+	/** Returns whether the application should wait before taking another photo, as images are
+	 *  queued for processing faster than they're being processed. Never blocks when idle.
+	 */
+	public boolean queueWouldBlock() {
+		if( n_pending_jobs.get() == 0 )
+			return false;
+		if( n_pending_results.get() >= max_pending_results_c ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "queueWouldBlock: too many results pending: " + n_pending_results.get());
+			return true;
+		}
+		if( pending_bytes.get() >= max_pending_bytes_c ) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "queueWouldBlock: too many bytes pending: " + pending_bytes.get());
+			return true;
+		}
+		return false;
+	}
+
+	/** Returns the number of photos waiting to be created, which will then need saving.
+	 */
+	public int getNPendingResults() {
+		return n_pending_results.get();
+	}
+
+	/** Returns the bytes of image data held by jobs waiting to run.
+	 */
+	public long getPendingBytes() {
+		return pending_bytes.get();
+	}
+
+	/** Runs a job on the background thread, counting it as pending until it finishes.
+	 * @param bytes      The bytes of image data the job holds until it finishes.
+	 * @param has_result Whether the job creates a photo.
+	 */
+	private void submit(final long bytes, final boolean has_result, final Runnable job) {
+		n_pending_jobs.incrementAndGet();
+		if( has_result )
+			n_pending_results.incrementAndGet();
+		pending_bytes.addAndGet(bytes);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					job.run();
+				}
+				finally {
+					pending_bytes.addAndGet(-bytes);
+					if( has_result )
+						n_pending_results.decrementAndGet();
+					n_pending_jobs.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	public long getLastProcessTimeMs() {
+		return last_process_time_ms;
+	}
+
+	/** Finishes the jobs submitted so far, then frees memory. Waits for the jobs, so that their
+	 *  results can still be saved (the UI thread won't run them once it's been destroyed).
+	 */
+	public void onDestroy() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "onDestroy");
+		destroyed = true;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				freeMemory();
+			}
+		});
+		executor.shutdown();
+		try {
+			if( !executor.awaitTermination(max_destroy_wait_ms_c, TimeUnit.MILLISECONDS) )
+				Log.e(TAG, "timed out waiting for jobs to finish");
+		}
+		catch(InterruptedException e) {
+			e.printStackTrace();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void postResult(final ResultCallback callback, final byte [] jpeg) {
+		if( destroyed ) {
+			callback.onResult(jpeg);
+			return;
+		}
+		main_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				callback.onResult(jpeg);
+			}
+		});
+	}
+
+	private void freeMemory() {
+		nr_merger = null;
+		nr_exif = null;
+		hdr_merger = null;
+		hdr_pixels = null;
+		dro_processor = null;
+		panorama_stitcher = null;
+		pixels = null;
+		if( bitmap != null ) {
+			bitmap.recycle();
+			bitmap = null;
+		}
+	}
+
+	/** Decodes a JPEG into bitmap and pixels, reusing them if the size is unchanged.
+	 */
+	private boolean decode(byte [] data, int length) {
+		if( !decodeBitmap(data, length) )
+			return false;
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		if( pixels == null || pixels.length != width*height ) {
+			pixels = null;
+			pixels = new int[width*height];
+		}
+		bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+		return true;
+	}
+
+	/** Decodes a JPEG into bitmap, reusing it if possible.
+	 */
+	private boolean decodeBitmap(byte [] data, int length) {
+		return decodeBitmap(data, length, 1);
+	}
+
+	/** Decodes a JPEG into bitmap, reusing it if possible, reducing its size by the sample size.
+	 */
+	private boolean decodeBitmap(byte [] data, int length, int sample_size) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inMutable = true;
+		options.inSampleSize = sample_size;
+		options.inBitmap = bitmap;
+		Bitmap decoded;
+		try {
+			decoded = BitmapFactory.decodeByteArray(data, 0, length, options);
+		}
+		catch(IllegalArgumentException e) {
+			// bitmap can't be reused for this image
+			options.inBitmap = null;
+			decoded = BitmapFactory.decodeByteArray(data, 0, length, options);
+		}
+		if( decoded == null )
+			return false;
+		if( bitmap != null && decoded != bitmap )
+			bitmap.recycle();
+		bitmap = decoded;
+		return true;
+	}
+
+	/** Encodes the supplied pixels (of the same size as bitmap) as a JPEG, with the supplied Exif
+	 *  segment (if non-null).
+	 */
+	private byte [] encode(int [] source, int jpeg_quality, byte [] exif) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		bitmap.setPixels(source, 0, width, 0, 0, width, height);
+		return encodeBitmap(jpeg_quality, exif);
+	}
+
+	/** Encodes bitmap as a JPEG, with the supplied Exif segment (if non-null).
+	 */
+	private byte [] encodeBitmap(int jpeg_quality, byte [] exif) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		ByteArrayOutputStream stream = new ByteArrayOutputStream(width*height/2);
+		if( !bitmap.compress(Bitmap.CompressFormat.JPEG, jpeg_quality, stream) ) {
+			Log.e(TAG, "failed to compress processed image");
+			return null;
+		}
+		byte [] jpeg = stream.toByteArray();
+		if( exif != null ) {
+			jpeg = JpegExif.insertSegment(jpeg, jpeg.length, exif);
+		}
+		return jpeg;
+	}
+}
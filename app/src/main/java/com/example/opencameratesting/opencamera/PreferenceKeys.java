@@ -9,6 +9,8 @@ public class PreferenceKeys {
 
 	public static final String IsVideoPreferenceKey = "is_video";
 
+	public static final String PhotoModePreferenceKey = "preference_photo_mode";
+
 	public static final String LocationPreferenceKey = "preference_location";
 
 	public static final String FrontCameraMirrorKey = "preference_front_camera_mirror";
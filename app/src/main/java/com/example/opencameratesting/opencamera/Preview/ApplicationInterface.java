@@ -7,7 +7,13 @@ import android.net.Uri;
 import android.util.Pair;
 import android.view.MotionEvent;
 
+import com.example.opencameratesting.core.FramePacingDetector;
+import com.example.opencameratesting.core.FrameStatsRing;
+import com.example.opencameratesting.opencamera.BurstTelemetry;
+import com.example.opencameratesting.opencamera.CameraController.ImageBuffer;
+import com.example.opencameratesting.opencamera.CameraController.JpegImage;
 import com.example.opencameratesting.opencamera.CameraController.RawImage;
+import com.example.opencameratesting.opencamera.CaptureLatencyTracker;
 
 import java.io.File;
 import java.io.IOException;
@@ -122,9 +128,16 @@ public interface ApplicationInterface {
 	boolean useCamera2FakeFlash(); // whether to enable CameraController.setUseCamera2FakeFlash() for Camera2 API
 	boolean useCamera2FastBurst(); // whether to enable Camera2's captureBurst() for faster taking of expo-bracketing photos (generally should be true, but some devices have problems with captureBurst())
 	boolean usePhotoVideoRecording(); // whether to enable support for taking photos when recording video (if not supported, this won't be called)
+	boolean useStreamingBurst(); // whether burst images (e.g., expo bracketing) should be passed one at a time as they arrive via onBurstPictureFrame(), rather than all together via onBurstPictureTaken()
+	CaptureLatencyTracker getCaptureLatencyTracker(); // if non-null, used to record the latency of each stage of taking a photo
+	BurstTelemetry getBurstTelemetry(); // if non-null, used to record frame intervals, failures and timings of each burst
+	FrameStatsRing getFrameStats(); // if non-null, used to record the ISO, exposure, focus and white balance of recent frames (Camera2 API only)
+	int getZeroShutterLagFrames(); // number of recent full resolution frames to keep for zero shutter lag (Camera2 API only), or 0 to disable
+	boolean useJpegImageCallback(); // whether JPEG photos should be passed to onJpegPictureTaken() rather than onPictureTaken(), avoiding a copy of the JPEG data (Camera2 only, and not for burst images passed to onBurstPictureTaken())
 
 	// for testing purposes:
 	boolean isTestAlwaysFocus(); // if true, pretend autofocus always successful
+	boolean useFakeCamera(); // if true, use CameraControllerFake instead of a camera, to drive the application without camera hardware
 
 	// methods that transmit information/events (up to the Application whether to do anything or not)
     void cameraSetup(); // called when the camera is (re-)set up - should update UI elements/parameters that depend on camera settings
@@ -135,6 +148,7 @@ public interface ApplicationInterface {
 	void stoppedVideo(final int video_method, final Uri uri, final String filename); // called after video recording stopped (uri/filename will be null if video is corrupt or not created); will be called iff startedVideo() was called
 	void onFailedStartPreview(); // called if failed to start camera preview
 	void onCameraError(); // called if the camera closes due to serious error.
+	void onPreviewJank(FramePacingDetector frame_pacing_detector); // called (on a background thread) when the proportion of preview frames skipped rises above a threshold, see Preview.getFramePacingDetector()
 	void onPhotoError(); // callback for failing to take a photo
 	void onVideoInfo(int what, int extra); // callback for info when recording video (see MediaRecorder.OnInfoListener)
 	void onVideoError(int what, int extra); // callback for errors when recording video (see MediaRecorder.OnErrorListener)
@@ -182,8 +196,13 @@ public interface ApplicationInterface {
 	
 	// callbacks
 	void onDrawPreview(Canvas canvas);
+	// for the picture callbacks below, returning true means the image was accepted, i.e., queued for saving or processing
+	// in the background, not that it has been saved: failures to save it are reported later, on the UI thread
 	boolean onPictureTaken(byte[] data, Date current_date);
-	boolean onBurstPictureTaken(List<byte[]> images, Date current_date);
+	boolean onJpegPictureTaken(JpegImage jpeg_image, Date current_date); // only called if useJpegImageCallback() returns true; the application should call jpeg_image.close() when done with the image
+	boolean onBurstPictureTaken(List<ImageBuffer> images, Date current_date); // the application should call release() on each image when done with it
+	boolean onBurstPictureFrame(ImageBuffer image, Date current_date, int burst_id, int index, int n_total); // only called if useStreamingBurst() returns true, for each image of the burst as it arrives; the application should call image.release() when done with it
+	boolean onBurstPictureCompleted(Date current_date, int burst_id, int n_total); // only called if useStreamingBurst() returns true, after the last onBurstPictureFrame() for the burst
 	boolean onRawPictureTaken(RawImage raw_image, Date current_date);
 	void onCaptureStarted(); // called immediately before we start capturing the picture
 	void onPictureCompleted(); // called after all picture callbacks have been called and returned
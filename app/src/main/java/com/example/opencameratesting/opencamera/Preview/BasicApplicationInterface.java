@@ -6,8 +6,14 @@ import android.net.Uri;
 import android.util.Pair;
 import android.view.MotionEvent;
 
+import com.example.opencameratesting.core.FramePacingDetector;
+import com.example.opencameratesting.core.FrameStatsRing;
+import com.example.opencameratesting.opencamera.BurstTelemetry;
 import com.example.opencameratesting.opencamera.CameraController.CameraController;
+import com.example.opencameratesting.opencamera.CameraController.ImageBuffer;
+import com.example.opencameratesting.opencamera.CameraController.JpegImage;
 import com.example.opencameratesting.opencamera.CameraController.RawImage;
+import com.example.opencameratesting.opencamera.CaptureLatencyTracker;
 
 import java.util.Date;
 import java.util.List;
@@ -374,11 +380,46 @@ public abstract class BasicApplicationInterface implements ApplicationInterface
 		return true;
 	}
 
+	@Override
+	public boolean useStreamingBurst() {
+		return false;
+	}
+
+	@Override
+	public boolean useJpegImageCallback() {
+		return false;
+	}
+
+	@Override
+	public CaptureLatencyTracker getCaptureLatencyTracker() {
+		return null;
+	}
+
+	@Override
+	public BurstTelemetry getBurstTelemetry() {
+		return null;
+	}
+
+	@Override
+	public FrameStatsRing getFrameStats() {
+		return null;
+	}
+
+	@Override
+	public int getZeroShutterLagFrames() {
+		return 0;
+	}
+
 	@Override
 	public boolean isTestAlwaysFocus() {
 		return false;
 	}
 
+	@Override
+	public boolean useFakeCamera() {
+		return false;
+	}
+
 	@Override
 	public void cameraSetup() {
 
@@ -419,6 +460,11 @@ public abstract class BasicApplicationInterface implements ApplicationInterface
 
 	}
 
+	@Override
+	public void onPreviewJank(FramePacingDetector frame_pacing_detector) {
+
+	}
+
 	@Override
 	public void onPhotoError() {
 
@@ -600,7 +646,30 @@ public abstract class BasicApplicationInterface implements ApplicationInterface
 	}
 
 	@Override
-	public boolean onBurstPictureTaken(List<byte[]> images, Date current_date) {
+	public boolean onJpegPictureTaken(JpegImage jpeg_image, Date current_date) {
+		// fall back to the byte array callback
+		boolean success = onPictureTaken(jpeg_image.getBytes(), current_date);
+		jpeg_image.close();
+		return success;
+	}
+
+	@Override
+	public boolean onBurstPictureTaken(List<ImageBuffer> images, Date current_date) {
+		// nothing to do with the images, but still need to release them
+		for(ImageBuffer image : images) {
+			image.release();
+		}
+		return false;
+	}
+
+	@Override
+	public boolean onBurstPictureFrame(ImageBuffer image, Date current_date, int burst_id, int index, int n_total) {
+		image.release();
+		return false;
+	}
+
+	@Override
+	public boolean onBurstPictureCompleted(Date current_date, int burst_id, int n_total) {
 		return false;
 	}
 
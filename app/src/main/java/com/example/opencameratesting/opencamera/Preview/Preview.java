@@ -51,14 +51,22 @@ import android.widget.Toast;
 
 import androidx.core.content.ContextCompat;
 
+import com.example.opencameratesting.core.FpsRangeChooser;
+import com.example.opencameratesting.core.FramePacingDetector;
+import com.example.opencameratesting.core.SizeChooser;
 import com.example.opencameratesting.opencamera.CameraController.CameraController;
 import com.example.opencameratesting.opencamera.CameraController.CameraController1;
 import com.example.opencameratesting.opencamera.CameraController.CameraController2;
 import com.example.opencameratesting.opencamera.CameraController.CameraControllerException;
+import com.example.opencameratesting.opencamera.CameraController.CameraControllerFake;
 import com.example.opencameratesting.opencamera.CameraController.CameraControllerManager;
 import com.example.opencameratesting.opencamera.CameraController.CameraControllerManager1;
 import com.example.opencameratesting.opencamera.CameraController.CameraControllerManager2;
+import com.example.opencameratesting.opencamera.CameraController.CameraControllerManagerFake;
+import com.example.opencameratesting.opencamera.CameraController.ImageBuffer;
+import com.example.opencameratesting.opencamera.CameraController.JpegImage;
 import com.example.opencameratesting.opencamera.CameraController.RawImage;
+import com.example.opencameratesting.opencamera.CaptureLatencyTracker;
 import com.example.opencameratesting.opencamera.MyDebug;
 import com.example.opencameratesting.opencamera.Preview.CameraSurface.CameraSurface;
 import com.example.opencameratesting.opencamera.Preview.CameraSurface.MySurfaceView;
@@ -92,9 +100,23 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 	private static final String TAG = "Preview";
 
 	private final boolean using_android_l;
+	private final boolean using_fake_camera; // whether to use CameraControllerFake, see ApplicationInterface.useFakeCamera()
 
 	private final ApplicationInterface applicationInterface;
 	private final CameraSurface cameraSurface;
+	// measures the preview frame rate and skipped frames, over the last 120 frames (about 4s at 30fps); reports jank
+	// if more than 5% of those frames were late
+	private final FramePacingDetector frame_pacing_detector = new FramePacingDetector(120, 0.05, new FramePacingDetector.Listener() {
+		@Override
+		public void onJank(FramePacingDetector detector) {
+			if( MyDebug.LOG ) {
+				Log.d(TAG, "preview jank: " + detector.getJankRate());
+				Log.d(TAG, "    mean interval ms: " + detector.getMeanIntervalMs());
+				Log.d(TAG, "    max interval ms: " + detector.getMaxIntervalMs());
+			}
+			applicationInterface.onPreviewJank(detector);
+		}
+	});
 	private CanvasView canvasView;
 	private boolean set_preview_size;
 	private int preview_w, preview_h;
@@ -341,8 +363,10 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 		}
 
 		this.using_android_l = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && applicationInterface.useCamera2();
+		this.using_fake_camera = applicationInterface.useFakeCamera();
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "using_android_l?: " + using_android_l);
+			Log.d(TAG, "using_fake_camera?: " + using_fake_camera);
 		}
 
 		boolean using_texture_view = false;
@@ -356,11 +380,11 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     		this.cameraSurface = new MyTextureView(getContext(), this);
     		// a TextureView can't be used both as a camera preview, and used for drawing on, so we use a separate CanvasView
     		this.canvasView = new CanvasView(getContext(), this);
-    		camera_controller_manager = new CameraControllerManager2(getContext());
+    		camera_controller_manager = using_fake_camera ? new CameraControllerManagerFake() : new CameraControllerManager2(getContext());
         }
         else {
     		this.cameraSurface = new MySurfaceView(getContext(), this);
-    		camera_controller_manager = new CameraControllerManager1();
+    		camera_controller_manager = using_fake_camera ? new CameraControllerManagerFake() : new CameraControllerManager1();
         }
 		/*{
 			FrameLayout.LayoutParams layoutParams = new FrameLayout.LayoutParams(FrameLayout.LayoutParams.WRAP_CONTENT, FrameLayout.LayoutParams.WRAP_CONTENT);
@@ -1496,7 +1520,10 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 					}
 				}
 			};
-	        if( using_android_l ) {
+	        if( using_fake_camera ) {
+	        	camera_controller_local = new CameraControllerFake(cameraId, cameraErrorCallback);
+	        }
+	        else if( using_android_l ) {
 				CameraController.ErrorCallback previewErrorCallback = new CameraController.ErrorCallback() {
 					public void onError() {
 						if( MyDebug.LOG )
@@ -1508,9 +1535,16 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 	    		if( applicationInterface.useCamera2FakeFlash() ) {
 	    			camera_controller_local.setUseCamera2FakeFlash(true);
 	    		}
+	    		camera_controller_local.setZeroShutterLag(applicationInterface.getZeroShutterLagFrames());
 	        }
 	        else
 				camera_controller_local = new CameraController1(cameraId, cameraErrorCallback);
+			camera_controller_local.setCaptureLatencyTracker(applicationInterface.getCaptureLatencyTracker());
+			camera_controller_local.setBurstTelemetry(applicationInterface.getBurstTelemetry());
+			camera_controller_local.setFrameStats(applicationInterface.getFrameStats());
+			frame_pacing_detector.setFpsRange(0, 0);
+			frame_pacing_detector.restart();
+			camera_controller_local.setFramePacingDetector(frame_pacing_detector);
 			//throw new CameraControllerException(); // uncomment to test camera not opening
 		}
 		catch(CameraControllerException e) {
@@ -3282,32 +3316,9 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 		return targetRatio;
 	}
 
-	/** Returns the size in sizes that is the closest aspect ratio match to targetRatio, but (if max_size is non-null) is not
-	 *  larger than max_size (in either width or height).
-	 */
-	private static CameraController.Size getClosestSize(List<CameraController.Size> sizes, double targetRatio, CameraController.Size max_size) {
-		if( MyDebug.LOG )
-			Log.d(TAG, "getClosestSize()");
-		CameraController.Size optimalSize = null;
-        double minDiff = Double.MAX_VALUE;
-        for(CameraController.Size size : sizes) {
-            double ratio = (double)size.width / size.height;
-			if( max_size != null ) {
-				if( size.width > max_size.width || size.height > max_size.height )
-					continue;
-			}
-            if( Math.abs(ratio - targetRatio) < minDiff ) {
-                optimalSize = size;
-                minDiff = Math.abs(ratio - targetRatio);
-            }
-        }
-        return optimalSize;
-	}
-
 	public CameraController.Size getOptimalPreviewSize(List<CameraController.Size> sizes) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "getOptimalPreviewSize()");
-		final double ASPECT_TOLERANCE = 0.05;
         if( sizes == null )
         	return null;
 		if( is_video && video_high_speed ) {
@@ -3317,8 +3328,6 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 			// preview size must match video resolution for high speed, see doc for CameraDevice.createConstrainedHighSpeedCaptureSession()
 			return new CameraController.Size(profile.videoFrameWidth, profile.videoFrameHeight);
 		}
-        CameraController.Size optimalSize = null;
-        double minDiff = Double.MAX_VALUE;
         Point display_size = new Point();
 		Activity activity = (Activity)this.getContext();
         {
@@ -3341,24 +3350,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         if( targetHeight <= 0 ) {
             targetHeight = display_size.y;
         }
-        // Try to find the size which matches the aspect ratio, and is closest match to display height
-        for(CameraController.Size size : sizes) {
-    		if( MyDebug.LOG )
-    			Log.d(TAG, "    supported preview size: " + size.width + ", " + size.height);
-            double ratio = (double)size.width / size.height;
-            if( Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE )
-            	continue;
-            if( Math.abs(size.height - targetHeight) < minDiff ) {
-                optimalSize = size;
-                minDiff = Math.abs(size.height - targetHeight);
-            }
-        }
-        if( optimalSize == null ) {
-        	// can't find match for aspect ratio, so find closest one
-    		if( MyDebug.LOG )
-    			Log.d(TAG, "no preview size matches the aspect ratio");
-    		optimalSize = getClosestSize(sizes, targetRatio, null);
-        }
+        CameraController.Size optimalSize = SizeChooser.getOptimalPreviewSize(sizes, targetRatio, targetHeight);
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "chose optimalSize: " + optimalSize.width + " x " + optimalSize.height);
 			Log.d(TAG, "optimalSize ratio: " + ((double)optimalSize.width / optimalSize.height));
@@ -3386,35 +3378,11 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 	public static CameraController.Size getOptimalVideoPictureSize(List<CameraController.Size> sizes, double targetRatio, CameraController.Size max_video_size) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "getOptimalVideoPictureSize()");
-		final double ASPECT_TOLERANCE = 0.05;
         if( sizes == null )
         	return null;
 		if( MyDebug.LOG )
 			Log.d(TAG, "max_video_size: " + max_video_size.width + ", " + max_video_size.height);
-        CameraController.Size optimalSize = null;
-        // Try to find largest size that matches aspect ratio.
-		// But don't choose a size that's larger than the max video size (as this isn't supported for taking photos when
-		// recording video for devices with LIMITED support in Camera2 mode).
-		// In theory, for devices FULL Camera2 support, if the current video resolution is smaller than the max preview resolution,
-		// we should be able to support larger photo resolutions, but this is left to future.
-        for(CameraController.Size size : sizes) {
-    		if( MyDebug.LOG )
-    			Log.d(TAG, "    supported preview size: " + size.width + ", " + size.height);
-            double ratio = (double)size.width / size.height;
-            if( Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE )
-            	continue;
-			if( size.width > max_video_size.width || size.height > max_video_size.height )
-				continue;
-            if( optimalSize == null || size.width > optimalSize.width ) {
-                optimalSize = size;
-            }
-        }
-        if( optimalSize == null ) {
-        	// can't find match for aspect ratio, so find closest one
-    		if( MyDebug.LOG )
-    			Log.d(TAG, "no picture size matches the aspect ratio");
-    		optimalSize = getClosestSize(sizes, targetRatio, max_video_size);
-        }
+		CameraController.Size optimalSize = SizeChooser.getOptimalVideoPictureSize(sizes, targetRatio, max_video_size);
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "chose optimalSize: " + optimalSize.width + " x " + optimalSize.height);
 			Log.d(TAG, "optimalSize ratio: " + ((double)optimalSize.width / optimalSize.height));
@@ -3951,106 +3919,19 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 	public static int [] matchPreviewFpsToVideo(List<int []> fps_ranges, int video_frame_rate) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "matchPreviewFpsToVideo()");
-		int selected_min_fps = -1, selected_max_fps = -1, selected_diff = -1;
-        for(int [] fps_range : fps_ranges) {
-	    	if( MyDebug.LOG ) {
-    			Log.d(TAG, "    supported fps range: " + fps_range[0] + " to " + fps_range[1]);
-	    	}
-			int min_fps = fps_range[0];
-			int max_fps = fps_range[1];
-			if( min_fps <= video_frame_rate && max_fps >= video_frame_rate ) {
-    			int diff = max_fps - min_fps;
-    			if( selected_diff == -1 || diff < selected_diff ) {
-    				selected_min_fps = min_fps;
-    				selected_max_fps = max_fps;
-    				selected_diff = diff;
-    			}
-			}
-        }
-        if( selected_min_fps != -1 ) {
-	    	if( MyDebug.LOG ) {
-    			Log.d(TAG, "    chosen fps range: " + selected_min_fps + " to " + selected_max_fps);
-	    	}
-        }
-        else {
-        	selected_diff = -1;
-        	int selected_dist = -1;
-            for(int [] fps_range : fps_ranges) {
-    			int min_fps = fps_range[0];
-    			int max_fps = fps_range[1];
-    			int diff = max_fps - min_fps;
-    			int dist;
-    			if( max_fps < video_frame_rate )
-    				dist = video_frame_rate - max_fps;
-    			else
-    				dist = min_fps - video_frame_rate;
-    	    	if( MyDebug.LOG ) {
-        			Log.d(TAG, "    supported fps range: " + min_fps + " to " + max_fps + " has dist " + dist + " and diff " + diff);
-    	    	}
-    			if( selected_dist == -1 || dist < selected_dist || ( dist == selected_dist && diff < selected_diff ) ) {
-    				selected_min_fps = min_fps;
-    				selected_max_fps = max_fps;
-    				selected_dist = dist;
-    				selected_diff = diff;
-    			}
-            }
-	    	if( MyDebug.LOG )
-	    		Log.e(TAG, "    can't find match for fps range, so choose closest: " + selected_min_fps + " to " + selected_max_fps);
-        }
-    	return new int[]{selected_min_fps, selected_max_fps};
+		int [] selected_fps = FpsRangeChooser.matchPreviewFpsToVideo(fps_ranges, video_frame_rate);
+		if( MyDebug.LOG )
+			Log.d(TAG, "    chosen fps range: " + selected_fps[0] + " to " + selected_fps[1]);
+		return selected_fps;
 	}
 
 	public static int [] chooseBestPreviewFps(List<int []> fps_ranges) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "chooseBestPreviewFps()");
-
-		// find value with lowest min that has max >= 30; if more than one of these, pick the one with highest max
-		int selected_min_fps = -1, selected_max_fps = -1;
-        for(int [] fps_range : fps_ranges) {
-	    	if( MyDebug.LOG ) {
-    			Log.d(TAG, "    supported fps range: " + fps_range[0] + " to " + fps_range[1]);
-	    	}
-			int min_fps = fps_range[0];
-			int max_fps = fps_range[1];
-			if( max_fps >= 30000 ) {
-				if( selected_min_fps == -1 || min_fps < selected_min_fps ) {
-    				selected_min_fps = min_fps;
-    				selected_max_fps = max_fps;
-				}
-				else if( min_fps == selected_min_fps && max_fps > selected_max_fps ) {
-    				selected_min_fps = min_fps;
-    				selected_max_fps = max_fps;
-				}
-			}
-        }
-
-        if( selected_min_fps != -1 ) {
-	    	if( MyDebug.LOG ) {
-    			Log.d(TAG, "    chosen fps range: " + selected_min_fps + " to " + selected_max_fps);
-	    	}
-        }
-        else {
-        	// just pick the widest range; if more than one, pick the one with highest max
-        	int selected_diff = -1;
-            for(int [] fps_range : fps_ranges) {
-    			int min_fps = fps_range[0];
-    			int max_fps = fps_range[1];
-    			int diff = max_fps - min_fps;
-    			if( selected_diff == -1 || diff > selected_diff ) {
-    				selected_min_fps = min_fps;
-    				selected_max_fps = max_fps;
-    				selected_diff = diff;
-    			}
-    			else if( diff == selected_diff && max_fps > selected_max_fps ) {
-    				selected_min_fps = min_fps;
-    				selected_max_fps = max_fps;
-    				selected_diff = diff;
-    			}
-            }
-	    	if( MyDebug.LOG )
-	    		Log.d(TAG, "    can't find fps range 30fps or better, so picked widest range: " + selected_min_fps + " to " + selected_max_fps);
-        }
-    	return new int[]{selected_min_fps, selected_max_fps};
+		int [] selected_fps = FpsRangeChooser.chooseBestPreviewFps(fps_ranges);
+		if( MyDebug.LOG )
+			Log.d(TAG, "    chosen fps range: " + selected_fps[0] + " to " + selected_fps[1]);
+		return selected_fps;
 	}
 
 	/* It's important to set a preview FPS using chooseBestPreviewFps() rather than just leaving it to the default, as some devices
@@ -4632,6 +4513,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 	 * @param continuous_fast_burst If true, then start a continuous fast burst.
 	 */
 	public void takePicturePressed(boolean photo_snapshot, boolean continuous_fast_burst) {
+		final long pressed_time_ns = System.nanoTime();
 		if( MyDebug.LOG )
 			Log.d(TAG, "takePicturePressed");
 		if( camera_controller == null ) {
@@ -4702,6 +4584,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 
 		if( photo_snapshot || continuous_fast_burst ) {
 			// go straight to taking a photo, ignore timer or repeat options
+			startCaptureLatency(pressed_time_ns);
 			takePicture(false, photo_snapshot, continuous_fast_burst);
 			return;
 		}
@@ -4731,6 +4614,8 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 		}
 		
 		if( timer_delay == 0 ) {
+			if( !is_video )
+				startCaptureLatency(pressed_time_ns);
 			takePicture(false, photo_snapshot, continuous_fast_burst);
 		}
 		else {
@@ -4740,6 +4625,15 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 			Log.d(TAG, "takePicturePressed exit");
 	}
 	
+	/** Starts recording the latency of a photo, if the application supplies a CaptureLatencyTracker.
+	 *  Not used for photos on a timer, as the delay is intentional.
+	 */
+	private void startCaptureLatency(long pressed_time_ns) {
+		CaptureLatencyTracker latency_tracker = applicationInterface.getCaptureLatencyTracker();
+		if( latency_tracker != null )
+			latency_tracker.startCapture(pressed_time_ns);
+	}
+
 	private void takePictureOnTimer(final long timer_delay, boolean repeated) {
 		if( MyDebug.LOG ) {
 			Log.d(TAG, "takePictureOnTimer");
@@ -5723,6 +5617,24 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 				}
     	    }
 
+			public boolean useJpegImageCallback() {
+				return applicationInterface.useJpegImageCallback();
+			}
+
+			public void onJpegPictureTaken(JpegImage jpeg_image) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "onJpegPictureTaken");
+				initDate();
+				if( !applicationInterface.onJpegPictureTaken(jpeg_image, current_date) ) {
+					if( MyDebug.LOG )
+						Log.e(TAG, "applicationInterface.onJpegPictureTaken failed");
+					success = false;
+				}
+				else {
+					success = true;
+				}
+			}
+
 			public void onRawPictureTaken(RawImage raw_image) {
 				if( MyDebug.LOG )
 					Log.d(TAG, "onRawPictureTaken");
@@ -5733,7 +5645,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 				}
 			}
 
-			public void onBurstPictureTaken(List<byte[]> images) {
+			public void onBurstPictureTaken(List<ImageBuffer> images) {
 				if( MyDebug.LOG )
 					Log.d(TAG, "onBurstPictureTaken");
     	    	// n.b., this is automatically run in a different thread
@@ -5747,6 +5659,36 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 				}
     	    }
 
+			public boolean useStreamingBurst() {
+				return applicationInterface.useStreamingBurst();
+			}
+
+			public void onBurstPictureFrame(ImageBuffer image, int burst_id, int index, int n_total) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "onBurstPictureFrame: " + index + " of " + n_total);
+				// n.b., this is automatically run in a different thread
+				initDate();
+
+				if( index == 0 )
+					success = true;
+				if( !applicationInterface.onBurstPictureFrame(image, current_date, burst_id, index, n_total) ) {
+					if( MyDebug.LOG )
+						Log.e(TAG, "applicationInterface.onBurstPictureFrame failed");
+					success = false;
+				}
+			}
+
+			public void onBurstPictureCompleted(int burst_id, int n_total) {
+				if( MyDebug.LOG )
+					Log.d(TAG, "onBurstPictureCompleted");
+				initDate();
+				if( !applicationInterface.onBurstPictureCompleted(current_date, burst_id, n_total) ) {
+					if( MyDebug.LOG )
+						Log.e(TAG, "applicationInterface.onBurstPictureCompleted failed");
+					success = false;
+				}
+			}
+
 			public boolean imageQueueWouldBlock(int n_jpegs) {
 				if( MyDebug.LOG )
 					Log.d(TAG, "imageQueueWouldBlock");
@@ -7188,6 +7130,12 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     	return this.camera_controller;
     }
     
+    /** Returns the preview frame pacing statistics, which may be read from any thread.
+     */
+    public FramePacingDetector getFramePacingDetector() {
+    	return this.frame_pacing_detector;
+    }
+
     public CameraControllerManager getCameraControllerManager() {
     	return this.camera_controller_manager;
     }
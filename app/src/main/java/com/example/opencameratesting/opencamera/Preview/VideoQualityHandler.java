@@ -1,13 +1,13 @@
 package com.example.opencameratesting.opencamera.Preview;
 
-import android.media.CamcorderProfile;
 import android.util.Log;
 
+import com.example.opencameratesting.core.CameraSize;
+import com.example.opencameratesting.core.VideoQualities;
 import com.example.opencameratesting.opencamera.CameraController.CameraController;
 import com.example.opencameratesting.opencamera.MyDebug;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -19,7 +19,7 @@ import java.util.List;
 public class VideoQualityHandler {
     private static final String TAG = "VideoQualityHandler";
 
-    public static class Dimension2D {
+    public static class Dimension2D implements CameraSize {
         final int width;
         final int height;
 
@@ -27,6 +27,16 @@ public class VideoQualityHandler {
             this.width = width;
             this.height = height;
         }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
     }
 
     // video_quality can either be:
@@ -52,21 +62,11 @@ public class VideoQualityHandler {
     public void initialiseVideoQualityFromProfiles(List<Integer> profiles, List<Dimension2D> dimensions) {
         if( MyDebug.LOG )
             Log.d(TAG, "initialiseVideoQualityFromProfiles()");
-        video_quality = new ArrayList<>();
-        boolean done_video_size[] = null;
-        if( video_sizes != null ) {
-            done_video_size = new boolean[video_sizes.size()];
-            for(int i=0;i<video_sizes.size();i++)
-                done_video_size[i] = false;
-        }
         if( profiles.size() != dimensions.size() ) {
             Log.e(TAG, "profiles and dimensions have unequal sizes");
             throw new RuntimeException(); // this is a programming error
         }
-        for(int i=0;i<profiles.size();i++) {
-            Dimension2D dim = dimensions.get(i);
-            addVideoResolutions(done_video_size, profiles.get(i), dim.width, dim.height);
-        }
+        video_quality = VideoQualities.fromProfiles(video_sizes, profiles, dimensions);
         if( MyDebug.LOG ) {
             for(int i=0;i<video_quality.size();i++) {
                 Log.d(TAG, "supported video quality: " + video_quality.get(i));
@@ -95,33 +95,6 @@ public class VideoQualityHandler {
         }
     }
 
-    private void addVideoResolutions(boolean done_video_size[], int base_profile, int min_resolution_w, int min_resolution_h) {
-        if( video_sizes == null ) {
-            return;
-        }
-        if( MyDebug.LOG )
-            Log.d(TAG, "profile " + base_profile + " is resolution " + min_resolution_w + " x " + min_resolution_h);
-        for(int i=0;i<video_sizes.size();i++) {
-            if( done_video_size[i] )
-                continue;
-            CameraController.Size size = video_sizes.get(i);
-            if( size.width == min_resolution_w && size.height == min_resolution_h ) {
-                String str = "" + base_profile;
-                video_quality.add(str);
-                done_video_size[i] = true;
-                if( MyDebug.LOG )
-                    Log.d(TAG, "added: " + i + ":"+ str + " " + size.width + "x" + size.height);
-            }
-            else if( base_profile == CamcorderProfile.QUALITY_LOW || size.width * size.height >= min_resolution_w*min_resolution_h ) {
-                String str = "" + base_profile + "_r" + size.width + "x" + size.height;
-                video_quality.add(str);
-                done_video_size[i] = true;
-                if( MyDebug.LOG )
-                    Log.d(TAG, "added: " + i + ":" + str);
-            }
-        }
-    }
-
     public List<String> getSupportedVideoQuality() {
         if( MyDebug.LOG )
             Log.d(TAG, "getSupportedVideoQuality");
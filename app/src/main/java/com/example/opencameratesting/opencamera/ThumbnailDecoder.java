@@ -0,0 +1,377 @@
+package com.example.opencameratesting.opencamera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.media.ExifInterface;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.opencameratesting.opencamera.CameraController.JpegImage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Decodes thumbnails of photos just taken from the JPEG data that's already in memory, so that
+ *  the UI doesn't need to read back and decode the full resolution file once it's been saved.
+ *  Decoding is done on a background thread, with a power-of-two sample size (so the decoder can
+ *  downscale cheaply while decoding), into bitmaps that are reused from a small pool.
+ *  Requests are coalesced: if further photos arrive while a thumbnail is being decoded, only the
+ *  most recent is decoded next.
+ *  The thumbnail is published to the Listener on the UI thread. Bitmaps remain owned by this class:
+ *  the previous thumbnail is returned to the pool once the next one has been published, so
+ *  listeners must stop using a thumbnail once they've been passed a newer one, and must not
+ *  recycle it.
+ */
+public class ThumbnailDecoder {
+	private static final String TAG = "ThumbnailDecoder";
+
+	public interface Listener {
+		void onThumbnail(Bitmap thumbnail); // called on the UI thread
+	}
+
+	private final static int max_pool_size_c = 2; // enough for a decode plus a rotated copy
+
+	private final Listener listener;
+	private final int target_size; // long side of the thumbnail should be at least this (unless the photo is smaller)
+	private final Handler main_handler = new Handler(Looper.getMainLooper());
+	private final Thread thread;
+	private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+	// the following are guarded by "this"
+	private byte [] pending_data; // next JPEG to decode
+	private int pending_length;
+	private final byte [][] scratch = new byte[2][]; // reused to copy the data out of JpegImages
+	private byte [] decoding_data; // data currently being decoded by the thread
+	private final List<Bitmap> pool = new ArrayList<>();
+	private boolean stopped;
+
+	// only accessed on the UI thread
+	private Bitmap published_thumbnail;
+
+	// statistics, guarded by "this"
+	private int n_requested;
+	private int n_decoded;
+	private int n_reused; // number of decodes that reused a bitmap from the pool
+	private long total_decode_time_ns;
+	private long max_decode_time_ns;
+
+	/**
+	 * @param listener    Receives the thumbnails, on the UI thread.
+	 * @param target_size Photos are downsampled by the largest power of two that keeps their long
+	 *                    side at least this many pixels.
+	 */
+	public ThumbnailDecoder(Listener listener, int target_size) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "ThumbnailDecoder: " + target_size);
+		this.listener = listener;
+		this.target_size = Math.max(target_size, 1);
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				decoderLoop();
+			}
+		}, "ThumbnailDecoder");
+		thread.start();
+	}
+
+	/** Requests a thumbnail for the supplied JPEG. The array is held (not copied) until decoded, so
+	 *  must not be modified by the caller.
+	 */
+	public synchronized void decode(byte [] data) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "decode: " + data.length + " bytes");
+		pending_data = data;
+		pending_length = data.length;
+		n_requested++;
+		notifyAll();
+	}
+
+	/** Requests a thumbnail for the supplied JPEG. The data is copied into a reused buffer before
+	 *  returning, so the caller is free to close the image afterwards.
+	 */
+	public synchronized void decode(JpegImage jpeg_image) {
+		ByteBuffer buffer = jpeg_image.getBuffer();
+		int length = buffer.remaining();
+		if( MyDebug.LOG )
+			Log.d(TAG, "decode: " + length + " bytes");
+		// use whichever scratch buffer isn't being read by the decoder thread
+		int index = decoding_data == scratch[0] ? 1 : 0;
+		if( scratch[index] == null || scratch[index].length < length ) {
+			// allow some headroom, as JPEG sizes vary from shot to shot
+			scratch[index] = new byte[length + length/4];
+		}
+		buffer.get(scratch[index], 0, length);
+		pending_data = scratch[index];
+		pending_length = length;
+		n_requested++;
+		notifyAll();
+	}
+
+	private void decoderLoop() {
+		while( true ) {
+			byte [] data;
+			int length;
+			synchronized( this ) {
+				while( pending_data == null && !stopped ) {
+					try {
+						wait();
+					}
+					catch(InterruptedException e) {
+						e.printStackTrace();
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				if( stopped )
+					return;
+				data = pending_data;
+				length = pending_length;
+				pending_data = null;
+				decoding_data = data;
+			}
+
+			long decode_start_ns = System.nanoTime();
+			final Bitmap thumbnail = decodeThumbnail(data, length);
+			long decode_time_ns = System.nanoTime() - decode_start_ns;
+
+			synchronized( this ) {
+				decoding_data = null;
+				if( thumbnail != null ) {
+					n_decoded++;
+					total_decode_time_ns += decode_time_ns;
+					max_decode_time_ns = Math.max(max_decode_time_ns, decode_time_ns);
+				}
+				if( stopped )
+					return;
+			}
+			if( MyDebug.LOG )
+				Log.d(TAG, "decode time ms: " + decode_time_ns/1000000);
+			if( thumbnail != null ) {
+				main_handler.post(new Runnable() {
+					@Override
+					public void run() {
+						publish(thumbnail);
+					}
+				});
+			}
+		}
+	}
+
+	private Bitmap decodeThumbnail(byte [] data, int length) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, length, options);
+		if( options.outWidth <= 0 || options.outHeight <= 0 ) {
+			Log.e(TAG, "failed to read JPEG size");
+			return null;
+		}
+		int sample_size = getSampleSize(options.outWidth, options.outHeight, target_size);
+		int width = (options.outWidth + sample_size - 1)/sample_size;
+		int height = (options.outHeight + sample_size - 1)/sample_size;
+		if( MyDebug.LOG ) {
+			Log.d(TAG, "JPEG size: " + options.outWidth + " x " + options.outHeight);
+			Log.d(TAG, "sample size: " + sample_size);
+		}
+
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sample_size;
+		options.inMutable = true;
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		options.inBitmap = acquireBitmap(width, height);
+		Bitmap bitmap;
+		try {
+			bitmap = BitmapFactory.decodeByteArray(data, 0, length, options);
+		}
+		catch(IllegalArgumentException e) {
+			// the pooled bitmap couldn't be reused (shouldn't happen, as we check its size), so try again without
+			if( MyDebug.LOG )
+				Log.d(TAG, "failed to reuse bitmap: " + e.getMessage());
+			releaseBitmap(options.inBitmap);
+			options.inBitmap = null;
+			bitmap = BitmapFactory.decodeByteArray(data, 0, length, options);
+		}
+		if( bitmap == null ) {
+			Log.e(TAG, "failed to decode thumbnail");
+			releaseBitmap(options.inBitmap);
+			return null;
+		}
+		if( options.inBitmap != null ) {
+			synchronized( this ) {
+				n_reused++;
+			}
+		}
+
+		int rotation = getExifRotation(data, length);
+		if( rotation != 0 ) {
+			Bitmap rotated = rotateBitmap(bitmap, rotation);
+			releaseBitmap(bitmap);
+			bitmap = rotated;
+		}
+		return bitmap;
+	}
+
+	/** Returns the largest power of two sample size that keeps the long side of the image at
+	 *  least target_size.
+	 */
+	static int getSampleSize(int width, int height, int target_size) {
+		int long_side = Math.max(width, height);
+		int sample_size = 1;
+		while( long_side/(sample_size*2) >= target_size ) {
+			sample_size *= 2;
+		}
+		return sample_size;
+	}
+
+	static int getExifRotation(byte [] data, int length) {
+		try {
+			ExifInterface exif = new ExifInterface(new ByteArrayInputStream(data, 0, length));
+			switch( exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL) ) {
+				case ExifInterface.ORIENTATION_ROTATE_90:
+					return 90;
+				case ExifInterface.ORIENTATION_ROTATE_180:
+					return 180;
+				case ExifInterface.ORIENTATION_ROTATE_270:
+					return 270;
+				default:
+					return 0;
+			}
+		}
+		catch(IOException e) {
+			if( MyDebug.LOG )
+				Log.d(TAG, "failed to read exif: " + e.getMessage());
+			return 0;
+		}
+	}
+
+	/** Draws a rotated copy of the bitmap into a pooled bitmap, rather than using
+	 *  Bitmap.createBitmap(), so that the result can also be reused.
+	 */
+	private Bitmap rotateBitmap(Bitmap bitmap, int rotation) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		int rotated_width = rotation == 180 ? width : height;
+		int rotated_height = rotation == 180 ? height : width;
+		Bitmap rotated = acquireBitmap(rotated_width, rotated_height);
+		if( rotated != null ) {
+			rotated.reconfigure(rotated_width, rotated_height, Bitmap.Config.ARGB_8888);
+		}
+		else {
+			rotated = Bitmap.createBitmap(rotated_width, rotated_height, Bitmap.Config.ARGB_8888);
+		}
+		Matrix matrix = new Matrix();
+		matrix.postRotate(rotation, width/2.0f, height/2.0f);
+		matrix.postTranslate((rotated_width - width)/2.0f, (rotated_height - height)/2.0f);
+		Canvas canvas = new Canvas(rotated);
+		canvas.drawBitmap(bitmap, matrix, paint);
+		return rotated;
+	}
+
+	/** Returns a bitmap from the pool that's large enough to hold width x height ARGB_8888 pixels,
+	 *  or null if there isn't one.
+	 */
+	private synchronized Bitmap acquireBitmap(int width, int height) {
+		long required = 4L*width*height;
+		for(int i=0;i<pool.size();i++) {
+			Bitmap bitmap = pool.get(i);
+			if( bitmap.getAllocationByteCount() >= required ) {
+				pool.remove(i);
+				return bitmap;
+			}
+		}
+		return null;
+	}
+
+	private synchronized void releaseBitmap(Bitmap bitmap) {
+		if( bitmap == null )
+			return;
+		if( stopped || !bitmap.isMutable() ) {
+			bitmap.recycle();
+			return;
+		}
+		if( pool.size() >= max_pool_size_c ) {
+			// keep the larger bitmaps, as they can be reused for more sizes
+			int smallest = 0;
+			for(int i=1;i<pool.size();i++) {
+				if( pool.get(i).getAllocationByteCount() < pool.get(smallest).getAllocationByteCount() )
+					smallest = i;
+			}
+			if( pool.get(smallest).getAllocationByteCount() >= bitmap.getAllocationByteCount() ) {
+				bitmap.recycle();
+				return;
+			}
+			pool.remove(smallest).recycle();
+		}
+		pool.add(bitmap);
+	}
+
+	private void publish(Bitmap thumbnail) {
+		if( MyDebug.LOG )
+			Log.d(TAG, "publish: " + thumbnail.getWidth() + " x " + thumbnail.getHeight());
+		synchronized( this ) {
+			if( stopped ) {
+				thumbnail.recycle();
+				return;
+			}
+		}
+		Bitmap old_thumbnail = published_thumbnail;
+		published_thumbnail = thumbnail;
+		listener.onThumbnail(thumbnail);
+		// only reuse after the listener has switched to the new thumbnail
+		releaseBitmap(old_thumbnail);
+	}
+
+	/** Stops the decoder thread and frees the pooled bitmaps. The most recently published thumbnail
+	 *  is left for the listener to drop.
+	 */
+	public void onDestroy() {
+		if( MyDebug.LOG )
+			Log.d(TAG, "onDestroy");
+		synchronized( this ) {
+			stopped = true;
+			pending_data = null;
+			notifyAll();
+		}
+		try {
+			thread.join();
+		}
+		catch(InterruptedException e) {
+			e.printStackTrace();
+			Thread.currentThread().interrupt();
+		}
+		synchronized( this ) {
+			for(Bitmap bitmap : pool) {
+				bitmap.recycle();
+			}
+			pool.clear();
+			scratch[0] = null;
+			scratch[1] = null;
+		}
+	}
+
+	public synchronized int getNRequested() {
+		return n_requested;
+	}
+
+	public synchronized int getNDecoded() {
+		return n_decoded;
+	}
+
+	public synchronized int getNReused() {
+		return n_reused;
+	}
+
+	public synchronized double getMeanDecodeTimeMs() {
+		return n_decoded == 0 ? 0.0 : total_decode_time_ns/(1000000.0*n_decoded);
+	}
+
+	public synchronized double getMaxDecodeTimeMs() {
+		return max_decode_time_ns/1000000.0;
+	}
+}
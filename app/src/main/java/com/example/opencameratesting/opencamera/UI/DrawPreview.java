@@ -18,6 +18,7 @@ import android.util.Pair;
 import android.view.Surface;
 
 import com.example.opencameratesting.CameraInterface;
+import com.example.opencameratesting.core.LevelAngleFormatter;
 import com.example.opencameratesting.opencamera.CameraController.CameraController;
 import com.example.opencameratesting.opencamera.CameraVideoHelper;
 import com.example.opencameratesting.opencamera.GyroSensor;
@@ -26,7 +27,6 @@ import com.example.opencameratesting.opencamera.PreferenceKeys;
 import com.example.opencameratesting.opencamera.Preview.Preview;
 
 import java.text.DateFormat;
-import java.text.DecimalFormat;
 import java.util.Calendar;
 import java.util.Locale;
 
@@ -76,7 +76,6 @@ public class DrawPreview {
 	private final Paint p = new Paint();
 	private final RectF draw_rect = new RectF();
 	private final int [] gui_location = new int[2];
-	private final static DecimalFormat decimalFormat = new DecimalFormat("#0.0");
 	private final float scale;
 	private final float stroke_width; // stroke_width used for various UI elements
 	private Calendar calendar;
@@ -138,6 +137,7 @@ public class DrawPreview {
 	private long needs_flash_time = -1; // time when flash symbol comes on (used for fade-in effect)
 
 	private Bitmap last_thumbnail; // thumbnail of last picture taken
+	private boolean last_thumbnail_owned; // whether we should recycle last_thumbnail once replaced
 	private volatile boolean thumbnail_anim; // whether we are displaying the thumbnail animation; must be volatile for test project reading the state
 	private long thumbnail_anim_start_ms = -1; // time that the thumbnail animation started
 	private final RectF thumbnail_anim_src_rect = new RectF();
@@ -306,6 +306,14 @@ public class DrawPreview {
 	 *  and when ghosting the last image.
 	 */
 	public void updateThumbnail(Bitmap thumbnail, boolean is_video, boolean want_thumbnail_animation) {
+		updateThumbnail(thumbnail, is_video, want_thumbnail_animation, true);
+	}
+
+	/** As updateThumbnail(Bitmap, boolean, boolean).
+	 * @param owned If true, the thumbnail is recycled once replaced. Set to false for bitmaps that
+	 *              the caller will reuse (e.g., from ThumbnailDecoder).
+	 */
+	public void updateThumbnail(Bitmap thumbnail, boolean is_video, boolean want_thumbnail_animation, boolean owned) {
 		if( MyDebug.LOG )
 			Log.d(TAG, "updateThumbnail");
 		if( want_thumbnail_animation && applicationInterface.getThumbnailAnimationPref() ) {
@@ -315,10 +323,12 @@ public class DrawPreview {
 			thumbnail_anim_start_ms = System.currentTimeMillis();
 		}
     	Bitmap old_thumbnail = this.last_thumbnail;
+    	boolean old_thumbnail_owned = this.last_thumbnail_owned;
     	this.last_thumbnail = thumbnail;
+    	this.last_thumbnail_owned = owned;
     	this.last_thumbnail_is_video = is_video;
     	this.allow_ghost_last_image = true;
-    	if( old_thumbnail != null ) {
+    	if( old_thumbnail != null && old_thumbnail_owned ) {
     		// only recycle after we've set the new thumbnail
     		old_thumbnail.recycle();
     	}
@@ -1260,13 +1270,7 @@ public class DrawPreview {
 	 *  (see http://stackoverflow.com/questions/8553672/a-faster-alternative-to-decimalformat-format ).
      */
 	public static String formatLevelAngle(double level_angle) {
-        String number_string = decimalFormat.format(level_angle);
-        if( Math.abs(level_angle) < 0.1 ) {
-            // avoids displaying "-0.0", see http://stackoverflow.com/questions/11929096/negative-sign-in-case-of-zero-in-java
-            // only do this when level_angle is small, to help performance
-            number_string = number_string.replaceAll("^-(?=0(.0*)?$)", "");
-        }
-        return number_string;
+        return LevelAngleFormatter.formatLevelAngle(level_angle);
     }
 
 	/** This includes drawing of the UI that requires the canvas to be rotated according to the preview's
@@ -0,0 +1,266 @@
+package com.example.opencameratesting.opencamera.CameraController;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Drives CameraControllerFake on the JVM, without a device (the fake only calls Android APIs
+ *  for logging, which is off unless MyDebug.LOG is set), to measure sustained burst throughput
+ *  and how the fake holds off when the application's image queue is full.
+ */
+public class CameraControllerFakeTest {
+	private final static int jpeg_size = 100000;
+	private final static long timeout_s = 30;
+
+	private CameraControllerFake camera_controller;
+
+	/** Receives images, and passes them to a single consumer thread that takes consumer_ms to
+	 *  "save" each one, with room for at most max_queue images queued or being saved.
+	 */
+	private static class QueueingCallback implements CameraController.PictureCallback {
+		final int max_queue;
+		final long consumer_ms;
+		final ExecutorService consumer = Executors.newSingleThreadExecutor();
+		final CountDownLatch completed = new CountDownLatch(1);
+		final AtomicInteger n_queued = new AtomicInteger();
+		final AtomicInteger n_images = new AtomicInteger();
+		final AtomicInteger n_would_block = new AtomicInteger();
+		final AtomicInteger max_queue_seen = new AtomicInteger();
+		final AtomicInteger n_frames = new AtomicInteger(); // streamed burst images
+		final AtomicInteger n_bursts_completed = new AtomicInteger();
+		volatile List<ImageBuffer> burst_images;
+		volatile boolean streaming;
+
+		QueueingCallback(int max_queue, long consumer_ms) {
+			this.max_queue = max_queue;
+			this.consumer_ms = consumer_ms;
+		}
+
+		/** Waits for the photo to complete, and for the consumer to save all the images.
+		 */
+		void await() throws InterruptedException {
+			assertTrue("photo didn't complete", completed.await(timeout_s, TimeUnit.SECONDS));
+			consumer.shutdown();
+			assertTrue("images weren't saved", consumer.awaitTermination(timeout_s, TimeUnit.SECONDS));
+		}
+
+		@Override
+		public void onStarted() {
+		}
+
+		@Override
+		public void onCompleted() {
+			completed.countDown();
+		}
+
+		@Override
+		public void onPictureTaken(byte[] data) {
+			n_images.incrementAndGet();
+			int queued = n_queued.incrementAndGet();
+			while( true ) {
+				int max = max_queue_seen.get();
+				if( queued <= max || max_queue_seen.compareAndSet(max, queued) )
+					break;
+			}
+			consumer.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(consumer_ms);
+					}
+					catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					n_queued.decrementAndGet();
+				}
+			});
+		}
+
+		@Override
+		public boolean useJpegImageCallback() {
+			return false;
+		}
+
+		@Override
+		public void onJpegPictureTaken(JpegImage jpeg_image) {
+			jpeg_image.close();
+		}
+
+		@Override
+		public void onRawPictureTaken(RawImage raw_image) {
+			raw_image.close();
+		}
+
+		@Override
+		public void onBurstPictureTaken(List<ImageBuffer> images) {
+			n_images.addAndGet(images.size());
+			burst_images = images;
+		}
+
+		@Override
+		public boolean useStreamingBurst() {
+			return streaming;
+		}
+
+		@Override
+		public void onBurstPictureFrame(ImageBuffer image, int burst_id, int index, int n_total) {
+			assertEquals(n_frames.getAndIncrement(), index);
+			image.release();
+		}
+
+		@Override
+		public void onBurstPictureCompleted(int burst_id, int n_total) {
+			n_bursts_completed.incrementAndGet();
+		}
+
+		@Override
+		public boolean imageQueueWouldBlock(int n_jpegs) {
+			if( n_queued.get() + n_jpegs > max_queue ) {
+				n_would_block.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public void onFrontScreenTurnOn() {
+		}
+	}
+
+	private static class CountingErrorCallback implements CameraController.ErrorCallback {
+		final AtomicInteger n_errors = new AtomicInteger();
+
+		@Override
+		public void onError() {
+			n_errors.incrementAndGet();
+		}
+	}
+
+	@Before
+	public void setUp() {
+		camera_controller = new CameraControllerFake(0, null);
+		camera_controller.setJpegSize(jpeg_size);
+		camera_controller.setCaptureLatency(0);
+		camera_controller.setImageLatency(0);
+	}
+
+	@After
+	public void tearDown() {
+		camera_controller.release();
+	}
+
+	/** A sustained burst that the application can't save as fast as the camera produces it: the
+	 *  fake must wait for the queue rather than overfilling it, so the throughput is limited by
+	 *  the consumer.
+	 */
+	@Test
+	public void testSustainedBurst() throws InterruptedException {
+		final int n_burst = 40;
+		final int max_queue = 4;
+		final long consumer_ms = 20;
+		camera_controller.setBurstInterval(5);
+		camera_controller.setBurstType(CameraController.BurstType.BURSTTYPE_NORMAL);
+		camera_controller.setBurstNImages(n_burst);
+		QueueingCallback callback = new QueueingCallback(max_queue, consumer_ms);
+		CountingErrorCallback error = new CountingErrorCallback();
+
+		long start_time_ns = System.nanoTime();
+		camera_controller.takePicture(callback, error);
+		callback.await();
+		long time_ms = (System.nanoTime() - start_time_ns)/1000000;
+		double images_per_s = n_burst*1000.0/Math.max(time_ms, 1);
+		System.out.println("sustained burst: " + n_burst + " images in " + time_ms + "ms, " + images_per_s + " images/s, waited " + callback.n_would_block.get() + " times");
+
+		assertEquals(0, error.n_errors.get());
+		assertEquals(n_burst, callback.n_images.get());
+		assertEquals(n_burst, camera_controller.getNImages());
+		assertEquals((long)n_burst*jpeg_size, camera_controller.getNImageBytes());
+		assertEquals(1, camera_controller.getNPhotosCompleted());
+		assertTrue(callback.n_would_block.get() > 0);
+		assertTrue("queue overfilled: " + callback.max_queue_seen.get(), callback.max_queue_seen.get() <= max_queue);
+		// each image after the first max_queue must wait for one to be saved
+		assertTrue(time_ms >= (n_burst - max_queue)*consumer_ms);
+	}
+
+	/** Back to back photos, each taken as soon as the previous one completes.
+	 */
+	@Test
+	public void testRepeatedPhotos() throws InterruptedException {
+		final int n_photos = 10;
+		CountingErrorCallback error = new CountingErrorCallback();
+		for(int i=0;i<n_photos;i++) {
+			QueueingCallback callback = new QueueingCallback(2, 0);
+			camera_controller.takePicture(callback, error);
+			callback.await();
+			assertEquals(1, callback.n_images.get());
+		}
+		assertEquals(0, error.n_errors.get());
+		assertEquals(n_photos, camera_controller.getNPhotosRequested());
+		assertEquals(n_photos, camera_controller.getNPhotosCompleted());
+		assertEquals(n_photos, camera_controller.getNImages());
+	}
+
+	/** Expo bracketing returns the images together, in pooled buffers that must all be released.
+	 */
+	@Test
+	public void testExpoBracketing() throws InterruptedException {
+		camera_controller.setBurstType(CameraController.BurstType.BURSTTYPE_EXPO);
+		camera_controller.setExpoBracketingNImages(5);
+		QueueingCallback callback = new QueueingCallback(2, 0);
+		camera_controller.takePicture(callback, new CountingErrorCallback());
+		callback.await();
+		List<ImageBuffer> images = callback.burst_images;
+		assertEquals(5, images.size());
+		assertEquals(5, camera_controller.getBurstBufferPool().getNOutstanding());
+		for(ImageBuffer image : images) {
+			image.release();
+		}
+		assertEquals(0, camera_controller.getBurstBufferPool().getNOutstanding());
+	}
+
+	/** Noise reduction bursts are streamed one image at a time if the application wants, in pooled
+	 *  buffers.
+	 */
+	@Test
+	public void testStreamingNoiseReduction() throws InterruptedException {
+		camera_controller.setBurstType(CameraController.BurstType.BURSTTYPE_NORMAL);
+		camera_controller.setBurstForNoiseReduction(true, false);
+		QueueingCallback callback = new QueueingCallback(2, 0);
+		callback.streaming = true;
+		camera_controller.takePicture(callback, new CountingErrorCallback());
+		callback.await();
+		assertEquals(CameraController.N_IMAGES_NR_DARK, callback.n_frames.get());
+		assertEquals(1, callback.n_bursts_completed.get());
+		assertEquals(0, callback.n_images.get());
+		assertEquals(0, camera_controller.getBurstBufferPool().getNOutstanding());
+	}
+
+	@Test
+	public void testInjectedFailure() throws InterruptedException {
+		camera_controller.setFailTakePictureEvery(2);
+		CountingErrorCallback error = new CountingErrorCallback();
+		QueueingCallback callback = new QueueingCallback(2, 0);
+		camera_controller.takePicture(callback, error);
+		callback.await();
+		final CountDownLatch failed = new CountDownLatch(1);
+		camera_controller.takePicture(new QueueingCallback(2, 0), new CameraController.ErrorCallback() {
+			@Override
+			public void onError() {
+				failed.countDown();
+			}
+		});
+		assertTrue(failed.await(timeout_s, TimeUnit.SECONDS));
+		assertEquals(0, error.n_errors.get());
+		assertEquals(1, camera_controller.getNPhotosCompleted());
+	}
+}
@@ -0,0 +1,75 @@
+package com.example.opencameratesting.opencamera;
+
+import com.example.opencameratesting.opencamera.CameraController.JpegImage;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Runs CaptureLatencyTracker on the JVM (it only calls Android APIs for logging, which is off
+ *  unless MyDebug.LOG is set, and in dump(), which isn't tested here).
+ */
+public class CaptureLatencyTrackerTest {
+	@Test
+	public void testNoCapture() {
+		CaptureLatencyTracker tracker = new CaptureLatencyTracker();
+		assertNull(tracker.imageQueued());
+		tracker.imageSaved(null, true);
+		assertEquals(0, tracker.getCount(CaptureLatencyTracker.Stage.SAVED));
+	}
+
+	/** Saves are matched to their own photo by the token, even when they finish out of order, and
+	 *  a failed save isn't recorded.
+	 */
+	@Test
+	public void testOutOfOrder() throws InterruptedException {
+		CaptureLatencyTracker tracker = new CaptureLatencyTracker();
+		tracker.startCapture(System.nanoTime());
+		CaptureLatencyTracker.Capture first = tracker.imageQueued();
+		Thread.sleep(50);
+		tracker.startCapture(System.nanoTime());
+		CaptureLatencyTracker.Capture second = tracker.imageQueued();
+		tracker.imageSaved(second, true);
+		assertEquals(1, tracker.getCount(CaptureLatencyTracker.Stage.SAVED));
+		// only the second photo's save has been recorded, so not the 50ms the first one waited
+		assertTrue(tracker.getLatencyMs(CaptureLatencyTracker.Stage.SAVED, 100) < 50);
+		tracker.imageSaved(first, false);
+		assertEquals(1, tracker.getCount(CaptureLatencyTracker.Stage.SAVED));
+		assertEquals(2, tracker.getCount(CaptureLatencyTracker.Stage.PICTURE_TAKEN));
+	}
+
+	/** ImageSaver reports each request with its token once written, whether or not it succeeded.
+	 */
+	@Test
+	public void testImageSaver() {
+		CaptureLatencyTracker tracker = new CaptureLatencyTracker();
+		ImageSaver saver = new ImageSaver(new ImageSaver.ImageWriter() {
+			@Override
+			public boolean writeImage(byte[] data, File file) {
+				return data.length > 1;
+			}
+
+			@Override
+			public boolean writeImage(JpegImage jpeg_image, File file) {
+				return false;
+			}
+		}, 2, 4, 1024);
+		saver.setCaptureLatencyTracker(tracker);
+		try {
+			tracker.startCapture(System.nanoTime());
+			saver.saveImageJpeg(new byte[1], new File("a"), tracker.imageQueued());
+			tracker.startCapture(System.nanoTime());
+			saver.saveImageJpeg(new byte[2], new File("b"), tracker.imageQueued());
+			saver.waitUntilDone();
+			assertEquals(1, saver.getNFailed());
+			assertEquals(1, tracker.getCount(CaptureLatencyTracker.Stage.SAVED));
+		}
+		finally {
+			saver.onDestroy();
+		}
+	}
+}
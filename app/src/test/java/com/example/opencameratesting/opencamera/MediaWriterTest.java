@@ -0,0 +1,123 @@
+package com.example.opencameratesting.opencamera;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/** Runs MediaWriter on the JVM against a temporary directory (it only calls Android APIs for
+ *  logging, which is off unless MyDebug.LOG is set).
+ */
+public class MediaWriterTest {
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("mediawriter").toFile();
+	}
+
+	private static byte [] read(File file) throws IOException {
+		return Files.readAllBytes(file.toPath());
+	}
+
+	/** Returns the number of files in the directory, including temporary files.
+	 */
+	private int countFiles() {
+		String [] names = dir.list();
+		return names == null ? 0 : names.length;
+	}
+
+	@Test
+	public void testWrite() throws IOException {
+		MediaWriter writer = new MediaWriter(MediaWriter.DurabilityPolicy.SYNC_PER_FILE);
+		File file = new File(dir, "IMG_1.jpg");
+		writer.write(file, MediaWriter.bytesSource(new byte[]{1, 2, 3}));
+		assertArrayEquals(new byte[]{1, 2, 3}, read(file));
+		assertEquals(1, countFiles());
+		assertEquals(1, writer.getNFiles());
+		assertEquals(1, writer.getNSyncs());
+	}
+
+	/** With SYNC_PER_BURST, files in a batch only appear when the batch ends, and are synced then.
+	 */
+	@Test
+	public void testBatch() throws IOException {
+		MediaWriter writer = new MediaWriter(MediaWriter.DurabilityPolicy.SYNC_PER_BURST);
+		writer.beginBatch();
+		File file_a = new File(dir, "IMG_1.jpg");
+		File file_b = new File(dir, "IMG_2.jpg");
+		writer.write(file_a, MediaWriter.bytesSource(new byte[]{1}));
+		writer.write(file_b, MediaWriter.bytesSource(new byte[]{2}));
+		assertFalse(file_a.exists());
+		assertFalse(file_b.exists());
+		assertEquals(0, writer.getNSyncs());
+		writer.endBatch();
+		assertArrayEquals(new byte[]{1}, read(file_a));
+		assertArrayEquals(new byte[]{2}, read(file_b));
+		assertEquals(2, countFiles());
+		assertEquals(2, writer.getNSyncs());
+	}
+
+	/** Writing the same file twice in one batch must not mix up the data of the two writes: the
+	 *  last write wins, and the earlier temporary file is removed.
+	 */
+	@Test
+	public void testSameFileInBatch() throws IOException {
+		MediaWriter writer = new MediaWriter(MediaWriter.DurabilityPolicy.SYNC_PER_BURST);
+		File file = new File(dir, "IMG_1.jpg");
+		writer.beginBatch();
+		writer.write(file, MediaWriter.bytesSource(new byte[]{1, 2, 3, 4}));
+		writer.write(file, MediaWriter.bytesSource(new byte[]{5, 6}));
+		assertEquals(1, countFiles());
+		writer.endBatch();
+		assertArrayEquals(new byte[]{5, 6}, read(file));
+		assertEquals(1, countFiles());
+		assertEquals(1, writer.getNSyncs());
+	}
+
+	/** A file written outside a batch replaces one still pending from the batch, so the pending
+	 *  one mustn't overwrite it when the batch ends.
+	 */
+	@Test
+	public void testPolicyChangeInBatch() throws IOException {
+		MediaWriter writer = new MediaWriter(MediaWriter.DurabilityPolicy.SYNC_PER_BURST);
+		File file = new File(dir, "IMG_1.jpg");
+		writer.beginBatch();
+		writer.write(file, MediaWriter.bytesSource(new byte[]{1}));
+		writer.setDurabilityPolicy(MediaWriter.DurabilityPolicy.SYNC_PER_FILE);
+		writer.write(file, MediaWriter.bytesSource(new byte[]{2}));
+		assertArrayEquals(new byte[]{2}, read(file));
+		writer.endBatch();
+		assertArrayEquals(new byte[]{2}, read(file));
+		assertEquals(1, countFiles());
+	}
+
+	@Test
+	public void testFailure() {
+		MediaWriter writer = new MediaWriter(MediaWriter.DurabilityPolicy.NONE);
+		File file = new File(dir, "IMG_1.jpg");
+		try {
+			writer.write(file, new MediaWriter.Source() {
+				@Override
+				public void writeTo(FileChannel channel) throws IOException {
+					throw new IOException("test failure");
+				}
+			});
+			fail();
+		}
+		catch(IOException e) {
+			// expected
+		}
+		assertFalse(file.exists());
+		assertEquals(0, countFiles());
+		assertEquals(1, writer.getNFailed());
+	}
+}
@@ -0,0 +1,106 @@
+package com.example.opencameratesting.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Size, fps and camcorder profile tables as reported by typical devices, for use by the
+ *  benchmarks.
+ */
+class DeviceTables {
+	static class Size implements CameraSize {
+		final int width;
+		final int height;
+
+		Size(int width, int height) {
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public int getWidth() {
+			return width;
+		}
+
+		@Override
+		public int getHeight() {
+			return height;
+		}
+	}
+
+	// values of android.media.CamcorderProfile.QUALITY_*
+	static final int QUALITY_LOW = 0;
+	static final int QUALITY_HIGH = 1;
+	static final int QUALITY_QCIF = 2;
+	static final int QUALITY_CIF = 3;
+	static final int QUALITY_480P = 4;
+	static final int QUALITY_720P = 5;
+	static final int QUALITY_1080P = 6;
+	static final int QUALITY_QVGA = 7;
+	static final int QUALITY_2160P = 8;
+
+	private DeviceTables() {
+	}
+
+	private static List<Size> sizes(int... dims) {
+		List<Size> sizes = new ArrayList<>();
+		for(int i=0;i<dims.length;i+=2) {
+			sizes.add(new Size(dims[i], dims[i+1]));
+		}
+		return sizes;
+	}
+
+	/** Photo resolutions of a 12MP 4:3 sensor, largest first.
+	 */
+	static List<Size> pictureSizes() {
+		return sizes(4032, 3024, 4032, 2268, 3024, 3024, 4000, 3000, 4000, 2250, 3264, 2448, 3264, 1836,
+				2592, 1944, 2592, 1458, 2560, 1920, 2560, 1440, 2048, 1536, 2048, 1152, 1920, 1440,
+				1920, 1080, 1600, 1200, 1600, 900, 1440, 1080, 1280, 960, 1280, 720, 1024, 768,
+				800, 600, 800, 480, 720, 480, 640, 480, 640, 360, 352, 288, 320, 240, 176, 144);
+	}
+
+	/** Preview resolutions, largest first.
+	 */
+	static List<Size> previewSizes() {
+		return sizes(2560, 1920, 2560, 1440, 1920, 1440, 1920, 1080, 1600, 1200, 1440, 1080, 1280, 960,
+				1280, 720, 1088, 1088, 1024, 768, 960, 720, 800, 600, 800, 480, 720, 480, 640, 480,
+				640, 360, 352, 288, 320, 240, 176, 144);
+	}
+
+	/** Video resolutions, largest first.
+	 */
+	static List<Size> videoSizes() {
+		return sizes(3840, 2160, 2560, 1440, 1920, 1440, 1920, 1080, 1600, 1200, 1440, 1080, 1280, 960,
+				1280, 720, 1024, 768, 960, 720, 800, 600, 800, 480, 720, 480, 640, 480, 352, 288,
+				320, 240, 176, 144);
+	}
+
+	/** Camcorder profiles supported, from highest to lowest quality, as built by Preview.
+	 */
+	static List<Integer> profiles() {
+		return Arrays.asList(QUALITY_HIGH, QUALITY_2160P, QUALITY_1080P, QUALITY_720P, QUALITY_480P, QUALITY_CIF, QUALITY_QVGA, QUALITY_QCIF, QUALITY_LOW);
+	}
+
+	/** Resolutions corresponding to profiles().
+	 */
+	static List<Size> profileDimensions() {
+		return sizes(3840, 2160, 3840, 2160, 1920, 1080, 1280, 720, 720, 480, 352, 288, 320, 240, 176, 144, 176, 144);
+	}
+
+	/** Preview fps ranges, scaled by 1000 as returned by the camera.
+	 */
+	static List<int []> fpsRanges() {
+		List<int []> fps_ranges = new ArrayList<>();
+		fps_ranges.add(new int[]{15000, 15000});
+		fps_ranges.add(new int[]{7000, 20000});
+		fps_ranges.add(new int[]{20000, 20000});
+		fps_ranges.add(new int[]{7000, 24000});
+		fps_ranges.add(new int[]{24000, 24000});
+		fps_ranges.add(new int[]{7000, 30000});
+		fps_ranges.add(new int[]{15000, 30000});
+		fps_ranges.add(new int[]{30000, 30000});
+		fps_ranges.add(new int[]{7000, 60000});
+		fps_ranges.add(new int[]{60000, 60000});
+		return fps_ranges;
+	}
+}
@@ -0,0 +1,40 @@
+package com.example.opencameratesting.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks choosing the preview fps range.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FpsRangeChooserBenchmark {
+	@Param({"24000", "30000", "60000", "120000"})
+	public int video_frame_rate;
+
+	private List<int []> fps_ranges;
+
+	@Setup
+	public void setup() {
+		fps_ranges = DeviceTables.fpsRanges();
+	}
+
+	@Benchmark
+	public int [] matchPreviewFpsToVideo() {
+		return FpsRangeChooser.matchPreviewFpsToVideo(fps_ranges, video_frame_rate);
+	}
+
+	@Benchmark
+	public int [] chooseBestPreviewFps() {
+		return FpsRangeChooser.chooseBestPreviewFps(fps_ranges);
+	}
+}
@@ -0,0 +1,72 @@
+package com.example.opencameratesting.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks merging 3 expo bracketed images (at -2, 0 and +2 stops) at 12 megapixels
+ *  (4000x3000), using synthetic frames: a smooth random scene with a wide dynamic range, captured
+ *  at each exposure by scaling, clipping and encoding with the sRGB curve.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class HdrMergerBenchmark {
+	private final static int width = 4000;
+	private final static int height = 3000;
+	private final static double [] exposures = {0.25, 1.0, 4.0};
+
+	private int [][] frames;
+	private int [] output;
+	private HdrMerger merger;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(0);
+		// bilinearly interpolated random log radiance on a coarse grid, covering 12 stops
+		final int grid = 40;
+		int grid_width = width/grid + 2;
+		int grid_height = height/grid + 2;
+		float [] values = new float[grid_width*grid_height];
+		for(int i=0;i<values.length;i++) {
+			values[i] = -8.0f + 12.0f*random.nextFloat();
+		}
+		frames = new int[exposures.length][width*height];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				float fx = x/(float)grid;
+				float fy = y/(float)grid;
+				int ix = (int)fx, iy = (int)fy;
+				float ax = fx - ix, ay = fy - iy;
+				float top = values[iy*grid_width+ix]*(1.0f-ax) + values[iy*grid_width+ix+1]*ax;
+				float bottom = values[(iy+1)*grid_width+ix]*(1.0f-ax) + values[(iy+1)*grid_width+ix+1]*ax;
+				double radiance = Math.pow(2.0, top*(1.0f-ay) + bottom*ay);
+				for(int f=0;f<exposures.length;f++) {
+					double linear = Math.min(radiance*exposures[f], 1.0);
+					double srgb = linear <= 0.0031308 ? 12.92*linear : 1.055*Math.pow(linear, 1.0/2.4) - 0.055;
+					int value = (int)Math.round(255.0*srgb);
+					frames[f][y*width+x] = 0xff000000 | (value << 16) | (value << 8) | value;
+				}
+			}
+		}
+		output = new int[width*height];
+		merger = new HdrMerger(width, height);
+	}
+
+	/** Time to merge and tone map the 3 images.
+	 */
+	@Benchmark
+	public int [] process() {
+		merger.process(frames, exposures, output);
+		return output;
+	}
+}
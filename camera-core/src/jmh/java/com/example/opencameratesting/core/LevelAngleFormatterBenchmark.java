@@ -0,0 +1,28 @@
+package com.example.opencameratesting.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks formatting the level angle, which is done on the UI thread whenever the angle
+ *  changes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LevelAngleFormatterBenchmark {
+	// small angles take the slower path that strips "-0.0"
+	@Param({"-0.04", "1.5", "-37.25"})
+	public double level_angle;
+
+	@Benchmark
+	public String formatLevelAngle() {
+		return LevelAngleFormatter.formatLevelAngle(level_angle);
+	}
+}
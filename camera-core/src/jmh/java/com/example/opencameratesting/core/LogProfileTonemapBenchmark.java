@@ -0,0 +1,27 @@
+package com.example.opencameratesting.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks generating the log profile tonemap curve, which is done whenever the preview
+ *  request is rebuilt with the log profile enabled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LogProfileTonemapBenchmark {
+	@Param({"10", "100"})
+	public float log_profile_strength;
+
+	@Benchmark
+	public float [] createCurve() {
+		return LogProfileTonemap.createCurve(log_profile_strength);
+	}
+}
@@ -0,0 +1,89 @@
+package com.example.opencameratesting.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks merging noise reduction bursts at 12 megapixels (4000x3000), using synthetic frames:
+ *  a smooth random texture, shifted by a different amount for each frame (as from hand shake),
+ *  with added noise.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class NoiseReductionMergerBenchmark {
+	private final static int width = 4000;
+	private final static int height = 3000;
+	private final static int [][] shifts = {{0, 0}, {5, -3}, {-20, 11}, {33, 7}, {-2, -40}, {1, 1}, {9, 9}, {-7, 3}};
+
+	private int [][] frames;
+	private int [] output;
+	private NoiseReductionMerger merger;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(0);
+		// bilinearly interpolated random values on a coarse grid, with a margin for the shifts
+		final int margin = 64;
+		final int grid = 40;
+		int grid_width = (width + 2*margin)/grid + 2;
+		int grid_height = (height + 2*margin)/grid + 2;
+		float [] values = new float[grid_width*grid_height];
+		for(int i=0;i<values.length;i++) {
+			values[i] = random.nextFloat();
+		}
+		frames = new int[shifts.length][];
+		for(int f=0;f<shifts.length;f++) {
+			int [] frame = new int[width*height];
+			for(int y=0;y<height;y++) {
+				for(int x=0;x<width;x++) {
+					float fx = (x + shifts[f][0] + margin)/(float)grid;
+					float fy = (y + shifts[f][1] + margin)/(float)grid;
+					int ix = (int)fx, iy = (int)fy;
+					float ax = fx - ix, ay = fy - iy;
+					float top = values[iy*grid_width+ix]*(1.0f-ax) + values[iy*grid_width+ix+1]*ax;
+					float bottom = values[(iy+1)*grid_width+ix]*(1.0f-ax) + values[(iy+1)*grid_width+ix+1]*ax;
+					int value = (int)(30.0f + 200.0f*(top*(1.0f-ay) + bottom*ay) + 10.0f*random.nextGaussian());
+					value = Math.max(0, Math.min(255, value));
+					frame[y*width+x] = 0xff000000 | (value << 16) | (value << 8) | value;
+				}
+			}
+			frames[f] = frame;
+		}
+		output = new int[width*height];
+		merger = new NoiseReductionMerger(width, height);
+	}
+
+	/** Time to fold one more frame into a burst, as done for each frame as it arrives.
+	 */
+	@Benchmark
+	public int addFrame() {
+		if( merger.getNFrames() == 0 || merger.getNFrames() == NoiseReductionMerger.MAX_FRAMES ) {
+			merger.reset();
+			merger.addFrame(frames[0]);
+		}
+		merger.addFrame(frames[1 + merger.getNFrames() % (frames.length-1)]);
+		return merger.getNFrames();
+	}
+
+	/** Time to merge a whole burst of 8 frames.
+	 */
+	@Benchmark
+	public int [] mergeBurst() {
+		merger.reset();
+		for(int [] frame : frames) {
+			merger.addFrame(frame);
+		}
+		merger.getResult(output);
+		return output;
+	}
+}
@@ -0,0 +1,65 @@
+package com.example.opencameratesting.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks the per sensor event work done by GyroSensor. These should not allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RotationMathBenchmark {
+	private final float [] rotation_vector = new float[4];
+	private final float [] current_matrix = new float[9];
+	private final float [] delta_matrix = new float[9];
+	private final float [] temp_matrix = new float[9];
+	private final float [] accel_vector = new float[3];
+	private final float [] init_accel_vector = new float[3];
+	private final float [] temp_vector = new float[3];
+
+	@Setup
+	public void setup() {
+		// a small rotation, as seen between gyro events at SENSOR_DELAY_UI
+		double theta_over_two = 0.01;
+		float sin_theta_over_two = (float)Math.sin(theta_over_two);
+		rotation_vector[0] = sin_theta_over_two * 0.6f;
+		rotation_vector[1] = sin_theta_over_two * 0.8f;
+		rotation_vector[2] = 0.0f;
+		rotation_vector[3] = (float)Math.cos(theta_over_two);
+		RotationMath.rotationMatrixFromVector(current_matrix, rotation_vector);
+		RotationMath.setVector(init_accel_vector, 0.0f, 1.0f, 0.0f);
+		RotationMath.setVector(accel_vector, 0.05f, 0.99875f, 0.0f);
+	}
+
+	/** Integrating a gyro event.
+	 */
+	@Benchmark
+	public float [] gyroUpdate() {
+		RotationMath.rotationMatrixFromVector(delta_matrix, rotation_vector);
+		RotationMath.multiply(temp_matrix, current_matrix, delta_matrix);
+		return temp_matrix;
+	}
+
+	/** Correcting the gyro matrix for the accelerometer.
+	 */
+	@Benchmark
+	public float [] accelCorrection() {
+		RotationMath.transformVector(temp_vector, current_matrix, accel_vector);
+		RotationMath.rotationBetweenVectors(delta_matrix, temp_vector, init_accel_vector);
+		RotationMath.multiply(temp_matrix, delta_matrix, current_matrix);
+		return temp_matrix;
+	}
+
+	@Benchmark
+	public float [] relativeInverseVector() {
+		RotationMath.transformTransposeVector(temp_vector, current_matrix, init_accel_vector);
+		return temp_vector;
+	}
+}
@@ -0,0 +1,51 @@
+package com.example.opencameratesting.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks choosing the preview size, and the photo size when recording video.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SizeChooserBenchmark {
+	private List<DeviceTables.Size> preview_sizes;
+	private List<DeviceTables.Size> picture_sizes;
+	private DeviceTables.Size max_video_size;
+
+	@Setup
+	public void setup() {
+		preview_sizes = DeviceTables.previewSizes();
+		picture_sizes = DeviceTables.pictureSizes();
+		max_video_size = new DeviceTables.Size(1920, 1080);
+	}
+
+	@Benchmark
+	public CameraSize optimalPreviewSize4x3() {
+		return SizeChooser.getOptimalPreviewSize(preview_sizes, 4.0/3.0, 1080);
+	}
+
+	@Benchmark
+	public CameraSize optimalPreviewSize16x9() {
+		return SizeChooser.getOptimalPreviewSize(preview_sizes, 16.0/9.0, 1080);
+	}
+
+	@Benchmark
+	public CameraSize optimalPreviewSizeNoMatch() {
+		// no size matches the aspect ratio, so falls back to the closest
+		return SizeChooser.getOptimalPreviewSize(preview_sizes, 2.4, 1080);
+	}
+
+	@Benchmark
+	public CameraSize optimalVideoPictureSize() {
+		return SizeChooser.getOptimalVideoPictureSize(picture_sizes, 16.0/9.0, max_video_size);
+	}
+}
@@ -0,0 +1,35 @@
+package com.example.opencameratesting.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks building the video quality list, as done each time the camera is opened.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class VideoQualitiesBenchmark {
+	private List<DeviceTables.Size> video_sizes;
+	private List<Integer> profiles;
+	private List<DeviceTables.Size> dimensions;
+
+	@Setup
+	public void setup() {
+		video_sizes = DeviceTables.videoSizes();
+		profiles = DeviceTables.profiles();
+		dimensions = DeviceTables.profileDimensions();
+	}
+
+	@Benchmark
+	public List<String> fromProfiles() {
+		return VideoQualities.fromProfiles(video_sizes, profiles, dimensions);
+	}
+}
@@ -0,0 +1,9 @@
+package com.example.opencameratesting.core;
+
+/** A width and height, e.g., a supported preview, picture or video resolution. Implemented by the
+ *  application's size classes, so that the algorithms in this module don't depend on Android.
+ */
+public interface CameraSize {
+	int getWidth();
+	int getHeight();
+}
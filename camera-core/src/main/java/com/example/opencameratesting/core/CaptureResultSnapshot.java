@@ -0,0 +1,188 @@
+package com.example.opencameratesting.core;
+
+/** The fields of a capture result that the camera controller uses on every frame, copied out as
+ *  primitives. A single instance is reused for every result, and read() fetches each field from
+ *  the result exactly once, so processing a result doesn't repeatedly look up (and unbox) the
+ *  same keys, or hold on to the result's objects (e.g., the colour gains vector) afterwards.
+ *  Fields missing from a result are marked as absent, rather than keeping the previous value.
+ *  Not thread safe: it should be read and used on the thread that receives the capture results.
+ */
+public class CaptureResultSnapshot {
+	/** Supplies the fields of a capture result; implemented over CaptureResult by the camera
+	 *  controller. Each method is called once per read(), and returns null if the result doesn't
+	 *  have the field.
+	 */
+	public interface Source {
+		long getFrameNumber();
+		Long getTimestamp();
+		Integer getAfState();
+		Integer getAeState();
+		Integer getAwbState();
+		Integer getFlashMode();
+		Integer getIso();
+		Long getExposureTime();
+		Long getFrameDuration();
+		Float getFocusDistance();
+
+		/** Copies the red, green even, green odd and blue colour correction gains into gains.
+		 * @return Whether the result has colour correction gains.
+		 */
+		boolean getColorGains(float [] gains);
+	}
+
+	private long frame_number = -1;
+	private boolean has_timestamp;
+	private long timestamp;
+	private boolean has_af_state;
+	private int af_state;
+	private boolean has_ae_state;
+	private int ae_state;
+	private boolean has_awb_state;
+	private int awb_state;
+	private boolean has_flash_mode;
+	private int flash_mode;
+	private boolean has_iso;
+	private int iso;
+	private boolean has_exposure_time;
+	private long exposure_time;
+	private boolean has_frame_duration;
+	private long frame_duration;
+	private boolean has_focus_distance;
+	private float focus_distance;
+	private boolean has_color_gains;
+	private final float [] color_gains = new float[4];
+
+	/** Replaces the contents with the fields of the supplied result.
+	 */
+	public void read(Source source) {
+		frame_number = source.getFrameNumber();
+
+		Long long_value = source.getTimestamp();
+		has_timestamp = long_value != null;
+		timestamp = has_timestamp ? long_value : 0;
+
+		Integer int_value = source.getAfState();
+		has_af_state = int_value != null;
+		af_state = has_af_state ? int_value : 0;
+
+		int_value = source.getAeState();
+		has_ae_state = int_value != null;
+		ae_state = has_ae_state ? int_value : 0;
+
+		int_value = source.getAwbState();
+		has_awb_state = int_value != null;
+		awb_state = has_awb_state ? int_value : 0;
+
+		int_value = source.getFlashMode();
+		has_flash_mode = int_value != null;
+		flash_mode = has_flash_mode ? int_value : 0;
+
+		int_value = source.getIso();
+		has_iso = int_value != null;
+		iso = has_iso ? int_value : 0;
+
+		long_value = source.getExposureTime();
+		has_exposure_time = long_value != null;
+		exposure_time = has_exposure_time ? long_value : 0;
+
+		long_value = source.getFrameDuration();
+		has_frame_duration = long_value != null;
+		frame_duration = has_frame_duration ? long_value : 0;
+
+		Float float_value = source.getFocusDistance();
+		has_focus_distance = float_value != null;
+		focus_distance = has_focus_distance ? float_value : 0.0f;
+
+		has_color_gains = source.getColorGains(color_gains);
+		if( !has_color_gains ) {
+			for(int i=0;i<color_gains.length;i++)
+				color_gains[i] = 0.0f;
+		}
+	}
+
+	public long getFrameNumber() {
+		return frame_number;
+	}
+
+	public boolean hasTimestamp() {
+		return has_timestamp;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public boolean hasAfState() {
+		return has_af_state;
+	}
+
+	public int getAfState() {
+		return af_state;
+	}
+
+	public boolean hasAeState() {
+		return has_ae_state;
+	}
+
+	public int getAeState() {
+		return ae_state;
+	}
+
+	public boolean hasAwbState() {
+		return has_awb_state;
+	}
+
+	public int getAwbState() {
+		return awb_state;
+	}
+
+	public boolean hasFlashMode() {
+		return has_flash_mode;
+	}
+
+	public int getFlashMode() {
+		return flash_mode;
+	}
+
+	public boolean hasIso() {
+		return has_iso;
+	}
+
+	public int getIso() {
+		return iso;
+	}
+
+	public boolean hasExposureTime() {
+		return has_exposure_time;
+	}
+
+	public long getExposureTime() {
+		return exposure_time;
+	}
+
+	public boolean hasFrameDuration() {
+		return has_frame_duration;
+	}
+
+	public long getFrameDuration() {
+		return frame_duration;
+	}
+
+	public boolean hasFocusDistance() {
+		return has_focus_distance;
+	}
+
+	public float getFocusDistance() {
+		return focus_distance;
+	}
+
+	public boolean hasColorGains() {
+		return has_color_gains;
+	}
+
+	/** Returns the red, green even, green odd or blue colour correction gain, for channel 0 to 3.
+	 */
+	public float getColorGain(int channel) {
+		return color_gains[channel];
+	}
+}
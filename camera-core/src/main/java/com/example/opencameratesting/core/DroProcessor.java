@@ -0,0 +1,239 @@
+package com.example.opencameratesting.core;
+
+import java.util.concurrent.ForkJoinPool;
+
+/** Dynamic range optimisation ("fake HDR" from a single image), for the DRO photo mode: brightens
+ *  shadows and increases local contrast, with a tone curve that varies across the image.
+ *  The luminance is first downsampled (by 4 in each direction), and split into tiles; each tile
+ *  gets its own tone curve from contrast limited histogram equalisation of its luminance, blended
+ *  with the identity by the strength, and limited so that no value is brightened by more than
+ *  max_gain_c (so noise in dark regions isn't amplified too much). Each pixel's luminance is then
+ *  mapped by interpolating the curves of the 4 nearest tiles, and its colour scaled to match.
+ *  Each stage runs in parallel with fork/join. All buffers are allocated up front and reused, so
+ *  a DroProcessor should be kept for images of the same size.
+ *  Images are ARGB_8888 pixels, as from android.graphics.Bitmap.getPixels(); alpha is preserved.
+ */
+public class DroProcessor {
+	public static final int TILE_SIZE = 256; // size of the tiles with their own tone curve, in pixels of the full image
+	public static final float DEFAULT_STRENGTH = 0.5f;
+
+	private final static int scale_c = 4; // downsampling of the luminance used to find the tone curves
+	private final static int small_tile_size_c = TILE_SIZE/scale_c;
+	private final static float clip_limit_c = 3.0f; // histogram counts are clipped to this multiple of the mean count
+	private final static int max_gain_c = 4;
+	private final static int [] reciprocals = createReciprocals(); // 65536/i
+
+	private final int width;
+	private final int height;
+	private final ForkJoinPool pool;
+	private final int small_width;
+	private final int small_height;
+	private final byte [] small_luminance;
+	private final int tiles_x;
+	private final int tiles_y;
+	private final int [][] histograms; // per row of tiles, reused for each tile in the row
+	private final byte [] curves; // 256 entries per tile
+	// for interpolating between tiles, for each column: offsets of the curves of the tiles to the
+	// left and right, and the weight of the right tile (out of 256)
+	private final int [] column_curves0;
+	private final int [] column_curves1;
+	private final int [] column_weights;
+	private float strength = DEFAULT_STRENGTH;
+
+	public DroProcessor(int width, int height) {
+		this(width, height, ForkJoinPool.commonPool());
+	}
+
+	public DroProcessor(int width, int height, ForkJoinPool pool) {
+		if( width <= 0 || height <= 0 )
+			throw new IllegalArgumentException("invalid size: " + width + " x " + height);
+		this.width = width;
+		this.height = height;
+		this.pool = pool;
+		this.small_width = (width + scale_c - 1)/scale_c;
+		this.small_height = (height + scale_c - 1)/scale_c;
+		this.small_luminance = new byte[small_width*small_height];
+		this.tiles_x = (width + TILE_SIZE - 1)/TILE_SIZE;
+		this.tiles_y = (height + TILE_SIZE - 1)/TILE_SIZE;
+		this.histograms = new int[tiles_y][256];
+		this.curves = new byte[tiles_x*tiles_y*256];
+		this.column_curves0 = new int[width];
+		this.column_curves1 = new int[width];
+		this.column_weights = new int[width];
+		for(int x=0;x<width;x++) {
+			int tile = getTile(x, tiles_x);
+			column_curves0[x] = 256*tile;
+			column_curves1[x] = 256*Math.min(tile + 1, tiles_x - 1);
+			column_weights[x] = getWeight(x, tile, tiles_x);
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public float getStrength() {
+		return strength;
+	}
+
+	/** Sets how strongly to apply the local tone curves, from 0 (leave the image unchanged) to 1
+	 *  (full histogram equalisation, subject to the clip limit and maximum gain).
+	 */
+	public void setStrength(float strength) {
+		if( strength < 0.0f || strength > 1.0f )
+			throw new IllegalArgumentException("invalid strength: " + strength);
+		this.strength = strength;
+	}
+
+	private static int [] createReciprocals() {
+		int [] table = new int[256];
+		for(int i=1;i<256;i++) {
+			// round up, so an unchanged luminance gives a gain of exactly 1
+			table[i] = (65536 + i - 1)/i;
+		}
+		return table;
+	}
+
+	/** Returns the tile whose centre is at or before the supplied pixel coordinate (or the first
+	 *  tile, for pixels before its centre).
+	 */
+	private static int getTile(int pos, int n_tiles) {
+		int tile = (pos - TILE_SIZE/2)/TILE_SIZE;
+		if( pos < TILE_SIZE/2 )
+			tile = 0;
+		return Math.min(tile, n_tiles - 1);
+	}
+
+	/** Returns the weight (out of 256) of the tile after the supplied tile, for the supplied pixel
+	 *  coordinate.
+	 */
+	private static int getWeight(int pos, int tile, int n_tiles) {
+		int centre = tile*TILE_SIZE + TILE_SIZE/2;
+		if( pos <= centre || tile == n_tiles - 1 )
+			return 0;
+		return Math.min(256, ((pos - centre) << 8)/TILE_SIZE);
+	}
+
+	private static int getLuminance(int color) {
+		return (77*((color >> 16) & 0xff) + 150*((color >> 8) & 0xff) + 29*(color & 0xff)) >> 8;
+	}
+
+	/** Applies the tone mapping to the image, in place.
+	 */
+	public void process(final int [] argb) {
+		if( argb.length < width*height )
+			throw new IllegalArgumentException("image too small");
+
+		// downsample the luminance
+		ParallelRows.run(pool, 0, small_height, 16, new ParallelRows.Body() {
+			@Override
+			public void run(int start, int end) {
+				for(int sy=start;sy<end;sy++) {
+					int y0 = sy*scale_c, y1 = Math.min(y0 + scale_c, height);
+					for(int sx=0;sx<small_width;sx++) {
+						int x0 = sx*scale_c, x1 = Math.min(x0 + scale_c, width);
+						int sum = 0;
+						for(int y=y0;y<y1;y++) {
+							for(int x=x0,i=y*width+x0;x<x1;x++,i++) {
+								sum += getLuminance(argb[i]);
+							}
+						}
+						small_luminance[sy*small_width+sx] = (byte)(sum/((y1-y0)*(x1-x0)));
+					}
+				}
+			}
+		});
+
+		// find the tone curve for each tile
+		final float strength = this.strength;
+		ParallelRows.run(pool, 0, tiles_y, 1, new ParallelRows.Body() {
+			@Override
+			public void run(int start, int end) {
+				for(int ty=start;ty<end;ty++) {
+					int [] histogram = histograms[ty];
+					for(int tx=0;tx<tiles_x;tx++) {
+						createCurve(tx, ty, histogram, strength);
+					}
+				}
+			}
+		});
+
+		// apply the curves
+		ParallelRows.run(pool, 0, height, 64, new ParallelRows.Body() {
+			@Override
+			public void run(int start, int end) {
+				for(int y=start;y<end;y++) {
+					int tile_y = getTile(y, tiles_y);
+					int row_curves0 = 256*tiles_x*tile_y;
+					int row_curves1 = 256*tiles_x*Math.min(tile_y + 1, tiles_y - 1);
+					int weight_y = getWeight(y, tile_y, tiles_y);
+					for(int x=0,i=y*width;x<width;x++,i++) {
+						int color = argb[i];
+						int luminance = getLuminance(color);
+						if( luminance == 0 )
+							continue; // curves always map 0 to 0
+						int curve0 = column_curves0[x] + luminance;
+						int curve1 = column_curves1[x] + luminance;
+						int weight_x = column_weights[x];
+						int top = (curves[row_curves0+curve0] & 0xff)*(256-weight_x) + (curves[row_curves0+curve1] & 0xff)*weight_x;
+						int bottom = (curves[row_curves1+curve0] & 0xff)*(256-weight_x) + (curves[row_curves1+curve1] & 0xff)*weight_x;
+						int new_luminance = (top*(256-weight_y) + bottom*weight_y + (1 << 15)) >> 16;
+						int gain = (new_luminance*reciprocals[luminance]) >> 8; // 8.8 fixed point
+						int r = Math.min(255, (((color >> 16) & 0xff)*gain) >> 8);
+						int g = Math.min(255, (((color >> 8) & 0xff)*gain) >> 8);
+						int b = Math.min(255, ((color & 0xff)*gain) >> 8);
+						argb[i] = (color & 0xff000000) | (r << 16) | (g << 8) | b;
+					}
+				}
+			}
+		});
+	}
+
+	private void createCurve(int tx, int ty, int [] histogram, float strength) {
+		for(int i=0;i<256;i++) {
+			histogram[i] = 0;
+		}
+		int sx0 = tx*small_tile_size_c, sx1 = Math.min(sx0 + small_tile_size_c, small_width);
+		int sy0 = ty*small_tile_size_c, sy1 = Math.min(sy0 + small_tile_size_c, small_height);
+		for(int sy=sy0;sy<sy1;sy++) {
+			for(int sx=sx0,i=sy*small_width+sx0;sx<sx1;sx++,i++) {
+				histogram[small_luminance[i] & 0xff]++;
+			}
+		}
+		int n_values = (sx1-sx0)*(sy1-sy0);
+
+		// clip the histogram, and redistribute the excess evenly, so flat regions aren't overly stretched
+		int clip = Math.max(1, (int)(clip_limit_c*n_values/256));
+		int excess = 0;
+		for(int i=0;i<256;i++) {
+			if( histogram[i] > clip ) {
+				excess += histogram[i] - clip;
+				histogram[i] = clip;
+			}
+		}
+		int add = excess/256;
+		int remainder = excess - 256*add;
+		for(int i=0;i<256;i++) {
+			histogram[i] += add;
+		}
+		// spread the remainder across the range, so the total is still n_values
+		for(int i=0;i<remainder;i++) {
+			histogram[(i*256)/remainder]++;
+		}
+
+		int curve_offset = 256*(ty*tiles_x+tx);
+		int cumulative = 0;
+		for(int i=0;i<256;i++) {
+			// use the midpoint of each bin, so a uniform histogram gives the identity
+			float equalised = 255.0f*(cumulative + 0.5f*histogram[i])/n_values;
+			cumulative += histogram[i];
+			float value = i + strength*(equalised - i);
+			value = Math.min(value, (float)(max_gain_c*i));
+			curves[curve_offset+i] = (byte)Math.max(0, Math.min(255, (int)(value + 0.5f)));
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.example.opencameratesting.core;
+
+import java.util.List;
+
+/** Chooses preview frame rate ranges. Ranges are arrays of {min, max}, in frames per second
+ *  multiplied by 1000 (as used by the old Camera API).
+ */
+public class FpsRangeChooser {
+	private FpsRangeChooser() {
+	}
+
+	/** Returns the narrowest range that includes video_frame_rate; if no range includes it, returns
+	 *  the closest range.
+	 */
+	public static int [] matchPreviewFpsToVideo(List<int []> fps_ranges, int video_frame_rate) {
+		int selected_min_fps = -1, selected_max_fps = -1, selected_diff = -1;
+		for(int i=0;i<fps_ranges.size();i++) {
+			int [] fps_range = fps_ranges.get(i);
+			int min_fps = fps_range[0];
+			int max_fps = fps_range[1];
+			if( min_fps <= video_frame_rate && max_fps >= video_frame_rate ) {
+				int diff = max_fps - min_fps;
+				if( selected_diff == -1 || diff < selected_diff ) {
+					selected_min_fps = min_fps;
+					selected_max_fps = max_fps;
+					selected_diff = diff;
+				}
+			}
+		}
+		if( selected_min_fps == -1 ) {
+			selected_diff = -1;
+			int selected_dist = -1;
+			for(int i=0;i<fps_ranges.size();i++) {
+				int [] fps_range = fps_ranges.get(i);
+				int min_fps = fps_range[0];
+				int max_fps = fps_range[1];
+				int diff = max_fps - min_fps;
+				int dist;
+				if( max_fps < video_frame_rate )
+					dist = video_frame_rate - max_fps;
+				else
+					dist = min_fps - video_frame_rate;
+				if( selected_dist == -1 || dist < selected_dist || ( dist == selected_dist && diff < selected_diff ) ) {
+					selected_min_fps = min_fps;
+					selected_max_fps = max_fps;
+					selected_dist = dist;
+					selected_diff = diff;
+				}
+			}
+		}
+		return new int[]{selected_min_fps, selected_max_fps};
+	}
+
+	/** Returns the range with the lowest minimum that can reach 30fps (if more than one, the one
+	 *  with the highest maximum); if none can reach 30fps, returns the widest range.
+	 */
+	public static int [] chooseBestPreviewFps(List<int []> fps_ranges) {
+		// find value with lowest min that has max >= 30; if more than one of these, pick the one with highest max
+		int selected_min_fps = -1, selected_max_fps = -1;
+		for(int i=0;i<fps_ranges.size();i++) {
+			int [] fps_range = fps_ranges.get(i);
+			int min_fps = fps_range[0];
+			int max_fps = fps_range[1];
+			if( max_fps >= 30000 ) {
+				if( selected_min_fps == -1 || min_fps < selected_min_fps ) {
+					selected_min_fps = min_fps;
+					selected_max_fps = max_fps;
+				}
+				else if( min_fps == selected_min_fps && max_fps > selected_max_fps ) {
+					selected_min_fps = min_fps;
+					selected_max_fps = max_fps;
+				}
+			}
+		}
+
+		if( selected_min_fps == -1 ) {
+			// just pick the widest range; if more than one, pick the one with highest max
+			int selected_diff = -1;
+			for(int i=0;i<fps_ranges.size();i++) {
+				int [] fps_range = fps_ranges.get(i);
+				int min_fps = fps_range[0];
+				int max_fps = fps_range[1];
+				int diff = max_fps - min_fps;
+				if( selected_diff == -1 || diff > selected_diff ) {
+					selected_min_fps = min_fps;
+					selected_max_fps = max_fps;
+					selected_diff = diff;
+				}
+				else if( diff == selected_diff && max_fps > selected_max_fps ) {
+					selected_min_fps = min_fps;
+					selected_max_fps = max_fps;
+					selected_diff = diff;
+				}
+			}
+		}
+		return new int[]{selected_min_fps, selected_max_fps};
+	}
+}
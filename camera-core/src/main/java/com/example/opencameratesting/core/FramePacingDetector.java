@@ -0,0 +1,213 @@
+package com.example.opencameratesting.core;
+
+import java.util.Arrays;
+
+/** Measures the cadence of preview frames from their sensor timestamps, and detects frames that
+ *  arrive late (i.e., frames were skipped). Each frame's interval is compared to the interval
+ *  expected for it: the frame duration reported by the camera, limited to the fps range that was
+ *  requested (so a device that runs slower than the requested range counts as skipping frames,
+ *  but a frame rate that varies within the range doesn't). A frame is janky if its interval is
+ *  more than 1.5 times the expected interval.
+ *  Rolling statistics are kept over the most recent frames, and the Listener is called when the
+ *  proportion of janky frames over that window rises above a threshold.
+ *  Frames are supplied from one thread, but the statistics may be read from any thread.
+ */
+public class FramePacingDetector {
+	public interface Listener {
+		/** Called when the proportion of janky frames in the window rises above the threshold. Not
+		 *  called again until it has fallen back to half the threshold. Called on the thread that
+		 *  calls onFrame().
+		 */
+		void onJank(FramePacingDetector detector);
+	}
+
+	private static final double jank_factor_c = 1.5; // intervals longer than this many times the expected interval are janky
+
+	private final Listener listener;
+	private final double jank_threshold;
+	private final long [] intervals; // recent frame intervals in nanoseconds, circular
+	private final boolean [] janky; // whether each of the recent intervals was janky
+	private int n_window; // number of valid entries in intervals
+	private int window_pos; // where the next interval is written
+	private int n_window_janky;
+	private boolean in_jank; // whether the listener has been called, and not yet re-armed
+
+	private long min_interval_ns; // from the requested fps range, or 0 if not set
+	private long max_interval_ns; // from the requested fps range, or 0 if not set
+	private long last_timestamp_ns = -1;
+	private long last_expected_interval_ns;
+
+	private long n_frames;
+	private long n_janky_frames;
+	private long n_skipped_frames;
+
+	/**
+	 * @param window_size    The number of recent frames that the rolling statistics are over.
+	 * @param jank_threshold The proportion (0 to 1) of janky frames in the window above which the
+	 *                       listener is called.
+	 * @param listener       Called when jank exceeds the threshold; may be null.
+	 */
+	public FramePacingDetector(int window_size, double jank_threshold, Listener listener) {
+		if( window_size <= 0 )
+			throw new IllegalArgumentException("invalid window_size: " + window_size);
+		this.intervals = new long[window_size];
+		this.janky = new boolean[window_size];
+		this.jank_threshold = jank_threshold;
+		this.listener = listener;
+	}
+
+	/** Sets the requested fps range, in frames per second multiplied by 1000 (as passed to
+	 *  CameraController.setPreviewFpsRange()). Pass 0 for both to clear, in which case only the
+	 *  reported frame durations are used.
+	 */
+	public synchronized void setFpsRange(int min_fps, int max_fps) {
+		min_interval_ns = max_fps > 0 ? 1000000000000L/max_fps : 0;
+		max_interval_ns = min_fps > 0 ? 1000000000000L/min_fps : 0;
+	}
+
+	/** Forgets the previous frame, so that the next interval isn't measured across a gap that's
+	 *  expected, e.g., when the preview is stopped, or for a still capture.
+	 */
+	public synchronized void restart() {
+		last_timestamp_ns = -1;
+	}
+
+	/** Clears all statistics.
+	 */
+	public synchronized void reset() {
+		last_timestamp_ns = -1;
+		last_expected_interval_ns = 0;
+		n_window = 0;
+		window_pos = 0;
+		n_window_janky = 0;
+		in_jank = false;
+		n_frames = 0;
+		n_janky_frames = 0;
+		n_skipped_frames = 0;
+	}
+
+	/** Returns the interval expected before a frame with the supplied frame duration, or 0 if not
+	 *  known.
+	 */
+	private long getExpectedInterval(long frame_duration_ns) {
+		long expected_ns = frame_duration_ns > 0 ? frame_duration_ns : last_expected_interval_ns;
+		if( expected_ns <= 0 )
+			expected_ns = min_interval_ns;
+		if( expected_ns > 0 && min_interval_ns > 0 )
+			expected_ns = Math.max(expected_ns, min_interval_ns);
+		if( max_interval_ns > 0 )
+			expected_ns = expected_ns > 0 ? Math.min(expected_ns, max_interval_ns) : max_interval_ns;
+		return expected_ns;
+	}
+
+	/** Supplies a preview frame.
+	 * @param timestamp_ns      The sensor timestamp of the frame.
+	 * @param frame_duration_ns The frame duration reported for the frame, or 0 if not known.
+	 */
+	public void onFrame(long timestamp_ns, long frame_duration_ns) {
+		boolean call_listener = false;
+		synchronized( this ) {
+			if( last_timestamp_ns == -1 || timestamp_ns <= last_timestamp_ns ) {
+				if( last_timestamp_ns == -1 )
+					last_timestamp_ns = timestamp_ns;
+				return; // first frame, or out of order
+			}
+			long interval_ns = timestamp_ns - last_timestamp_ns;
+			last_timestamp_ns = timestamp_ns;
+			long expected_ns = getExpectedInterval(frame_duration_ns);
+			if( frame_duration_ns > 0 )
+				last_expected_interval_ns = expected_ns;
+			boolean is_janky = expected_ns > 0 && interval_ns > jank_factor_c * expected_ns;
+
+			n_frames++;
+			if( is_janky ) {
+				n_janky_frames++;
+				n_skipped_frames += Math.max(1, Math.round(interval_ns/(double)expected_ns) - 1);
+			}
+
+			if( n_window == intervals.length ) {
+				if( janky[window_pos] )
+					n_window_janky--;
+			}
+			else {
+				n_window++;
+			}
+			intervals[window_pos] = interval_ns;
+			janky[window_pos] = is_janky;
+			if( is_janky )
+				n_window_janky++;
+			window_pos = (window_pos + 1) % intervals.length;
+
+			double jank_rate = n_window_janky/(double)n_window;
+			if( !in_jank && n_window >= intervals.length/2 && jank_rate > jank_threshold ) {
+				in_jank = true;
+				call_listener = listener != null;
+			}
+			else if( in_jank && jank_rate <= 0.5*jank_threshold ) {
+				in_jank = false;
+			}
+		}
+		if( call_listener )
+			listener.onJank(this);
+	}
+
+	/** Returns the number of frame intervals measured since created or reset.
+	 */
+	public synchronized long getNFrames() {
+		return n_frames;
+	}
+
+	public synchronized long getNJankyFrames() {
+		return n_janky_frames;
+	}
+
+	/** Returns the estimated number of frames skipped since created or reset.
+	 */
+	public synchronized long getNSkippedFrames() {
+		return n_skipped_frames;
+	}
+
+	/** Returns the proportion of janky frames over the window.
+	 */
+	public synchronized double getJankRate() {
+		return n_window == 0 ? 0.0 : n_window_janky/(double)n_window;
+	}
+
+	public synchronized double getMeanIntervalMs() {
+		if( n_window == 0 )
+			return 0.0;
+		long total = 0;
+		for(int i=0;i<n_window;i++) {
+			total += intervals[i];
+		}
+		return total/(1000000.0*n_window);
+	}
+
+	public synchronized double getMaxIntervalMs() {
+		long max = 0;
+		for(int i=0;i<n_window;i++) {
+			max = Math.max(max, intervals[i]);
+		}
+		return max/1000000.0;
+	}
+
+	/** Returns the given percentile (0 to 100) of the frame intervals over the window, in
+	 *  milliseconds.
+	 */
+	public synchronized double getIntervalPercentileMs(double percentile) {
+		if( n_window == 0 )
+			return 0.0;
+		long [] sorted = Arrays.copyOf(intervals, n_window);
+		Arrays.sort(sorted);
+		int index = (int)Math.ceil(percentile/100.0*n_window) - 1;
+		index = Math.max(0, Math.min(n_window-1, index));
+		return sorted[index]/1000000.0;
+	}
+
+	/** Returns the interval expected for the most recent frame with a known frame duration, in
+	 *  milliseconds, or 0 if not known.
+	 */
+	public synchronized double getExpectedIntervalMs() {
+		return last_expected_interval_ns/1000000.0;
+	}
+}
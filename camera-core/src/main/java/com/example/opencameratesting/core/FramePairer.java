@@ -0,0 +1,218 @@
+package com.example.opencameratesting.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Matches up the parts of a captured frame that arrive separately, on different threads (e.g.,
+ *  the JPEG and RAW images from their ImageReaders, and the capture result), by the frame's
+ *  sensor timestamp. Each frame must also be announced with expect() (e.g., from
+ *  onCaptureStarted()), which fixes the order in which frames are passed on: once a frame has all
+ *  its parts, it's passed to the Listener, but only after all frames expected before it.
+ *  No locks are taken: parts are stored with atomic updates, and whichever thread completes a
+ *  frame passes on all the frames that are then ready, while calls from other threads in the
+ *  meantime just leave their frames for it. So the Listener is never called concurrently, but
+ *  may be called on any of the threads that call expect() or put().
+ */
+public class FramePairer {
+	public interface Listener {
+		/** Called, in the order the frames were expected, when a frame has all its parts.
+		 */
+		void onFramePaired(Frame frame);
+
+		/** Called for frames removed by clear() before being paired, so that any parts can be freed.
+		 *  Some parts may be null.
+		 */
+		void onFrameDiscarded(Frame frame);
+	}
+
+	public static class Frame {
+		private final long timestamp;
+		private volatile long frame_number = -1;
+		private final AtomicReferenceArray<Object> parts;
+		private final AtomicInteger mask = new AtomicInteger(); // which parts have arrived, plus expected_bit
+		private final long first_time_ns; // when the frame was first seen
+		private volatile long paired_time_ns;
+
+		Frame(long timestamp, int n_parts) {
+			this.timestamp = timestamp;
+			this.parts = new AtomicReferenceArray<>(n_parts);
+			this.first_time_ns = System.nanoTime();
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/** Returns the frame number supplied to expect(), or -1 if it hasn't been expected.
+		 */
+		public long getFrameNumber() {
+			return frame_number;
+		}
+
+		public Object getPart(int part) {
+			return parts.get(part);
+		}
+
+		/** Returns the time from the first part (or expect()) to the last, in nanoseconds, or 0 if
+		 *  the frame hasn't been paired.
+		 */
+		public long getMatchLatencyNs() {
+			return paired_time_ns == 0 ? 0 : paired_time_ns - first_time_ns;
+		}
+	}
+
+	private final int n_parts;
+	private final int expected_bit;
+	private final int complete_mask;
+	private final Listener listener;
+	private final ConcurrentHashMap<Long, Frame> frames = new ConcurrentHashMap<>();
+	private final ConcurrentLinkedQueue<Frame> order = new ConcurrentLinkedQueue<>(); // frames in the order they were expected
+	private final AtomicInteger drain_requests = new AtomicInteger(); // non-zero while a thread is passing on frames
+
+	// statistics, only written while passing on frames
+	private volatile int n_paired;
+	private volatile long total_latency_ns;
+	private volatile long max_latency_ns;
+	private volatile long last_latency_ns;
+
+	/**
+	 * @param n_parts  The number of parts each frame has (at most 30).
+	 * @param listener Receives the paired frames.
+	 */
+	public FramePairer(int n_parts, Listener listener) {
+		if( n_parts <= 0 || n_parts > 30 )
+			throw new IllegalArgumentException("invalid n_parts: " + n_parts);
+		this.n_parts = n_parts;
+		this.expected_bit = 1 << n_parts;
+		this.complete_mask = (expected_bit << 1) - 1;
+		this.listener = listener;
+	}
+
+	private Frame getFrame(long timestamp) {
+		Frame frame = frames.get(timestamp);
+		if( frame == null ) {
+			Frame new_frame = new Frame(timestamp, n_parts);
+			frame = frames.putIfAbsent(timestamp, new_frame);
+			if( frame == null )
+				frame = new_frame;
+		}
+		return frame;
+	}
+
+	/** Sets the bit, and returns whether this completed the frame.
+	 */
+	private boolean setBit(Frame frame, int bit) {
+		while( true ) {
+			int mask = frame.mask.get();
+			if( (mask & bit) != 0 )
+				return false; // already set
+			if( frame.mask.compareAndSet(mask, mask | bit) ) {
+				if( (mask | bit) == complete_mask ) {
+					frame.paired_time_ns = System.nanoTime();
+					return true;
+				}
+				return false;
+			}
+		}
+	}
+
+	/** Announces a frame, which fixes its place in the order frames are passed on. Calling again
+	 *  for the same timestamp has no effect.
+	 */
+	public void expect(long timestamp, long frame_number) {
+		Frame frame = getFrame(timestamp);
+		frame.frame_number = frame_number;
+		if( (frame.mask.get() & expected_bit) != 0 )
+			return;
+		// add to the order before marking as expected, so a complete frame is always in the order
+		order.add(frame);
+		setBit(frame, expected_bit);
+		drain();
+	}
+
+	/** Supplies one part of a frame. If the part has already been supplied, the new value is
+	 *  ignored (and returned to the caller's ownership).
+	 * @return Whether the part was stored.
+	 */
+	public boolean put(long timestamp, int part, Object value) {
+		if( part < 0 || part >= n_parts )
+			throw new IllegalArgumentException("invalid part: " + part);
+		if( value == null )
+			throw new IllegalArgumentException("null part");
+		Frame frame = getFrame(timestamp);
+		if( !frame.parts.compareAndSet(part, null, value) )
+			return false;
+		if( setBit(frame, 1 << part) )
+			drain();
+		return true;
+	}
+
+	/** Passes on frames from the head of the order that are complete. Only one thread does this at
+	 *  a time; if another thread is already doing so, it will pick up any frames we would have.
+	 */
+	private void drain() {
+		if( drain_requests.getAndIncrement() != 0 )
+			return;
+		int missed = 1;
+		do {
+			Frame frame;
+			while( (frame = order.peek()) != null ) {
+				if( frames.get(frame.timestamp) != frame ) {
+					// removed by clear()
+					order.poll();
+					continue;
+				}
+				if( frame.mask.get() != complete_mask )
+					break;
+				order.poll();
+				if( !frames.remove(frame.timestamp, frame) )
+					continue;
+				long latency_ns = frame.getMatchLatencyNs();
+				last_latency_ns = latency_ns;
+				total_latency_ns += latency_ns;
+				max_latency_ns = Math.max(max_latency_ns, latency_ns);
+				n_paired++;
+				listener.onFramePaired(frame);
+			}
+			missed = drain_requests.addAndGet(-missed);
+		} while( missed != 0 );
+	}
+
+	/** Removes all frames that haven't yet been paired, passing them to Listener.onFrameDiscarded().
+	 */
+	public void clear() {
+		for(Map.Entry<Long, Frame> entry : frames.entrySet()) {
+			if( frames.remove(entry.getKey(), entry.getValue()) )
+				listener.onFrameDiscarded(entry.getValue());
+		}
+		order.clear();
+	}
+
+	/** Returns the number of frames that have some parts, but haven't yet been paired.
+	 */
+	public int getNPending() {
+		return frames.size();
+	}
+
+	public int getNPaired() {
+		return n_paired;
+	}
+
+	/** Returns the mean time from the first part of a frame to the last, in milliseconds.
+	 */
+	public double getMeanMatchLatencyMs() {
+		int n = n_paired;
+		return n == 0 ? 0.0 : total_latency_ns/(1000000.0*n);
+	}
+
+	public double getMaxMatchLatencyMs() {
+		return max_latency_ns/1000000.0;
+	}
+
+	public double getLastMatchLatencyMs() {
+		return last_latency_ns/1000000.0;
+	}
+}
@@ -0,0 +1,272 @@
+package com.example.opencameratesting.core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.StampedLock;
+
+/** A fixed-capacity history of per-frame capture statistics (timestamp, frame number, ISO,
+ *  exposure time, frame duration, AF and AE state, focus distance and white balance temperature),
+ *  for looking at things like exposure oscillation or focus hunting. Each statistic is held in its
+ *  own primitive array, so appending a frame is O(1) and doesn't allocate; once full, the oldest
+ *  frame is overwritten.
+ *  There should be a single writer (the thread that receives capture results). Readers don't take
+ *  a lock: they read optimistically, and retry if a frame was appended while they were reading.
+ *  Values that weren't available for a frame are stored as -1 (or NaN for the focus distance),
+ *  and are skipped by getStats().
+ */
+public class FrameStatsRing {
+	public enum Field {
+		ISO,
+		EXPOSURE_TIME,
+		FRAME_DURATION,
+		AF_STATE,
+		AE_STATE,
+		FOCUS_DISTANCE,
+		WHITE_BALANCE_TEMPERATURE
+	}
+
+	/** The minimum, maximum and mean of a field over a window of frames.
+	 */
+	public static class Stats {
+		private final int n;
+		private final double min;
+		private final double max;
+		private final double mean;
+
+		Stats(int n, double min, double max, double mean) {
+			this.n = n;
+			this.min = min;
+			this.max = max;
+			this.mean = mean;
+		}
+
+		/** Returns the number of frames in the window that had a value for the field.
+		 */
+		public int getN() {
+			return n;
+		}
+
+		public double getMin() {
+			return min;
+		}
+
+		public double getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+	}
+
+	// identifies the format written by dump(); bump the version if the record layout changes
+	private static final int dump_magic_c = 0x46535231; // "FSR1"
+	private static final int dump_version_c = 1;
+
+	private final int capacity;
+	private final long [] timestamps;
+	private final long [] frame_numbers;
+	private final int [] isos;
+	private final long [] exposure_times;
+	private final long [] frame_durations;
+	private final byte [] af_states;
+	private final byte [] ae_states;
+	private final float [] focus_distances;
+	private final int [] white_balance_temperatures;
+	private long n_appended; // guarded by lock: readers see it via optimistic reads
+	private final StampedLock lock = new StampedLock(); // only ever write locked, by append() and clear()
+
+	public FrameStatsRing(int capacity) {
+		if( capacity <= 0 )
+			throw new IllegalArgumentException("invalid capacity: " + capacity);
+		this.capacity = capacity;
+		this.timestamps = new long[capacity];
+		this.frame_numbers = new long[capacity];
+		this.isos = new int[capacity];
+		this.exposure_times = new long[capacity];
+		this.frame_durations = new long[capacity];
+		this.af_states = new byte[capacity];
+		this.ae_states = new byte[capacity];
+		this.focus_distances = new float[capacity];
+		this.white_balance_temperatures = new int[capacity];
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** Records a frame, overwriting the oldest if full. Should only be called from one thread.
+	 *  Pass -1 for values that aren't available (NaN for focus_distance).
+	 */
+	public void append(long timestamp, long frame_number, int iso, long exposure_time, long frame_duration,
+					   int af_state, int ae_state, float focus_distance, int white_balance_temperature) {
+		long stamp = lock.writeLock(); // never contended, as readers don't lock
+		try {
+			int index = (int)(n_appended % capacity);
+			timestamps[index] = timestamp;
+			frame_numbers[index] = frame_number;
+			isos[index] = iso;
+			exposure_times[index] = exposure_time;
+			frame_durations[index] = frame_duration;
+			af_states[index] = (byte)af_state;
+			ae_states[index] = (byte)ae_state;
+			focus_distances[index] = focus_distance;
+			white_balance_temperatures[index] = white_balance_temperature;
+			n_appended++;
+		}
+		finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/** Removes all frames.
+	 */
+	public void clear() {
+		long stamp = lock.writeLock();
+		try {
+			n_appended = 0;
+		}
+		finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/** Returns the total number of frames appended since created or cleared (including those that
+	 *  have since been overwritten).
+	 */
+	public long getNAppended() {
+		while( true ) {
+			long stamp = lock.tryOptimisticRead();
+			long result = n_appended;
+			if( lock.validate(stamp) )
+				return result;
+			Thread.yield();
+		}
+	}
+
+	/** Returns the number of frames currently held.
+	 */
+	public int getSize() {
+		return (int)Math.min(getNAppended(), capacity);
+	}
+
+	private double getValue(Field field, int index) {
+		switch( field ) {
+			case ISO:
+				return isos[index];
+			case EXPOSURE_TIME:
+				return exposure_times[index];
+			case FRAME_DURATION:
+				return frame_durations[index];
+			case AF_STATE:
+				return af_states[index];
+			case AE_STATE:
+				return ae_states[index];
+			case FOCUS_DISTANCE:
+				return focus_distances[index];
+			case WHITE_BALANCE_TEMPERATURE:
+				return white_balance_temperatures[index];
+		}
+		throw new IllegalArgumentException("unknown field: " + field);
+	}
+
+	/** Returns the statistics of a field over the most recent n_frames frames (or fewer, if not
+	 *  that many are held). If no frame in the window has a value for the field, the returned
+	 *  Stats has getN() == 0, and a min, max and mean of 0.
+	 */
+	public Stats getStats(Field field, int n_frames) {
+		while( true ) {
+			long stamp = lock.tryOptimisticRead();
+			long end = n_appended;
+			long start = Math.max(0, end - Math.min(n_frames, capacity));
+			int n = 0;
+			double min = 0.0, max = 0.0, total = 0.0;
+			for(long i=start;i<end;i++) {
+				double value = getValue(field, (int)(i % capacity));
+				if( value < 0.0 || Double.isNaN(value) )
+					continue; // not available for this frame
+				if( n == 0 ) {
+					min = value;
+					max = value;
+				}
+				else {
+					min = Math.min(min, value);
+					max = Math.max(max, value);
+				}
+				total += value;
+				n++;
+			}
+			if( lock.validate(stamp) )
+				return new Stats(n, min, max, n == 0 ? 0.0 : total/n);
+			Thread.yield();
+		}
+	}
+
+	/** Writes the frames currently held, oldest first, to the supplied file; see
+	 *  dump(OutputStream).
+	 */
+	public void dump(File file) throws IOException {
+		try( OutputStream out = new FileOutputStream(file) ) {
+			dump(out);
+		}
+	}
+
+	/** Writes the frames currently held, oldest first, in a compact binary format (big endian, as
+	 *  written by DataOutputStream): the int magic 0x46535231 ("FSR1"), the int format version
+	 *  (1) and the int number of frames, followed by a 46 byte record per frame: long timestamp,
+	 *  long frame number, int ISO, long exposure time, long frame duration, byte AF state, byte AE
+	 *  state, float focus distance and int white balance temperature.
+	 */
+	public void dump(OutputStream out) throws IOException {
+		// copy out a consistent set of frames, so that the (slow) writing doesn't hold up append()
+		long [] timestamps_copy = new long[capacity];
+		long [] frame_numbers_copy = new long[capacity];
+		int [] isos_copy = new int[capacity];
+		long [] exposure_times_copy = new long[capacity];
+		long [] frame_durations_copy = new long[capacity];
+		byte [] af_states_copy = new byte[capacity];
+		byte [] ae_states_copy = new byte[capacity];
+		float [] focus_distances_copy = new float[capacity];
+		int [] white_balance_temperatures_copy = new int[capacity];
+		long end;
+		while( true ) {
+			long stamp = lock.tryOptimisticRead();
+			end = n_appended;
+			System.arraycopy(timestamps, 0, timestamps_copy, 0, capacity);
+			System.arraycopy(frame_numbers, 0, frame_numbers_copy, 0, capacity);
+			System.arraycopy(isos, 0, isos_copy, 0, capacity);
+			System.arraycopy(exposure_times, 0, exposure_times_copy, 0, capacity);
+			System.arraycopy(frame_durations, 0, frame_durations_copy, 0, capacity);
+			System.arraycopy(af_states, 0, af_states_copy, 0, capacity);
+			System.arraycopy(ae_states, 0, ae_states_copy, 0, capacity);
+			System.arraycopy(focus_distances, 0, focus_distances_copy, 0, capacity);
+			System.arraycopy(white_balance_temperatures, 0, white_balance_temperatures_copy, 0, capacity);
+			if( lock.validate(stamp) )
+				break;
+			Thread.yield();
+		}
+		long start = Math.max(0, end - capacity);
+
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		data.writeInt(dump_magic_c);
+		data.writeInt(dump_version_c);
+		data.writeInt((int)(end - start));
+		for(long i=start;i<end;i++) {
+			int index = (int)(i % capacity);
+			data.writeLong(timestamps_copy[index]);
+			data.writeLong(frame_numbers_copy[index]);
+			data.writeInt(isos_copy[index]);
+			data.writeLong(exposure_times_copy[index]);
+			data.writeLong(frame_durations_copy[index]);
+			data.writeByte(af_states_copy[index]);
+			data.writeByte(ae_states_copy[index]);
+			data.writeFloat(focus_distances_copy[index]);
+			data.writeInt(white_balance_temperatures_copy[index]);
+		}
+		data.flush();
+	}
+}
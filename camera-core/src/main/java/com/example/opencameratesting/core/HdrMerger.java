@@ -0,0 +1,242 @@
+package com.example.opencameratesting.core;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/** Merges expo bracketed frames into a single HDR image, and tone maps it back to an 8-bit image,
+ *  for the HDR photo mode.
+ *  Each pixel's radiance is estimated as a weighted average over the frames of its linearised
+ *  value divided by the frame's relative exposure, with values near black or white (which carry
+ *  little information, or have been clipped) given little weight. Only the darkest frame is
+ *  trusted for pixels clipped to white in all frames, and only the brightest for pixels that are
+ *  black in all frames, so the result still increases with the scene radiance. The radiance is then tone
+ *  mapped with Reinhard's global operator, keyed to the log-average luminance of the scene.
+ *  The frames are assumed to be aligned (as for a fast burst), and encoded with the sRGB curve.
+ *
+ *  Processing is done in two passes over tiles of the image (one to find the scene luminance,
+ *  one to produce the output), run in parallel with fork/join. Rather than storing the radiance
+ *  (12 bytes per pixel), it's recomputed in the second pass, so the only scratch memory is a few
+ *  values per row of tiles.
+ *  Images are ARGB_8888 pixels, as from android.graphics.Bitmap.getPixels(); alpha is ignored.
+ */
+public class HdrMerger {
+	public static final int TILE_SIZE = 64;
+
+	private final static float key_c = 0.18f; // Reinhard's "key" value, the output luminance of the log-average luminance
+	private final static float min_weight_c = 1.0f/256.0f; // so every pixel has some weight, even if clipped in all frames
+	private final static float luminance_delta_c = 1.0e-4f; // avoids log(0) for black pixels
+	private final static int linear_to_srgb_size_c = 16384;
+
+	private final static float [] srgb_to_linear = createSrgbToLinear();
+	private final static byte [] linear_to_srgb = createLinearToSrgb();
+
+	private final int width;
+	private final int height;
+	private final int tiles_x;
+	private final int tiles_y;
+	private final ForkJoinPool pool;
+	// per row of tiles, results of the first pass:
+	private final double [] row_log_sums;
+	private final float [] row_max_luminances;
+
+	// results of the last call to process():
+	private float log_average_luminance;
+	private float white_luminance;
+
+	public HdrMerger(int width, int height) {
+		this(width, height, ForkJoinPool.commonPool());
+	}
+
+	public HdrMerger(int width, int height, ForkJoinPool pool) {
+		if( width <= 0 || height <= 0 )
+			throw new IllegalArgumentException("invalid size: " + width + " x " + height);
+		this.width = width;
+		this.height = height;
+		this.pool = pool;
+		this.tiles_x = (width + TILE_SIZE - 1)/TILE_SIZE;
+		this.tiles_y = (height + TILE_SIZE - 1)/TILE_SIZE;
+		this.row_log_sums = new double[tiles_y];
+		this.row_max_luminances = new float[tiles_y];
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	private static float [] createSrgbToLinear() {
+		float [] table = new float[256];
+		for(int i=0;i<256;i++) {
+			double value = i/255.0;
+			table[i] = (float)(value <= 0.04045 ? value/12.92 : Math.pow((value + 0.055)/1.055, 2.4));
+		}
+		return table;
+	}
+
+	private static byte [] createLinearToSrgb() {
+		byte [] table = new byte[linear_to_srgb_size_c+1];
+		for(int i=0;i<=linear_to_srgb_size_c;i++) {
+			double value = i/(double)linear_to_srgb_size_c;
+			double srgb = value <= 0.0031308 ? 12.92*value : 1.055*Math.pow(value, 1.0/2.4) - 0.055;
+			table[i] = (byte)Math.round(255.0*srgb);
+		}
+		return table;
+	}
+
+	/** Weights by the largest channel of a pixel: a hat function, so that mid-tones have the most
+	 *  weight.
+	 * @param floor_dark   Whether to give dark values at least min_weight_c.
+	 * @param floor_bright Whether to give bright values at least min_weight_c.
+	 */
+	private static float [] createWeights(boolean floor_dark, boolean floor_bright) {
+		float [] table = new float[256];
+		for(int i=0;i<256;i++) {
+			float weight = 1.0f - Math.abs(2.0f*i/255.0f - 1.0f);
+			if( i < 128 ? floor_dark : floor_bright )
+				weight = Math.max(weight, min_weight_c);
+			table[i] = weight;
+		}
+		return table;
+	}
+
+	/** Returns the log-average luminance found by the last call to process(), relative to the
+	 *  reference exposure.
+	 */
+	public float getLogAverageLuminance() {
+		return log_average_luminance;
+	}
+
+	/** Returns the luminance (after scaling by the key) that was mapped to white by the last call
+	 *  to process().
+	 */
+	public float getWhiteLuminance() {
+		return white_luminance;
+	}
+
+	/** Merges the frames and writes the tone mapped result.
+	 * @param frames    The bracketed frames, each width*height pixels.
+	 * @param exposures The exposure of each frame (e.g., exposure time multiplied by ISO), in any
+	 *                  consistent units.
+	 * @param argb_out  Array of at least width*height for the result, which may be one of frames.
+	 */
+	public void process(final int [][] frames, double [] exposures, final int [] argb_out) {
+		final int n_frames = frames.length;
+		if( n_frames == 0 || exposures.length != n_frames )
+			throw new IllegalArgumentException("need an exposure for each frame");
+		for(int [] frame : frames) {
+			if( frame.length < width*height )
+				throw new IllegalArgumentException("frame too small");
+		}
+		if( argb_out.length < width*height )
+			throw new IllegalArgumentException("output too small");
+		// radiance is relative to the median exposure
+		double [] sorted_exposures = exposures.clone();
+		Arrays.sort(sorted_exposures);
+		double reference_exposure = sorted_exposures[n_frames/2];
+		final float [] inv_exposures = new float[n_frames];
+		for(int i=0;i<n_frames;i++) {
+			if( exposures[i] <= 0.0 )
+				throw new IllegalArgumentException("invalid exposure: " + exposures[i]);
+			inv_exposures[i] = (float)(reference_exposure/exposures[i]);
+		}
+		final float [][] weights = new float[n_frames][];
+		for(int i=0;i<n_frames;i++) {
+			weights[i] = createWeights(exposures[i] == sorted_exposures[n_frames-1], exposures[i] == sorted_exposures[0]);
+		}
+
+		// first pass: log-average and maximum luminance
+		ParallelRows.run(pool, 0, tiles_y, 1, new ParallelRows.Body() {
+			@Override
+			public void run(int start, int end) {
+				float [] rgb = new float[3];
+				for(int ty=start;ty<end;ty++) {
+					double log_sum = 0.0;
+					float max_luminance = 0.0f;
+					for(int tx=0;tx<tiles_x;tx++) {
+						int x0 = tx*TILE_SIZE, y0 = ty*TILE_SIZE;
+						int x1 = Math.min(x0 + TILE_SIZE, width), y1 = Math.min(y0 + TILE_SIZE, height);
+						for(int y=y0;y<y1;y++) {
+							for(int x=x0,i=y*width+x0;x<x1;x++,i++) {
+								float luminance = getRadiance(frames, inv_exposures, weights, i, rgb);
+								log_sum += Math.log(luminance_delta_c + luminance);
+								max_luminance = Math.max(max_luminance, luminance);
+							}
+						}
+					}
+					row_log_sums[ty] = log_sum;
+					row_max_luminances[ty] = max_luminance;
+				}
+			}
+		});
+		double log_sum = 0.0;
+		float max_luminance = 0.0f;
+		for(int ty=0;ty<tiles_y;ty++) {
+			log_sum += row_log_sums[ty];
+			max_luminance = Math.max(max_luminance, row_max_luminances[ty]);
+		}
+		log_average_luminance = (float)Math.exp(log_sum/((double)width*height));
+		final float scale = key_c/Math.max(log_average_luminance, luminance_delta_c);
+		// map the brightest pixel to white, though not if it would brighten the image
+		white_luminance = Math.max(scale*max_luminance, 1.0f);
+		final float inv_white_sq = 1.0f/(white_luminance*white_luminance);
+
+		// second pass: tone map
+		ParallelRows.run(pool, 0, tiles_y, 1, new ParallelRows.Body() {
+			@Override
+			public void run(int start, int end) {
+				float [] rgb = new float[3];
+				for(int ty=start;ty<end;ty++) {
+					for(int tx=0;tx<tiles_x;tx++) {
+						int x0 = tx*TILE_SIZE, y0 = ty*TILE_SIZE;
+						int x1 = Math.min(x0 + TILE_SIZE, width), y1 = Math.min(y0 + TILE_SIZE, height);
+						for(int y=y0;y<y1;y++) {
+							for(int x=x0,i=y*width+x0;x<x1;x++,i++) {
+								float luminance = getRadiance(frames, inv_exposures, weights, i, rgb);
+								float scaled = scale*luminance;
+								float mapped = scaled*(1.0f + scaled*inv_white_sq)/(1.0f + scaled);
+								float factor = luminance > 0.0f ? mapped/luminance : 0.0f;
+								argb_out[i] = 0xff000000 | (toSrgb(factor*rgb[0]) << 16) | (toSrgb(factor*rgb[1]) << 8) | toSrgb(factor*rgb[2]);
+							}
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/** Computes the radiance of pixel i into rgb (linear, relative to the reference exposure), and
+	 *  returns its luminance.
+	 */
+	private static float getRadiance(int [][] frames, float [] inv_exposures, float [][] weights, int i, float [] rgb) {
+		float sum_r = 0.0f, sum_g = 0.0f, sum_b = 0.0f, sum_weight = 0.0f;
+		for(int f=0;f<frames.length;f++) {
+			int color = frames[f][i];
+			int r = (color >> 16) & 0xff;
+			int g = (color >> 8) & 0xff;
+			int b = color & 0xff;
+			float weight = weights[f][Math.max(r, Math.max(g, b))];
+			float scale = weight*inv_exposures[f];
+			sum_r += scale*srgb_to_linear[r];
+			sum_g += scale*srgb_to_linear[g];
+			sum_b += scale*srgb_to_linear[b];
+			sum_weight += weight;
+		}
+		// sum_weight can only be 0 if the frames disagree (e.g., from movement), so treat as black
+		float inv_weight = sum_weight > 0.0f ? 1.0f/sum_weight : 0.0f;
+		rgb[0] = sum_r*inv_weight;
+		rgb[1] = sum_g*inv_weight;
+		rgb[2] = sum_b*inv_weight;
+		return 0.2126f*rgb[0] + 0.7152f*rgb[1] + 0.0722f*rgb[2];
+	}
+
+	private static int toSrgb(float linear) {
+		if( linear <= 0.0f )
+			return 0;
+		if( linear >= 1.0f )
+			return 255;
+		return linear_to_srgb[(int)(linear*linear_to_srgb_size_c + 0.5f)] & 0xff;
+	}
+}
@@ -0,0 +1,336 @@
+package com.example.opencameratesting.core;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/** Helpers for the Exif (APP1) segment of JPEG files, so that metadata can be kept (or added) when
+ *  images are encoded by code that doesn't write Exif data, such as Bitmap.compress().
+ */
+public class JpegExif {
+	private final static int marker_soi_c = 0xD8;
+	private final static int marker_eoi_c = 0xD9;
+	private final static int marker_sos_c = 0xDA;
+	private final static int marker_app1_c = 0xE1;
+
+	// TIFF field types
+	private final static int type_byte_c = 1;
+	private final static int type_ascii_c = 2;
+	private final static int type_short_c = 3;
+	private final static int type_long_c = 4;
+	private final static int type_rational_c = 5;
+
+	// tags
+	private final static int tag_orientation_c = 0x0112;
+	private final static int tag_date_time_c = 0x0132;
+	private final static int tag_exif_ifd_c = 0x8769;
+	private final static int tag_gps_ifd_c = 0x8825;
+	private final static int tag_exposure_time_c = 0x829A;
+	private final static int tag_iso_c = 0x8827;
+	private final static int tag_date_time_original_c = 0x9003;
+	private final static int tag_date_time_digitized_c = 0x9004;
+	private final static int tag_gps_version_c = 0x0000;
+	private final static int tag_gps_latitude_ref_c = 0x0001;
+	private final static int tag_gps_latitude_c = 0x0002;
+	private final static int tag_gps_longitude_ref_c = 0x0003;
+	private final static int tag_gps_longitude_c = 0x0004;
+	private final static int tag_gps_altitude_ref_c = 0x0005;
+	private final static int tag_gps_altitude_c = 0x0006;
+
+	/** The metadata to write with createSegment(). Only the fields that have been set are written,
+	 *  apart from the orientation, which defaults to 1 (normal).
+	 */
+	public static class Tags {
+		private int orientation = 1;
+		private boolean has_date_time;
+		private long date_time_ms;
+		private boolean has_exposure_time;
+		private long exposure_time_ns;
+		private boolean has_iso;
+		private int iso;
+		private boolean has_location;
+		private double latitude;
+		private double longitude;
+		private boolean has_altitude;
+		private double altitude;
+
+		/**
+		 * @param exif_orientation One of the Exif orientation values (1 to 8).
+		 */
+		public void setOrientation(int exif_orientation) {
+			this.orientation = exif_orientation;
+		}
+
+		/** Sets the time the photo was taken, written in the default time zone, as Exif doesn't
+		 *  store one.
+		 */
+		public void setDateTime(long date_time_ms) {
+			this.has_date_time = true;
+			this.date_time_ms = date_time_ms;
+		}
+
+		public void setExposureTime(long exposure_time_ns) {
+			this.has_exposure_time = true;
+			this.exposure_time_ns = exposure_time_ns;
+		}
+
+		public void setIso(int iso) {
+			this.has_iso = true;
+			this.iso = iso;
+		}
+
+		/**
+		 * @param latitude  In degrees, positive for north.
+		 * @param longitude In degrees, positive for east.
+		 */
+		public void setLocation(double latitude, double longitude) {
+			this.has_location = true;
+			this.latitude = latitude;
+			this.longitude = longitude;
+		}
+
+		/** Sets the altitude in metres above sea level; only written along with a location.
+		 */
+		public void setAltitude(double altitude) {
+			this.has_altitude = true;
+			this.altitude = altitude;
+		}
+	}
+
+	private static class Entry {
+		final int tag;
+		final int type;
+		final int count;
+		byte [] value; // big endian, may be replaced until the IFD is written
+
+		Entry(int tag, int type, int count, byte [] value) {
+			this.tag = tag;
+			this.type = type;
+			this.count = count;
+			this.value = value;
+		}
+	}
+
+	private JpegExif() {
+	}
+
+	/** Returns a copy of the Exif APP1 segment of a JPEG, including its marker, or null if the
+	 *  JPEG doesn't have one.
+	 * @param length The number of valid bytes in jpeg.
+	 */
+	public static byte [] getExifSegment(byte [] jpeg, int length) {
+		if( length < 4 || (jpeg[0] & 0xff) != 0xFF || (jpeg[1] & 0xff) != marker_soi_c )
+			return null;
+		int pos = 2;
+		while( pos + 4 <= length ) {
+			if( (jpeg[pos] & 0xff) != 0xFF )
+				return null; // corrupt
+			int marker = jpeg[pos+1] & 0xff;
+			if( marker == 0xFF ) {
+				pos++; // fill byte
+				continue;
+			}
+			if( marker == marker_sos_c || marker == marker_eoi_c ) {
+				break; // metadata segments all come before the image data
+			}
+			int segment_length = ((jpeg[pos+2] & 0xff) << 8) | (jpeg[pos+3] & 0xff); // includes the length bytes
+			if( pos + 2 + segment_length > length )
+				return null;
+			if( marker == marker_app1_c && segment_length >= 8 &&
+					jpeg[pos+4] == 'E' && jpeg[pos+5] == 'x' && jpeg[pos+6] == 'i' && jpeg[pos+7] == 'f' ) {
+				return Arrays.copyOfRange(jpeg, pos, pos + 2 + segment_length);
+			}
+			pos += 2 + segment_length;
+		}
+		return null;
+	}
+
+	/** Returns an Exif APP1 segment holding just the orientation tag.
+	 * @param exif_orientation One of the Exif orientation values (1 to 8).
+	 */
+	public static byte [] createOrientationSegment(int exif_orientation) {
+		Tags tags = new Tags();
+		tags.setOrientation(exif_orientation);
+		return createSegment(tags);
+	}
+
+	/** Returns an Exif APP1 segment holding the supplied tags.
+	 */
+	public static byte [] createSegment(Tags tags) {
+		List<Entry> ifd0 = new ArrayList<>();
+		List<Entry> exif_ifd = new ArrayList<>();
+		List<Entry> gps_ifd = new ArrayList<>();
+		// entries must be in increasing order of tag
+		ifd0.add(new Entry(tag_orientation_c, type_short_c, 1, shortValue(tags.orientation)));
+		if( tags.has_exposure_time ) {
+			// in microseconds, so that exposures of over 4 seconds fit
+			exif_ifd.add(new Entry(tag_exposure_time_c, type_rational_c, 1, rationalValues(new long[]{tags.exposure_time_ns/1000, 1000000})));
+		}
+		if( tags.has_iso ) {
+			exif_ifd.add(new Entry(tag_iso_c, type_short_c, 1, shortValue(Math.min(tags.iso, 0xFFFF))));
+		}
+		if( tags.has_date_time ) {
+			SimpleDateFormat format = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US);
+			byte [] date_time = asciiValue(format.format(new Date(tags.date_time_ms)));
+			ifd0.add(new Entry(tag_date_time_c, type_ascii_c, date_time.length, date_time));
+			exif_ifd.add(new Entry(tag_date_time_original_c, type_ascii_c, date_time.length, date_time));
+			exif_ifd.add(new Entry(tag_date_time_digitized_c, type_ascii_c, date_time.length, date_time));
+		}
+		if( tags.has_location ) {
+			gps_ifd.add(new Entry(tag_gps_version_c, type_byte_c, 4, new byte[]{2, 2, 0, 0}));
+			gps_ifd.add(new Entry(tag_gps_latitude_ref_c, type_ascii_c, 2, asciiValue(tags.latitude >= 0.0 ? "N" : "S")));
+			gps_ifd.add(new Entry(tag_gps_latitude_c, type_rational_c, 3, degreesValue(tags.latitude)));
+			gps_ifd.add(new Entry(tag_gps_longitude_ref_c, type_ascii_c, 2, asciiValue(tags.longitude >= 0.0 ? "E" : "W")));
+			gps_ifd.add(new Entry(tag_gps_longitude_c, type_rational_c, 3, degreesValue(tags.longitude)));
+			if( tags.has_altitude ) {
+				gps_ifd.add(new Entry(tag_gps_altitude_ref_c, type_byte_c, 1, new byte[]{(byte)(tags.altitude >= 0.0 ? 0 : 1)}));
+				gps_ifd.add(new Entry(tag_gps_altitude_c, type_rational_c, 1, rationalValues(new long[]{Math.round(Math.abs(tags.altitude)*1000.0), 1000})));
+			}
+		}
+		// the pointers to the sub-IFDs are fixed size, so the offsets can be worked out before their values are set
+		Entry exif_pointer = null;
+		if( !exif_ifd.isEmpty() ) {
+			exif_pointer = new Entry(tag_exif_ifd_c, type_long_c, 1, longValue(0));
+			ifd0.add(exif_pointer);
+		}
+		Entry gps_pointer = null;
+		if( !gps_ifd.isEmpty() ) {
+			gps_pointer = new Entry(tag_gps_ifd_c, type_long_c, 1, longValue(0));
+			ifd0.add(gps_pointer);
+		}
+		int ifd0_offset = 8;
+		int exif_offset = ifd0_offset + getIfdSize(ifd0);
+		int gps_offset = exif_offset + (exif_ifd.isEmpty() ? 0 : getIfdSize(exif_ifd));
+		int tiff_length = gps_offset + (gps_ifd.isEmpty() ? 0 : getIfdSize(gps_ifd));
+		if( exif_pointer != null )
+			exif_pointer.value = longValue(exif_offset);
+		if( gps_pointer != null )
+			gps_pointer.value = longValue(gps_offset);
+
+		int segment_length = 2 + 6 + tiff_length; // includes the length bytes
+		byte [] segment = new byte[2 + segment_length];
+		segment[0] = (byte)0xFF;
+		segment[1] = (byte)marker_app1_c;
+		segment[2] = (byte)(segment_length >> 8);
+		segment[3] = (byte)segment_length;
+		segment[4] = 'E'; segment[5] = 'x'; segment[6] = 'i'; segment[7] = 'f';
+		int tiff_start = 10;
+		// big endian TIFF header, IFD0 starts at offset 8
+		segment[tiff_start] = 'M'; segment[tiff_start+1] = 'M';
+		segment[tiff_start+3] = 42;
+		segment[tiff_start+7] = (byte)ifd0_offset;
+		writeIfd(segment, tiff_start, ifd0_offset, ifd0);
+		if( !exif_ifd.isEmpty() )
+			writeIfd(segment, tiff_start, exif_offset, exif_ifd);
+		if( !gps_ifd.isEmpty() )
+			writeIfd(segment, tiff_start, gps_offset, gps_ifd);
+		return segment;
+	}
+
+	/** Returns the size of an IFD, including the values that don't fit in the entries.
+	 */
+	private static int getIfdSize(List<Entry> entries) {
+		int size = 2 + 12*entries.size() + 4;
+		for(Entry entry : entries) {
+			if( entry.value.length > 4 )
+				size += (entry.value.length + 1) & ~1; // values start on a word boundary
+		}
+		return size;
+	}
+
+	/** Writes an IFD, followed by the values that don't fit in the entries. Offsets are relative to
+	 *  the start of the TIFF header, at tiff_start.
+	 */
+	private static void writeIfd(byte [] segment, int tiff_start, int ifd_offset, List<Entry> entries) {
+		int pos = tiff_start + ifd_offset;
+		int data_offset = ifd_offset + 2 + 12*entries.size() + 4;
+		writeShort(segment, pos, entries.size());
+		pos += 2;
+		for(Entry entry : entries) {
+			writeShort(segment, pos, entry.tag);
+			writeShort(segment, pos+2, entry.type);
+			writeLong(segment, pos+4, entry.count);
+			if( entry.value.length <= 4 ) {
+				System.arraycopy(entry.value, 0, segment, pos+8, entry.value.length);
+			}
+			else {
+				writeLong(segment, pos+8, data_offset);
+				System.arraycopy(entry.value, 0, segment, tiff_start + data_offset, entry.value.length);
+				data_offset += (entry.value.length + 1) & ~1;
+			}
+			pos += 12;
+		}
+		// no next IFD, left as zero
+	}
+
+	private static void writeShort(byte [] buffer, int pos, int value) {
+		buffer[pos] = (byte)(value >> 8);
+		buffer[pos+1] = (byte)value;
+	}
+
+	private static void writeLong(byte [] buffer, int pos, long value) {
+		buffer[pos] = (byte)(value >> 24);
+		buffer[pos+1] = (byte)(value >> 16);
+		buffer[pos+2] = (byte)(value >> 8);
+		buffer[pos+3] = (byte)value;
+	}
+
+	private static byte [] shortValue(int value) {
+		byte [] result = new byte[2];
+		writeShort(result, 0, value);
+		return result;
+	}
+
+	private static byte [] longValue(long value) {
+		byte [] result = new byte[4];
+		writeLong(result, 0, value);
+		return result;
+	}
+
+	/** Returns the rationals as pairs of numerator and denominator.
+	 */
+	private static byte [] rationalValues(long [] values) {
+		byte [] result = new byte[4*values.length];
+		for(int i=0;i<values.length;i++) {
+			writeLong(result, 4*i, values[i]);
+		}
+		return result;
+	}
+
+	/** Returns the string with its terminating null.
+	 */
+	private static byte [] asciiValue(String value) {
+		byte [] result = new byte[value.length() + 1];
+		for(int i=0;i<value.length();i++) {
+			result[i] = (byte)value.charAt(i);
+		}
+		return result;
+	}
+
+	/** Returns an angle (whose sign is given by the reference tag) as degrees, minutes and seconds.
+	 */
+	private static byte [] degreesValue(double angle) {
+		angle = Math.abs(angle);
+		long degrees = (long)angle;
+		angle = (angle - degrees)*60.0;
+		long minutes = (long)angle;
+		long seconds_1000 = Math.round((angle - minutes)*60.0*1000.0);
+		return rationalValues(new long[]{degrees, 1, minutes, 1, seconds_1000, 1000});
+	}
+
+	/** Returns a new JPEG with the segment inserted straight after the SOI marker.
+	 * @param length The number of valid bytes in jpeg.
+	 */
+	public static byte [] insertSegment(byte [] jpeg, int length, byte [] segment) {
+		if( length < 2 || (jpeg[0] & 0xff) != 0xFF || (jpeg[1] & 0xff) != marker_soi_c )
+			throw new IllegalArgumentException("not a JPEG");
+		byte [] result = new byte[length + segment.length];
+		System.arraycopy(jpeg, 0, result, 0, 2);
+		System.arraycopy(segment, 0, result, 2, segment.length);
+		System.arraycopy(jpeg, 2, result, 2 + segment.length, length - 2);
+		return result;
+	}
+}
@@ -0,0 +1,26 @@
+package com.example.opencameratesting.core;
+
+import java.text.DecimalFormat;
+
+/** Formats the level angle for display on the preview.
+ */
+public class LevelAngleFormatter {
+	private final static DecimalFormat decimalFormat = new DecimalFormat("#0.0");
+
+	private LevelAngleFormatter() {
+	}
+
+	/** Returns the angle to 1 decimal place, without the sign if it rounds to zero.
+	 *  Beware of calling this too often - shouldn't be every frame due to performance of DecimalFormat.
+	 *  As DecimalFormat isn't thread safe, this should only be called from the UI thread.
+	 */
+	public static String formatLevelAngle(double level_angle) {
+		String number_string = decimalFormat.format(level_angle);
+		if( Math.abs(level_angle) < 0.1 ) {
+			// avoids displaying "-0.0", see http://stackoverflow.com/questions/11929096/negative-sign-in-case-of-zero-in-java
+			// only do this when level_angle is small, to help performance
+			number_string = number_string.replaceAll("^-(?=0(.0*)?$)", "");
+		}
+		return number_string;
+	}
+}
@@ -0,0 +1,55 @@
+package com.example.opencameratesting.core;
+
+/** Generates the tonemap curve used for the "log" video profile.
+ */
+public class LogProfileTonemap {
+	public static final int MAX_CURVE_POINTS = 64; // cameras must support at least this many points for us to use a tonemap curve
+
+	private LogProfileTonemap() {
+	}
+
+	/** Maps an input value in the range [0, 1] to the log profile output.
+	 * @param log_profile_strength The strength of the log curve, should be positive.
+	 */
+	public static float getLogProfile(float in, float log_profile_strength) {
+		return getLogProfile(in, log_profile_strength, Math.log1p(log_profile_strength));
+	}
+
+	private static float getLogProfile(float in, float log_A, double log1p_A) {
+		final float power = 1.0f/2.2f;
+		float out = (float) (Math.log1p(log_A * in) / log1p_A);
+
+		// apply gamma
+		out = (float) Math.pow(out, power);
+
+		return out;
+	}
+
+	/** Returns the tonemap curve as (in, out) pairs, in the form used by
+	 *  android.hardware.camera2.params.TonemapCurve. The curve has MAX_CURVE_POINTS points, spaced
+	 *  more closely for darker values.
+	 */
+	public static float [] createCurve(float log_profile_strength) {
+		// if changing this, make sure we don't exceed MAX_CURVE_POINTS
+		// we want:
+		// 0-15: step 1 (16 values)
+		// 16-47: step 2 (16 values)
+		// 48-111: step 4 (16 values)
+		// 112-231 : step 8 (15 values)
+		// 232-255: step 24 (1 value)
+		final double log1p_A = Math.log1p(log_profile_strength);
+		int step = 1, c = 0;
+		float [] values = new float[2*MAX_CURVE_POINTS];
+		for(int i=0;i<232;i+=step) {
+			float in = ((float)i) / 255.0f;
+			values[c++] = in;
+			values[c++] = getLogProfile(in, log_profile_strength, log1p_A);
+			if( (c/2) % 16 == 0 ) {
+				step *= 2;
+			}
+		}
+		values[c++] = 1.0f;
+		values[c] = getLogProfile(1.0f, log_profile_strength, log1p_A);
+		return values;
+	}
+}
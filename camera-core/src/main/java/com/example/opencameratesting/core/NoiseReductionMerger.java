@@ -0,0 +1,408 @@
+package com.example.opencameratesting.core;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/** Merges a burst of frames to reduce noise, for the noise reduction photo mode. The first frame
+ *  added is the reference; each later frame is aligned to it in tiles, and averaged into an
+ *  accumulator, with tiles that don't match the reference well (e.g., due to movement in the
+ *  scene, or where alignment failed) given less weight, to avoid ghosting.
+ *  Frames are folded in one at a time with addFrame(), so the burst doesn't need to be held in
+ *  memory: the merger only keeps the accumulator (6 bytes per pixel) and the reference's
+ *  luminance (1 byte per pixel). It can be reused for further bursts of the same size after
+ *  calling reset().
+ *  Images are ARGB_8888 pixels, as from android.graphics.Bitmap.getPixels(); alpha is ignored.
+ *  Work is split into rows of tiles, run in parallel with fork/join.
+ *
+ *  Alignment uses a luminance pyramid (downsampled by 4 and 16): a global offset is found at the
+ *  coarsest level, then refined for each tile at the middle level and at full resolution, so each
+ *  tile may move up to about 70 pixels in total.
+ */
+public class NoiseReductionMerger {
+	public static final int MAX_FRAMES = 16; // limited so that the weighted sums fit in 16 bits
+	public static final int TILE_SIZE = 32; // must be a multiple of 16, for the levels of the alignment pyramid
+
+	private final static int max_weight_c = 16; // weight of the reference frame, and of tiles that match it
+	private final static int global_search_c = 4; // search radius for the global offset, at the coarsest level
+	private final static int tile_search_c = 2; // search radius for each tile, at the other levels
+	private final static int min_noise_x16_c = 16; // lower limit on the noise estimate, in 1/16 levels
+	private final static int pyramid_grain_c = 16; // rows per task when building the pyramid
+
+	private final int width;
+	private final int height;
+	private final int tiles_x;
+	private final int tiles_y;
+	private final ForkJoinPool pool;
+
+	private final char [] sums; // weighted sums of each channel, 3 per pixel (R, G, B)
+	private final int [] tile_weights; // total weight of each tile
+	private final int [] tile_offsets; // for the current frame, the offset (dx, dy) of each tile
+	private final int [] tile_residuals; // for the current frame, the mean absolute difference in luminance of each tile from the reference, in 1/16 levels
+	private final int [] sorted_residuals; // scratch space for the noise estimate
+	private final byte [] ref_luma; // full resolution luminance of the reference
+	private final Pyramid ref_pyramid;
+	private final Pyramid frame_pyramid;
+
+	private int n_frames;
+	private int global_dx, global_dy; // global offset of the last frame, in full resolution pixels
+	private int noise_x16; // noise estimate for the last frame, in 1/16 levels
+
+	/** Luminance downsampled by 4 (level 1) and 16 (level 2), as averages of each block.
+	 */
+	private static class Pyramid {
+		final int l1_width, l1_height, l2_width, l2_height;
+		final int [] l1;
+		final int [] l2;
+
+		Pyramid(int width, int height) {
+			l1_width = width/4;
+			l1_height = height/4;
+			l2_width = l1_width/4;
+			l2_height = l1_height/4;
+			l1 = new int[l1_width*l1_height];
+			l2 = new int[l2_width*l2_height];
+		}
+	}
+
+	public NoiseReductionMerger(int width, int height) {
+		this(width, height, ForkJoinPool.commonPool());
+	}
+
+	public NoiseReductionMerger(int width, int height, ForkJoinPool pool) {
+		if( width < 16 || height < 16 )
+			throw new IllegalArgumentException("image too small: " + width + " x " + height);
+		this.width = width;
+		this.height = height;
+		this.pool = pool;
+		this.tiles_x = (width + TILE_SIZE - 1)/TILE_SIZE;
+		this.tiles_y = (height + TILE_SIZE - 1)/TILE_SIZE;
+		int n_tiles = tiles_x*tiles_y;
+		this.sums = new char[3*width*height];
+		this.tile_weights = new int[n_tiles];
+		this.tile_offsets = new int[2*n_tiles];
+		this.tile_residuals = new int[n_tiles];
+		this.sorted_residuals = new int[n_tiles];
+		this.ref_luma = new byte[width*height];
+		this.ref_pyramid = new Pyramid(width, height);
+		this.frame_pyramid = new Pyramid(width, height);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getNFrames() {
+		return n_frames;
+	}
+
+	/** Returns the global offset of the last frame added from the reference, in pixels.
+	 */
+	public int getGlobalOffsetX() {
+		return global_dx;
+	}
+
+	public int getGlobalOffsetY() {
+		return global_dy;
+	}
+
+	/** Returns the noise estimated for the last frame added: the median over the tiles of the
+	 *  mean absolute difference in luminance from the reference, after alignment.
+	 */
+	public float getNoiseLevel() {
+		return noise_x16/16.0f;
+	}
+
+	/** Starts a new burst.
+	 */
+	public void reset() {
+		n_frames = 0;
+		global_dx = 0;
+		global_dy = 0;
+		noise_x16 = 0;
+	}
+
+	private static int luma(int color) {
+		return (((color >> 16) & 0xff) + 2*((color >> 8) & 0xff) + (color & 0xff)) >> 2;
+	}
+
+	private static int clamp(int value, int max) {
+		return value < 0 ? 0 : (value > max ? max : value);
+	}
+
+	/** Adds the next frame of the burst. The first frame becomes the reference that the others are
+	 *  aligned to. The array isn't kept, so may be reused by the caller.
+	 * @param argb The pixels, width*height in row order.
+	 */
+	public void addFrame(final int [] argb) {
+		if( argb.length < width*height )
+			throw new IllegalArgumentException("frame too small");
+		if( n_frames == MAX_FRAMES )
+			throw new IllegalStateException("too many frames");
+		if( n_frames == 0 ) {
+			addReference(argb);
+		}
+		else {
+			buildPyramid(argb, frame_pyramid);
+			alignGlobal();
+			ParallelRows.run(pool, 0, tiles_y, 1, new ParallelRows.Body() {
+				@Override
+				public void run(int start, int end) {
+					alignTiles(argb, start, end);
+				}
+			});
+			estimateNoise();
+			ParallelRows.run(pool, 0, tiles_y, 1, new ParallelRows.Body() {
+				@Override
+				public void run(int start, int end) {
+					accumulateTiles(argb, start, end);
+				}
+			});
+		}
+		n_frames++;
+	}
+
+	private void addReference(final int [] argb) {
+		global_dx = 0;
+		global_dy = 0;
+		noise_x16 = 0;
+		buildPyramid(argb, ref_pyramid);
+		ParallelRows.run(pool, 0, height, pyramid_grain_c, new ParallelRows.Body() {
+			@Override
+			public void run(int start, int end) {
+				for(int y=start;y<end;y++) {
+					for(int x=0,i=y*width;x<width;x++,i++) {
+						int color = argb[i];
+						ref_luma[i] = (byte)luma(color);
+						sums[3*i] = (char)(max_weight_c*((color >> 16) & 0xff));
+						sums[3*i+1] = (char)(max_weight_c*((color >> 8) & 0xff));
+						sums[3*i+2] = (char)(max_weight_c*(color & 0xff));
+					}
+				}
+			}
+		});
+		Arrays.fill(tile_weights, max_weight_c);
+	}
+
+	private void buildPyramid(final int [] argb, final Pyramid pyramid) {
+		ParallelRows.run(pool, 0, pyramid.l1_height, pyramid_grain_c, new ParallelRows.Body() {
+			@Override
+			public void run(int start, int end) {
+				for(int ly=start;ly<end;ly++) {
+					for(int lx=0;lx<pyramid.l1_width;lx++) {
+						int sum = 0;
+						for(int dy=0;dy<4;dy++) {
+							int i = (4*ly+dy)*width + 4*lx;
+							sum += luma(argb[i]) + luma(argb[i+1]) + luma(argb[i+2]) + luma(argb[i+3]);
+						}
+						pyramid.l1[ly*pyramid.l1_width+lx] = sum >> 4;
+					}
+				}
+			}
+		});
+		// level 2 is small enough to not be worth splitting
+		for(int ly=0;ly<pyramid.l2_height;ly++) {
+			for(int lx=0;lx<pyramid.l2_width;lx++) {
+				int sum = 0;
+				for(int dy=0;dy<4;dy++) {
+					int i = (4*ly+dy)*pyramid.l1_width + 4*lx;
+					sum += pyramid.l1[i] + pyramid.l1[i+1] + pyramid.l1[i+2] + pyramid.l1[i+3];
+				}
+				pyramid.l2[ly*pyramid.l2_width+lx] = sum >> 4;
+			}
+		}
+	}
+
+	/** Finds the offset of the whole frame at the coarsest level, comparing only the overlapping
+	 *  parts of the images.
+	 */
+	private void alignGlobal() {
+		int w = ref_pyramid.l2_width;
+		int h = ref_pyramid.l2_height;
+		int [] ref = ref_pyramid.l2;
+		int [] frame = frame_pyramid.l2;
+		long best_sad = Long.MAX_VALUE;
+		long best_count = 1;
+		int best_dx = 0, best_dy = 0;
+		for(int dy=-global_search_c;dy<=global_search_c;dy++) {
+			for(int dx=-global_search_c;dx<=global_search_c;dx++) {
+				int x0 = Math.max(0, -dx), x1 = Math.min(w, w - dx);
+				int y0 = Math.max(0, -dy), y1 = Math.min(h, h - dy);
+				if( x1 <= x0 || y1 <= y0 )
+					continue;
+				long sad = 0;
+				for(int y=y0;y<y1;y++) {
+					int ref_i = y*w;
+					int frame_i = (y+dy)*w + dx;
+					for(int x=x0;x<x1;x++) {
+						sad += Math.abs(ref[ref_i+x] - frame[frame_i+x]);
+					}
+				}
+				long count = (long)(x1-x0)*(y1-y0);
+				// compare sad/count with best_sad/best_count, preferring no movement if equal
+				if( sad*best_count < best_sad*count || (sad*best_count == best_sad*count && Math.abs(dx)+Math.abs(dy) < Math.abs(best_dx)+Math.abs(best_dy)) ) {
+					best_sad = sad;
+					best_count = count;
+					best_dx = dx;
+					best_dy = dy;
+				}
+			}
+		}
+		global_dx = 16*best_dx;
+		global_dy = 16*best_dy;
+	}
+
+	/** Refines the offset of each tile in tile rows start to end, at level 1 and then at full
+	 *  resolution, and records how well each tile matches.
+	 */
+	private void alignTiles(int [] argb, int start, int end) {
+		final int l1_tile = TILE_SIZE/4;
+		final int l1_width = ref_pyramid.l1_width;
+		final int l1_height = ref_pyramid.l1_height;
+		for(int ty=start;ty<end;ty++) {
+			for(int tx=0;tx<tiles_x;tx++) {
+				int tile = ty*tiles_x + tx;
+				// level 1
+				int best_dx1 = global_dx/4, best_dy1 = global_dy/4;
+				int x0 = tx*l1_tile, y0 = ty*l1_tile;
+				int x1 = Math.min(x0 + l1_tile, l1_width), y1 = Math.min(y0 + l1_tile, l1_height);
+				if( x1 > x0 && y1 > y0 ) {
+					int centre_dx = best_dx1, centre_dy = best_dy1;
+					int best_sad = Integer.MAX_VALUE;
+					for(int dy=centre_dy-tile_search_c;dy<=centre_dy+tile_search_c;dy++) {
+						for(int dx=centre_dx-tile_search_c;dx<=centre_dx+tile_search_c;dx++) {
+							int sad = 0;
+							for(int y=y0;y<y1;y++) {
+								int ref_i = y*l1_width;
+								int frame_row = clamp(y+dy, l1_height-1)*l1_width;
+								for(int x=x0;x<x1;x++) {
+									sad += Math.abs(ref_pyramid.l1[ref_i+x] - frame_pyramid.l1[frame_row+clamp(x+dx, l1_width-1)]);
+								}
+							}
+							if( sad < best_sad ) {
+								best_sad = sad;
+								best_dx1 = dx;
+								best_dy1 = dy;
+							}
+						}
+					}
+				}
+				// full resolution, sampling every other pixel
+				x0 = tx*TILE_SIZE;
+				y0 = ty*TILE_SIZE;
+				x1 = Math.min(x0 + TILE_SIZE, width);
+				y1 = Math.min(y0 + TILE_SIZE, height);
+				int centre_dx = 4*best_dx1, centre_dy = 4*best_dy1;
+				int best_dx = centre_dx, best_dy = centre_dy;
+				int best_sad = Integer.MAX_VALUE;
+				int count = 0;
+				for(int dy=centre_dy-tile_search_c;dy<=centre_dy+tile_search_c;dy++) {
+					for(int dx=centre_dx-tile_search_c;dx<=centre_dx+tile_search_c;dx++) {
+						int sad = 0;
+						int this_count = 0;
+						for(int y=y0;y<y1;y+=2) {
+							int ref_i = y*width;
+							int frame_row = clamp(y+dy, height-1)*width;
+							for(int x=x0;x<x1;x+=2) {
+								sad += Math.abs((ref_luma[ref_i+x] & 0xff) - luma(argb[frame_row+clamp(x+dx, width-1)]));
+								this_count++;
+							}
+						}
+						if( sad < best_sad ) {
+							best_sad = sad;
+							best_dx = dx;
+							best_dy = dy;
+							count = this_count;
+						}
+					}
+				}
+				tile_offsets[2*tile] = best_dx;
+				tile_offsets[2*tile+1] = best_dy;
+				tile_residuals[tile] = (int)((16L*best_sad)/Math.max(count, 1));
+			}
+		}
+	}
+
+	/** Estimates the noise from the median residual, assuming that most of the scene is static, so
+	 *  the residuals of most tiles are due to noise.
+	 */
+	private void estimateNoise() {
+		System.arraycopy(tile_residuals, 0, sorted_residuals, 0, tile_residuals.length);
+		Arrays.sort(sorted_residuals);
+		noise_x16 = Math.max(sorted_residuals[sorted_residuals.length/2], min_noise_x16_c);
+	}
+
+	/** Returns the weight for a tile: full weight if the residual is within twice the noise level,
+	 *  falling off as the residual increases beyond that.
+	 */
+	private int getTileWeight(int residual_x16) {
+		long excess = residual_x16 - 2L*noise_x16;
+		if( excess <= 0 )
+			return max_weight_c;
+		long noise_sq = (long)noise_x16*noise_x16;
+		return (int)((max_weight_c*noise_sq + (noise_sq + excess*excess)/2)/(noise_sq + excess*excess));
+	}
+
+	private void accumulateTiles(int [] argb, int start, int end) {
+		for(int ty=start;ty<end;ty++) {
+			for(int tx=0;tx<tiles_x;tx++) {
+				int tile = ty*tiles_x + tx;
+				int weight = getTileWeight(tile_residuals[tile]);
+				if( weight == 0 )
+					continue;
+				tile_weights[tile] += weight;
+				int dx = tile_offsets[2*tile];
+				int dy = tile_offsets[2*tile+1];
+				int x0 = tx*TILE_SIZE, y0 = ty*TILE_SIZE;
+				int x1 = Math.min(x0 + TILE_SIZE, width), y1 = Math.min(y0 + TILE_SIZE, height);
+				for(int y=y0;y<y1;y++) {
+					int frame_row = clamp(y+dy, height-1)*width;
+					int sum_i = 3*(y*width + x0);
+					for(int x=x0;x<x1;x++) {
+						int color = argb[frame_row+clamp(x+dx, width-1)];
+						sums[sum_i] = (char)(sums[sum_i] + weight*((color >> 16) & 0xff));
+						sums[sum_i+1] = (char)(sums[sum_i+1] + weight*((color >> 8) & 0xff));
+						sums[sum_i+2] = (char)(sums[sum_i+2] + weight*(color & 0xff));
+						sum_i += 3;
+					}
+				}
+			}
+		}
+	}
+
+	/** Writes the merged image so far.
+	 * @param argb_out Array of at least width*height, which may be the array last passed to
+	 *                 addFrame().
+	 */
+	public void getResult(final int [] argb_out) {
+		if( n_frames == 0 )
+			throw new IllegalStateException("no frames");
+		if( argb_out.length < width*height )
+			throw new IllegalArgumentException("output too small");
+		ParallelRows.run(pool, 0, tiles_y, 1, new ParallelRows.Body() {
+			@Override
+			public void run(int start, int end) {
+				for(int ty=start;ty<end;ty++) {
+					for(int tx=0;tx<tiles_x;tx++) {
+						int weight = tile_weights[ty*tiles_x + tx];
+						int half = weight/2;
+						int x0 = tx*TILE_SIZE, y0 = ty*TILE_SIZE;
+						int x1 = Math.min(x0 + TILE_SIZE, width), y1 = Math.min(y0 + TILE_SIZE, height);
+						for(int y=y0;y<y1;y++) {
+							int i = y*width + x0;
+							for(int x=x0;x<x1;x++,i++) {
+								int r = (sums[3*i] + half)/weight;
+								int g = (sums[3*i+1] + half)/weight;
+								int b = (sums[3*i+2] + half)/weight;
+								argb_out[i] = 0xff000000 | (r << 16) | (g << 8) | b;
+							}
+						}
+					}
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,343 @@
+package com.example.opencameratesting.core;
+
+import java.util.concurrent.ForkJoinPool;
+
+/** Assembles a panorama incrementally, for the panorama photo mode: each frame is projected onto
+ *  a cylindrical canvas as it arrives, using the orientation of the camera when it was captured
+ *  (e.g., from the gyro sensor), and can then be discarded. So memory is one canvas, plus the
+ *  frame being added.
+ *  The cylinder's axis is the "up" direction of the first frame, and the canvas covers a range of
+ *  angles either side of the first frame's direction, scaled so that the centre of the first
+ *  frame is at the same resolution as the frames. Frames are projected in parallel strips of canvas columns; where
+ *  a frame overlaps what's already on the canvas, it's feathered in from its edges, so the seams
+ *  are blended rather than hard.
+ *  Orientations are 3x3 rotation matrices (row-major) from camera coordinates to world
+ *  coordinates, where in camera coordinates x points to the right of the image, y up, and the
+ *  camera looks along -z. Only the orientation relative to the first frame matters.
+ *  Frames may be stored rotated (as for JPEGs with an Exif orientation), in which case they're
+ *  sampled with the rotation applied, rather than making an upright copy.
+ *  Images are ARGB_8888 pixels, as from android.graphics.Bitmap.getPixels(); alpha is ignored.
+ *  In the canvas, alpha is 255 where it has been covered by a frame, and 0 elsewhere.
+ */
+public class PanoramaStitcher {
+	public static final int STRIP_WIDTH = 32; // columns of the canvas per parallel task
+
+	private final static float vertical_margin_c = 0.15f; // canvas extra height above and below the first frame, as a fraction of its height, for frames that drift up or down
+	private final static float feather_c = 0.125f; // width of the feathering at the frame's edges, as a fraction of its width
+	private final static float min_crop_height_c = 0.75f; // minimum height of the cropped panorama, as a fraction of the frame height
+
+	private final int frame_width;
+	private final int frame_height;
+	private final float focal_length; // in pixels of the frames
+	private final float min_angle;
+	private final int canvas_width;
+	private final int canvas_height;
+	private final ForkJoinPool pool;
+	private final int [] canvas;
+	// for each column of the canvas, the covered range of rows:
+	private final int [] column_tops;
+	private final int [] column_bottoms;
+
+	private int n_frames;
+	private final float [] reference = new float[9]; // orientation of the first frame
+	private final float [] relative = new float[9]; // orientation of the current frame relative to the first
+	private final float [] temp_vector = new float[3];
+	private final float [] temp_vector2 = new float[3];
+	private final float [] inverse = new float[9]; // from the first frame's coordinates to the current frame's
+
+	/**
+	 * @param frame_width  Width of the frames, in pixels.
+	 * @param frame_height Height of the frames, in pixels.
+	 * @param focal_length Focal length for the frames, in pixels (i.e., the half-width of the frame
+	 *                     divided by the tangent of half its horizontal view angle).
+	 * @param min_angle    The horizontal angle of the left edge of the canvas, relative to the
+	 *                     direction of the first frame, in radians (so 0 or negative).
+	 * @param max_angle    The horizontal angle of the right edge of the canvas, relative to the
+	 *                     direction of the first frame, in radians (so 0 or positive). The canvas
+	 *                     can cover at most 2*pi.
+	 */
+	public PanoramaStitcher(int frame_width, int frame_height, float focal_length, float min_angle, float max_angle) {
+		this(frame_width, frame_height, focal_length, min_angle, max_angle, ForkJoinPool.commonPool());
+	}
+
+	public PanoramaStitcher(int frame_width, int frame_height, float focal_length, float min_angle, float max_angle, ForkJoinPool pool) {
+		if( frame_width <= 0 || frame_height <= 0 )
+			throw new IllegalArgumentException("invalid frame size: " + frame_width + " x " + frame_height);
+		if( focal_length <= 0.0f )
+			throw new IllegalArgumentException("invalid focal length: " + focal_length);
+		if( min_angle > 0.0f || max_angle < 0.0f || max_angle - min_angle <= 0.0f || max_angle - min_angle > (float)(2.0*Math.PI) )
+			throw new IllegalArgumentException("invalid angles: " + min_angle + " to " + max_angle);
+		this.frame_width = frame_width;
+		this.frame_height = frame_height;
+		this.focal_length = focal_length;
+		this.min_angle = min_angle;
+		this.canvas_width = Math.max(1, (int)Math.ceil((max_angle - min_angle)*focal_length));
+		this.canvas_height = frame_height + 2*(int)(vertical_margin_c*frame_height);
+		this.pool = pool;
+		this.canvas = new int[canvas_width*canvas_height];
+		this.column_tops = new int[canvas_width];
+		this.column_bottoms = new int[canvas_width];
+		reset();
+	}
+
+	/** Returns the memory needed for the canvas, in bytes, so callers can choose the frame size to
+	 *  fit within a budget.
+	 */
+	public static long getCanvasBytes(int frame_width, int frame_height, float focal_length, float min_angle, float max_angle) {
+		long width = Math.max(1, (int)Math.ceil((max_angle - min_angle)*focal_length));
+		long height = frame_height + 2*(int)(vertical_margin_c*frame_height);
+		return 4*width*height;
+	}
+
+	/** Clears the canvas, to start a new panorama.
+	 */
+	public void reset() {
+		for(int i=0;i<canvas.length;i++) {
+			canvas[i] = 0;
+		}
+		for(int i=0;i<canvas_width;i++) {
+			column_tops[i] = canvas_height;
+			column_bottoms[i] = -1;
+		}
+		n_frames = 0;
+	}
+
+	public int getFrameWidth() {
+		return frame_width;
+	}
+
+	public int getFrameHeight() {
+		return frame_height;
+	}
+
+	public int getCanvasWidth() {
+		return canvas_width;
+	}
+
+	public int getCanvasHeight() {
+		return canvas_height;
+	}
+
+	/** Returns the canvas, canvas_width*canvas_height pixels.
+	 */
+	public int [] getCanvas() {
+		return canvas;
+	}
+
+	public int getNFrames() {
+		return n_frames;
+	}
+
+	/** Projects an upright frame onto the canvas.
+	 * @param argb        The frame, frame_width*frame_height pixels.
+	 * @param orientation The orientation of the camera when the frame was captured.
+	 * @return False if the frame was ignored, as it's pointing too far from the first frame to fit
+	 *         on the canvas.
+	 */
+	public boolean addFrame(final int [] argb, float [] orientation) {
+		return addFrame(argb, 0, orientation);
+	}
+
+	/** Projects a frame onto the canvas.
+	 * @param argb        The frame, frame_width*frame_height pixels.
+	 * @param rotation    The clockwise rotation in degrees (0, 90, 180 or 270) to make the stored
+	 *                    frame upright; for 90 or 270, the stored frame is frame_height pixels wide.
+	 * @param orientation The orientation of the camera when the frame was captured, for the upright
+	 *                    frame.
+	 * @return False if the frame was ignored, as it's pointing too far from the first frame to fit
+	 *         on the canvas.
+	 */
+	public boolean addFrame(final int [] argb, int rotation, float [] orientation) {
+		if( argb.length < frame_width*frame_height )
+			throw new IllegalArgumentException("frame too small");
+		final FrameSampler sampler = new FrameSampler(argb, rotation);
+		if( n_frames == 0 ) {
+			System.arraycopy(orientation, 0, reference, 0, 9);
+		}
+		// orientation relative to the first frame, i.e., from this frame's camera coordinates to the first frame's
+		RotationMath.multiplyTransposeLeft(relative, reference, orientation);
+
+		// find the columns the frame might cover, from the direction of its centre
+		RotationMath.setVector(temp_vector, 0.0f, 0.0f, -1.0f);
+		RotationMath.transformVector(temp_vector2, relative, temp_vector);
+		double centre_angle = Math.atan2(temp_vector2[0], -temp_vector2[2]);
+		// half the diagonal, in case the frame is rolled; and allow for the cylinder stretching the corners
+		double half_angle = Math.atan(Math.hypot(frame_width, frame_height)/(2.0*focal_length)) + 0.05;
+		int column0 = (int)Math.floor((centre_angle - half_angle - min_angle)*focal_length);
+		int column1 = (int)Math.ceil((centre_angle + half_angle - min_angle)*focal_length);
+		if( n_frames > 0 && (column0 < 0 || column1 > canvas_width) ) {
+			// off the edge of the canvas; though the first frame is allowed to be cropped
+			return false;
+		}
+		column0 = Math.max(column0, 0);
+		column1 = Math.min(column1, canvas_width);
+
+		// transpose, to map from the canvas (first frame) coordinates to this frame's
+		for(int i=0;i<3;i++) {
+			for(int j=0;j<3;j++) {
+				inverse[i*3+j] = relative[j*3+i];
+			}
+		}
+		final boolean first_frame = n_frames == 0;
+		ParallelRows.run(pool, column0, column1, STRIP_WIDTH, new ParallelRows.Body() {
+			@Override
+			public void run(int start, int end) {
+				projectStrip(sampler, inverse, start, end, first_frame);
+			}
+		});
+		n_frames++;
+		return true;
+	}
+
+	/** Projects the frame onto canvas columns start (inclusive) to end (exclusive).
+	 */
+	private void projectStrip(FrameSampler sampler, float [] inverse, int start, int end, boolean first_frame) {
+		final float centre_x = 0.5f*(frame_width - 1);
+		final float centre_y = 0.5f*(frame_height - 1);
+		final float feather = Math.max(1.0f, feather_c*frame_width);
+		final float inv_focal_length = 1.0f/focal_length;
+		for(int x=start;x<end;x++) {
+			double angle = min_angle + x*inv_focal_length;
+			float sin_angle = (float)Math.sin(angle);
+			float cos_angle = (float)Math.cos(angle);
+			// the direction for a canvas pixel is (sin_angle, h, -cos_angle), where h is its height
+			// on the cylinder; in the frame's coordinates, this is a + h*b:
+			float a_x = inverse[0]*sin_angle - inverse[2]*cos_angle;
+			float a_y = inverse[3]*sin_angle - inverse[5]*cos_angle;
+			float a_z = inverse[6]*sin_angle - inverse[8]*cos_angle;
+			float b_x = inverse[1], b_y = inverse[4], b_z = inverse[7];
+			int top = column_tops[x];
+			int bottom = column_bottoms[x];
+			for(int y=0;y<canvas_height;y++) {
+				float h = (canvas_height/2.0f - y)*inv_focal_length;
+				float depth = -(a_z + h*b_z);
+				if( depth <= 1.0e-3f )
+					continue; // behind the camera
+				float scale = focal_length/depth;
+				float fx = centre_x + (a_x + h*b_x)*scale;
+				float fy = centre_y - (a_y + h*b_y)*scale;
+				if( fx < 0.0f || fy < 0.0f || fx > frame_width - 1 || fy > frame_height - 1 )
+					continue;
+				int color = sampler.sample(fx, fy);
+				int index = y*canvas_width+x;
+				int old_color = canvas[index];
+				if( !first_frame && (old_color >>> 24) != 0 ) {
+					// feather in from the frame's edges, over what's already there
+					float distance = Math.min(Math.min(fx, frame_width - 1 - fx), Math.min(fy, frame_height - 1 - fy));
+					if( distance < feather ) {
+						int alpha = (int)(256.0f*distance/feather);
+						color = blend(old_color, color, alpha);
+					}
+				}
+				canvas[index] = 0xff000000 | color;
+				top = Math.min(top, y);
+				bottom = Math.max(bottom, y);
+			}
+			column_tops[x] = top;
+			column_bottoms[x] = bottom;
+		}
+	}
+
+	/** Samples a frame stored with a rotation, at coordinates of the upright frame.
+	 */
+	private class FrameSampler {
+		private final int [] argb;
+		private final int stored_width;
+		private final int stored_height;
+		// stored coordinates are offset + matrix*(upright coordinates):
+		private final float offset_x, offset_y;
+		private final float m00, m01, m10, m11;
+
+		FrameSampler(int [] argb, int rotation) {
+			this.argb = argb;
+			switch( rotation ) {
+				case 0:
+					stored_width = frame_width;
+					stored_height = frame_height;
+					offset_x = 0.0f; m00 = 1.0f; m01 = 0.0f;
+					offset_y = 0.0f; m10 = 0.0f; m11 = 1.0f;
+					break;
+				case 90:
+					stored_width = frame_height;
+					stored_height = frame_width;
+					offset_x = 0.0f; m00 = 0.0f; m01 = 1.0f;
+					offset_y = frame_width - 1; m10 = -1.0f; m11 = 0.0f;
+					break;
+				case 180:
+					stored_width = frame_width;
+					stored_height = frame_height;
+					offset_x = frame_width - 1; m00 = -1.0f; m01 = 0.0f;
+					offset_y = frame_height - 1; m10 = 0.0f; m11 = -1.0f;
+					break;
+				case 270:
+					stored_width = frame_height;
+					stored_height = frame_width;
+					offset_x = frame_height - 1; m00 = 0.0f; m01 = -1.0f;
+					offset_y = 0.0f; m10 = 1.0f; m11 = 0.0f;
+					break;
+				default:
+					throw new IllegalArgumentException("invalid rotation: " + rotation);
+			}
+		}
+
+		/** Bilinearly samples the frame, at coordinates within the upright frame.
+		 */
+		int sample(float fx, float fy) {
+			float sx = offset_x + m00*fx + m01*fy;
+			float sy = offset_y + m10*fx + m11*fy;
+			int ix = Math.max(0, Math.min((int)sx, stored_width - 2));
+			int iy = Math.max(0, Math.min((int)sy, stored_height - 2));
+			if( stored_width == 1 || stored_height == 1 ) {
+				return argb[Math.min(iy, stored_height - 1)*stored_width+Math.min(ix, stored_width - 1)];
+			}
+			int wx = Math.max(0, Math.min(256, (int)(256.0f*(sx - ix))));
+			int wy = Math.max(0, Math.min(256, (int)(256.0f*(sy - iy))));
+			int i = iy*stored_width+ix;
+			int top = blend(argb[i], argb[i+1], wx);
+			int bottom = blend(argb[i+stored_width], argb[i+stored_width+1], wx);
+			return blend(top, bottom, wy);
+		}
+	}
+
+	/** Returns color0 blended with color1 by alpha (out of 256), ignoring alpha channels.
+	 */
+	private static int blend(int color0, int color1, int alpha) {
+		int inv_alpha = 256 - alpha;
+		// red and blue together, then green
+		int rb = (((color0 & 0xff00ff)*inv_alpha + (color1 & 0xff00ff)*alpha) >>> 8) & 0xff00ff;
+		int g = (((color0 & 0xff00)*inv_alpha + (color1 & 0xff00)*alpha) >>> 8) & 0xff00;
+		return rb | g;
+	}
+
+	/** Returns the canvas column for the centre of the first frame.
+	 */
+	public int getFirstFrameColumn() {
+		return Math.min((int)(-min_angle*focal_length), canvas_width - 1);
+	}
+
+	/** Returns the rectangle of the canvas (as left, top, right, bottom, with right and bottom
+	 *  exclusive) to keep for the panorama: the columns either side of the first frame's centre
+	 *  that are covered without a gap (ignoring columns at the ends that are only partly covered,
+	 *  e.g., by the corners of a rotated frame), and the rows covered in all of those columns.
+	 *  Returns null if nothing has been added.
+	 */
+	public int [] getCrop() {
+		int min_height = (int)(min_crop_height_c*frame_height);
+		int centre = getFirstFrameColumn();
+		if( column_bottoms[centre] - column_tops[centre] + 1 < min_height )
+			return null;
+		int left = centre, right = centre + 1;
+		while( left > 0 && column_bottoms[left-1] - column_tops[left-1] + 1 >= min_height )
+			left--;
+		while( right < canvas_width && column_bottoms[right] - column_tops[right] + 1 >= min_height )
+			right++;
+		int top = 0, bottom = canvas_height;
+		for(int x=left;x<right;x++) {
+			top = Math.max(top, column_tops[x]);
+			bottom = Math.min(bottom, column_bottoms[x] + 1);
+		}
+		if( bottom <= top )
+			return null;
+		return new int[]{left, top, right, bottom};
+	}
+}
@@ -0,0 +1,55 @@
+package com.example.opencameratesting.core;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Runs a loop over a range of rows (of pixels, or of tiles) in parallel with fork/join: the
+ *  range is split in half until each part is no larger than the grain size.
+ */
+public class ParallelRows {
+	public interface Body {
+		/** Processes rows start (inclusive) to end (exclusive). May be called from several threads
+		 *  at once, for different rows.
+		 */
+		void run(int start, int end);
+	}
+
+	private ParallelRows() {
+	}
+
+	public static void run(ForkJoinPool pool, int start, int end, int grain, Body body) {
+		grain = Math.max(grain, 1);
+		if( end - start <= grain || pool.getParallelism() <= 1 ) {
+			if( end > start )
+				body.run(start, end);
+			return;
+		}
+		pool.invoke(new RowsTask(body, start, end, grain));
+	}
+
+	private static class RowsTask extends RecursiveAction {
+		private static final long serialVersionUID = 3829512754180335170L;
+		private final Body body;
+		private final int start;
+		private final int end;
+		private final int grain;
+
+		RowsTask(Body body, int start, int end, int grain) {
+			this.body = body;
+			this.start = start;
+			this.end = end;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if( end - start <= grain ) {
+				body.run(start, end);
+			}
+			else {
+				int mid = (start + end) >>> 1;
+				invokeAll(new RowsTask(body, start, mid, grain), new RowsTask(body, mid, end, grain));
+			}
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package com.example.opencameratesting.core;
+
+/** Helper methods for 3D vectors and 3x3 matrices, stored as float arrays in row-major order.
+ *  These don't allocate, so are suitable for calling on every sensor event.
+ */
+public class RotationMath {
+	private RotationMath() {
+	}
+
+	/** Helper method to set a 3D vector.
+	 */
+	public static void setVector(final float [] vector, float x, float y, float z) {
+		vector[0] = x;
+		vector[1] = y;
+		vector[2] = z;
+	}
+
+	/** Helper method to access the (i, j)th component of a 3x3 matrix.
+	 */
+	private static float getMatrixComponent(final float [] matrix, int row, int col) {
+		return matrix[row*3+col];
+	}
+
+	/** Helper method to set the (i, j)th component of a 3x3 matrix.
+	 */
+	private static void setMatrixComponent(final float [] matrix, int row, int col, float value) {
+		matrix[row*3+col] = value;
+	}
+
+	/** Helper method to multiply 3x3 matrix with a 3D vector.
+	 */
+	public static void transformVector(final float [] result, final float [] matrix, final float [] vector) {
+		// result[i] = matrix[ij] . vector[j]
+		for(int i=0;i<3;i++) {
+			result[i] = 0.0f;
+			for(int j=0;j<3;j++) {
+				result[i] += getMatrixComponent(matrix, i, j) * vector[j];
+			}
+		}
+	}
+
+	/** Helper method to multiply the transpose of a 3x3 matrix with a 3D vector.
+	 *  For 3x3 rotation (orthonormal) matrices, the transpose is the inverse.
+	 */
+	public static void transformTransposeVector(final float [] result, final float [] matrix, final float [] vector) {
+		// result[i] = matrix[ji] . vector[j]
+		for(int i=0;i<3;i++) {
+			result[i] = 0.0f;
+			for(int j=0;j<3;j++) {
+				result[i] += getMatrixComponent(matrix, j, i) * vector[j];
+			}
+		}
+	}
+
+	/** Sets result to a.b. result must not be the same array as a or b.
+	 */
+	public static void multiply(final float [] result, final float [] a, final float [] b) {
+		for(int i=0;i<3;i++) {
+			for(int j=0;j<3;j++) {
+				float value = 0.0f;
+				// result[ij] = a[ik] * b[kj]
+				for(int k=0;k<3;k++) {
+					value += getMatrixComponent(a, i, k) * getMatrixComponent(b, k, j);
+				}
+				setMatrixComponent(result, i, j, value);
+			}
+		}
+	}
+
+	/** Sets result to transpose(a).b. result must not be the same array as a or b.
+	 */
+	public static void multiplyTransposeLeft(final float [] result, final float [] a, final float [] b) {
+		for(int i=0;i<3;i++) {
+			for(int j=0;j<3;j++) {
+				float value = 0.0f;
+				// result[ij] = a[ki] * b[kj]
+				for(int k=0;k<3;k++) {
+					value += getMatrixComponent(a, k, i) * getMatrixComponent(b, k, j);
+				}
+				setMatrixComponent(result, i, j, value);
+			}
+		}
+	}
+
+	/** Sets result to the 3x3 rotation matrix for a rotation vector, as returned by the rotation
+	 *  vector sensors (i.e., the x, y, z components of a unit quaternion, optionally followed by the
+	 *  w component). Equivalent to android.hardware.SensorManager.getRotationMatrixFromVector() for
+	 *  a 3x3 matrix.
+	 */
+	public static void rotationMatrixFromVector(final float [] result, final float [] rotation_vector) {
+		float q1 = rotation_vector[0];
+		float q2 = rotation_vector[1];
+		float q3 = rotation_vector[2];
+		float q0;
+		if( rotation_vector.length >= 4 ) {
+			q0 = rotation_vector[3];
+		}
+		else {
+			q0 = 1 - q1*q1 - q2*q2 - q3*q3;
+			q0 = (q0 > 0) ? (float)Math.sqrt(q0) : 0;
+		}
+
+		float sq_q1 = 2 * q1 * q1;
+		float sq_q2 = 2 * q2 * q2;
+		float sq_q3 = 2 * q3 * q3;
+		float q1_q2 = 2 * q1 * q2;
+		float q3_q0 = 2 * q3 * q0;
+		float q1_q3 = 2 * q1 * q3;
+		float q2_q0 = 2 * q2 * q0;
+		float q2_q3 = 2 * q2 * q3;
+		float q1_q0 = 2 * q1 * q0;
+
+		result[0] = 1 - sq_q2 - sq_q3;
+		result[1] = q1_q2 - q3_q0;
+		result[2] = q1_q3 + q2_q0;
+
+		result[3] = q1_q2 + q3_q0;
+		result[4] = 1 - sq_q1 - sq_q3;
+		result[5] = q2_q3 - q1_q0;
+
+		result[6] = q1_q3 - q2_q0;
+		result[7] = q2_q3 + q1_q0;
+		result[8] = 1 - sq_q1 - sq_q2;
+	}
+
+	/** Sets result to the rotation matrix that rotates the unit vector from to the unit vector to,
+	 *  about the axis perpendicular to both.
+	 * @return False if no rotation is needed (from and to already match), or the vectors are
+	 *         (anti-)parallel so the axis is undefined; in which case result is left unchanged.
+	 */
+	public static boolean rotationBetweenVectors(final float [] result, final float [] from, final float [] to) {
+		double cos_angle = (from[0] * to[0] + from[1] * to[1] + from[2] * to[2]);
+		if( cos_angle >= 0.99999999995 ) {
+			// already match
+			return false;
+		}
+
+		// compute (from X to) normalised
+		double a_x = from[1] * to[2] - from[2] * to[1];
+		double a_y = from[2] * to[0] - from[0] * to[2];
+		double a_z = from[0] * to[1] - from[1] * to[0];
+		double a_mag = Math.sqrt(a_x*a_x + a_y*a_y + a_z*a_z);
+		if( a_mag < 1.0e-5 ) {
+			// parallel or anti-parallel case
+			return false;
+		}
+		a_x /= a_mag;
+		a_y /= a_mag;
+		a_z /= a_mag;
+		double sin_angle = Math.sqrt(1.0-cos_angle*cos_angle);
+		// from http://immersivemath.com/forum/question/rotation-matrix-from-one-vector-to-another/
+		setMatrixComponent(result, 0, 0, (float)(a_x*a_x*(1.0-cos_angle)+cos_angle));
+		setMatrixComponent(result, 0, 1, (float)(a_x*a_y*(1.0-cos_angle)-sin_angle*a_z));
+		setMatrixComponent(result, 0, 2, (float)(a_x*a_z*(1.0-cos_angle)+sin_angle*a_y));
+		setMatrixComponent(result, 1, 0, (float)(a_x*a_y*(1.0-cos_angle)+sin_angle*a_z));
+		setMatrixComponent(result, 1, 1, (float)(a_y*a_y*(1.0-cos_angle)+cos_angle));
+		setMatrixComponent(result, 1, 2, (float)(a_y*a_z*(1.0-cos_angle)-sin_angle*a_x));
+		setMatrixComponent(result, 2, 0, (float)(a_x*a_z*(1.0-cos_angle)-sin_angle*a_y));
+		setMatrixComponent(result, 2, 1, (float)(a_y*a_z*(1.0-cos_angle)+sin_angle*a_x));
+		setMatrixComponent(result, 2, 2, (float)(a_z*a_z*(1.0-cos_angle)+cos_angle));
+		return true;
+	}
+}
@@ -0,0 +1,91 @@
+package com.example.opencameratesting.core;
+
+import java.util.List;
+
+/** Chooses preview and picture sizes from the sizes supported by a camera.
+ */
+public class SizeChooser {
+	public static final double ASPECT_TOLERANCE = 0.05;
+
+	private SizeChooser() {
+	}
+
+	private static double getRatio(CameraSize size) {
+		return (double)size.getWidth() / size.getHeight();
+	}
+
+	/** Returns the size in sizes that is the closest aspect ratio match to targetRatio, but (if max_size is non-null) is not
+	 *  larger than max_size (in either width or height).
+	 */
+	public static <T extends CameraSize> T getClosestSize(List<T> sizes, double targetRatio, CameraSize max_size) {
+		T optimalSize = null;
+		double minDiff = Double.MAX_VALUE;
+		for(int i=0;i<sizes.size();i++) {
+			T size = sizes.get(i);
+			if( max_size != null ) {
+				if( size.getWidth() > max_size.getWidth() || size.getHeight() > max_size.getHeight() )
+					continue;
+			}
+			double diff = Math.abs(getRatio(size) - targetRatio);
+			if( diff < minDiff ) {
+				optimalSize = size;
+				minDiff = diff;
+			}
+		}
+		return optimalSize;
+	}
+
+	/** Returns the size that matches targetRatio (within ASPECT_TOLERANCE) whose height is closest to
+	 *  targetHeight; if no size matches the aspect ratio, returns the closest aspect ratio.
+	 * @param targetHeight Typically the shorter side of the display.
+	 */
+	public static <T extends CameraSize> T getOptimalPreviewSize(List<T> sizes, double targetRatio, int targetHeight) {
+		if( sizes == null )
+			return null;
+		T optimalSize = null;
+		double minDiff = Double.MAX_VALUE;
+		// Try to find the size which matches the aspect ratio, and is closest match to display height
+		for(int i=0;i<sizes.size();i++) {
+			T size = sizes.get(i);
+			if( Math.abs(getRatio(size) - targetRatio) > ASPECT_TOLERANCE )
+				continue;
+			if( Math.abs(size.getHeight() - targetHeight) < minDiff ) {
+				optimalSize = size;
+				minDiff = Math.abs(size.getHeight() - targetHeight);
+			}
+		}
+		if( optimalSize == null ) {
+			// can't find match for aspect ratio, so find closest one
+			optimalSize = getClosestSize(sizes, targetRatio, null);
+		}
+		return optimalSize;
+	}
+
+	/** Returns the largest size that matches targetRatio (within ASPECT_TOLERANCE), and isn't larger
+	 *  than max_video_size; if no size matches the aspect ratio, returns the closest aspect ratio
+	 *  that isn't larger than max_video_size.
+	 */
+	public static <T extends CameraSize> T getOptimalVideoPictureSize(List<T> sizes, double targetRatio, CameraSize max_video_size) {
+		if( sizes == null )
+			return null;
+		T optimalSize = null;
+		// Try to find largest size that matches aspect ratio.
+		// But don't choose a size that's larger than the max video size (as this isn't supported for taking photos when
+		// recording video for devices with LIMITED support in Camera2 mode).
+		for(int i=0;i<sizes.size();i++) {
+			T size = sizes.get(i);
+			if( Math.abs(getRatio(size) - targetRatio) > ASPECT_TOLERANCE )
+				continue;
+			if( size.getWidth() > max_video_size.getWidth() || size.getHeight() > max_video_size.getHeight() )
+				continue;
+			if( optimalSize == null || size.getWidth() > optimalSize.getWidth() ) {
+				optimalSize = size;
+			}
+		}
+		if( optimalSize == null ) {
+			// can't find match for aspect ratio, so find closest one
+			optimalSize = getClosestSize(sizes, targetRatio, max_video_size);
+		}
+		return optimalSize;
+	}
+}
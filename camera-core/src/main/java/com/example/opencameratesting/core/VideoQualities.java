@@ -0,0 +1,55 @@
+package com.example.opencameratesting.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Builds the list of video qualities from the device's camcorder profiles and supported video
+ *  sizes.
+ *  Each quality is either a profile id (see android.media.CamcorderProfile.QUALITY_*), or of the
+ *  form [profile]_r[width]x[height], meaning the profile with its resolution overridden - this is
+ *  needed to support resolutions which don't have corresponding camcorder profiles.
+ */
+public class VideoQualities {
+	public static final int QUALITY_LOW = 0; // same as CamcorderProfile.QUALITY_LOW
+
+	private VideoQualities() {
+	}
+
+	/**
+	 * @param video_sizes The supported video sizes, sorted from largest to smallest. May be null.
+	 * @param profiles    A list of qualities (see CamcorderProfile.QUALITY_*). Should be supplied in
+	 *                    order from highest to lowest quality.
+	 * @param dimensions  A corresponding list of the width/height for that quality.
+	 */
+	public static List<String> fromProfiles(List<? extends CameraSize> video_sizes, List<Integer> profiles, List<? extends CameraSize> dimensions) {
+		if( profiles.size() != dimensions.size() ) {
+			throw new IllegalArgumentException("profiles and dimensions have unequal sizes");
+		}
+		List<String> video_quality = new ArrayList<>();
+		if( video_sizes == null ) {
+			return video_quality;
+		}
+		boolean [] done_video_size = new boolean[video_sizes.size()];
+		for(int i=0;i<profiles.size();i++) {
+			CameraSize dim = dimensions.get(i);
+			addVideoResolutions(video_quality, video_sizes, done_video_size, profiles.get(i), dim.getWidth(), dim.getHeight());
+		}
+		return video_quality;
+	}
+
+	private static void addVideoResolutions(List<String> video_quality, List<? extends CameraSize> video_sizes, boolean [] done_video_size, int base_profile, int min_resolution_w, int min_resolution_h) {
+		for(int i=0;i<video_sizes.size();i++) {
+			if( done_video_size[i] )
+				continue;
+			CameraSize size = video_sizes.get(i);
+			if( size.getWidth() == min_resolution_w && size.getHeight() == min_resolution_h ) {
+				video_quality.add(String.valueOf(base_profile));
+				done_video_size[i] = true;
+			}
+			else if( base_profile == QUALITY_LOW || size.getWidth() * size.getHeight() >= min_resolution_w*min_resolution_h ) {
+				video_quality.add(base_profile + "_r" + size.getWidth() + "x" + size.getHeight());
+				done_video_size[i] = true;
+			}
+		}
+	}
+}
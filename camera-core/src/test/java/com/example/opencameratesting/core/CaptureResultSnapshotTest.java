@@ -0,0 +1,139 @@
+package com.example.opencameratesting.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureResultSnapshotTest {
+	/** Returns fixed values (or nulls), and counts the lookups.
+	 */
+	private static class FakeSource implements CaptureResultSnapshot.Source {
+		final boolean empty;
+		int n_gets;
+
+		FakeSource(boolean empty) {
+			this.empty = empty;
+		}
+
+		private <T> T get(T value) {
+			n_gets++;
+			return empty ? null : value;
+		}
+
+		@Override
+		public long getFrameNumber() {
+			n_gets++;
+			return 42;
+		}
+
+		@Override
+		public Long getTimestamp() {
+			return get(123456789L);
+		}
+
+		@Override
+		public Integer getAfState() {
+			return get(2);
+		}
+
+		@Override
+		public Integer getAeState() {
+			return get(4);
+		}
+
+		@Override
+		public Integer getAwbState() {
+			return get(3);
+		}
+
+		@Override
+		public Integer getFlashMode() {
+			return get(0);
+		}
+
+		@Override
+		public Integer getIso() {
+			return get(800);
+		}
+
+		@Override
+		public Long getExposureTime() {
+			return get(33333333L);
+		}
+
+		@Override
+		public Long getFrameDuration() {
+			return get(33366666L);
+		}
+
+		@Override
+		public Float getFocusDistance() {
+			return get(2.5f);
+		}
+
+		@Override
+		public boolean getColorGains(float [] gains) {
+			n_gets++;
+			if( empty )
+				return false;
+			gains[0] = 2.0f;
+			gains[1] = 1.0f;
+			gains[2] = 1.0f;
+			gains[3] = 1.5f;
+			return true;
+		}
+	}
+
+	@Test
+	public void testRead() {
+		CaptureResultSnapshot snapshot = new CaptureResultSnapshot();
+		FakeSource source = new FakeSource(false);
+		snapshot.read(source);
+		assertEquals(11, source.n_gets); // each field looked up once
+		assertEquals(42, snapshot.getFrameNumber());
+		assertTrue(snapshot.hasTimestamp());
+		assertEquals(123456789L, snapshot.getTimestamp());
+		assertTrue(snapshot.hasAfState());
+		assertEquals(2, snapshot.getAfState());
+		assertTrue(snapshot.hasAeState());
+		assertEquals(4, snapshot.getAeState());
+		assertTrue(snapshot.hasAwbState());
+		assertEquals(3, snapshot.getAwbState());
+		assertTrue(snapshot.hasFlashMode());
+		assertEquals(0, snapshot.getFlashMode());
+		assertTrue(snapshot.hasIso());
+		assertEquals(800, snapshot.getIso());
+		assertTrue(snapshot.hasExposureTime());
+		assertEquals(33333333L, snapshot.getExposureTime());
+		assertTrue(snapshot.hasFrameDuration());
+		assertEquals(33366666L, snapshot.getFrameDuration());
+		assertTrue(snapshot.hasFocusDistance());
+		assertEquals(2.5f, snapshot.getFocusDistance(), 1.0e-5f);
+		assertTrue(snapshot.hasColorGains());
+		assertEquals(2.0f, snapshot.getColorGain(0), 1.0e-5f);
+		assertEquals(1.5f, snapshot.getColorGain(3), 1.0e-5f);
+	}
+
+	/** Fields missing from a result mustn't keep the values from the previous result.
+	 */
+	@Test
+	public void testMissingFields() {
+		CaptureResultSnapshot snapshot = new CaptureResultSnapshot();
+		snapshot.read(new FakeSource(false));
+		snapshot.read(new FakeSource(true));
+		assertFalse(snapshot.hasTimestamp());
+		assertFalse(snapshot.hasAfState());
+		assertFalse(snapshot.hasAeState());
+		assertFalse(snapshot.hasAwbState());
+		assertFalse(snapshot.hasFlashMode());
+		assertFalse(snapshot.hasIso());
+		assertEquals(0, snapshot.getIso());
+		assertFalse(snapshot.hasExposureTime());
+		assertFalse(snapshot.hasFrameDuration());
+		assertFalse(snapshot.hasFocusDistance());
+		assertFalse(snapshot.hasColorGains());
+		assertEquals(0.0f, snapshot.getColorGain(0), 0.0f);
+	}
+}
@@ -0,0 +1,96 @@
+package com.example.opencameratesting.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Tests DroProcessor with a synthetic underexposed image: a smooth random texture, darker on
+ *  the left, with some colour.
+ */
+public class DroProcessorTest {
+	private final static int width = 700; // not a multiple of the tile size
+	private final static int height = 500;
+
+	private static int [] createImage() {
+		Random random = new Random(0);
+		int [] image = new int[width*height];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				double value = (10.0 + 100.0*x/width)*(1.0 + 0.3*Math.sin(x*0.05)*Math.cos(y*0.07)) + 2.0*random.nextGaussian();
+				int g = Math.max(0, Math.min(255, (int)value));
+				int r = Math.min(255, g + g/4);
+				int b = g/2;
+				image[y*width+x] = 0x80000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+		return image;
+	}
+
+	private static double getMeanLuminance(int [] image, int x0, int x1) {
+		double sum = 0.0;
+		for(int y=0;y<height;y++) {
+			for(int x=x0;x<x1;x++) {
+				int color = image[y*width+x];
+				sum += 0.299*((color >> 16) & 0xff) + 0.587*((color >> 8) & 0xff) + 0.114*(color & 0xff);
+			}
+		}
+		return sum/(height*(x1-x0));
+	}
+
+	@Test
+	public void testZeroStrength() {
+		int [] image = createImage();
+		int [] output = image.clone();
+		DroProcessor processor = new DroProcessor(width, height);
+		processor.setStrength(0.0f);
+		processor.process(output);
+		assertArrayEquals(image, output);
+	}
+
+	@Test
+	public void testBrightensShadows() {
+		int [] image = createImage();
+		int [] output = image.clone();
+		new DroProcessor(width, height).process(output);
+		double before = getMeanLuminance(image, 0, width/4);
+		double after = getMeanLuminance(output, 0, width/4);
+		assertTrue("shadows not brightened: " + before + " to " + after, after > before*1.2);
+		// still darker on the left than the right
+		assertTrue(getMeanLuminance(output, 0, width/4) < getMeanLuminance(output, 3*width/4, width));
+		// hue and alpha kept
+		for(int i=0;i<width*height;i+=997) {
+			int color = output[i];
+			assertEquals(0x80, color >>> 24);
+			assertTrue(((color >> 16) & 0xff) >= ((color >> 8) & 0xff));
+			assertTrue(((color >> 8) & 0xff) >= (color & 0xff));
+		}
+	}
+
+	@Test
+	public void testThreading() {
+		int [] output_single = createImage();
+		int [] output_parallel = createImage();
+		ForkJoinPool pool = new ForkJoinPool(1);
+		try {
+			new DroProcessor(width, height, pool).process(output_single);
+		}
+		finally {
+			pool.shutdown();
+		}
+		new DroProcessor(width, height).process(output_parallel);
+		assertArrayEquals(output_single, output_parallel);
+	}
+
+	@Test
+	public void testSmallImage() {
+		int [] image = {0xff102030, 0xff000000, 0xffffffff};
+		new DroProcessor(3, 1).process(image);
+		assertEquals(0xff000000, image[1]);
+		assertEquals(0xffffffff, image[2]);
+	}
+}
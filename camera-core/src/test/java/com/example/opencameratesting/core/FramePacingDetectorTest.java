@@ -0,0 +1,101 @@
+package com.example.opencameratesting.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class FramePacingDetectorTest {
+	private static final long frame_30fps_c = 33333333L;
+
+	private static class CountingListener implements FramePacingDetector.Listener {
+		int n_jank;
+
+		@Override
+		public void onJank(FramePacingDetector detector) {
+			n_jank++;
+		}
+	}
+
+	@Test
+	public void testSteady() {
+		FramePacingDetector detector = new FramePacingDetector(30, 0.1, null);
+		long timestamp = 1000;
+		for(int i=0;i<=30;i++) {
+			detector.onFrame(timestamp, frame_30fps_c);
+			timestamp += frame_30fps_c;
+		}
+		assertEquals(30, detector.getNFrames());
+		assertEquals(0, detector.getNJankyFrames());
+		assertEquals(33.333, detector.getMeanIntervalMs(), 1.0e-3);
+		assertEquals(33.333, detector.getIntervalPercentileMs(95.0), 1.0e-3);
+		assertEquals(0.0, detector.getJankRate(), 0.0);
+	}
+
+	@Test
+	public void testSkippedFrames() {
+		FramePacingDetector detector = new FramePacingDetector(30, 0.1, null);
+		detector.onFrame(0, frame_30fps_c);
+		detector.onFrame(frame_30fps_c, frame_30fps_c);
+		// two frames missing
+		detector.onFrame(4*frame_30fps_c, frame_30fps_c);
+		assertEquals(2, detector.getNFrames());
+		assertEquals(1, detector.getNJankyFrames());
+		assertEquals(2, detector.getNSkippedFrames());
+		assertEquals(100.0, detector.getMaxIntervalMs(), 1.0e-3);
+	}
+
+	/** Frame durations that vary within the requested range aren't jank, but a device that runs
+	 *  slower than the requested range is.
+	 */
+	@Test
+	public void testFpsRange() {
+		FramePacingDetector detector = new FramePacingDetector(30, 0.1, null);
+		detector.setFpsRange(15000, 30000);
+		detector.onFrame(0, 2*frame_30fps_c);
+		detector.onFrame(2*frame_30fps_c, 2*frame_30fps_c);
+		assertEquals(0, detector.getNJankyFrames());
+
+		detector.reset();
+		detector.setFpsRange(30000, 30000);
+		detector.onFrame(0, 2*frame_30fps_c);
+		detector.onFrame(2*frame_30fps_c, 2*frame_30fps_c);
+		assertEquals(1, detector.getNJankyFrames());
+		assertEquals(1, detector.getNSkippedFrames());
+	}
+
+	@Test
+	public void testRestart() {
+		FramePacingDetector detector = new FramePacingDetector(30, 0.1, null);
+		detector.onFrame(0, frame_30fps_c);
+		detector.restart();
+		detector.onFrame(10*frame_30fps_c, frame_30fps_c);
+		detector.onFrame(11*frame_30fps_c, frame_30fps_c);
+		assertEquals(1, detector.getNFrames());
+		assertEquals(0, detector.getNJankyFrames());
+	}
+
+	@Test
+	public void testListener() {
+		CountingListener listener = new CountingListener();
+		FramePacingDetector detector = new FramePacingDetector(10, 0.2, listener);
+		long timestamp = 0;
+		detector.onFrame(timestamp, frame_30fps_c);
+		// every third frame is late
+		for(int i=0;i<10;i++) {
+			timestamp += i % 3 == 0 ? 2*frame_30fps_c : frame_30fps_c;
+			detector.onFrame(timestamp, frame_30fps_c);
+		}
+		assertEquals(1, listener.n_jank);
+		// steady frames re-arm the listener
+		for(int i=0;i<10;i++) {
+			timestamp += frame_30fps_c;
+			detector.onFrame(timestamp, frame_30fps_c);
+		}
+		assertEquals(0.0, detector.getJankRate(), 0.0);
+		for(int i=0;i<10;i++) {
+			timestamp += 2*frame_30fps_c;
+			detector.onFrame(timestamp, frame_30fps_c);
+		}
+		assertEquals(2, listener.n_jank);
+	}
+}
@@ -0,0 +1,166 @@
+package com.example.opencameratesting.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FramePairerTest {
+	private static class RecordingListener implements FramePairer.Listener {
+		final List<FramePairer.Frame> paired = Collections.synchronizedList(new ArrayList<FramePairer.Frame>());
+		final List<FramePairer.Frame> discarded = new ArrayList<>();
+
+		@Override
+		public void onFramePaired(FramePairer.Frame frame) {
+			paired.add(frame);
+		}
+
+		@Override
+		public void onFrameDiscarded(FramePairer.Frame frame) {
+			discarded.add(frame);
+		}
+	}
+
+	@Test
+	public void testPairsParts() {
+		RecordingListener listener = new RecordingListener();
+		FramePairer pairer = new FramePairer(2, listener);
+		pairer.put(1000, 1, "raw");
+		pairer.expect(1000, 7);
+		assertEquals(0, listener.paired.size());
+		pairer.put(1000, 0, "jpeg");
+		assertEquals(1, listener.paired.size());
+		FramePairer.Frame frame = listener.paired.get(0);
+		assertEquals(1000, frame.getTimestamp());
+		assertEquals(7, frame.getFrameNumber());
+		assertEquals("jpeg", frame.getPart(0));
+		assertEquals("raw", frame.getPart(1));
+		assertTrue(frame.getMatchLatencyNs() > 0);
+		assertEquals(1, pairer.getNPaired());
+		assertEquals(0, pairer.getNPending());
+	}
+
+	@Test
+	public void testDuplicatePart() {
+		RecordingListener listener = new RecordingListener();
+		FramePairer pairer = new FramePairer(2, listener);
+		assertTrue(pairer.put(1000, 0, "first"));
+		assertFalse(pairer.put(1000, 0, "second"));
+		pairer.put(1000, 1, "raw");
+		pairer.expect(1000, 0);
+		assertEquals("first", listener.paired.get(0).getPart(0));
+	}
+
+	/** A frame that completes first must wait for frames expected before it.
+	 */
+	@Test
+	public void testOrder() {
+		RecordingListener listener = new RecordingListener();
+		FramePairer pairer = new FramePairer(1, listener);
+		pairer.expect(100, 0);
+		pairer.expect(200, 1);
+		pairer.expect(300, 2);
+		pairer.put(300, 0, "c");
+		pairer.put(200, 0, "b");
+		assertEquals(0, listener.paired.size());
+		pairer.put(100, 0, "a");
+		assertEquals(3, listener.paired.size());
+		assertEquals(100, listener.paired.get(0).getTimestamp());
+		assertEquals(200, listener.paired.get(1).getTimestamp());
+		assertEquals(300, listener.paired.get(2).getTimestamp());
+	}
+
+	@Test
+	public void testClear() {
+		RecordingListener listener = new RecordingListener();
+		FramePairer pairer = new FramePairer(2, listener);
+		pairer.expect(100, 0);
+		pairer.put(100, 0, "a");
+		pairer.put(200, 1, "b");
+		pairer.clear();
+		assertEquals(2, listener.discarded.size());
+		assertEquals(0, pairer.getNPending());
+		// frames after the clear aren't held up by the discarded one
+		pairer.expect(300, 1);
+		pairer.put(300, 0, "c");
+		pairer.put(300, 1, "d");
+		assertEquals(1, listener.paired.size());
+		assertEquals(300, listener.paired.get(0).getTimestamp());
+	}
+
+	/** Parts supplied from several threads at once are all paired, in the expected order, and the
+	 *  listener is never called concurrently.
+	 */
+	@Test
+	public void testThreads() throws InterruptedException {
+		final int n_frames = 2000;
+		final int n_parts = 3;
+		final List<Long> timestamps = new ArrayList<>();
+		final List<Long> paired = new ArrayList<>();
+		final int [] in_listener = new int[1];
+		final boolean [] concurrent = new boolean[1];
+		final FramePairer pairer = new FramePairer(n_parts, new FramePairer.Listener() {
+			@Override
+			public void onFramePaired(FramePairer.Frame frame) {
+				if( ++in_listener[0] != 1 )
+					concurrent[0] = true;
+				paired.add(frame.getTimestamp());
+				in_listener[0]--;
+			}
+
+			@Override
+			public void onFrameDiscarded(FramePairer.Frame frame) {
+			}
+		});
+		for(int i=0;i<n_frames;i++) {
+			timestamps.add(1000L + 33L*i);
+		}
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread [] threads = new Thread[n_parts+1];
+		for(int t=0;t<threads.length;t++) {
+			final int part = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					// each part thread supplies its parts in a slightly different order
+					List<Long> order = new ArrayList<>(timestamps);
+					if( part < n_parts ) {
+						Random random = new Random(part);
+						for(int i=0;i+1<order.size();i+=2) {
+							if( random.nextBoolean() )
+								Collections.swap(order, i, i+1);
+						}
+					}
+					try {
+						start.await();
+					}
+					catch(InterruptedException e) {
+						return;
+					}
+					for(int i=0;i<order.size();i++) {
+						if( part == n_parts )
+							pairer.expect(order.get(i), i);
+						else
+							pairer.put(order.get(i), part, "part");
+					}
+				}
+			});
+			threads[t].start();
+		}
+		start.countDown();
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertFalse(concurrent[0]);
+		assertEquals(timestamps, paired);
+		assertEquals(0, pairer.getNPending());
+		assertEquals(n_frames, pairer.getNPaired());
+	}
+}
@@ -0,0 +1,126 @@
+package com.example.opencameratesting.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class FrameStatsRingTest {
+	private static void appendFrame(FrameStatsRing ring, long i, int iso) {
+		ring.append(1000L*i, i, iso, 10000L*iso, 33333333L, 2, 2, 1.5f, 5000);
+	}
+
+	@Test
+	public void testStats() {
+		FrameStatsRing ring = new FrameStatsRing(10);
+		appendFrame(ring, 0, 100);
+		appendFrame(ring, 1, 300);
+		appendFrame(ring, 2, 200);
+		assertEquals(3, ring.getSize());
+		FrameStatsRing.Stats stats = ring.getStats(FrameStatsRing.Field.ISO, 10);
+		assertEquals(3, stats.getN());
+		assertEquals(100.0, stats.getMin(), 1.0e-5);
+		assertEquals(300.0, stats.getMax(), 1.0e-5);
+		assertEquals(200.0, stats.getMean(), 1.0e-5);
+		// window of the most recent two frames
+		stats = ring.getStats(FrameStatsRing.Field.ISO, 2);
+		assertEquals(2, stats.getN());
+		assertEquals(200.0, stats.getMin(), 1.0e-5);
+		assertEquals(250.0, stats.getMean(), 1.0e-5);
+		stats = ring.getStats(FrameStatsRing.Field.FOCUS_DISTANCE, 10);
+		assertEquals(1.5, stats.getMean(), 1.0e-5);
+	}
+
+	@Test
+	public void testWrap() {
+		FrameStatsRing ring = new FrameStatsRing(4);
+		for(int i=0;i<10;i++) {
+			appendFrame(ring, i, 100*(i+1));
+		}
+		assertEquals(4, ring.getSize());
+		assertEquals(10, ring.getNAppended());
+		// only frames 6 to 9 are still held
+		FrameStatsRing.Stats stats = ring.getStats(FrameStatsRing.Field.ISO, 100);
+		assertEquals(4, stats.getN());
+		assertEquals(700.0, stats.getMin(), 1.0e-5);
+		assertEquals(1000.0, stats.getMax(), 1.0e-5);
+		ring.clear();
+		assertEquals(0, ring.getSize());
+		assertEquals(0, ring.getStats(FrameStatsRing.Field.ISO, 100).getN());
+	}
+
+	@Test
+	public void testMissingValues() {
+		FrameStatsRing ring = new FrameStatsRing(4);
+		ring.append(0, 0, -1, -1, -1, -1, -1, Float.NaN, -1);
+		appendFrame(ring, 1, 400);
+		FrameStatsRing.Stats stats = ring.getStats(FrameStatsRing.Field.ISO, 4);
+		assertEquals(1, stats.getN());
+		assertEquals(400.0, stats.getMean(), 1.0e-5);
+		assertEquals(1, ring.getStats(FrameStatsRing.Field.FOCUS_DISTANCE, 4).getN());
+		assertEquals(1, ring.getStats(FrameStatsRing.Field.AF_STATE, 4).getN());
+	}
+
+	@Test
+	public void testDump() throws IOException {
+		FrameStatsRing ring = new FrameStatsRing(2);
+		for(int i=0;i<3;i++) {
+			appendFrame(ring, i, 100*(i+1));
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ring.dump(out);
+		assertEquals(12 + 2*46, out.size());
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(0x46535231, in.readInt());
+		assertEquals(1, in.readInt());
+		assertEquals(2, in.readInt());
+		// oldest held frame first
+		assertEquals(1000L, in.readLong());
+		assertEquals(1L, in.readLong());
+		assertEquals(200, in.readInt());
+		assertEquals(2000000L, in.readLong());
+		assertEquals(33333333L, in.readLong());
+		assertEquals(2, in.readByte());
+		assertEquals(2, in.readByte());
+		assertEquals(1.5f, in.readFloat(), 0.0f);
+		assertEquals(5000, in.readInt());
+		assertEquals(2000L, in.readLong());
+	}
+
+	/** Readers running alongside the writer must only see complete windows: the ISOs appended are
+	 *  consecutive, so a full window of 8 frames has a max 7 above its min and a mean halfway
+	 *  between; a frame overwritten during the read would break this.
+	 */
+	@Test
+	public void testConcurrentReaders() throws InterruptedException {
+		final FrameStatsRing ring = new FrameStatsRing(8);
+		final int n_frames = 200000;
+		final AtomicBoolean inconsistent = new AtomicBoolean();
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while( !done.get() ) {
+					FrameStatsRing.Stats stats = ring.getStats(FrameStatsRing.Field.ISO, 8);
+					if( stats.getN() == 8 && ( stats.getMax() - stats.getMin() != 7.0 || stats.getMean() != stats.getMin() + 3.5 ) ) {
+						inconsistent.set(true);
+					}
+				}
+			}
+		});
+		reader.start();
+		for(int i=0;i<n_frames;i++) {
+			appendFrame(ring, i, i);
+		}
+		done.set(true);
+		reader.join();
+		assertFalse(inconsistent.get());
+		assertEquals(n_frames, ring.getNAppended());
+	}
+}
@@ -0,0 +1,110 @@
+package com.example.opencameratesting.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Tests HdrMerger with synthetic bracketed images: a scene whose radiance increases along each
+ *  row, captured at several exposures by scaling the radiance, clipping and encoding with the
+ *  sRGB curve.
+ */
+public class HdrMergerTest {
+	private final static int width = 300; // not a multiple of the tile size
+	private final static int height = 70;
+	private final static double [] exposures = {0.25, 1.0, 4.0};
+
+	/** Radiance of the scene at column x, covering 12 stops.
+	 */
+	private static double getRadiance(int x) {
+		return Math.pow(2.0, -8.0 + 12.0*x/width);
+	}
+
+	private static int encodeSrgb(double linear) {
+		linear = Math.max(0.0, Math.min(1.0, linear));
+		double srgb = linear <= 0.0031308 ? 12.92*linear : 1.055*Math.pow(linear, 1.0/2.4) - 0.055;
+		return (int)Math.round(255.0*srgb);
+	}
+
+	private static int [][] createFrames() {
+		int [][] frames = new int[exposures.length][width*height];
+		for(int f=0;f<exposures.length;f++) {
+			for(int y=0;y<height;y++) {
+				for(int x=0;x<width;x++) {
+					int value = encodeSrgb(getRadiance(x)*exposures[f]);
+					frames[f][y*width+x] = 0xff000000 | (value << 16) | (value << 8) | value;
+				}
+			}
+		}
+		return frames;
+	}
+
+	@Test
+	public void testMonotonic() {
+		int [][] frames = createFrames();
+		int [] output = new int[width*height];
+		new HdrMerger(width, height).process(frames, exposures, output);
+		for(int y=0;y<height;y++) {
+			for(int x=1;x<width;x++) {
+				int prev = output[y*width+x-1] & 0xff;
+				int value = output[y*width+x] & 0xff;
+				assertTrue("not monotonic at " + x + " , " + y, value >= prev);
+			}
+		}
+		// grey in, grey out
+		int color = output[width/2];
+		assertEquals(color & 0xff, (color >> 8) & 0xff);
+		assertEquals(color & 0xff, (color >> 16) & 0xff);
+	}
+
+	@Test
+	public void testHighlights() {
+		int [][] frames = createFrames();
+		int [] output = new int[width*height];
+		new HdrMerger(width, height).process(frames, exposures, output);
+		// find where the base exposure clips
+		int clip_x = 0;
+		while( clip_x < width && (frames[1][clip_x] & 0xff) < 255 )
+			clip_x++;
+		assertTrue(clip_x < width - 20);
+		// the merged image should still have detail beyond that
+		int value0 = output[clip_x] & 0xff;
+		int value1 = output[width - 20] & 0xff;
+		assertTrue("highlights not recovered: " + value0 + " , " + value1, value1 > value0 + 10);
+		assertTrue(value0 < 255);
+	}
+
+	@Test
+	public void testThreading() {
+		int [][] frames = createFrames();
+		int [] output_single = new int[width*height];
+		int [] output_parallel = new int[width*height];
+		ForkJoinPool pool = new ForkJoinPool(1);
+		try {
+			new HdrMerger(width, height, pool).process(frames, exposures, output_single);
+		}
+		finally {
+			pool.shutdown();
+		}
+		new HdrMerger(width, height).process(frames, exposures, output_parallel);
+		assertArrayEquals(output_single, output_parallel);
+	}
+
+	@Test
+	public void testInPlace() {
+		int [][] frames = createFrames();
+		int [] output = new int[width*height];
+		HdrMerger merger = new HdrMerger(width, height);
+		merger.process(frames, exposures, output);
+		merger.process(frames, exposures, frames[1]);
+		assertArrayEquals(output, frames[1]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMissingExposure() {
+		new HdrMerger(width, height).process(createFrames(), new double[]{1.0, 2.0}, new int[width*height]);
+	}
+}
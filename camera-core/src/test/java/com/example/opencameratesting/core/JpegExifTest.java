@@ -0,0 +1,207 @@
+package com.example.opencameratesting.core;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests JpegExif with minimal JPEG-like byte streams: only the segment structure matters, not
+ *  the image data.
+ */
+public class JpegExifTest {
+	private final static byte [] app0_c = {
+			(byte)0xFF, (byte)0xE0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0
+	};
+	private final static byte [] image_data_c = {
+			(byte)0xFF, (byte)0xDA, 0, 4, 1, 2, 3, 4, 5, (byte)0xFF, (byte)0xD9
+	};
+
+	private static byte [] concat(byte [] ... parts) {
+		int length = 0;
+		for(byte [] part : parts) {
+			length += part.length;
+		}
+		byte [] result = new byte[length];
+		int pos = 0;
+		for(byte [] part : parts) {
+			System.arraycopy(part, 0, result, pos, part.length);
+			pos += part.length;
+		}
+		return result;
+	}
+
+	private static byte [] soi() {
+		return new byte[]{(byte)0xFF, (byte)0xD8};
+	}
+
+	@Test
+	public void testNoExif() {
+		byte [] jpeg = concat(soi(), app0_c, image_data_c);
+		assertNull(JpegExif.getExifSegment(jpeg, jpeg.length));
+	}
+
+	@Test
+	public void testGetExifSegment() {
+		byte [] exif = JpegExif.createOrientationSegment(6);
+		// Exif after another segment, and with padding after the valid bytes
+		byte [] jpeg = concat(soi(), app0_c, exif, image_data_c, new byte[10]);
+		assertArrayEquals(exif, JpegExif.getExifSegment(jpeg, jpeg.length - 10));
+	}
+
+	/** An APP1 segment that isn't Exif (e.g., XMP) is skipped.
+	 */
+	@Test
+	public void testOtherApp1() {
+		byte [] xmp = {(byte)0xFF, (byte)0xE1, 0, 6, 'h', 't', 't', 'p'};
+		byte [] exif = JpegExif.createOrientationSegment(3);
+		byte [] jpeg = concat(soi(), xmp, exif, image_data_c);
+		assertArrayEquals(exif, JpegExif.getExifSegment(jpeg, jpeg.length));
+	}
+
+	@Test
+	public void testTruncated() {
+		byte [] jpeg = concat(soi(), app0_c, JpegExif.createOrientationSegment(1), image_data_c);
+		// cut off part way through the Exif segment
+		assertNull(JpegExif.getExifSegment(jpeg, soi().length + app0_c.length + 10));
+		assertNull(JpegExif.getExifSegment(jpeg, 1));
+	}
+
+	@Test
+	public void testNotJpeg() {
+		byte [] data = concat(new byte[]{0, 0}, JpegExif.createOrientationSegment(1));
+		assertNull(JpegExif.getExifSegment(data, data.length));
+	}
+
+	@Test
+	public void testOrientationSegment() {
+		byte [] exif = JpegExif.createOrientationSegment(8);
+		// the length field counts everything after the marker
+		assertEquals(exif.length - 2, ((exif[2] & 0xff) << 8) | (exif[3] & 0xff));
+		// value of the Orientation tag
+		assertEquals(8, exif[exif.length - 7]);
+		assertEquals(0x0112, ((exif[20] & 0xff) << 8) | (exif[21] & 0xff));
+	}
+
+	@Test
+	public void testInsertSegment() {
+		byte [] jpeg = concat(soi(), app0_c, image_data_c);
+		byte [] exif = JpegExif.createOrientationSegment(6);
+		byte [] result = JpegExif.insertSegment(jpeg, jpeg.length, exif);
+		assertArrayEquals(concat(soi(), exif, app0_c, image_data_c), result);
+		assertArrayEquals(exif, JpegExif.getExifSegment(result, result.length));
+
+		// only the valid bytes are copied
+		byte [] padded = Arrays.copyOf(jpeg, jpeg.length + 10);
+		assertArrayEquals(result, JpegExif.insertSegment(padded, jpeg.length, exif));
+	}
+
+	private final static int tiff_start_c = 10; // offset of the TIFF header in the segment
+
+	private static int readShort(byte [] data, int pos) {
+		return ((data[pos] & 0xff) << 8) | (data[pos+1] & 0xff);
+	}
+
+	private static long readLong(byte [] data, int pos) {
+		return ((long)readShort(data, pos) << 16) | readShort(data, pos+2);
+	}
+
+	/** Returns the position in the segment of the entry for the tag in the IFD at the supplied
+	 *  offset (relative to the TIFF header), or -1 if there isn't one.
+	 */
+	private static int findEntry(byte [] segment, int ifd_offset, int tag) {
+		int pos = tiff_start_c + ifd_offset;
+		int n_entries = readShort(segment, pos);
+		for(int i=0;i<n_entries;i++) {
+			int entry = pos + 2 + 12*i;
+			if( readShort(segment, entry) == tag )
+				return entry;
+		}
+		return -1;
+	}
+
+	/** Returns the position in the segment of the value of an entry that doesn't fit in the entry.
+	 */
+	private static int getValuePos(byte [] segment, int entry) {
+		return tiff_start_c + (int)readLong(segment, entry+8);
+	}
+
+	private static String readAscii(byte [] segment, int entry) {
+		int count = (int)readLong(segment, entry+4);
+		int pos = count > 4 ? getValuePos(segment, entry) : entry+8;
+		assertEquals(0, segment[pos+count-1]);
+		return new String(segment, pos, count-1);
+	}
+
+	private static double readRational(byte [] segment, int pos) {
+		return readLong(segment, pos)/(double)readLong(segment, pos+4);
+	}
+
+	@Test
+	public void testCreateSegment() {
+		final long date_time_ms = 1500000000000L;
+		JpegExif.Tags tags = new JpegExif.Tags();
+		tags.setOrientation(6);
+		tags.setDateTime(date_time_ms);
+		tags.setExposureTime(33333333L);
+		tags.setIso(400);
+		tags.setLocation(51.5, -0.125);
+		tags.setAltitude(-12.5);
+		byte [] exif = JpegExif.createSegment(tags);
+		assertEquals(exif.length - 2, readShort(exif, 2));
+		byte [] jpeg = JpegExif.insertSegment(concat(soi(), image_data_c), soi().length + image_data_c.length, exif);
+		assertArrayEquals(exif, JpegExif.getExifSegment(jpeg, jpeg.length));
+
+		int entry = findEntry(exif, 8, 0x0112);
+		assertEquals(6, readShort(exif, entry+8));
+		String date_time = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US).format(new Date(date_time_ms));
+		assertEquals(date_time, readAscii(exif, findEntry(exif, 8, 0x0132)));
+
+		int exif_ifd = (int)readLong(exif, findEntry(exif, 8, 0x8769) + 8);
+		entry = findEntry(exif, exif_ifd, 0x829A);
+		assertEquals(0.033333, readRational(exif, getValuePos(exif, entry)), 1.0e-6);
+		assertEquals(400, readShort(exif, findEntry(exif, exif_ifd, 0x8827) + 8));
+		assertEquals(date_time, readAscii(exif, findEntry(exif, exif_ifd, 0x9003)));
+
+		int gps_ifd = (int)readLong(exif, findEntry(exif, 8, 0x8825) + 8);
+		assertEquals("N", readAscii(exif, findEntry(exif, gps_ifd, 0x0001)));
+		int pos = getValuePos(exif, findEntry(exif, gps_ifd, 0x0002));
+		assertEquals(51.0, readRational(exif, pos), 0.0);
+		assertEquals(30.0, readRational(exif, pos+8), 0.0);
+		assertEquals(0.0, readRational(exif, pos+16), 0.0);
+		assertEquals("W", readAscii(exif, findEntry(exif, gps_ifd, 0x0003)));
+		pos = getValuePos(exif, findEntry(exif, gps_ifd, 0x0004));
+		assertEquals(0.0, readRational(exif, pos), 0.0);
+		assertEquals(7.0, readRational(exif, pos+8), 0.0);
+		assertEquals(30.0, readRational(exif, pos+16), 0.0);
+		assertEquals(1, exif[findEntry(exif, gps_ifd, 0x0005) + 8]);
+		assertEquals(12.5, readRational(exif, getValuePos(exif, findEntry(exif, gps_ifd, 0x0006))), 0.0);
+
+		// values outside the entries are word aligned, and within the segment
+		assertTrue((getValuePos(exif, findEntry(exif, 8, 0x0132)) - tiff_start_c) % 2 == 0);
+		assertTrue(getValuePos(exif, findEntry(exif, gps_ifd, 0x0006)) + 8 <= exif.length);
+	}
+
+	/** Only the tags that have been set are written.
+	 */
+	@Test
+	public void testCreateSegmentMinimal() {
+		JpegExif.Tags tags = new JpegExif.Tags();
+		byte [] exif = JpegExif.createSegment(tags);
+		assertEquals(1, readShort(exif, tiff_start_c + 8));
+		assertEquals(1, readShort(exif, findEntry(exif, 8, 0x0112) + 8));
+		assertEquals(-1, findEntry(exif, 8, 0x8769));
+		assertEquals(-1, findEntry(exif, 8, 0x8825));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInsertNotJpeg() {
+		JpegExif.insertSegment(new byte[]{0, 0, 0, 0}, 4, JpegExif.createOrientationSegment(1));
+	}
+}
@@ -0,0 +1,279 @@
+package com.example.opencameratesting.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Tests NoiseReductionMerger with synthetic bursts: frames are crops of a larger scene with
+ *  smooth random texture (so that alignment has something to lock on to at every level of the
+ *  pyramid), optionally shifted, with noise added, or with part of the scene changed.
+ */
+public class NoiseReductionMergerTest {
+	private final static int width = 256;
+	private final static int height = 192;
+	private final static int margin = 64; // how far frames may be shifted within the scene
+	private final static int scene_width = width + 2*margin;
+	private final static int scene_height = height + 2*margin;
+
+	/** Returns the luminance of a scene, as the sum of random values on a fine and a coarse grid,
+	 *  each interpolated bilinearly.
+	 */
+	private static int [] createScene(long seed) {
+		Random random = new Random(seed);
+		double [] fine = createGrid(random, 8);
+		double [] coarse = createGrid(random, 32);
+		int [] scene = new int[scene_width*scene_height];
+		for(int y=0;y<scene_height;y++) {
+			for(int x=0;x<scene_width;x++) {
+				double value = 30.0 + 80.0*interpolate(fine, 8, x, y) + 110.0*interpolate(coarse, 32, x, y);
+				scene[y*scene_width+x] = (int)Math.round(value);
+			}
+		}
+		return scene;
+	}
+
+	private static double [] createGrid(Random random, int spacing) {
+		int grid_width = scene_width/spacing + 2;
+		int grid_height = scene_height/spacing + 2;
+		double [] grid = new double[grid_width*grid_height];
+		for(int i=0;i<grid.length;i++) {
+			grid[i] = random.nextDouble();
+		}
+		return grid;
+	}
+
+	private static double interpolate(double [] grid, int spacing, int x, int y) {
+		int grid_width = scene_width/spacing + 2;
+		int gx = x/spacing, gy = y/spacing;
+		double fx = (x % spacing)/(double)spacing, fy = (y % spacing)/(double)spacing;
+		double top = (1.0-fx)*grid[gy*grid_width+gx] + fx*grid[gy*grid_width+gx+1];
+		double bottom = (1.0-fx)*grid[(gy+1)*grid_width+gx] + fx*grid[(gy+1)*grid_width+gx+1];
+		return (1.0-fy)*top + fy*bottom;
+	}
+
+	private static int toColor(int value) {
+		value = Math.max(0, Math.min(255, value));
+		return 0xff000000 | (value << 16) | (value << 8) | (value/2);
+	}
+
+	/** Returns the frame seen when the camera has moved by (dx, dy) from the centre of the scene,
+	 *  so that the frame's pixel at (x+dx, y+dy) shows what the unmoved frame has at (x, y).
+	 */
+	private static int [] createFrame(int [] scene, int dx, int dy) {
+		int [] frame = new int[width*height];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				frame[y*width+x] = toColor(scene[(y+margin-dy)*scene_width + x+margin-dx]);
+			}
+		}
+		return frame;
+	}
+
+	private static int [] createNoisyFrame(int [] scene, Random random, double sigma) {
+		int [] frame = new int[width*height];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				int value = scene[(y+margin)*scene_width + x+margin];
+				frame[y*width+x] = toColor((int)Math.round(value + sigma*random.nextGaussian()));
+			}
+		}
+		return frame;
+	}
+
+	/** Returns the mean absolute difference of the red channel over the rectangle x0 to x1, y0 to
+	 *  y1 (exclusive).
+	 */
+	private static double meanError(int [] expected, int [] actual, int x0, int y0, int x1, int y1) {
+		long total = 0;
+		for(int y=y0;y<y1;y++) {
+			for(int x=x0;x<x1;x++) {
+				total += Math.abs(((expected[y*width+x] >> 16) & 0xff) - ((actual[y*width+x] >> 16) & 0xff));
+			}
+		}
+		return total/(double)((x1-x0)*(y1-y0));
+	}
+
+	private static double rmsError(int [] scene, int [] actual) {
+		double total = 0.0;
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				int expected = Math.max(0, Math.min(255, scene[(y+margin)*scene_width + x+margin]));
+				double diff = ((actual[y*width+x] >> 16) & 0xff) - expected;
+				total += diff*diff;
+			}
+		}
+		return Math.sqrt(total/(width*height));
+	}
+
+	/** A shift that's a whole number of pixels at the coarsest level is found by the global
+	 *  alignment, and merging then reproduces the reference wherever the frames overlap.
+	 */
+	@Test
+	public void testGlobalShift() {
+		int [] scene = createScene(1);
+		int [] reference = createFrame(scene, 0, 0);
+		NoiseReductionMerger merger = new NoiseReductionMerger(width, height);
+		merger.addFrame(reference);
+		merger.addFrame(createFrame(scene, 32, -16));
+		assertEquals(32, merger.getGlobalOffsetX());
+		assertEquals(-16, merger.getGlobalOffsetY());
+		int [] result = new int[width*height];
+		merger.getResult(result);
+		assertEquals(0.0, meanError(reference, result, 32, 32, 192, 160), 0.0);
+	}
+
+	/** Other shifts are found to the nearest coarse pixel by the global alignment, then refined
+	 *  for each tile.
+	 */
+	@Test
+	public void testTileShift() {
+		int [] scene = createScene(2);
+		int [] reference = createFrame(scene, 0, 0);
+		NoiseReductionMerger merger = new NoiseReductionMerger(width, height);
+		merger.addFrame(reference);
+		merger.addFrame(createFrame(scene, 35, -13));
+		assertEquals(32, merger.getGlobalOffsetX());
+		assertEquals(-16, merger.getGlobalOffsetY());
+		int [] result = new int[width*height];
+		merger.getResult(result);
+		assertEquals(0.0, meanError(reference, result, 32, 32, 192, 160), 0.0);
+	}
+
+	@Test
+	public void testNoiseReduction() {
+		final int n_frames = 8;
+		final double sigma = 8.0;
+		int [] scene = createScene(3);
+		Random random = new Random(0);
+		int [] frame = createNoisyFrame(scene, random, sigma);
+		double single_error = rmsError(scene, frame);
+		NoiseReductionMerger merger = new NoiseReductionMerger(width, height);
+		merger.addFrame(frame);
+		for(int i=1;i<n_frames;i++) {
+			merger.addFrame(createNoisyFrame(scene, random, sigma));
+		}
+		assertTrue(merger.getNoiseLevel() > 1.0f);
+		int [] result = new int[width*height];
+		merger.getResult(result);
+		double merged_error = rmsError(scene, result);
+		// averaging 8 frames would ideally reduce the noise by a factor of about 2.8
+		assertTrue("noise not reduced: " + single_error + " to " + merged_error, merged_error < 0.5*single_error);
+	}
+
+	/** A tile where something has moved after the reference was taken is given (almost) no
+	 *  weight, rather than being averaged in as a ghost.
+	 */
+	@Test
+	public void testGhosting() {
+		int [] scene = createScene(4);
+		int [] other_scene = createScene(5);
+		int [] reference = createFrame(scene, 0, 0);
+		int [] moved = createFrame(scene, 0, 0);
+		int [] other = createFrame(other_scene, 0, 0);
+		final int x0 = 3*NoiseReductionMerger.TILE_SIZE, y0 = 2*NoiseReductionMerger.TILE_SIZE;
+		final int x1 = x0 + NoiseReductionMerger.TILE_SIZE, y1 = y0 + NoiseReductionMerger.TILE_SIZE;
+		for(int y=y0;y<y1;y++) {
+			System.arraycopy(other, y*width+x0, moved, y*width+x0, x1-x0);
+		}
+		double moved_error = meanError(reference, moved, x0, y0, x1, y1);
+		assertTrue(moved_error > 10.0);
+
+		NoiseReductionMerger merger = new NoiseReductionMerger(width, height);
+		merger.addFrame(reference);
+		for(int i=0;i<3;i++) {
+			merger.addFrame(moved);
+		}
+		int [] result = new int[width*height];
+		merger.getResult(result);
+		// a plain average would be 3/4 of the way to the moved frame
+		double error = meanError(reference, result, x0, y0, x1, y1);
+		assertTrue("ghosting: " + error + " vs " + moved_error, error < 0.1*moved_error);
+	}
+
+	/** Frames are folded in one at a time, with a valid result at each step, and reset() starts a
+	 *  new burst with nothing left over from the previous one.
+	 */
+	@Test
+	public void testReset() {
+		int [] scene_a = createScene(6);
+		int [] scene_b = createScene(7);
+		int [] frame_b = createFrame(scene_b, 0, 0);
+		NoiseReductionMerger merger = new NoiseReductionMerger(width, height);
+		int [] result = new int[width*height];
+		for(int i=0;i<3;i++) {
+			merger.addFrame(createFrame(scene_a, 0, 0));
+			assertEquals(i+1, merger.getNFrames());
+		}
+
+		merger.reset();
+		assertEquals(0, merger.getNFrames());
+		merger.addFrame(frame_b);
+		merger.getResult(result);
+		assertArrayEquals(frame_b, result);
+		merger.addFrame(frame_b);
+		assertEquals(2, merger.getNFrames());
+		assertEquals(0, merger.getGlobalOffsetX());
+		assertEquals(0, merger.getGlobalOffsetY());
+		merger.getResult(result);
+		assertArrayEquals(frame_b, result);
+	}
+
+	/** The maximum number of frames of the brightest value must not overflow the sums.
+	 */
+	@Test
+	public void testMaxFrames() {
+		int [] frame = new int[width*height];
+		Arrays.fill(frame, 0xffffffff);
+		NoiseReductionMerger merger = new NoiseReductionMerger(width, height);
+		for(int i=0;i<NoiseReductionMerger.MAX_FRAMES;i++) {
+			merger.addFrame(frame);
+		}
+		int [] result = new int[width*height];
+		merger.getResult(result);
+		assertArrayEquals(frame, result);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testTooManyFrames() {
+		int [] frame = createFrame(createScene(8), 0, 0);
+		NoiseReductionMerger merger = new NoiseReductionMerger(width, height);
+		for(int i=0;i<=NoiseReductionMerger.MAX_FRAMES;i++) {
+			merger.addFrame(frame);
+		}
+	}
+
+	@Test
+	public void testThreading() {
+		int [] scene = createScene(9);
+		Random random = new Random(1);
+		int [][] frames = new int[4][];
+		for(int i=0;i<frames.length;i++) {
+			frames[i] = createNoisyFrame(scene, random, 6.0);
+		}
+		int [] result_single = new int[width*height];
+		int [] result_parallel = new int[width*height];
+		ForkJoinPool pool = new ForkJoinPool(1);
+		try {
+			NoiseReductionMerger merger = new NoiseReductionMerger(width, height, pool);
+			for(int [] frame : frames) {
+				merger.addFrame(frame);
+			}
+			merger.getResult(result_single);
+		}
+		finally {
+			pool.shutdown();
+		}
+		NoiseReductionMerger merger = new NoiseReductionMerger(width, height);
+		for(int [] frame : frames) {
+			merger.addFrame(frame);
+		}
+		merger.getResult(result_parallel);
+		assertArrayEquals(result_single, result_parallel);
+	}
+}
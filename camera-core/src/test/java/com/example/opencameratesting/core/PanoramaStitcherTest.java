@@ -0,0 +1,153 @@
+package com.example.opencameratesting.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests PanoramaStitcher with synthetic frames: views of a scene painted on a cylinder around
+ *  the camera, rendered for a camera panning from left to right.
+ */
+public class PanoramaStitcherTest {
+	private final static int width = 240;
+	private final static int height = 180;
+	private final static float focal_length = 200.0f;
+
+	/** Returns the scene's brightness in the direction with the supplied angle and height on the
+	 *  unit cylinder.
+	 */
+	private static int getScene(double angle, double h) {
+		double value = 128.0 + 60.0*Math.sin(5.0*angle)*Math.cos(7.0*h) + 30.0*Math.sin(40.0*angle + 3.0*h);
+		return Math.max(0, Math.min(255, (int)value));
+	}
+
+	/** Returns the orientation for a camera panned to the right by the supplied angle.
+	 */
+	private static float [] createOrientation(double pan) {
+		float c = (float)Math.cos(pan), s = (float)Math.sin(pan);
+		return new float[] {
+				c, 0.0f, -s,
+				0.0f, 1.0f, 0.0f,
+				s, 0.0f, c
+		};
+	}
+
+	private static int [] renderFrame(float [] orientation) {
+		int [] frame = new int[width*height];
+		float [] direction = new float[3];
+		float [] world = new float[3];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				RotationMath.setVector(direction, (x - 0.5f*(width-1))/focal_length, -(y - 0.5f*(height-1))/focal_length, -1.0f);
+				RotationMath.transformVector(world, orientation, direction);
+				double angle = Math.atan2(world[0], -world[2]);
+				double h = world[1]/Math.hypot(world[0], world[2]);
+				int value = getScene(angle, h);
+				frame[y*width+x] = 0xff000000 | (value << 16) | (value << 8) | value;
+			}
+		}
+		return frame;
+	}
+
+	private static PanoramaStitcher stitch(ForkJoinPool pool, double [] pans) {
+		PanoramaStitcher stitcher = new PanoramaStitcher(width, height, focal_length, (float)-Math.PI, (float)Math.PI, pool);
+		for(double pan : pans) {
+			assertTrue(stitcher.addFrame(renderFrame(createOrientation(pan)), createOrientation(pan)));
+		}
+		return stitcher;
+	}
+
+	@Test
+	public void testStitch() {
+		double [] pans = {0.0, 0.4, 0.8, 1.2};
+		PanoramaStitcher stitcher = stitch(ForkJoinPool.commonPool(), pans);
+		assertEquals(pans.length, stitcher.getNFrames());
+		int [] crop = stitcher.getCrop();
+		// covers from the left of the first frame to the right of the last
+		double half_fov = Math.atan(0.5*width/focal_length);
+		int canvas_width = stitcher.getCanvasWidth();
+		int canvas_height = stitcher.getCanvasHeight();
+		int first_column = stitcher.getFirstFrameColumn();
+		assertEquals(first_column - half_fov*focal_length, crop[0], 3.0);
+		assertEquals(first_column + (1.2 + half_fov)*focal_length, crop[2], 3.0);
+		// the frame edges are shorter on the cylinder, by the cosine of their angle
+		assertTrue(crop[3] - crop[1] > height*Math.cos(half_fov) - 3);
+
+		// compare with the scene
+		int [] canvas = stitcher.getCanvas();
+		double total_error = 0.0;
+		int n_pixels = 0;
+		for(int y=crop[1];y<crop[3];y++) {
+			for(int x=crop[0];x<crop[2];x++) {
+				int color = canvas[y*canvas_width+x];
+				assertEquals(0xff, color >>> 24);
+				double angle = (x - first_column)/focal_length;
+				double h = (canvas_height/2.0 - y)/focal_length;
+				total_error += Math.abs((color & 0xff) - getScene(angle, h));
+				n_pixels++;
+			}
+		}
+		double mean_error = total_error/n_pixels;
+		assertTrue("mean error: " + mean_error, mean_error < 3.0);
+	}
+
+	@Test
+	public void testThreading() {
+		double [] pans = {0.0, 0.3, -0.35};
+		ForkJoinPool pool = new ForkJoinPool(1);
+		PanoramaStitcher stitcher_single;
+		try {
+			stitcher_single = stitch(pool, pans);
+		}
+		finally {
+			pool.shutdown();
+		}
+		PanoramaStitcher stitcher_parallel = stitch(ForkJoinPool.commonPool(), pans);
+		assertArrayEquals(stitcher_single.getCanvas(), stitcher_parallel.getCanvas());
+		assertArrayEquals(stitcher_single.getCrop(), stitcher_parallel.getCrop());
+	}
+
+	@Test
+	public void testRotatedFrames() {
+		double [] pans = {0.0, 0.5};
+		PanoramaStitcher stitcher = new PanoramaStitcher(width, height, focal_length, -1.0f, 2.0f);
+		PanoramaStitcher stitcher_rotated = new PanoramaStitcher(width, height, focal_length, -1.0f, 2.0f);
+		for(double pan : pans) {
+			float [] orientation = createOrientation(pan);
+			int [] frame = renderFrame(orientation);
+			// store rotated anti-clockwise, so it needs rotating 90 degrees clockwise to be upright
+			int [] rotated = new int[width*height];
+			for(int y=0;y<height;y++) {
+				for(int x=0;x<width;x++) {
+					rotated[(width-1-x)*height+y] = frame[y*width+x];
+				}
+			}
+			assertTrue(stitcher.addFrame(frame, orientation));
+			assertTrue(stitcher_rotated.addFrame(rotated, 90, orientation));
+		}
+		int [] canvas = stitcher.getCanvas();
+		int [] canvas_rotated = stitcher_rotated.getCanvas();
+		for(int i=0;i<canvas.length;i++) {
+			assertEquals(canvas[i] >>> 24, canvas_rotated[i] >>> 24);
+			// may differ slightly from rounding the interpolation weights
+			assertEquals(canvas[i] & 0xff, canvas_rotated[i] & 0xff, 2.0);
+		}
+	}
+
+	@Test
+	public void testOutsideCanvas() {
+		PanoramaStitcher stitcher = new PanoramaStitcher(width, height, focal_length, -0.5f, 1.0f);
+		assertNull(stitcher.getCrop());
+		assertTrue(stitcher.addFrame(renderFrame(createOrientation(0.0)), createOrientation(0.0)));
+		assertFalse(stitcher.addFrame(renderFrame(createOrientation(1.2)), createOrientation(1.2)));
+		assertEquals(1, stitcher.getNFrames());
+		stitcher.reset();
+		assertNull(stitcher.getCrop());
+		assertEquals(0, stitcher.getNFrames());
+	}
+}
@@ -0,0 +1,105 @@
+package com.example.opencameratesting.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelRowsTest {
+	/** Records how many times each row was run, and the largest range passed to the body.
+	 */
+	private static class CountingBody implements ParallelRows.Body {
+		final AtomicIntegerArray counts;
+		final AtomicInteger n_calls = new AtomicInteger();
+		final AtomicInteger max_range = new AtomicInteger();
+
+		CountingBody(int n_rows) {
+			counts = new AtomicIntegerArray(n_rows);
+		}
+
+		@Override
+		public void run(int start, int end) {
+			n_calls.incrementAndGet();
+			while( true ) {
+				int max = max_range.get();
+				if( end - start <= max || max_range.compareAndSet(max, end - start) )
+					break;
+			}
+			for(int i=start;i<end;i++) {
+				counts.incrementAndGet(i);
+			}
+		}
+	}
+
+	/** Each row in the range is run exactly once, in ranges no larger than the grain size.
+	 */
+	@Test
+	public void testCoverage() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			CountingBody body = new CountingBody(110);
+			ParallelRows.run(pool, 5, 105, 3, body);
+			for(int i=0;i<110;i++) {
+				assertEquals("row " + i, i >= 5 && i < 105 ? 1 : 0, body.counts.get(i));
+			}
+			assertTrue(body.max_range.get() <= 3);
+			assertTrue(body.n_calls.get() >= 100/3);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testSingleThread() {
+		ForkJoinPool pool = new ForkJoinPool(1);
+		try {
+			CountingBody body = new CountingBody(100);
+			ParallelRows.run(pool, 0, 100, 1, body);
+			// not split, as there's nothing to gain
+			assertEquals(1, body.n_calls.get());
+			assertEquals(100, body.max_range.get());
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testSmallRange() {
+		CountingBody body = new CountingBody(10);
+		ParallelRows.run(ForkJoinPool.commonPool(), 2, 6, 8, body);
+		assertEquals(1, body.n_calls.get());
+		assertEquals(4, body.max_range.get());
+	}
+
+	@Test
+	public void testEmptyRange() {
+		CountingBody body = new CountingBody(10);
+		ParallelRows.run(ForkJoinPool.commonPool(), 5, 5, 1, body);
+		ParallelRows.run(ForkJoinPool.commonPool(), 5, 2, 1, body);
+		assertEquals(0, body.n_calls.get());
+	}
+
+	/** A grain size of 0 or less is treated as 1.
+	 */
+	@Test
+	public void testZeroGrain() {
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			CountingBody body = new CountingBody(20);
+			ParallelRows.run(pool, 0, 20, 0, body);
+			assertEquals(20, body.n_calls.get());
+			for(int i=0;i<20;i++) {
+				assertEquals(1, body.counts.get(i));
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+}